@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.benchmarks;
+
+import org.openjdk.jmh.results.BenchmarkResult;
+import org.openjdk.jmh.results.RunResult;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Allocation budgets in bytes per operation, keyed by benchmark class and
+ * method:
+ *
+ *     DeployResultBenchmark.toDeployResult.base=4096
+ *     DeployResultBenchmark.toDeployResult.perEnv=512
+ *
+ * Budget for a run is `base + perEnv * envCount`. Benchmarks without a budget
+ * are not checked
+ */
+public class AllocationBudget {
+
+    /**
+     * Suffix of the secondary result from GCProfiler giving bytes allocated
+     * per operation (older JMH releases prefix the name with a dot)
+     */
+    public static final String ALLOC_RATE_NORM = "gc.alloc.rate.norm";
+
+    public static final String DEFAULT_BUDGETS = "/allocation-budgets.properties";
+
+    private final Properties budgets;
+
+    public AllocationBudget(Properties budgets) {
+        this.budgets = budgets;
+    }
+
+    /**
+     * @param file properties file to load or null to use the bundled budgets
+     */
+    public static AllocationBudget load(String file) throws IOException {
+        Properties budgets = new Properties();
+        try (InputStream is = (file == null) ?
+                AllocationBudget.class.getResourceAsStream(DEFAULT_BUDGETS) :
+                new FileInputStream(file)) {
+            if (is == null) {
+                throw new IOException("allocation budgets not found: " + DEFAULT_BUDGETS);
+            }
+            budgets.load(is);
+        }
+        return new AllocationBudget(budgets);
+    }
+
+    /**
+     * @return budget in bytes per operation or -1 if the benchmark has none
+     */
+    public long budgetFor(String benchmark, int envCount) {
+        String base = budgets.getProperty(benchmark + ".base");
+        if (base == null) {
+            return -1;
+        }
+        long perEnv = Long.parseLong(budgets.getProperty(benchmark + ".perEnv", "0").trim());
+        return Long.parseLong(base.trim()) + perEnv * envCount;
+    }
+
+    /**
+     * @return human readable description of each budget exceeded, empty if
+     *         everything fits
+     */
+    public List<String> check(Collection<RunResult> results) {
+        List<String> violations = new ArrayList<>();
+        for (RunResult runResult : results) {
+            String benchmark = shortName(runResult.getParams().getBenchmark());
+            String param = runResult.getParams().getParam("envCount");
+            int envCount = (param == null) ? 0 : Integer.parseInt(param);
+
+            long budget = budgetFor(benchmark, envCount);
+            double allocated = allocated(runResult);
+            if (budget >= 0 && allocated > budget) {
+                violations.add(String.format(
+                        "%s(envCount=%d) allocated %.0f B/op, budget %d B/op",
+                        benchmark, envCount, allocated, budget));
+            }
+        }
+        return violations;
+    }
+
+    /**
+     * @return bytes allocated per operation or -1 if GCProfiler was not used
+     */
+    static double allocated(RunResult runResult) {
+        BenchmarkResult aggregated = runResult.getAggregatedResult();
+        for (String label : aggregated.getSecondaryResults().keySet()) {
+            if (label.endsWith(ALLOC_RATE_NORM)) {
+                return aggregated.getSecondaryResults().get(label).getScore();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return `Class.method` from a fully qualified benchmark name
+     */
+    static String shortName(String benchmark) {
+        int method = benchmark.lastIndexOf('.');
+        int clazz = benchmark.lastIndexOf('.', method - 1);
+        return benchmark.substring(clazz + 1);
+    }
+}
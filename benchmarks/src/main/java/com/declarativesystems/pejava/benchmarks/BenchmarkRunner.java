@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Run the benchmarks with GCProfiler attached and fail (exit 1) if any
+ * benchmark allocates more per operation than its budget. Accepts the regular
+ * JMH command line, eg:
+ *
+ *     java -jar target/benchmarks.jar DeployResultBenchmark -p envCount=100
+ *
+ * Use `-Dpejava.allocationBudgets=FILE` to check against a different budget
+ * file
+ */
+public class BenchmarkRunner {
+
+    public static final String BUDGETS_PROPERTY = "pejava.allocationBudgets";
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        Collection<RunResult> results = new Runner(options).run();
+
+        AllocationBudget budget = AllocationBudget.load(System.getProperty(BUDGETS_PROPERTY));
+        List<String> violations = budget.check(results);
+        if (violations.isEmpty()) {
+            System.out.println("All benchmarks within allocation budget");
+        } else {
+            for (String violation : violations) {
+                System.err.println("Allocation budget exceeded: " + violation);
+            }
+            System.exit(1);
+        }
+    }
+}
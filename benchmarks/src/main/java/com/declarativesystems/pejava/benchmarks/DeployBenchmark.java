@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.benchmarks;
+
+import com.declarativesystems.pejava.codemanager.DeployImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import test.com.declarativesystems.codemanager.MockCodeManager;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end DeployImpl.deployCode over HTTPS against the in-JVM
+ * MockCodeManager. The connection is pooled so this measures request, response
+ * and parsing rather than the TLS handshake
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeployBenchmark {
+
+    @Param({"1", "100", "5000"})
+    public int envCount;
+
+    private MockCodeManager mockCodeManager;
+    private DeployImpl deploy;
+    private String caCert;
+    private String[] environments;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        mockCodeManager = new MockCodeManager().start();
+        deploy = new DeployImpl();
+        caCert = MockCodeManager.caCert();
+        environments = SyntheticResponses.environments(envCount);
+        deploy.warmUp(mockCodeManager.getAddress(), caCert);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        deploy.close();
+        mockCodeManager.close();
+    }
+
+    @Benchmark
+    public String deployCode() throws Exception {
+        return deploy.deployCode(
+                mockCodeManager.getAddress(), MockCodeManager.TOKEN_OK, caCert, environments, true);
+    }
+}
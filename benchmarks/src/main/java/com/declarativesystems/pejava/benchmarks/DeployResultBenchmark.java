@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.benchmarks;
+
+import com.declarativesystems.pejava.codemanager.DeployReconciler;
+import com.declarativesystems.pejava.codemanager.DeployResult;
+import com.declarativesystems.pejava.codemanager.DeployResultRenderer;
+import com.declarativesystems.pejava.codemanager.Reconciliation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Response handling in DeployResult, from a single environment up to the
+ * size of a very large control repository
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeployResultBenchmark {
+
+    @Param({"1", "100", "5000", "50000"})
+    public int envCount;
+
+    private String response;
+    private Map<String, String> target;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        response = SyntheticResponses.deployResponse(envCount);
+        target = SyntheticResponses.target(envCount);
+    }
+
+    @Benchmark
+    public List<DeployResult> toDeployResult() {
+        return DeployResult.toDeployResult(response);
+    }
+
+    @Benchmark
+    public List<DeployResult> checkDeployResult() {
+        return DeployResult.checkDeployResult(response, target);
+    }
+
+    @Benchmark
+    public Reconciliation reconcile() throws IOException {
+        return DeployReconciler.reconcile(response, target);
+    }
+
+    @Benchmark
+    public String toHtmlTableRows() {
+        return DeployResult.toHtmlTableRows(response);
+    }
+
+    @Benchmark
+    public String prettyPrintJson() {
+        return DeployResult.prettyPrintJson(response);
+    }
+
+    @Benchmark
+    public int renderHtmlTableRows() throws IOException {
+        return DeployResultRenderer.htmlTableRows(new StringReader(response), DISCARD);
+    }
+
+    @Benchmark
+    public Writer renderPrettyJson() throws IOException {
+        DeployResultRenderer.prettyJson(new StringReader(response), DISCARD);
+        return DISCARD;
+    }
+
+    /**
+     * Output sink for the streaming renderers, so we only measure rendering
+     */
+    private static final Writer DISCARD = new Writer() {
+        @Override
+        public void write(char[] cbuf, int off, int len) {}
+
+        @Override
+        public Writer append(CharSequence csq) {
+            return this;
+        }
+
+        @Override
+        public Writer append(char c) {
+            return this;
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    };
+}
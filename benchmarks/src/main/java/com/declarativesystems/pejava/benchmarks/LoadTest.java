@@ -0,0 +1,473 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.benchmarks;
+
+import com.declarativesystems.pejava.codemanager.ApacheAsyncTransport;
+import com.declarativesystems.pejava.codemanager.ApacheTransport;
+import com.declarativesystems.pejava.codemanager.Deploy;
+import com.declarativesystems.pejava.codemanager.DeployImpl;
+import com.declarativesystems.pejava.codemanager.DeployMetrics;
+import com.declarativesystems.pejava.codemanager.DeployResult;
+import com.declarativesystems.pejava.codemanager.HttpClientRegistry;
+import com.declarativesystems.pejava.codemanager.JdkHttpTransport;
+import com.declarativesystems.pejava.codemanager.SimpleDeployMetrics;
+import com.declarativesystems.pejava.codemanager.SslContextCache;
+import com.declarativesystems.pejava.codemanager.Transport;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import test.com.declarativesystems.codemanager.MockCodeManager;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load test `DeployImpl` the way webhook traffic hits it: many deployments at
+ * once, arriving at a steady rate, against the in-JVM MockCodeManager.
+ * Reports throughput, the latency distribution (HdrHistogram), error rate,
+ * connections opened and held, and thread usage. For example:
+ *
+ *     java -cp target/benchmarks.jar com.declarativesystems.pejava.benchmarks.LoadTest \
+ *         --concurrency=64 --rate=200 --duration=60 --mix=production:70,feature:25,all:5
+ *
+ * Latency is measured from when each request was due to start, not when a
+ * worker got round to it, so a saturated client shows up as latency instead
+ * of being hidden (coordinated omission). Exits non-zero if `--max-p99` or
+ * `--max-error-rate` is exceeded
+ */
+public class LoadTest {
+
+    private static final String ALL = "all";
+
+    /**
+     * Latencies are recorded in microseconds, up to an hour
+     */
+    private static final long HIGHEST_MICROS = TimeUnit.HOURS.toMicros(1);
+
+    private final Map<String, String> options;
+
+    private final int concurrency;
+    private final double rate;
+    private final long durationMillis;
+    private final long warmupMillis;
+    private final boolean wait;
+    private final boolean async;
+    private final String transportName;
+    private final Map<String, Integer> mix;
+    private final int totalWeight;
+
+    private final Histogram latency = new ConcurrentHistogram(HIGHEST_MICROS, 3);
+    private final LongAdder ok = new LongAdder();
+    private final LongAdder failedEnvironments = new LongAdder();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final AtomicLong measuredFrom = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    LoadTest(Map<String, String> options) {
+        this.options = options;
+        this.concurrency = intOption("concurrency", 16);
+        this.rate = Double.parseDouble(option("rate", "0"));
+        this.durationMillis = TimeUnit.SECONDS.toMillis(intOption("duration", 30));
+        this.warmupMillis = TimeUnit.SECONDS.toMillis(intOption("warmup", 5));
+        this.wait = Boolean.parseBoolean(option("wait", "true"));
+        this.async = "async".equals(option("mode", "sync"));
+        this.transportName = option("transport", "apache");
+        this.mix = parseMix(option("mix", "production:1"));
+        int total = 0;
+        for (int weight : mix.values()) {
+            total += weight;
+        }
+        this.totalWeight = total;
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("--concurrency must be at least 1, got " + concurrency);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.equals("--help") || ! arg.startsWith("--") || ! arg.contains("=")) {
+                usage();
+                System.exit(arg.equals("--help") ? 0 : 2);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+
+        boolean passed = new LoadTest(options).run(System.out);
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: LoadTest [--option=value ...]");
+        System.err.println("  --concurrency=16        most deployments in flight at once");
+        System.err.println("  --rate=0                deployments started per second, 0 for as fast as possible");
+        System.err.println("  --duration=30           seconds to measure for");
+        System.err.println("  --warmup=5              seconds to run before measuring");
+        System.err.println("  --mix=production:1      environment:weight list, `all` means deploy-all");
+        System.err.println("  --wait=true             ask Code Manager to wait for each deployment");
+        System.err.println("  --mode=sync             sync (deployCode) or async (deployCodeAsync)");
+        System.err.println("  --transport=apache      apache, apache-async or jdk");
+        System.err.println("  --max-per-route=" + HttpClientRegistry.DEFAULT_MAX_PER_ROUTE + "      pooled connections per Puppet Master (apache transports)");
+        System.err.println("  --stub-latency=0        stub milliseconds per environment deployed");
+        System.err.println("  --stub-deployers=4      environments the stub deploys at once");
+        System.err.println("  --stub-environments=100 environments deployed by deploy-all");
+        System.err.println("  --max-p99=0             fail if p99 latency exceeds this many ms (0 = off)");
+        System.err.println("  --max-error-rate=1      fail if more than this fraction of requests fail");
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(option(name, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * @param spec `environment:weight,...`
+     */
+    static Map<String, Integer> parseMix(String spec) {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.trim().split(":");
+            int weight = (parts.length > 1) ? Integer.parseInt(parts[1]) : 1;
+            if (weight < 1) {
+                throw new IllegalArgumentException("Weight must be at least 1: " + entry);
+            }
+            mix.put(parts[0], weight);
+        }
+        return mix;
+    }
+
+    private String[] pickEnvironments() {
+        int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            pick -= entry.getValue();
+            if (pick < 0) {
+                return ALL.equals(entry.getKey()) ? null : new String[]{entry.getKey()};
+            }
+        }
+        throw new IllegalStateException("unreachable");
+    }
+
+    private Transport transport(DeployMetrics metrics) {
+        int maxPerRoute = intOption("max-per-route", HttpClientRegistry.DEFAULT_MAX_PER_ROUTE);
+        HttpClientRegistry clientRegistry = new HttpClientRegistry(
+                new SslContextCache(),
+                maxPerRoute,
+                Math.max(maxPerRoute, HttpClientRegistry.DEFAULT_MAX_TOTAL),
+                HttpClientRegistry.DEFAULT_KEEP_ALIVE_MILLIS,
+                HttpClientRegistry.DEFAULT_MAX_IDLE_MILLIS,
+                metrics);
+        switch (transportName) {
+            case "apache":
+                return new ApacheTransport(clientRegistry);
+            case "apache-async":
+                return new ApacheAsyncTransport(clientRegistry);
+            case "jdk":
+                return new JdkHttpTransport(metrics);
+            default:
+                throw new IllegalArgumentException("Unknown transport: " + transportName);
+        }
+    }
+
+    /**
+     * Run the load test and print the report
+     * @return true if within the `--max-p99` and `--max-error-rate` limits
+     */
+    boolean run(PrintStream out) throws Exception {
+        SimpleDeployMetrics metrics = new SimpleDeployMetrics();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int threadsBefore = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+
+        try (MockCodeManager mock = new MockCodeManager(intOption("stub-deployers", MockCodeManager.DEFAULT_DEPLOYERS)).start();
+             DeployImpl deploy = new DeployImpl(transport(metrics), metrics)) {
+            mock.setDeployLatency(intOption("stub-latency", 0));
+            mock.setEnvironmentCount(intOption("stub-environments", 100));
+            String master = mock.getAddress();
+            String caCert = MockCodeManager.caCert();
+
+            out.println(String.format(
+                    "Load test: concurrency=%d rate=%s duration=%ds warmup=%ds mode=%s transport=%s max-per-route=%s wait=%s mix=%s",
+                    concurrency, (rate > 0) ? rate + "/s" : "max", durationMillis / 1000, warmupMillis / 1000,
+                    async ? "async" : "sync", transportName, option("max-per-route", String.valueOf(HttpClientRegistry.DEFAULT_MAX_PER_ROUTE)),
+                    wait, mix));
+
+            Sampler sampler = new Sampler(port(master));
+            sampler.start();
+            ExecutorService workers = Executors.newFixedThreadPool(concurrency, r -> {
+                Thread t = new Thread(r, "loadtest-worker");
+                t.setDaemon(true);
+                return t;
+            });
+            Semaphore permits = new Semaphore(concurrency);
+
+            long start = System.nanoTime();
+            measuredFrom.set(start + TimeUnit.MILLISECONDS.toNanos(warmupMillis));
+            long end = measuredFrom.get() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+            long intervalNanos = (rate > 0) ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+            long next = start;
+            while (next < end) {
+                long now = System.nanoTime();
+                if (next > now) {
+                    TimeUnit.NANOSECONDS.sleep(next - now);
+                }
+                permits.acquire();
+                // closed loop: each request is due when a slot frees up
+                long due = (intervalNanos == 0) ? System.nanoTime() : next;
+                String[] environments = pickEnvironments();
+                if (async) {
+                    sendAsync(deploy, master, caCert, environments, due, permits, workers);
+                } else {
+                    workers.execute(() -> {
+                        try {
+                            send(deploy, master, caCert, environments, due);
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                }
+                next = (intervalNanos == 0) ? System.nanoTime() : next + intervalNanos;
+            }
+
+            // let everything in flight finish
+            permits.acquire(concurrency);
+            long elapsedNanos = System.nanoTime() - measuredFrom.get();
+            sampler.interrupt();
+            sampler.join();
+            workers.shutdownNow();
+
+            return report(out, elapsedNanos, sampler, metrics, master, threadsBefore, threads.getPeakThreadCount());
+        }
+    }
+
+    private void send(Deploy deploy, String master, String caCert, String[] environments, long due) {
+        inFlight.incrementAndGet();
+        try {
+            String response = deploy.deployCode(master, MockCodeManager.TOKEN_OK, caCert, environments, wait);
+            long end = System.nanoTime();
+            List<DeployResult> results = DeployResult.toDeployResultOrThrow(response);
+            completed(due, end, results, null);
+        } catch (Exception e) {
+            completed(due, System.nanoTime(), null, e);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void sendAsync(Deploy deploy, String master, String caCert, String[] environments, long due, Semaphore permits, Executor executor) {
+        inFlight.incrementAndGet();
+        CompletableFuture<List<DeployResult>> future;
+        try {
+            future = deploy.deployCodeAsync(master, MockCodeManager.TOKEN_OK, caCert, environments, wait, executor);
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        future.whenComplete((results, e) -> {
+            completed(due, System.nanoTime(), results, (e == null) ? null : (e.getCause() == null ? e : e.getCause()));
+            inFlight.decrementAndGet();
+            permits.release();
+        });
+    }
+
+    private void completed(long due, long end, List<DeployResult> results, Throwable error) {
+        if (due < measuredFrom.get()) {
+            // warming up
+            return;
+        }
+
+        latency.recordValue(Math.min(HIGHEST_MICROS, TimeUnit.NANOSECONDS.toMicros(end - due)));
+        if (error != null) {
+            errors.computeIfAbsent(error.getClass().getSimpleName(), k -> new LongAdder()).increment();
+            return;
+        }
+        ok.increment();
+        for (DeployResult result : results) {
+            if (DeployResult.STATUS_FAILED.equals(result.getStatus())) {
+                failedEnvironments.increment();
+            }
+        }
+    }
+
+    private boolean report(PrintStream out,
+                           long elapsedNanos,
+                           Sampler sampler,
+                           SimpleDeployMetrics metrics,
+                           String master,
+                           int threadsBefore,
+                           int peakThreads) {
+        long errorCount = 0;
+        for (LongAdder count : errors.values()) {
+            errorCount += count.sum();
+        }
+        long total = ok.sum() + errorCount;
+        double seconds = elapsedNanos / 1e9;
+        double errorRate = (total == 0) ? 0 : (double) errorCount / total;
+
+        out.println();
+        out.println("Latency (ms) by percentile:");
+        latency.outputPercentileDistribution(out, 5, 1000.0);
+        out.println();
+        out.println(String.format("Requests:     %d in %.1fs, %.1f/s", total, seconds, total / seconds));
+        out.println(String.format("Latency (ms): p50=%.2f p95=%.2f p99=%.2f p99.9=%.2f max=%.2f",
+                millis(latency.getValueAtPercentile(50)),
+                millis(latency.getValueAtPercentile(95)),
+                millis(latency.getValueAtPercentile(99)),
+                millis(latency.getValueAtPercentile(99.9)),
+                millis(latency.getMaxValue())));
+        out.println(String.format("Errors:       %d (%.2f%%) %s, failed environments %d",
+                errorCount, errorRate * 100, new TreeMap<>(errors), failedEnvironments.sum()));
+
+        SimpleDeployMetrics.Histogram handshakes = metrics.getHistogram(master, DeployMetrics.Phase.TLS_HANDSHAKE);
+        SimpleDeployMetrics.Histogram acquire = metrics.getHistogram(master, DeployMetrics.Phase.CONNECTION_ACQUIRE);
+        out.println(String.format("Connections:  opened %s, established peak %s mean %s, pool wait p99 %s",
+                (handshakes == null) ? "n/a" : String.valueOf(handshakes.getCount()),
+                sampler.describe(sampler.peakSockets),
+                sampler.describe(sampler.meanSockets()),
+                (acquire == null) ? "n/a" : String.format("%.2fms", acquire.getPercentileNanos(0.99) / 1e6)));
+        out.println(String.format("Threads:      %d before, peak %d, file descriptors peak %s",
+                threadsBefore, peakThreads, sampler.describe(sampler.peakFds)));
+
+        boolean passed = true;
+        double maxP99 = Double.parseDouble(option("max-p99", "0"));
+        if (maxP99 > 0 && millis(latency.getValueAtPercentile(99)) > maxP99) {
+            out.println("FAIL: p99 latency above " + maxP99 + "ms");
+            passed = false;
+        }
+        double maxErrorRate = Double.parseDouble(option("max-error-rate", "1"));
+        if (errorRate > maxErrorRate) {
+            out.println("FAIL: error rate above " + maxErrorRate);
+            passed = false;
+        }
+        return passed;
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private static int port(String address) {
+        return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+    }
+
+    /**
+     * Samples established connections to the stub and open file descriptors
+     * every 100ms. Connections are read from /proc/net/tcp so are only
+     * available on Linux
+     */
+    private static final class Sampler extends Thread {
+        private static final List<Path> TCP_TABLES = new ArrayList<>();
+
+        static {
+            TCP_TABLES.add(Paths.get("/proc/net/tcp"));
+            TCP_TABLES.add(Paths.get("/proc/net/tcp6"));
+        }
+
+        private final int port;
+        private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        private volatile long peakSockets = -1;
+        private volatile long peakFds = -1;
+        private long socketSamples;
+        private long socketTotal;
+
+        Sampler(int port) {
+            super("loadtest-sampler");
+            setDaemon(true);
+            this.port = port;
+        }
+
+        @Override
+        public void run() {
+            while (! isInterrupted()) {
+                long sockets = establishedTo(port);
+                if (sockets >= 0) {
+                    peakSockets = Math.max(peakSockets, sockets);
+                    socketTotal += sockets;
+                    socketSamples++;
+                }
+                if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+                    peakFds = Math.max(peakFds, ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount());
+                }
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        long meanSockets() {
+            return (socketSamples == 0) ? -1 : Math.round((double) socketTotal / socketSamples);
+        }
+
+        String describe(long value) {
+            return (value < 0) ? "n/a" : String.valueOf(value);
+        }
+
+        /**
+         * @return client-side connections in state ESTABLISHED to `port` or
+         *         -1 if this isn't Linux
+         */
+        private static long establishedTo(int port) {
+            String remote = String.format(":%04X", port);
+            long count = 0;
+            boolean found = false;
+            for (Path table : TCP_TABLES) {
+                if (! Files.isReadable(table)) {
+                    continue;
+                }
+                found = true;
+                try {
+                    for (String line : Files.readAllLines(table)) {
+                        // sl local_address rem_address st ...
+                        String[] fields = line.trim().split("\\s+");
+                        if (fields.length > 3 && fields[2].endsWith(remote) && "01".equals(fields[3])) {
+                            count++;
+                        }
+                    }
+                } catch (IOException e) {
+                    return -1;
+                }
+            }
+            return found ? count : -1;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.benchmarks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Synthetic Code Manager responses of any size. Every 10th environment failed,
+ * every 7th is queued and the rest completed with a 40 character signature
+ */
+public final class SyntheticResponses {
+
+    private SyntheticResponses() {}
+
+    public static String environment(int i) {
+        return "environment_" + i;
+    }
+
+    public static String signature(int i) {
+        return String.format("%040x", i);
+    }
+
+    /**
+     * @param envCount number of environments in the response
+     * @return JSON array as returned by POST /code-manager/v1/deploys
+     */
+    public static String deployResponse(int envCount) {
+        StringBuilder sb = new StringBuilder(envCount * 128).append('[');
+        for (int i = 0; i < envCount; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"environment\":\"").append(environment(i)).append("\",\"id\":").append(i);
+            if (i % 10 == 9) {
+                sb.append(",\"error\":{\"kind\":\"puppetlabs.code-manager/deploy-failure\",")
+                        .append("\"msg\":\"Errors while deploying environment\"},\"status\":\"failed\"}");
+            } else if (i % 7 == 6) {
+                sb.append(",\"status\":\"queued\"}");
+            } else {
+                sb.append(",\"deploy-signature\":\"").append(signature(i)).append("\",\"status\":\"complete\"}");
+            }
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * Target signatures for checkDeployResult: every 13th environment expects a
+     * different commit and one extra environment is never deployed
+     * @param envCount number of environments deployed
+     * @return Map of environment to expected signature
+     */
+    public static Map<String, String> target(int envCount) {
+        Map<String, String> target = new LinkedHashMap<>();
+        for (int i = 0; i < envCount; i++) {
+            target.put(environment(i), signature(i % 13 == 12 ? i + 1 : i));
+        }
+        target.put(environment(envCount), signature(envCount));
+        return target;
+    }
+
+    public static String[] environments(int envCount) {
+        String[] environments = new String[envCount];
+        for (int i = 0; i < envCount; i++) {
+            environments[i] = environment(i);
+        }
+        return environments;
+    }
+}
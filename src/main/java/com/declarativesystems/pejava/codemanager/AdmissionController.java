@@ -0,0 +1,310 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control for one Code Manager, see {@link AdmissionPolicy}.
+ *
+ * Callers get a {@link Permit} (blocking with `acquire()` or as a future with
+ * `acquireAsync()`) before sending a request and close it when the response
+ * has been read. Waiters are admitted in arrival order; a single scheduler
+ * task wakes the queue when the next rate limit token is due
+ */
+public class AdmissionController {
+
+    /**
+     * Permit to send one request. Closing it more than once is harmless
+     */
+    public final class Permit implements AutoCloseable {
+        private boolean closed;
+
+        private Permit() {}
+
+        @Override
+        public void close() {
+            synchronized (AdmissionController.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                inFlight--;
+            }
+            dispatch();
+        }
+    }
+
+    private final class Waiter {
+        private final CompletableFuture<Permit> future = new CompletableFuture<>();
+        private ScheduledFuture<?> timeout;
+    }
+
+    private final String host;
+    private final int maxConcurrent;
+    private final double ratePerNano;
+    private final int burst;
+    private final int maxQueued;
+    private final long queueTimeoutMillis;
+    private final ScheduledExecutorService scheduler;
+
+    // guarded by this
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    private int inFlight;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private boolean wakeupScheduled;
+    private long admitted;
+    private long queued;
+    private long rejected;
+    private long timedOut;
+
+    /**
+     * @param host name for exceptions
+     * @param policy limits
+     * @param scheduler runs queue timeouts and rate limit wake-ups
+     */
+    public AdmissionController(String host, AdmissionPolicy policy, ScheduledExecutorService scheduler) {
+        this.host = host;
+        this.maxConcurrent = policy.getMaxConcurrent();
+        this.ratePerNano = policy.getRatePerSecond() / TimeUnit.SECONDS.toNanos(1);
+        this.burst = policy.getBurst();
+        this.maxQueued = policy.getMaxQueued();
+        this.queueTimeoutMillis = policy.getQueueTimeoutMillis();
+        this.scheduler = scheduler;
+        this.tokens = burst;
+    }
+
+    /**
+     * Wait for permission to send a request
+     * @return permit to close once the response has been read
+     * @throws AdmissionRejectedException if the queue is full or the wait
+     *         timed out
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public Permit acquire() throws IOException {
+        CompletableFuture<Permit> future = acquireAsync();
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            // give up our place (or the permit if we just got it)
+            if (! future.cancel(false) && ! future.isCompletedExceptionally()) {
+                future.join().close();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to deploy to " + host);
+        } catch (ExecutionException e) {
+            throw (AdmissionRejectedException) e.getCause();
+        }
+    }
+
+    /**
+     * Ask for permission to send a request without blocking
+     * @return future of a permit to close once the response has been read.
+     *         Completes exceptionally with AdmissionRejectedException if the
+     *         queue is full or the wait timed out. Cancel it to leave the queue
+     */
+    public CompletableFuture<Permit> acquireAsync() {
+        Waiter waiter;
+        synchronized (this) {
+            refill();
+            if (queue.isEmpty() && canAdmit()) {
+                return CompletableFuture.completedFuture(admit());
+            }
+            if (queue.size() >= maxQueued) {
+                rejected++;
+                CompletableFuture<Permit> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new AdmissionRejectedException(
+                        "Too many deployments waiting for " + host + " (" + queue.size() + ")", false));
+                return failed;
+            }
+            waiter = new Waiter();
+            queue.add(waiter);
+            queued++;
+            scheduleWakeup();
+        }
+
+        try {
+            waiter.timeout = scheduler.schedule(() -> timeout(waiter), queueTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down - don't leave the caller waiting forever
+            timeout(waiter);
+        }
+        waiter.future.whenComplete((permit, e) -> {
+            if (waiter.future.isCancelled()) {
+                leave(waiter);
+            }
+        });
+        return waiter.future;
+    }
+
+    /**
+     * Requests currently in flight
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Requests currently waiting
+     */
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * Requests admitted so far
+     */
+    public synchronized long getAdmitted() {
+        return admitted;
+    }
+
+    /**
+     * Requests that had to wait so far
+     */
+    public synchronized long getQueuedTotal() {
+        return queued;
+    }
+
+    /**
+     * Requests refused because the queue was full
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Requests that gave up waiting
+     */
+    public synchronized long getTimedOut() {
+        return timedOut;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AdmissionController{" +
+                "host='" + host + '\'' +
+                ", inFlight=" + inFlight +
+                ", queued=" + queue.size() +
+                ", admitted=" + admitted +
+                ", rejected=" + rejected +
+                ", timedOut=" + timedOut +
+                '}';
+    }
+
+    private boolean canAdmit() {
+        return inFlight < maxConcurrent && (ratePerNano == 0 || tokens >= 1);
+    }
+
+    private Permit admit() {
+        inFlight++;
+        admitted++;
+        if (ratePerNano > 0) {
+            tokens--;
+        }
+        return new Permit();
+    }
+
+    private void refill() {
+        if (ratePerNano > 0) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - refilledAt) * ratePerNano);
+            refilledAt = now;
+        }
+    }
+
+    /**
+     * If the queue is only waiting for a rate limit token, wake it when one
+     * is due. Call with the lock held
+     */
+    private void scheduleWakeup() {
+        if (wakeupScheduled || queue.isEmpty() || inFlight >= maxConcurrent || tokens >= 1) {
+            return;
+        }
+        long delayNanos = (long) Math.ceil((1 - tokens) / ratePerNano);
+        try {
+            scheduler.schedule(() -> {
+                synchronized (this) {
+                    wakeupScheduled = false;
+                }
+                dispatch();
+            }, delayNanos, TimeUnit.NANOSECONDS);
+            wakeupScheduled = true;
+        } catch (RejectedExecutionException e) {
+            // shutting down - waiters will time out
+        }
+    }
+
+    /**
+     * Admit as many waiters as the limits allow
+     */
+    private void dispatch() {
+        List<Waiter> ready = new ArrayList<>();
+        List<Permit> permits = new ArrayList<>();
+        synchronized (this) {
+            refill();
+            while (! queue.isEmpty() && canAdmit()) {
+                ready.add(queue.poll());
+                permits.add(admit());
+            }
+            scheduleWakeup();
+        }
+
+        // complete outside the lock - callers may send their request inline
+        for (int i = 0; i < ready.size(); i++) {
+            Waiter waiter = ready.get(i);
+            if (waiter.timeout != null) {
+                waiter.timeout.cancel(false);
+            }
+            if (! waiter.future.complete(permits.get(i))) {
+                // cancelled while we were admitting it
+                permits.get(i).close();
+            }
+        }
+    }
+
+    private void timeout(Waiter waiter) {
+        synchronized (this) {
+            if (! queue.remove(waiter)) {
+                return;
+            }
+            timedOut++;
+        }
+        waiter.future.completeExceptionally(new AdmissionRejectedException(
+                "Timed out after " + queueTimeoutMillis + "ms waiting to deploy to " + host, true));
+    }
+
+    private void leave(Waiter waiter) {
+        synchronized (this) {
+            queue.remove(waiter);
+        }
+        if (waiter.timeout != null) {
+            waiter.timeout.cancel(false);
+        }
+    }
+}
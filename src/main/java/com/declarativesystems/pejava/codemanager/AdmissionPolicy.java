@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+/**
+ * How many deployments may be sent to one Code Manager at once and how fast.
+ *
+ * At most `maxConcurrent` deployment requests are in flight per Puppet Master
+ * and new ones start at no more than `ratePerSecond` (token bucket, allowing
+ * bursts of `burst`). Requests that can't start straight away wait in a FIFO
+ * queue of at most `maxQueued` for up to `queueTimeoutMillis`
+ */
+public final class AdmissionPolicy {
+
+    /**
+     * No limits - the default
+     */
+    public static final AdmissionPolicy UNLIMITED = new AdmissionPolicy(Integer.MAX_VALUE, 0, 1, 0, 1);
+
+    private final int maxConcurrent;
+    private final double ratePerSecond;
+    private final int burst;
+    private final int maxQueued;
+    private final long queueTimeoutMillis;
+
+    /**
+     * @param maxConcurrent most deployment requests in flight per Puppet Master
+     * @param ratePerSecond most new requests per second, 0 for no rate limit
+     * @param burst requests that may start back to back before the rate
+     *              limit applies
+     * @param maxQueued most requests waiting per Puppet Master, further
+     *                  requests are rejected
+     * @param queueTimeoutMillis longest time a request waits to start
+     */
+    public AdmissionPolicy(int maxConcurrent, double ratePerSecond, int burst, int maxQueued, long queueTimeoutMillis) {
+        if (maxConcurrent < 1 || burst < 1) {
+            throw new IllegalArgumentException(
+                    "need maxConcurrent and burst > 0, got " + maxConcurrent + ", " + burst);
+        }
+        if (ratePerSecond < 0 || maxQueued < 0 || queueTimeoutMillis < 1) {
+            throw new IllegalArgumentException(
+                    "need ratePerSecond >= 0, maxQueued >= 0 and queueTimeoutMillis > 0, got "
+                            + ratePerSecond + ", " + maxQueued + ", " + queueTimeoutMillis);
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst;
+        this.maxQueued = maxQueued;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public double getRatePerSecond() {
+        return ratePerSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public long getQueueTimeoutMillis() {
+        return queueTimeoutMillis;
+    }
+
+    /**
+     * @return true if this policy never makes a request wait
+     */
+    public boolean isUnlimited() {
+        return maxConcurrent == Integer.MAX_VALUE && ratePerSecond == 0;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import java.io.IOException;
+
+/**
+ * Deployment not sent because the Puppet Master's admission queue was full or
+ * the request waited too long to start
+ */
+public class AdmissionRejectedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final boolean timedOut;
+
+    public AdmissionRejectedException(String message, boolean timedOut) {
+        super(message);
+        this.timedOut = timedOut;
+    }
+
+    /**
+     * @return true if the request waited for the whole queue timeout, false if
+     *         the queue was full
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * {@link Transport} that sends everything, blocking calls included, through
+ * the Apache non-blocking client. Only the async client's I/O threads and
+ * connection pool are used, so a process making mostly async deployments
+ * doesn't also keep a blocking pool open per master
+ */
+public class ApacheAsyncTransport extends ApacheTransport {
+
+    public ApacheAsyncTransport() {
+        super();
+    }
+
+    /**
+     * @param clientRegistry where to get HTTP clients from. Closed along with
+     *                       this transport
+     */
+    public ApacheAsyncTransport(HttpClientRegistry clientRegistry) {
+        super(clientRegistry);
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException, CertificateException {
+        CompletableFuture<TransportResponse> future = executeAsync(request);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + request);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof NoSuchAlgorithmException) {
+                throw (NoSuchAlgorithmException) cause;
+            } else if (cause instanceof KeyStoreException) {
+                throw (KeyStoreException) cause;
+            } else if (cause instanceof KeyManagementException) {
+                throw (KeyManagementException) cause;
+            } else if (cause instanceof CertificateException) {
+                throw (CertificateException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * The async client connects on demand, so there is nothing to warm up
+     * @return false
+     */
+    @Override
+    public boolean warmUp(String puppetMasterFqdn, String caCert) {
+        return false;
+    }
+}
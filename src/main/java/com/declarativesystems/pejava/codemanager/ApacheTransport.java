@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * {@link Transport} using Apache HttpClient 4.5 from a
+ * {@link HttpClientRegistry}: the pooled blocking client for
+ * {@link #execute(TransportRequest)} and the non-blocking client for
+ * {@link #executeAsync(TransportRequest)}. This is what {@link DeployImpl}
+ * uses unless told otherwise
+ */
+public class ApacheTransport implements Transport {
+
+    protected final HttpClientRegistry clientRegistry;
+
+    public ApacheTransport() {
+        this(new HttpClientRegistry());
+    }
+
+    /**
+     * @param clientRegistry where to get HTTP clients from. Closed along with
+     *                       this transport
+     */
+    public ApacheTransport(HttpClientRegistry clientRegistry) {
+        this.clientRegistry = clientRegistry;
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException, CertificateException {
+        CloseableHttpResponse response = clientRegistry
+                .getClient(request.getPuppetMasterFqdn(), request.getCaCert())
+                .execute(httpRequest(request));
+        return new Response(response, response);
+    }
+
+    @Override
+    public CompletableFuture<TransportResponse> executeAsync(TransportRequest request) {
+        CompletableFuture<TransportResponse> result = new CompletableFuture<>();
+        CloseableHttpAsyncClient httpClient;
+        try {
+            httpClient = clientRegistry.getAsyncClient(request.getPuppetMasterFqdn(), request.getCaCert());
+        } catch (IOException|NoSuchAlgorithmException|KeyStoreException|KeyManagementException|CertificateException|RuntimeException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        Future<HttpResponse> httpFuture = httpClient.execute(httpRequest(request), new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                // the async client has already buffered the response
+                result.complete(new Response(response, null));
+            }
+
+            @Override
+            public void failed(Exception e) {
+                result.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                result.cancel(false);
+            }
+        });
+
+        // propagate cancellation from the caller to the HTTP request
+        result.whenComplete((response, e) -> {
+            if (result.isCancelled()) {
+                httpFuture.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public boolean warmUp(String puppetMasterFqdn, String caCert) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException, CertificateException {
+        return clientRegistry.warmUp(puppetMasterFqdn, caCert, DeployImpl.codeManagerHost(puppetMasterFqdn));
+    }
+
+    /**
+     * @return the registry HTTP clients come from
+     */
+    public HttpClientRegistry getClientRegistry() {
+        return clientRegistry;
+    }
+
+    @Override
+    public void close() throws IOException {
+        clientRegistry.close();
+    }
+
+    private static HttpRequestBase httpRequest(TransportRequest request) {
+        HttpRequestBase httpRequest;
+        if (TransportRequest.POST.equals(request.getMethod())) {
+            HttpPost post = new HttpPost(request.getUri());
+            post.setEntity(new ByteArrayEntity(request.getBody(), ContentType.APPLICATION_JSON));
+            httpRequest = post;
+        } else {
+            httpRequest = new HttpGet(request.getUri());
+        }
+        httpRequest.addHeader("accept", TransportRequest.CONTENT_TYPE_JSON);
+        httpRequest.addHeader("Accept-Encoding", TransportRequest.ACCEPT_ENCODING);
+        httpRequest.addHeader("X-Authentication", request.getToken());
+        return httpRequest;
+    }
+
+    /**
+     * Apache response. Closing the fully read content stream returns the
+     * connection to the pool, closing the response without reading it drops
+     * the connection
+     */
+    private static final class Response implements TransportResponse {
+        private final HttpResponse response;
+        private final CloseableHttpResponse closeable;
+        private InputStream content;
+
+        Response(HttpResponse response, CloseableHttpResponse closeable) {
+            this.response = response;
+            this.closeable = closeable;
+        }
+
+        @Override
+        public int getStatus() {
+            return response.getStatusLine().getStatusCode();
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            HttpEntity entity = response.getEntity();
+            content = (entity == null) ? new ByteArrayInputStream(new byte[0]) : entity.getContent();
+            return content;
+        }
+
+        @Override
+        public String getContentEncoding() {
+            Header header = response.getFirstHeader("Content-Encoding");
+            return (header == null) ? null : header.getValue();
+        }
+
+        @Override
+        public String getProtocol() {
+            return response.getStatusLine().getProtocolVersion().toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (content != null) {
+                    content.close();
+                }
+            } finally {
+                if (closeable != null) {
+                    closeable.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Fails with {@link ResponseTooLargeException} once more than a fixed number
+ * of bytes have been read through it, so an oversized (or decompression bomb)
+ * response is abandoned instead of exhausting the heap
+ */
+class BoundedInputStream extends FilterInputStream {
+    private final long limit;
+    private final String source;
+    private long count;
+
+    /**
+     * @param in stream to read
+     * @param limit most bytes to allow
+     * @param source where the bytes come from, for the error message
+     */
+    BoundedInputStream(InputStream in, long limit, String source) {
+        super(in);
+        this.limit = limit;
+        this.source = source;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            count(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count(skipped);
+        return skipped;
+    }
+
+    private void count(long n) throws ResponseTooLargeException {
+        count += n;
+        if (count > limit) {
+            throw new ResponseTooLargeException(
+                    "Response from " + source + " exceeded " + limit + " bytes", limit);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Deploy a long list of environments as several smaller deployments so that
+ * no single `wait` request runs into the socket timeout and one slow
+ * environment doesn't cost everyone else their results.
+ *
+ * The list is split into chunks of `chunkSize` environments and at most
+ * `maxParallel` chunks are in flight at once. A chunk that fails outright is
+ * sent again (up to `maxAttempts` times in all), as are environments Code
+ * Manager reports as `failed`. Results are merged back into the order the
+ * environments were requested in
+ */
+public class ChunkedDeploy {
+    private static Logger log = LoggerFactory.getLogger(ChunkedDeploy.class);
+
+    public static final int DEFAULT_CHUNK_SIZE = 50;
+
+    public static final int DEFAULT_MAX_PARALLEL = 4;
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 2;
+
+    private final Deploy deploy;
+
+    private final int chunkSize;
+
+    private final int maxParallel;
+
+    private final int maxAttempts;
+
+    private final Executor executor;
+
+    /**
+     * @param deploy Deploy implementation to send each chunk to
+     * @param executor Executor to process responses on
+     */
+    public ChunkedDeploy(Deploy deploy, Executor executor) {
+        this(deploy, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_PARALLEL, DEFAULT_MAX_ATTEMPTS, executor);
+    }
+
+    /**
+     * @param deploy Deploy implementation to send each chunk to
+     * @param chunkSize most environments to send in one deployment
+     * @param maxParallel most chunks in flight at once
+     * @param maxAttempts attempts per chunk (and per failed environment),
+     *                    including the first
+     * @param executor Executor to process responses on
+     */
+    public ChunkedDeploy(Deploy deploy, int chunkSize, int maxParallel, int maxAttempts, Executor executor) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be at least 1, got " + chunkSize);
+        }
+        if (maxParallel < 1) {
+            throw new IllegalArgumentException("maxParallel must be at least 1, got " + maxParallel);
+        }
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1, got " + maxAttempts);
+        }
+        this.deploy = deploy;
+        this.chunkSize = chunkSize;
+        this.maxParallel = maxParallel;
+        this.maxAttempts = maxAttempts;
+        this.executor = executor;
+    }
+
+    /**
+     * Deploy every environment in chunks and wait for them all to finish
+     * @param puppetMaster Puppet Master to deploy to
+     * @param environments Environments to deploy. An empty or null list means
+     *                     deploy all environments, which is sent as a single
+     *                     deployment
+     * @param wait Wait for each chunk to finish on the Puppet Master
+     * @return Results in the order environments were requested
+     * @throws ExecutionException if every chunk failed
+     */
+    public List<DeployResult> deployCode(PuppetMaster puppetMaster,
+                                         String[] environments,
+                                         boolean wait) throws InterruptedException, ExecutionException
+    {
+        return deployCodeAsync(puppetMaster, environments, wait).get();
+    }
+
+    /**
+     * Deploy every environment in chunks without blocking
+     * @param puppetMaster Puppet Master to deploy to
+     * @param environments Environments to deploy. An empty or null list means
+     *                     deploy all environments, which is sent as a single
+     *                     deployment
+     * @param wait Wait for each chunk to finish on the Puppet Master
+     * @return Future of the results in the order environments were requested.
+     *         Environments in chunks that still failed after `maxAttempts`
+     *         are reported as `failed`; the future only fails if every chunk
+     *         did. Cancelling it cancels the chunks in flight and stops any
+     *         more from starting
+     */
+    public CompletableFuture<List<DeployResult>> deployCodeAsync(PuppetMaster puppetMaster,
+                                                                 String[] environments,
+                                                                 boolean wait)
+    {
+        if (environments == null || environments.length == 0) {
+            return deploy.deployCodeAsync(
+                    puppetMaster.getFqdn(),
+                    puppetMaster.getToken(),
+                    puppetMaster.getCaCert(),
+                    environments,
+                    wait,
+                    executor);
+        }
+
+        Chunking chunking = new Chunking(puppetMaster, environments, wait);
+        log.info(String.format(
+                "Deploying %d environment(s) to %s in %d chunk(s) of up to %d",
+                chunking.requested.size(), puppetMaster, chunking.remaining.get(), chunkSize));
+        for (int i = 0 ; i < maxParallel ; i++) {
+            chunking.launchNext();
+        }
+        return chunking.result;
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return (e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null ?
+                e.getCause() :
+                e;
+    }
+
+    /**
+     * Some environments and how many times we've tried to deploy them
+     */
+    private static final class Chunk {
+        private final String[] environments;
+        private final int attempt;
+
+        Chunk(String[] environments, int attempt) {
+            this.environments = environments;
+            this.attempt = attempt;
+        }
+    }
+
+    /**
+     * State of one chunked deployment: chunks still to send, in-flight
+     * deployments and results so far
+     */
+    private class Chunking {
+        private final PuppetMaster puppetMaster;
+        private final boolean wait;
+        private final Set<String> requested;
+        private final CompletableFuture<List<DeployResult>> result = new CompletableFuture<>();
+        private final Queue<Chunk> pending = new ConcurrentLinkedQueue<>();
+
+        /**
+         * chunks not finished yet, including retries
+         */
+        private final AtomicInteger remaining = new AtomicInteger();
+        private final Map<String, DeployResult> results = Collections.synchronizedMap(new LinkedHashMap<>());
+        private final Set<CompletableFuture<List<DeployResult>>> inFlight = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean anyResponse = new AtomicBoolean();
+        private final AtomicReference<Throwable> firstError = new AtomicReference<>();
+
+        Chunking(PuppetMaster puppetMaster, String[] environments, boolean wait) {
+            this.puppetMaster = puppetMaster;
+            this.wait = wait;
+            this.requested = new LinkedHashSet<>(Arrays.asList(environments));
+
+            String[] unique = requested.toArray(new String[0]);
+            for (int from = 0 ; from < unique.length ; from += chunkSize) {
+                pending.add(new Chunk(Arrays.copyOfRange(unique, from, Math.min(unique.length, from + chunkSize)), 1));
+            }
+            remaining.set(pending.size());
+
+            result.whenComplete((r, e) -> {
+                if (result.isCancelled()) {
+                    pending.clear();
+                    for (CompletableFuture<List<DeployResult>> future : inFlight) {
+                        future.cancel(true);
+                    }
+                }
+            });
+        }
+
+        void launchNext() {
+            Chunk chunk = pending.poll();
+            if (chunk == null || result.isDone()) {
+                return;
+            }
+
+            CompletableFuture<List<DeployResult>> future;
+            try {
+                future = deploy.deployCodeAsync(
+                        puppetMaster.getFqdn(),
+                        puppetMaster.getToken(),
+                        puppetMaster.getCaCert(),
+                        chunk.environments,
+                        wait,
+                        executor);
+            } catch (RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+
+            inFlight.add(future);
+            final CompletableFuture<List<DeployResult>> thisFuture = future;
+            future.whenComplete((deployResults, e) -> {
+                inFlight.remove(thisFuture);
+                if (e == null) {
+                    completed(chunk, deployResults);
+                } else {
+                    failed(chunk, unwrap(e));
+                }
+
+                if (remaining.decrementAndGet() == 0) {
+                    finish();
+                } else {
+                    launchNext();
+                }
+            });
+        }
+
+        private void completed(Chunk chunk, List<DeployResult> deployResults) {
+            anyResponse.set(true);
+            List<String> failed = new ArrayList<>();
+            for (DeployResult deployResult : deployResults) {
+                results.put(deployResult.getEnvironment(), deployResult);
+                if (DeployResult.STATUS_FAILED.equals(deployResult.getStatus())) {
+                    failed.add(deployResult.getEnvironment());
+                }
+            }
+
+            if (! failed.isEmpty() && chunk.attempt < maxAttempts) {
+                log.info(String.format("Retrying %d failed environment(s) on %s: %s", failed.size(), puppetMaster, failed));
+                retry(new Chunk(failed.toArray(new String[0]), chunk.attempt + 1));
+            }
+        }
+
+        private void failed(Chunk chunk, Throwable e) {
+            // Code Manager errors (bad token, bad request...) won't go away
+            if (! (e instanceof CodeManagerException) && chunk.attempt < maxAttempts) {
+                log.warn(String.format(
+                        "Chunk of %d environment(s) to %s failed, retrying: %s", chunk.environments.length, puppetMaster, e));
+                retry(new Chunk(chunk.environments, chunk.attempt + 1));
+                return;
+            }
+
+            log.error(String.format(
+                    "Chunk of %d environment(s) to %s failed: %s", chunk.environments.length, puppetMaster, e));
+            firstError.compareAndSet(null, e);
+            for (String environment : chunk.environments) {
+                results.put(environment, new DeployResult(environment, DeployResult.STATUS_FAILED, DeployResult.MISSING));
+            }
+        }
+
+        private void retry(Chunk chunk) {
+            remaining.incrementAndGet();
+            pending.add(chunk);
+        }
+
+        private void finish() {
+            if (! anyResponse.get() && firstError.get() != null) {
+                result.completeExceptionally(firstError.get());
+                return;
+            }
+
+            List<DeployResult> merged = new ArrayList<>(results.size());
+            synchronized (results) {
+                for (String environment : requested) {
+                    DeployResult deployResult = results.get(environment);
+                    if (deployResult != null) {
+                        merged.add(deployResult);
+                    }
+                }
+                // anything Code Manager sent that we didn't ask for goes last
+                for (Map.Entry<String, DeployResult> entry : results.entrySet()) {
+                    if (! requested.contains(entry.getKey())) {
+                        merged.add(entry.getValue());
+                    }
+                }
+            }
+            result.complete(merged);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker for one Code Manager host.
+ *
+ * CLOSED: requests flow, consecutive failures are counted. Reaching the
+ * threshold opens the circuit.
+ * OPEN: requests fail fast with {@link CircuitOpenException} so callers don't
+ * wait for connect timeouts. After `openMillis` the next request is let
+ * through as a probe.
+ * HALF_OPEN: one probe is in flight, everything else fails fast. Success
+ * closes the circuit, failure opens it again.
+ */
+public class CircuitBreaker {
+    private static Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String host;
+    private final int failureThreshold;
+    private final long openNanos;
+
+    // guarded by this
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private long rejected;
+
+    /**
+     * @param host name for log messages and exceptions
+     * @param policy thresholds
+     */
+    public CircuitBreaker(String host, CircuitBreakerPolicy policy) {
+        this.host = host;
+        this.failureThreshold = policy.getFailureThreshold();
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(policy.getOpenMillis());
+    }
+
+    /**
+     * Ask to send a request. Every successful call must be followed by
+     * `onSuccess()` or `onFailure()`
+     * @throws CircuitOpenException if the request must not be sent
+     */
+    public synchronized void acquire() throws CircuitOpenException {
+        if (state == State.CLOSED) {
+            return;
+        }
+
+        long waited = System.nanoTime() - openedAt;
+        if (state == State.OPEN && waited >= openNanos) {
+            log.info("Probing " + host + " after circuit opened " + TimeUnit.NANOSECONDS.toMillis(waited) + "ms ago");
+            state = State.HALF_OPEN;
+            return;
+        }
+
+        rejected++;
+        long retryAfterMillis = (state == State.OPEN) ? TimeUnit.NANOSECONDS.toMillis(openNanos - waited) : 0;
+        throw new CircuitOpenException(host, retryAfterMillis);
+    }
+
+    /**
+     * The host answered (any response other than 5xx)
+     */
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            log.info("Circuit closed for " + host);
+        }
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    /**
+     * Could not connect to the host or it returned 5xx
+     */
+    public synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            log.warn("Circuit opened for " + host + " after " + failures + " consecutive failures");
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * The request was abandoned without learning anything about the host. A
+     * cancelled probe lets the next request probe straight away
+     */
+    public synchronized void release() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+            openedAt = System.nanoTime() - openNanos;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return consecutive failures so far
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return requests refused while open
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker{" +
+                "host='" + host + '\'' +
+                ", state=" + state +
+                ", failures=" + failures +
+                ", rejected=" + rejected +
+                '}';
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+/**
+ * When to stop sending requests to a Code Manager that appears to be down and
+ * how long to wait before probing it again
+ */
+public final class CircuitBreakerPolicy {
+
+    /**
+     * Open after 5 failures in a row, probe again after 30 seconds
+     */
+    public static final CircuitBreakerPolicy DEFAULT = new CircuitBreakerPolicy(5, 30 * 1000);
+
+    /**
+     * Never open
+     */
+    public static final CircuitBreakerPolicy DISABLED = new CircuitBreakerPolicy(Integer.MAX_VALUE, 1);
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    /**
+     * @param failureThreshold consecutive failed requests (connect failures
+     *                         and 5xx responses on the last attempt) that
+     *                         open the circuit - retries don't count again
+     * @param openMillis how long to fail fast before letting a probe request
+     *                   through
+     */
+    public CircuitBreakerPolicy(int failureThreshold, long openMillis) {
+        if (failureThreshold < 1 || openMillis < 1) {
+            throw new IllegalArgumentException(
+                    "need failureThreshold and openMillis > 0, got " + failureThreshold + ", " + openMillis);
+        }
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public long getOpenMillis() {
+        return openMillis;
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Front-end for {@link Deploy} that soaks up bursts of deployment requests.
+ *
+ * Requests for the same Puppet Master arriving within `windowMillis` of the
+ * first one are merged into a single Code Manager deployment: environment
+ * lists are combined (so repeated pushes of the same branch only deploy it
+ * once), any deploy-all request swallows the rest of the batch and batches
+ * with more than `deployAllThreshold` environments are sent as deploy-all.
+ *
+ * Every caller shares the one result - callers who asked for particular
+ * environments only get the results for those environments back.
+ */
+public class CoalescingDeploy implements Closeable {
+    private static Logger log = LoggerFactory.getLogger(CoalescingDeploy.class);
+
+    public static final long DEFAULT_WINDOW_MILLIS = 2 * 1000;
+
+    private final Deploy deploy;
+
+    private final long windowMillis;
+
+    private final int deployAllThreshold;
+
+    private final Executor executor;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Batches still collecting requests. Guarded by `this`
+     */
+    private final Map<BatchKey, Batch> batches = new HashMap<>();
+
+    private final AtomicLong requestsReceived = new AtomicLong();
+
+    private final AtomicLong deploysSent = new AtomicLong();
+
+    /**
+     * @param deploy Deploy implementation to send merged requests to
+     * @param windowMillis how long to collect requests for after the first one
+     *                     arrives
+     * @param executor Executor to process responses on
+     */
+    public CoalescingDeploy(Deploy deploy, long windowMillis, Executor executor) {
+        this(deploy, windowMillis, Integer.MAX_VALUE, executor);
+    }
+
+    /**
+     * @param deploy Deploy implementation to send merged requests to
+     * @param windowMillis how long to collect requests for after the first one
+     *                     arrives
+     * @param deployAllThreshold batches naming more environments than this are
+     *                           sent as deploy-all
+     * @param executor Executor to process responses on
+     */
+    public CoalescingDeploy(Deploy deploy, long windowMillis, int deployAllThreshold, Executor executor) {
+        this.deploy = deploy;
+        this.windowMillis = windowMillis;
+        this.deployAllThreshold = deployAllThreshold;
+        this.executor = executor;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pejava-deploy-coalescer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queue a deployment to be merged with others to the same Puppet Master
+     * @param puppetMaster Puppet Master to deploy to
+     * @param environments Environments to deploy. An empty or null list means
+     *                     deploy all environments, otherwise just deploy those
+     *                     named only
+     * @param wait Wait for deployment to finish. Requests with and without
+     *             `wait` are never merged together
+     * @return Future of the results for the requested environments (all
+     *         results for deploy-all)
+     */
+    public CompletableFuture<List<DeployResult>> deployCode(PuppetMaster puppetMaster, String[] environments, boolean wait) {
+        requestsReceived.incrementAndGet();
+        Waiter waiter = new Waiter(environments);
+        BatchKey key = new BatchKey(puppetMaster, wait);
+
+        synchronized (this) {
+            if (scheduler.isShutdown()) {
+                throw new IllegalStateException("CoalescingDeploy has been closed");
+            }
+
+            Batch batch = batches.get(key);
+            if (batch == null) {
+                batch = new Batch(puppetMaster, wait);
+                batches.put(key, batch);
+                final Batch newBatch = batch;
+                scheduler.schedule(() -> flush(key, newBatch), windowMillis, TimeUnit.MILLISECONDS);
+            }
+            batch.add(waiter);
+        }
+
+        return waiter.future;
+    }
+
+    /**
+     * @return number of deployment requests received
+     */
+    public long getRequestsReceived() {
+        return requestsReceived.get();
+    }
+
+    /**
+     * @return number of (merged) deployments actually sent to Code Manager
+     */
+    public long getDeploysSent() {
+        return deploysSent.get();
+    }
+
+    /**
+     * Send any batches still collecting requests straight away and stop
+     * accepting new ones
+     */
+    @Override
+    public void close() {
+        List<Map.Entry<BatchKey, Batch>> pending;
+        synchronized (this) {
+            scheduler.shutdownNow();
+            pending = new ArrayList<>(batches.entrySet());
+        }
+
+        for (Map.Entry<BatchKey, Batch> entry : pending) {
+            flush(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void flush(BatchKey key, Batch batch) {
+        synchronized (this) {
+            // close() and the timer can race - whoever removes the batch sends it
+            if (batches.get(key) != batch) {
+                return;
+            }
+            batches.remove(key);
+        }
+
+        String[] environments = batch.environmentsToDeploy(deployAllThreshold);
+        log.info(String.format(
+                "Sending %d coalesced deployment request(s) to %s as %s",
+                batch.waiters.size(),
+                batch.puppetMaster,
+                (environments == null) ? "deploy-all" : Arrays.toString(environments)
+        ));
+
+        deploysSent.incrementAndGet();
+        CompletableFuture<List<DeployResult>> future;
+        try {
+            future = deploy.deployCodeAsync(
+                    batch.puppetMaster.getFqdn(),
+                    batch.puppetMaster.getToken(),
+                    batch.puppetMaster.getCaCert(),
+                    environments,
+                    batch.wait,
+                    executor);
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+
+        future.whenComplete((results, e) -> {
+            for (Waiter waiter : batch.waiters) {
+                if (e == null) {
+                    waiter.future.complete(waiter.select(results));
+                } else {
+                    waiter.future.completeExceptionally(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * One caller waiting for a share of the batch result
+     */
+    private static class Waiter {
+        /**
+         * Requested environments or null for deploy-all
+         */
+        private final Set<String> environments;
+
+        private final CompletableFuture<List<DeployResult>> future = new CompletableFuture<>();
+
+        Waiter(String[] environments) {
+            this.environments = (environments == null || environments.length == 0) ?
+                    null :
+                    new HashSet<>(Arrays.asList(environments));
+        }
+
+        List<DeployResult> select(List<DeployResult> results) {
+            if (environments == null) {
+                return results;
+            }
+
+            List<DeployResult> selected = new ArrayList<>(environments.size());
+            for (DeployResult result : results) {
+                if (environments.contains(result.getEnvironment())) {
+                    selected.add(result);
+                }
+            }
+            return Collections.unmodifiableList(selected);
+        }
+    }
+
+    /**
+     * Requests collected for one master
+     */
+    private static class Batch {
+        private final PuppetMaster puppetMaster;
+        private final boolean wait;
+        private final List<Waiter> waiters = new ArrayList<>();
+        private final Set<String> environments = new LinkedHashSet<>();
+        private boolean deployAll;
+
+        Batch(PuppetMaster puppetMaster, boolean wait) {
+            this.puppetMaster = puppetMaster;
+            this.wait = wait;
+        }
+
+        void add(Waiter waiter) {
+            waiters.add(waiter);
+            if (waiter.environments == null) {
+                deployAll = true;
+            } else {
+                // an environment already in the batch makes the older request
+                // for it obsolete - the set keeps just the one
+                environments.addAll(waiter.environments);
+            }
+        }
+
+        /**
+         * @return environments to send or null for deploy-all
+         */
+        String[] environmentsToDeploy(int deployAllThreshold) {
+            return (deployAll || environments.size() > deployAllThreshold) ?
+                    null :
+                    environments.toArray(new String[0]);
+        }
+    }
+
+    /**
+     * Requests are only merged if they go to the same master with the same
+     * credentials and `wait` setting
+     */
+    private static final class BatchKey {
+        private final String fqdn;
+        private final String token;
+        private final String caCert;
+        private final boolean wait;
+
+        BatchKey(PuppetMaster puppetMaster, boolean wait) {
+            this.fqdn = puppetMaster.getFqdn();
+            this.token = puppetMaster.getToken();
+            this.caCert = puppetMaster.getCaCert();
+            this.wait = wait;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (! (o instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey batchKey = (BatchKey) o;
+            return wait == batchKey.wait &&
+                    fqdn.equals(batchKey.fqdn) &&
+                    Objects.equals(token, batchKey.token) &&
+                    Objects.equals(caCert, batchKey.caCert);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fqdn, token, caCert, wait);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import java.io.IOException;
+
+/**
+ * Code Manager answered, but with an error document (JSON with a `kind`
+ * field) instead of a list of deployment results - eg bad RBAC token,
+ * unrecognised request
+ */
+public class CodeManagerException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Error kind reported by Code Manager (if known)
+     */
+    private final String kind;
+
+    /**
+     * Raw response from Code Manager (if we kept it)
+     */
+    private final String responseString;
+
+    public CodeManagerException(String message, String responseString) {
+        this(message, null, responseString);
+    }
+
+    public CodeManagerException(String message, String kind, String responseString) {
+        super((responseString == null) ? message : message + ": " + responseString);
+        this.kind = kind;
+        this.responseString = responseString;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public String getResponseString() {
+        return responseString;
+    }
+}
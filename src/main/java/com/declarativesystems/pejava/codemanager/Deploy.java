@@ -22,9 +22,65 @@ import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 public interface Deploy {
     String deployCode(String puppetMasterFqdn, String token, String caCert, String[] environment) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException, CertificateException;
     String deployCode(String puppetMasterFqdn, String token, String caCert, String[] environment, boolean wait) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException, CertificateException;
+
+    /**
+     * Deploy puppet code without blocking the calling thread.
+     *
+     * This default implementation just runs the blocking
+     * {@link #deployCode(String, String, String, String[], boolean)} on the
+     * executor - implementations should override it with real non-blocking I/O
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @param token contents of RBAC token
+     * @param caCert contents of CA Cert (PEM)
+     * @param environments Environments to deploy. An empty or null list means
+     *                     deploy all environments, otherwise just deploy those
+     *                     named only
+     * @param wait Wait for deployment to finish. Required if you want the real
+     *             deployment status message from Puppet.
+     * @param executor Executor to process the response on
+     * @return Future of the parsed deployment results. Completes exceptionally
+     *         with {@link CodeManagerException} if Code Manager returned an
+     *         error instead of results. Cancelling the future abandons the
+     *         request
+     */
+    default CompletableFuture<List<DeployResult>> deployCodeAsync(String puppetMasterFqdn, String token, String caCert, String[] environments, boolean wait, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return DeployResult.toDeployResultOrThrow(
+                        deployCode(puppetMasterFqdn, token, caCert, environments, wait));
+            } catch (IOException|NoSuchAlgorithmException|KeyStoreException|KeyManagementException|CertificateException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Deploy puppet code and wait for the result by polling the Code Manager
+     * status endpoint rather than holding a `wait` request open.
+     *
+     * This default implementation falls back to a blocking `wait` deployment
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @param token contents of RBAC token
+     * @param caCert contents of CA Cert (PEM)
+     * @param environments Environments to deploy. An empty or null list means
+     *                     deploy all environments, otherwise just deploy those
+     *                     named only
+     * @param pollingPolicy poll interval and overall deadline
+     * @return Final deployment results
+     * @throws CodeManagerException if Code Manager returned an error instead
+     *         of results
+     */
+    default List<DeployResult> deployCodeAndPoll(String puppetMasterFqdn, String token, String caCert, String[] environments, PollingPolicy pollingPolicy) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException, CertificateException, InterruptedException {
+        return DeployResult.toDeployResultOrThrow(
+                deployCode(puppetMasterFqdn, token, caCert, environments, true));
+    }
 }
@@ -19,49 +19,164 @@ package com.declarativesystems.pejava.codemanager;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.ssl.SSLContextBuilder;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.HttpHost;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import javax.inject.Named;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManagerFactory;
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
-import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Support for the Code Manager `deploys` Web Service:
  * /code-manager/v1/deploys
  */
 @Named("deploy")
-public class DeployImpl implements Deploy {
+public class DeployImpl implements Deploy, Closeable {
     private static Logger log = LoggerFactory.getLogger(DeployImpl.class);
 
-    // 10 seconds
-    private static final int CONNECT_TIMEOUT = 10 * 1000;
+    /**
+     * Port Code Manager listens on
+     */
+    public static final int CODE_MANAGER_PORT = 8170;
+
+    private static final String DEPLOYS_PATH = "/code-manager/v1/deploys";
+
+    private static final String STATUS_PATH = "/code-manager/v1/deploys/status";
+
+    /**
+     * Most bytes read from one response (after decompression) unless told
+     * otherwise. A `deploy-all` on a big install is a few megabytes
+     */
+    public static final long DEFAULT_MAX_RESPONSE_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Most characters of a response to write to the log
+     */
+    static final int LOG_LIMIT = 2048;
 
-    // 10 minutes
-    private static final int SOCKET_TIMEOUT = 600 * 1000;
+    /**
+     * Sends the HTTP requests, reusing connections across deployments
+     */
+    private final Transport transport;
+
+    /**
+     * Where request timings and deployment outcomes are recorded
+     */
+    private final DeployMetrics metrics;
+
+    private final RetryPolicy retryPolicy;
+
+    /**
+     * Limits retries across all hosts
+     */
+    private final RetryBudget retryBudget;
+
+    private final CircuitBreakerPolicy circuitBreakerPolicy;
+
+    private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
+    private final AdmissionPolicy admissionPolicy;
+
+    private final ConcurrentMap<String, AdmissionController> admissionControllers = new ConcurrentHashMap<>();
+
+    private volatile long maxResponseBytes = DEFAULT_MAX_RESPONSE_BYTES;
+
+    /**
+     * Delays async retries and runs admission timeouts, created on first use
+     */
+    private volatile ScheduledExecutorService scheduler;
+
+    public DeployImpl() {
+        this(new HttpClientRegistry());
+    }
+
+    /**
+     * @param metrics where to record request timings and deployment outcomes
+     */
+    public DeployImpl(DeployMetrics metrics) {
+        this(new HttpClientRegistry(metrics));
+    }
+
+    public DeployImpl(HttpClientRegistry clientRegistry) {
+        this(clientRegistry, RetryPolicy.DEFAULT, CircuitBreakerPolicy.DEFAULT);
+    }
+
+    /**
+     * @param clientRegistry where to get HTTP clients from
+     * @param retryPolicy how to retry connect failures and 5xx responses
+     * @param circuitBreakerPolicy when to fail fast for hosts that are down
+     */
+    public DeployImpl(HttpClientRegistry clientRegistry, RetryPolicy retryPolicy, CircuitBreakerPolicy circuitBreakerPolicy) {
+        this(clientRegistry, retryPolicy, circuitBreakerPolicy, AdmissionPolicy.UNLIMITED);
+    }
+
+    /**
+     * @param clientRegistry where to get HTTP clients from
+     * @param retryPolicy how to retry connect failures and 5xx responses
+     * @param circuitBreakerPolicy when to fail fast for hosts that are down
+     * @param admissionPolicy how many deployments to send to each Puppet
+     *                        Master at once and how fast
+     */
+    public DeployImpl(HttpClientRegistry clientRegistry,
+                      RetryPolicy retryPolicy,
+                      CircuitBreakerPolicy circuitBreakerPolicy,
+                      AdmissionPolicy admissionPolicy) {
+        this(new ApacheTransport(clientRegistry), clientRegistry.getMetrics(), retryPolicy, circuitBreakerPolicy, admissionPolicy);
+    }
+
+    /**
+     * @param transport HTTP client to send requests with
+     * @param metrics where to record deployment outcomes and the request
+     *                timings DeployImpl measures itself
+     */
+    public DeployImpl(Transport transport, DeployMetrics metrics) {
+        this(transport, metrics, RetryPolicy.DEFAULT, CircuitBreakerPolicy.DEFAULT, AdmissionPolicy.UNLIMITED);
+    }
+
+    /**
+     * @param transport HTTP client to send requests with
+     * @param metrics where to record deployment outcomes and the request
+     *                timings DeployImpl measures itself
+     * @param retryPolicy how to retry connect failures and 5xx responses
+     * @param circuitBreakerPolicy when to fail fast for hosts that are down
+     * @param admissionPolicy how many deployments to send to each Puppet
+     *                        Master at once and how fast
+     */
+    public DeployImpl(Transport transport,
+                      DeployMetrics metrics,
+                      RetryPolicy retryPolicy,
+                      CircuitBreakerPolicy circuitBreakerPolicy,
+                      AdmissionPolicy admissionPolicy) {
+        this.transport = transport;
+        this.metrics = metrics;
+        this.retryPolicy = retryPolicy;
+        this.retryBudget = retryPolicy.newRetryBudget();
+        this.circuitBreakerPolicy = circuitBreakerPolicy;
+        this.admissionPolicy = admissionPolicy;
+    }
 
     /**
      * Deploy code without waiting for result (we get back `queued` on success)
@@ -84,7 +199,8 @@ public class DeployImpl implements Deploy {
 
     /**
      * Deploy puppet code and optionally wait for a result
-     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @param puppetMasterFqdn FQDN of Puppet Master. Append `:port` if Code
+     *                         Manager isn't on the standard port
      * @param token contents of RBAC token
      * @param caCert contents of CA Cert (PEM)
      * @param environments Environments to deploy. An empty or null list means
@@ -100,6 +216,735 @@ public class DeployImpl implements Deploy {
                              String caCert,
                              String[] environments,
                              boolean wait) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException, CertificateException
+    {
+        log.info("Starting puppet code deployment to: " + puppetMasterFqdn);
+        long start = System.nanoTime();
+        String responseString = send(
+                deployRequest(puppetMasterFqdn, token, caCert, environments, wait),
+                environments,
+                wait,
+                content -> {
+                    long readStart = System.nanoTime();
+                    String body = readFully(content);
+                    metrics.recordPhase(puppetMasterFqdn, DeployMetrics.Phase.BODY_READ, System.nanoTime() - readStart);
+                    return body;
+                });
+
+        if (log.isInfoEnabled()) {
+            log.info("Deployment result: " + abbreviate(responseString));
+        }
+        recordResults(puppetMasterFqdn, responseString);
+        metrics.recordPhase(puppetMasterFqdn, DeployMetrics.Phase.TOTAL, System.nanoTime() - start);
+
+        // puppet deployments resulting in errors come back as 200OK but with the JSON key 'kind'
+        // therefore, if we see 'kind' we encountered an error and should log it
+        if (DeployResult.responseStringContainError(responseString))
+        {
+            log.error("Deployment error from Puppet Master: " + abbreviate(responseString));
+        }
+        return responseString;
+    }
+
+    /**
+     * Deploy puppet code and parse the results straight from the (possibly
+     * compressed) response stream, without building a String of the whole
+     * response first. Use this instead of the String API for `deploy-all` on
+     * big installs
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @param token contents of RBAC token
+     * @param caCert contents of CA Cert (PEM)
+     * @param environments Environments to deploy. An empty or null list means
+     *                     deploy all environments, otherwise just deploy those
+     *                     named only
+     * @param wait Wait for deployment to finish
+     * @return Parsed deployment results
+     * @throws CodeManagerException if Code Manager returned an error document
+     * @throws ResponseTooLargeException if the response was bigger than
+     *         {@link #getMaxResponseBytes()}
+     */
+    public List<DeployResult> deployCodeResults(String puppetMasterFqdn,
+                                                String token,
+                                                String caCert,
+                                                String[] environments,
+                                                boolean wait) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException, CertificateException
+    {
+        log.info("Starting puppet code deployment to: " + puppetMasterFqdn);
+        long start = System.nanoTime();
+        List<DeployResult> results;
+        try {
+            results = send(
+                    deployRequest(puppetMasterFqdn, token, caCert, environments, wait),
+                    environments,
+                    wait,
+                    content -> {
+                        long parseStart = System.nanoTime();
+                        List<DeployResult> parsed = DeployResult.toDeployResult(content);
+                        metrics.recordPhase(puppetMasterFqdn, DeployMetrics.Phase.JSON_PARSE, System.nanoTime() - parseStart);
+                        return parsed;
+                    });
+        } catch (CodeManagerException e) {
+            log.error(abbreviate(e.getMessage()));
+            throw e;
+        }
+
+        metrics.recordResults(puppetMasterFqdn, results);
+        metrics.recordPhase(puppetMasterFqdn, DeployMetrics.Phase.TOTAL, System.nanoTime() - start);
+        if (log.isInfoEnabled()) {
+            log.info("Deployment result: " + abbreviate(results));
+        }
+        return results;
+    }
+
+    /**
+     * Send a deployment request, retrying connect failures and 5xx responses,
+     * and read the decoded response body with `reader`
+     */
+    private <T> T send(TransportRequest request,
+                       String[] environments,
+                       boolean wait,
+                       BodyReader<T> reader) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException, CertificateException
+    {
+        String puppetMasterFqdn = request.getPuppetMasterFqdn();
+        CircuitBreaker circuitBreaker = getCircuitBreaker(puppetMasterFqdn);
+        retryBudget.onRequest();
+
+        // one breaker verdict per request, from the last attempt
+        circuitBreaker.acquire();
+        Boolean hostOk = null;
+        try {
+            for (int attempt = 1; ; attempt++) {
+                DeployRequestEvent event = JfrEvents.AVAILABLE
+                        ? DeployRequestEvent.start(puppetMasterFqdn, environments, wait, false, request.getContentLength())
+                        : null;
+
+                int status = 0;
+                T value = null;
+                long bytesIn = -1;
+                try {
+                    AdmissionController.Permit permit = admit(puppetMasterFqdn);
+                    // the permit is given back before any retry backoff below
+                    try (TransportResponse response = transport.execute(request)) {
+                        status = response.getStatus();
+                        boolean retryable = RetryPolicy.isRetryableStatus(status);
+                        hostOk = ! retryable;
+                        if (! (retryable && canRetry(attempt))) {
+                            // reading the body fully returns the connection to the pool
+                            InputStream raw = response.getBody();
+                            CountingInputStream counted = (event == null) ? null : new CountingInputStream(raw);
+                            value = reader.read(decode(response, (counted == null) ? raw : counted, puppetMasterFqdn));
+                            bytesIn = (counted == null) ? -1 : counted.getCount();
+                        }
+                    } finally {
+                        if (permit != null) {
+                            permit.close();
+                        }
+                    }
+                } catch (IOException|RuntimeException e) {
+                    fail(event, e);
+                    if (status == 0) {
+                        // no response at all
+                        boolean connectFailure = RetryPolicy.isConnectFailure(e);
+                        hostOk = ! connectFailure;
+                        if (connectFailure && retry(puppetMasterFqdn, attempt, e.toString())) {
+                            continue;
+                        }
+                    }
+                    throw e;
+                } catch (Throwable e) {
+                    fail(event, e);
+                    throw e;
+                }
+
+                if (value != null) {
+                    if (event != null) {
+                        // the String API leaves parsing to the caller
+                        event.finish(bytesIn, (value instanceof List) ? ((List<?>) value).size() : -1);
+                    }
+                    return value;
+                }
+                if (event != null) {
+                    event.fail("HTTP " + status);
+                }
+                pause(puppetMasterFqdn, attempt, "HTTP " + status);
+            }
+        } finally {
+            settle(circuitBreaker, hostOk);
+        }
+    }
+
+    /**
+     * Deploy puppet code using non-blocking I/O - no thread is held while
+     * waiting for Code Manager, even with `wait` set
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @param token contents of RBAC token
+     * @param caCert contents of CA Cert (PEM)
+     * @param environments Environments to deploy. An empty or null list means
+     *                     deploy all environments, otherwise just deploy those
+     *                     named only
+     * @param wait Wait for deployment to finish. Required if you want the real
+     *             deployment status message from Puppet.
+     * @param executor Executor to parse the response on (the I/O thread is
+     *                 never used for this)
+     * @return Future of the parsed deployment results. Cancelling the future
+     *         aborts the HTTP request
+     */
+    @Override
+    public CompletableFuture<List<DeployResult>> deployCodeAsync(String puppetMasterFqdn,
+                                                                 String token,
+                                                                 String caCert,
+                                                                 String[] environments,
+                                                                 boolean wait,
+                                                                 Executor executor)
+    {
+        log.info("Starting async puppet code deployment to: " + puppetMasterFqdn);
+        long start = System.nanoTime();
+        AsyncDeployment deployment = new AsyncDeployment(
+                deployRequest(puppetMasterFqdn, token, caCert, environments, wait), environments, wait, executor, start);
+        retryBudget.onRequest();
+        deployment.send(1);
+
+        return deployment.result;
+    }
+
+    /**
+     * Deploy puppet code without `wait`, then poll the status endpoint until
+     * the deployments finish. Each request is short-lived, so a dropped
+     * connection or load balancer idle timeout doesn't lose the result
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @param token contents of RBAC token
+     * @param caCert contents of CA Cert (PEM)
+     * @param environments Environments to deploy. An empty or null list means
+     *                     deploy all environments, otherwise just deploy those
+     *                     named only
+     * @param pollingPolicy poll interval and overall deadline
+     * @return Final deployment results. Deployments still running at the
+     *         deadline keep their last known status
+     */
+    @Override
+    public List<DeployResult> deployCodeAndPoll(String puppetMasterFqdn,
+                                                String token,
+                                                String caCert,
+                                                String[] environments,
+                                                PollingPolicy pollingPolicy) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException, CertificateException, InterruptedException
+    {
+        List<DeployResult> queued = deployCodeResults(puppetMasterFqdn, token, caCert, environments, false);
+
+        return DeployStatusPoller.await(queued, () -> {
+            try {
+                return fetchDeployStatus(puppetMasterFqdn, token, caCert);
+            } catch (GeneralSecurityException e) {
+                // can't happen - the client was built for the deployment
+                throw new IOException(e);
+            }
+        }, pollingPolicy);
+    }
+
+    /**
+     * Read the current deployment status from Code Manager
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @param token contents of RBAC token
+     * @param caCert contents of CA Cert (PEM)
+     * @return Status snapshot
+     */
+    public DeployStatus fetchDeployStatus(String puppetMasterFqdn,
+                                          String token,
+                                          String caCert) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException, CertificateException
+    {
+        TransportRequest request = new TransportRequest(
+                TransportRequest.GET, puppetMasterFqdn, caCert, STATUS_PATH, token, null);
+        CircuitBreaker circuitBreaker = getCircuitBreaker(puppetMasterFqdn);
+        retryBudget.onRequest();
+
+        circuitBreaker.acquire();
+        Boolean hostOk = null;
+        try {
+            for (int attempt = 1; ; attempt++) {
+                // closing the response returns the connection to the pool
+                int status = 0;
+                try (TransportResponse response = transport.execute(request)) {
+                    status = response.getStatus();
+                    boolean retryable = RetryPolicy.isRetryableStatus(status);
+                    hostOk = ! retryable;
+                    if (! (retryable && canRetry(attempt))) {
+                        return DeployStatus.parse(decode(response, response.getBody(), puppetMasterFqdn));
+                    }
+                } catch (IOException|RuntimeException e) {
+                    if (status == 0) {
+                        // no response at all
+                        boolean connectFailure = RetryPolicy.isConnectFailure(e);
+                        hostOk = ! connectFailure;
+                        if (connectFailure && retry(puppetMasterFqdn, attempt, e.toString())) {
+                            continue;
+                        }
+                    }
+                    throw e;
+                }
+                pause(puppetMasterFqdn, attempt, "HTTP " + status);
+            }
+        } finally {
+            settle(circuitBreaker, hostOk);
+        }
+    }
+
+    /**
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @return the circuit breaker guarding requests to this Puppet Master
+     */
+    public CircuitBreaker getCircuitBreaker(String puppetMasterFqdn) {
+        return circuitBreakers.computeIfAbsent(
+                puppetMasterFqdn, k -> new CircuitBreaker(k, circuitBreakerPolicy));
+    }
+
+    /**
+     * @return the retry budget shared by all Puppet Masters
+     */
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * Give back the breaker acquired for a request
+     * @param hostOk verdict of the last attempt or null if nothing reached
+     *               the host, e.g. admission was refused
+     */
+    private static void settle(CircuitBreaker circuitBreaker, Boolean hostOk) {
+        if (hostOk == null) {
+            circuitBreaker.release();
+        } else if (hostOk) {
+            circuitBreaker.onSuccess();
+        } else {
+            circuitBreaker.onFailure();
+        }
+    }
+
+    private static void fail(DeployRequestEvent event, Throwable e) {
+        if (event != null) {
+            event.fail(e.toString());
+        }
+    }
+
+    /**
+     * @param attempt the attempt that just failed (1 for the first)
+     * @return true if another attempt is allowed, in which case the retry
+     *         budget has been charged
+     */
+    private boolean canRetry(int attempt) {
+        return attempt < retryPolicy.getMaxAttempts() && retryBudget.tryRetry();
+    }
+
+    /**
+     * Wait before retrying, if allowed
+     * @return true if the caller should retry
+     */
+    private boolean retry(String puppetMasterFqdn, int attempt, String reason) throws InterruptedIOException {
+        if (! canRetry(attempt)) {
+            return false;
+        }
+        pause(puppetMasterFqdn, attempt, reason);
+        return true;
+    }
+
+    private void pause(String puppetMasterFqdn, int attempt, String reason) throws InterruptedIOException {
+        long delayMillis = retryPolicy.delayMillis(attempt);
+        log.warn("Attempt " + attempt + " to " + puppetMasterFqdn + " failed (" + reason + "), retrying in " + delayMillis + "ms");
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to retry request to " + puppetMasterFqdn);
+        }
+    }
+
+    /**
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @return admission control for deployments to this Puppet Master or null
+     *         if the AdmissionPolicy is unlimited
+     */
+    public AdmissionController getAdmissionController(String puppetMasterFqdn) {
+        if (admissionPolicy.isUnlimited()) {
+            return null;
+        }
+        return admissionControllers.computeIfAbsent(
+                puppetMasterFqdn, k -> new AdmissionController(k, admissionPolicy, scheduler()));
+    }
+
+    /**
+     * Wait for the admission controller to let a deployment through
+     * @return permit to close after the response or null if unlimited
+     */
+    private AdmissionController.Permit admit(String puppetMasterFqdn) throws IOException {
+        AdmissionController admissionController = getAdmissionController(puppetMasterFqdn);
+        return (admissionController == null) ? null : admissionController.acquire();
+    }
+
+    private ScheduledExecutorService scheduler() {
+        ScheduledExecutorService current = scheduler;
+        if (current == null) {
+            synchronized (this) {
+                current = scheduler;
+                if (current == null) {
+                    current = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread t = new Thread(r, "pejava-deploy-scheduler");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    scheduler = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * One async deployment, which may take several attempts. Retries are
+     * scheduled rather than slept so no thread waits
+     */
+    private final class AsyncDeployment {
+        private final TransportRequest request;
+        private final CircuitBreaker circuitBreaker;
+        private final String puppetMasterFqdn;
+        private final String[] environments;
+        private final boolean wait;
+        private final Executor executor;
+        private final long start;
+        private final CompletableFuture<List<DeployResult>> result = new CompletableFuture<>();
+
+        /**
+         * The breaker is acquired once for the whole deployment and settled
+         * exactly once when the result completes
+         */
+        private volatile boolean acquired;
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        /**
+         * Breaker verdict of the last attempt, null until one reaches the host
+         */
+        private volatile Boolean hostOk;
+
+        /**
+         * Waiting for admission
+         */
+        private volatile CompletableFuture<AdmissionController.Permit> admission;
+
+        /**
+         * Request in flight
+         */
+        private volatile CompletableFuture<TransportResponse> httpFuture;
+
+        AsyncDeployment(TransportRequest request,
+                        String[] environments,
+                        boolean wait,
+                        Executor executor,
+                        long start) {
+            this.request = request;
+            this.puppetMasterFqdn = request.getPuppetMasterFqdn();
+            this.circuitBreaker = getCircuitBreaker(puppetMasterFqdn);
+            this.environments = environments;
+            this.wait = wait;
+            this.executor = executor;
+            this.start = start;
+
+            // propagate cancellation from the caller to the HTTP request
+            result.whenComplete((results, e) -> {
+                if (result.isCancelled()) {
+                    cancelRequest();
+                }
+                settle();
+            });
+        }
+
+        private void cancelRequest() {
+            CompletableFuture<AdmissionController.Permit> waiting = admission;
+            if (waiting != null) {
+                waiting.cancel(false);
+            }
+            CompletableFuture<TransportResponse> current = httpFuture;
+            if (current != null) {
+                current.cancel(true);
+            }
+        }
+
+        private void settle() {
+            if (acquired && settled.compareAndSet(false, true)) {
+                DeployImpl.settle(circuitBreaker, hostOk);
+            }
+        }
+
+        void send(int attempt) {
+            if (result.isDone()) {
+                return;
+            }
+            if (attempt == 1) {
+                try {
+                    circuitBreaker.acquire();
+                } catch (CircuitOpenException e) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+                acquired = true;
+                // completed before we set acquired
+                if (result.isDone()) {
+                    settle();
+                    return;
+                }
+            }
+
+            AdmissionController admissionController = getAdmissionController(puppetMasterFqdn);
+            if (admissionController == null) {
+                execute(attempt, null);
+                return;
+            }
+
+            CompletableFuture<AdmissionController.Permit> waiting = admissionController.acquireAsync();
+            admission = waiting;
+            waiting.whenComplete((permit, e) -> {
+                if (e == null) {
+                    execute(attempt, permit);
+                } else {
+                    result.completeExceptionally((e instanceof CompletionException) ? e.getCause() : e);
+                }
+            });
+            // cancelled while we were queueing
+            if (result.isCancelled()) {
+                cancelRequest();
+            }
+        }
+
+        private void release(AdmissionController.Permit permit) {
+            if (permit != null) {
+                permit.close();
+            }
+        }
+
+        private void execute(int attempt, AdmissionController.Permit permit) {
+            DeployRequestEvent event = JfrEvents.AVAILABLE
+                    ? DeployRequestEvent.start(puppetMasterFqdn, environments, wait, true, request.getContentLength())
+                    : null;
+            CompletableFuture<TransportResponse> current;
+            try {
+                current = transport.executeAsync(request);
+            } catch (RuntimeException e) {
+                // transport closed
+                release(permit);
+                fail(event, e);
+                result.completeExceptionally(e);
+                return;
+            }
+            httpFuture = current;
+            current.whenComplete((response, e) -> {
+                release(permit);
+                if (current.isCancelled()) {
+                    fail(event, e);
+                    result.cancel(false);
+                } else if (e != null) {
+                    Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+                    fail(event, cause);
+                    boolean connectFailure = RetryPolicy.isConnectFailure(cause);
+                    hostOk = ! connectFailure;
+                    if (connectFailure && retryLater(attempt, cause.toString())) {
+                        return;
+                    }
+                    result.completeExceptionally(cause);
+                } else {
+                    int status = response.getStatus();
+                    boolean retryable = RetryPolicy.isRetryableStatus(status);
+                    hostOk = ! retryable;
+                    if (retryable && retryLater(attempt, "HTTP " + status)) {
+                        if (event != null) {
+                            event.fail("HTTP " + status);
+                        }
+                        closeQuietly(response);
+                        return;
+                    }
+
+                    try {
+                        executor.execute(() -> parse(response, event));
+                    } catch (RejectedExecutionException re) {
+                        closeQuietly(response);
+                        fail(event, re);
+                        result.completeExceptionally(re);
+                    }
+                }
+            });
+
+            // cancelled while we were sending
+            if (result.isCancelled()) {
+                cancelRequest();
+            }
+        }
+
+        private boolean retryLater(int attempt, String reason) {
+            if (! canRetry(attempt)) {
+                return false;
+            }
+            long delayMillis = retryPolicy.delayMillis(attempt);
+            log.warn("Attempt " + attempt + " to " + puppetMasterFqdn + " failed (" + reason + "), retrying in " + delayMillis + "ms");
+            try {
+                scheduler().schedule(() -> send(attempt + 1), delayMillis, TimeUnit.MILLISECONDS);
+                return true;
+            } catch (RejectedExecutionException e) {
+                // closed
+                return false;
+            }
+        }
+
+        private void parse(TransportResponse response, DeployRequestEvent event) {
+            // parse straight from the response body - no String copy
+            try (TransportResponse closing = response;
+                 InputStream raw = closing.getBody()) {
+                CountingInputStream counted = (event == null) ? null : new CountingInputStream(raw);
+                long parseStart = System.nanoTime();
+                List<DeployResult> results = DeployResult.toDeployResult(
+                        decode(response, (counted == null) ? raw : counted, puppetMasterFqdn));
+                metrics.recordPhase(puppetMasterFqdn, DeployMetrics.Phase.JSON_PARSE, System.nanoTime() - parseStart);
+                metrics.recordResults(puppetMasterFqdn, results);
+                metrics.recordPhase(puppetMasterFqdn, DeployMetrics.Phase.TOTAL, System.nanoTime() - start);
+                if (event != null) {
+                    event.finish(counted.getCount(), results.size());
+                }
+                if (log.isInfoEnabled()) {
+                    log.info("Deployment result: " + abbreviate(results));
+                }
+                result.complete(results);
+            } catch (IOException|RuntimeException e) {
+                if (e instanceof CodeManagerException) {
+                    log.error(abbreviate(e.getMessage()));
+                }
+                fail(event, e);
+                result.completeExceptionally(e);
+            } catch (Error e) {
+                fail(event, e);
+                result.completeExceptionally(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Parse the response only if someone is collecting metrics - callers of
+     * the String API do their own parsing
+     */
+    private void recordResults(String puppetMasterFqdn, String responseString) {
+        if (metrics.isEnabled()) {
+            long start = System.nanoTime();
+            try {
+                DeployResult.toDeployResult(responseString, dr ->
+                        metrics.recordResult(puppetMasterFqdn, dr.getEnvironment(), DeployMetrics.outcome(dr)));
+            } catch (IOException e) {
+                // error document or junk - already logged and returned to caller
+            }
+            metrics.recordPhase(puppetMasterFqdn, DeployMetrics.Phase.JSON_PARSE, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @param maxResponseBytes most bytes to read from one response, after
+     *                         decompression. Bigger responses fail with
+     *                         {@link ResponseTooLargeException}
+     */
+    public void setMaxResponseBytes(long maxResponseBytes) {
+        if (maxResponseBytes < 1) {
+            throw new IllegalArgumentException("maxResponseBytes must be at least 1, got " + maxResponseBytes);
+        }
+        this.maxResponseBytes = maxResponseBytes;
+    }
+
+    /**
+     * @return most bytes read from one response, after decompression
+     */
+    public long getMaxResponseBytes() {
+        return maxResponseBytes;
+    }
+
+    /**
+     * Reads a decoded response body
+     */
+    private interface BodyReader<T> {
+        T read(InputStream content) throws IOException;
+    }
+
+    /**
+     * Undo any content coding and cap the size of the response
+     * @param response response the body came from
+     * @param body raw response body
+     * @return decompressed body that fails once it exceeds maxResponseBytes
+     */
+    private InputStream decode(TransportResponse response, InputStream body, String puppetMasterFqdn) throws IOException {
+        String encoding = response.getContentEncoding();
+        if (encoding != null && ! "identity".equalsIgnoreCase(encoding)) {
+            if (! TransportRequest.ACCEPT_ENCODING.equalsIgnoreCase(encoding)) {
+                throw new IOException("Unsupported Content-Encoding from " + puppetMasterFqdn + ": " + encoding);
+            }
+            body = new GZIPInputStream(body, 8192);
+        }
+        return new BoundedInputStream(body, maxResponseBytes, puppetMasterFqdn);
+    }
+
+    /**
+     * @return at most {@link #LOG_LIMIT} characters of `s`
+     */
+    static String abbreviate(String s) {
+        if (s == null || s.length() <= LOG_LIMIT) {
+            return s;
+        }
+        return s.substring(0, LOG_LIMIT) + "... (" + (s.length() - LOG_LIMIT) + " more characters)";
+    }
+
+    /**
+     * @return as many items as fit in {@link #LOG_LIMIT} characters, without
+     *         rendering the rest
+     */
+    static String abbreviate(List<?> items) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0 ; i < items.size() ; i++) {
+            if (sb.length() > LOG_LIMIT) {
+                sb.append("... (").append(items.size() - i).append(" more)");
+                break;
+            }
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(items.get(i));
+        }
+        return sb.append(']').toString();
+    }
+
+    private static String readFully(InputStream content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void closeQuietly(TransportResponse response) {
+        try {
+            response.close();
+        } catch (IOException e) {
+            log.debug("Error closing response: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Code Manager host and port for a Puppet Master. The FQDN may name an
+     * explicit port (`puppet.megacorp.com:8171`) for masters behind a load
+     * balancer or proxy, otherwise the standard Code Manager port is used
+     * @param puppetMasterFqdn FQDN of Puppet Master, optionally with `:port`
+     * @return HTTPS host to send requests to
+     */
+    static HttpHost codeManagerHost(String puppetMasterFqdn) {
+        return new HttpHost(
+                TransportRequest.host(puppetMasterFqdn),
+                TransportRequest.port(puppetMasterFqdn),
+                "https");
+    }
+
+    /**
+     * Build the POST request to the Code Manager deploys endpoint
+     */
+    private TransportRequest deployRequest(String puppetMasterFqdn, String token, String caCert, String[] environments, boolean wait)
     {
         /* Example curl request:
         curl -k -X POST -H 'Content-Type: application/json' \
@@ -107,11 +952,6 @@ public class DeployImpl implements Deploy {
         "https://${CODE_MANAGER}:8170/code-manager/v1/deploys" \
         -d '{"environments": ["production"], "wait": true}'
         */
-
-        log.info("Starting puppet code deployment to: " + puppetMasterFqdn);
-        HttpClient httpClient;
-        String url = "https://" + puppetMasterFqdn + ":8170/code-manager/v1/deploys";
-
         // JSON payload
         Map<String, Object> payloadData = new HashMap<>();
 
@@ -132,91 +972,41 @@ public class DeployImpl implements Deploy {
 
         Gson gson = new GsonBuilder().create();
 
-        // build and send the REST request
-        if (caCert == null || caCert.isEmpty())
-        {
-            httpClient = insecureSsl(); //HttpClientBuilder.create().build();
-        }
-        else
-        {
-            httpClient = secureSsl(caCert);
-        }
-
-        HttpPost request = new HttpPost(url);
-        request.addHeader("accept", "application/json");
-        request.addHeader("X-Authentication", token);
         String json = gson.toJson(payloadData);
-        StringEntity requestEntity = new StringEntity(
-                json,
-                ContentType.APPLICATION_JSON);
-        request.setEntity(requestEntity);
-
         log.debug("JSON payload: " + json);
-        HttpResponse response = httpClient.execute(request);
-        HttpEntity entity = response.getEntity();
-        String responseString = EntityUtils.toString(entity, "UTF-8");
-        log.info("Deployment result: " + responseString);
-
-        // puppet deployments resulting in errors come back as 200OK but with the JSON key 'kind'
-        // therefore, if we see 'kind' we encountered an error and should log it
-        if (responseString.contains("\"kind\""))
-        {
-            log.error("Deployment error from Puppet Master: " + responseString);
-        }
-        return responseString;
-    }
-
-    private RequestConfig getRequestConfig()
-    {
-        // 10 seconds should be PLENTY to CONNECT a request - beyond this, suspect firewall or broken servers
-        RequestConfig.Builder rcb = RequestConfig.custom();
-        rcb.setConnectTimeout(CONNECT_TIMEOUT);
-
-        // The socket timeout is how long to wait for the request to be processed... since puppet
-        // deploys during flight this can take a LONG time (eg slow forge, slow git etc)...
-        rcb.setSocketTimeout(SOCKET_TIMEOUT);
-
-        return rcb.build();
+        return new TransportRequest(
+                TransportRequest.POST,
+                puppetMasterFqdn,
+                caCert,
+                DEPLOYS_PATH,
+                token,
+                json.getBytes(StandardCharsets.UTF_8));
     }
 
     /**
-     * http://stackoverflow.com/questions/18513792/using-sslcontext-with-just-a-ca-certificate-and-no-keystore
+     * Connect to a Puppet Master ahead of time so the next deployment doesn't
+     * have to parse the CA cert or do a full TLS handshake. Call this at
+     * startup or after a quiet period
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @param caCert contents of CA Cert (PEM)
+     * @return true if a new connection was opened, false if there was already
+     *         one ready to use or the transport doesn't support warming up
      */
-    private HttpClient secureSsl(String caCert) throws NoSuchAlgorithmException, CertificateException, KeyStoreException, IOException, KeyManagementException
+    public boolean warmUp(String puppetMasterFqdn, String caCert) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException, CertificateException
     {
-        log.debug("SSL mode, Processing cert" + caCert);
-        InputStream is = new ByteArrayInputStream(caCert.getBytes());
-        CertificateFactory cf = CertificateFactory.getInstance("X.509");
-        X509Certificate caCertX509 = (X509Certificate) cf.generateCertificate(is);
-
-        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
-        ks.load(null); // You don't need the KeyStore instance to come from a file.
-        ks.setCertificateEntry("caCert", caCertX509);
-
-        tmf.init(ks);
-
-        SSLContext sslContext = SSLContext.getInstance("TLS");
-        sslContext.init(null, tmf.getTrustManagers(), null);
-
-        return HttpClients.custom()
-                .setSSLContext(sslContext)
-                .setDefaultRequestConfig(getRequestConfig())
-                .build();
+        log.debug("Warming up connection to: " + puppetMasterFqdn);
+        return transport.warmUp(puppetMasterFqdn, caCert);
     }
 
-    private HttpClient insecureSsl() throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException
-    {
-        log.debug("insecure mode, no SSL certificate");
-        SSLContextBuilder builder = new SSLContextBuilder();
-        builder.loadTrustMaterial(null, new TrustSelfSignedStrategy());
-        SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(
-                builder.build());
-        return HttpClients.custom()
-                .setSSLSocketFactory(sslsf)
-                .setDefaultRequestConfig(getRequestConfig())
-                .build();
+    /**
+     * Release all pooled connections. Call this when the bean is destroyed
+     */
+    @Override
+    public void close() throws IOException {
+        ScheduledExecutorService current = scheduler;
+        if (current != null) {
+            current.shutdownNow();
+        }
+        transport.close();
     }
-
-
 }
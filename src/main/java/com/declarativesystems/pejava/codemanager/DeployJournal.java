@@ -0,0 +1,837 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only record of deployments so that a JVM restart doesn't lose track
+ * of them.
+ *
+ * Every deployment is journaled when it is submitted, again when Code Manager
+ * gives back deploy ids for queued environments and once more with the final
+ * {@link DeployResult}s. Deployments without a final result are
+ * {@link #getPending() pending} and can be recovered by polling Code Manager
+ * (see {@link JournalingDeploy#recover}).
+ *
+ * Records are copied into a memory-mapped segment file under a lock and
+ * nothing else, so journaling costs microseconds. A background thread forces
+ * the segment to disk every `flushIntervalMillis` (group commit) - a process
+ * crash loses nothing, a power cut loses at most one flush interval. Use
+ * {@link #sync()} to find out when a record is durable.
+ *
+ * Each record is `[length][crc32][type][payload]`. When a segment fills up a
+ * new one is started with a snapshot of the pending deployments. The flusher
+ * maps the next segment ahead of time and deletes the old ones once the new
+ * one is on disk, so the journal only ever holds about two segments and
+ * rolling over costs the snapshot copy. On startup records are replayed until
+ * the first torn or corrupt one.
+ *
+ * Journaling never fails a deployment: if a segment can't be created or the
+ * pending deployments don't fit in one, the error is logged, records are
+ * dropped and {@link #sync()} fails until the flusher manages to roll over
+ */
+public class DeployJournal implements Closeable {
+    private static Logger log = LoggerFactory.getLogger(DeployJournal.class);
+
+    public static final int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 10;
+
+    private static final String SEGMENT_PREFIX = "deploy-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    /**
+     * "PJJ1" - first four bytes of every segment
+     */
+    private static final int MAGIC = 0x504a4a31;
+
+    /**
+     * length and crc32 in front of every record
+     */
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    private static final byte SUBMIT = 1;
+    private static final byte QUEUED = 2;
+    private static final byte RESULT = 3;
+    private static final byte DONE = 4;
+
+    private final Path directory;
+
+    private final int segmentBytes;
+
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * Deployments without a final result by journal id. Guarded by `this`
+     */
+    private final Map<Long, PendingDeploy> pending = new TreeMap<>();
+
+    /**
+     * sync() callers waiting for a flush. Guarded by `this`
+     */
+    private final ArrayDeque<SyncWaiter> waiters = new ArrayDeque<>();
+
+    private long segmentSequence;
+
+    private MappedByteBuffer segment;
+
+    /**
+     * Highest segment sequence number handed out so far. Guarded by `this`
+     */
+    private long lastSequence;
+
+    /**
+     * Next segment, mapped by the flusher so that rolling over doesn't touch
+     * the filesystem. Guarded by `this`
+     */
+    private MappedByteBuffer spare;
+    private long spareSequence;
+
+    /**
+     * Newest segment known to be on disk - older ones can go
+     */
+    private long durableSequence;
+
+    /**
+     * Not recording because the last roll over failed. Guarded by `this`
+     */
+    private boolean degraded;
+
+    /**
+     * Number of pending deployments that last didn't fit in a segment, only
+     * worth another try once there are fewer. Guarded by `this`
+     */
+    private int snapshotLimit = Integer.MAX_VALUE;
+
+    private long nextJournalId = 1;
+
+    /**
+     * Bytes appended and bytes known to be on disk since we opened
+     */
+    private long written;
+    private long durable;
+
+    private boolean closed;
+
+    /**
+     * One deployment that hasn't reached a final result yet
+     */
+    public static final class PendingDeploy {
+        private final long journalId;
+        private final String puppetMasterFqdn;
+        private final String[] environments;
+        private final boolean wait;
+        private final long submittedMillis;
+
+        /**
+         * Queued (or deploying) results with a Code Manager deploy id
+         */
+        private final Map<String, DeployResult> outstanding = new LinkedHashMap<>();
+
+        /**
+         * Final results so far
+         */
+        private final Map<String, DeployResult> results = new LinkedHashMap<>();
+
+        /**
+         * Still waiting for Code Manager to answer the deployment request in
+         * this JVM. Never journaled - after a restart nobody is waiting
+         */
+        private boolean inFlight;
+
+        PendingDeploy(long journalId, String puppetMasterFqdn, String[] environments, boolean wait, long submittedMillis) {
+            this.journalId = journalId;
+            this.puppetMasterFqdn = puppetMasterFqdn;
+            this.environments = environments;
+            this.wait = wait;
+            this.submittedMillis = submittedMillis;
+        }
+
+        public long getJournalId() {
+            return journalId;
+        }
+
+        public String getPuppetMasterFqdn() {
+            return puppetMasterFqdn;
+        }
+
+        /**
+         * @return requested environments or null for deploy-all
+         */
+        public String[] getEnvironments() {
+            return (environments == null) ? null : environments.clone();
+        }
+
+        public boolean isWait() {
+            return wait;
+        }
+
+        public long getSubmittedMillis() {
+            return submittedMillis;
+        }
+
+        /**
+         * @return true if Code Manager never acknowledged the deployment
+         *         (eg we crashed while the request was in flight)
+         */
+        public synchronized boolean isUnacknowledged() {
+            return outstanding.isEmpty() && results.isEmpty();
+        }
+
+        /**
+         * @return queued results we have a Code Manager deploy id for
+         */
+        public synchronized List<DeployResult> getOutstanding() {
+            return new ArrayList<>(outstanding.values());
+        }
+
+        /**
+         * @return final results received so far
+         */
+        public synchronized List<DeployResult> getResults() {
+            return new ArrayList<>(results.values());
+        }
+
+        @Override
+        public String toString() {
+            return String.format("#%d %s %s", journalId, puppetMasterFqdn,
+                    (environments == null) ? "deploy-all" : Arrays.toString(environments));
+        }
+    }
+
+    private static final class SyncWaiter {
+        private final long mark;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        SyncWaiter(long mark) {
+            this.mark = mark;
+        }
+    }
+
+    /**
+     * Open (or create) the journal in `directory` with the default segment
+     * size and flush interval
+     * @param directory where to keep segment files
+     */
+    public DeployJournal(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Open (or create) the journal in `directory`, replaying any segments
+     * already there
+     * @param directory where to keep segment files
+     * @param segmentBytes size of each memory-mapped segment file
+     * @param flushIntervalMillis how often to force written records to disk
+     */
+    public DeployJournal(Path directory, int segmentBytes, long flushIntervalMillis) throws IOException {
+        if (segmentBytes < 1024) {
+            throw new IllegalArgumentException("segmentBytes must be at least 1024, got " + segmentBytes);
+        }
+        if (flushIntervalMillis < 1) {
+            throw new IllegalArgumentException("flushIntervalMillis must be at least 1, got " + flushIntervalMillis);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+
+        Files.createDirectories(directory);
+        for (Map.Entry<Long, Path> entry : segments().entrySet()) {
+            replay(entry.getValue());
+            lastSequence = entry.getKey();
+        }
+        if (! pending.isEmpty()) {
+            log.info(String.format("Deploy journal %s has %d pending deployment(s)", directory, pending.size()));
+        }
+
+        // start afresh with just the pending deployments
+        synchronized (this) {
+            roll();
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pejava-journal-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Journal a deployment request before it is sent
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @param environments Environments to deploy. An empty or null list means
+     *                     deploy all environments
+     * @param wait whether the request waits for the deployment to finish
+     * @return journal id to record the outcome against
+     */
+    public long submitted(String puppetMasterFqdn, String[] environments, boolean wait) {
+        String[] requested = (environments == null || environments.length == 0) ? null : environments.clone();
+        long submittedMillis = System.currentTimeMillis();
+
+        synchronized (this) {
+            checkOpen();
+            long journalId = nextJournalId++;
+            PendingDeploy deploy = new PendingDeploy(journalId, puppetMasterFqdn, requested, wait, submittedMillis);
+            deploy.inFlight = true;
+            append(submitRecord(deploy));
+            pending.put(journalId, deploy);
+            return journalId;
+        }
+    }
+
+    /**
+     * Journal the results Code Manager gave back for a deployment. Queued
+     * results with a deploy id stay pending, everything else is final. Once
+     * nothing is left queued the deployment is finished
+     * @param journalId journal id from {@link #submitted}
+     * @param results results so far (queued or final)
+     */
+    public void recordResults(long journalId, List<DeployResult> results) {
+        synchronized (this) {
+            checkOpen();
+            PendingDeploy deploy = pending.get(journalId);
+            if (deploy == null) {
+                log.debug("Ignoring results for finished deployment #" + journalId);
+                return;
+            }
+
+            deploy.inFlight = false;
+            for (DeployResult result : results) {
+                try {
+                    byte[] record = isOutstanding(result) ?
+                            resultRecord(QUEUED, journalId, result) :
+                            resultRecord(RESULT, journalId, result);
+                    append(record);
+                    apply(deploy, record[0], result);
+                } catch (RuntimeException e) {
+                    // journaling never fails a deployment
+                    log.error("Failed to journal result for deployment #" + journalId + ": " + result, e);
+                }
+            }
+            if (deploy.outstanding.isEmpty()) {
+                finish(deploy);
+            }
+        }
+    }
+
+    /**
+     * Journal that a deployment request failed outright (error response or
+     * exception). The caller has already been told, so there is nothing to
+     * recover
+     * @param journalId journal id from {@link #submitted}
+     */
+    public void abandoned(long journalId) {
+        synchronized (this) {
+            checkOpen();
+            PendingDeploy deploy = pending.get(journalId);
+            if (deploy != null) {
+                finish(deploy);
+            }
+        }
+    }
+
+    /**
+     * @return deployments without a final result, oldest first. Includes
+     *         deployments replayed from a previous run
+     */
+    public synchronized List<PendingDeploy> getPending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    /**
+     * @return pending deployments that aren't waiting for a response in this
+     *         JVM
+     */
+    synchronized List<PendingDeploy> getRecoverable() {
+        List<PendingDeploy> recoverable = new ArrayList<>();
+        for (PendingDeploy deploy : pending.values()) {
+            if (! deploy.inFlight) {
+                recoverable.add(deploy);
+            }
+        }
+        return recoverable;
+    }
+
+    /**
+     * @return future that completes once everything journaled so far is on
+     *         disk, or fails if records are being dropped
+     */
+    public synchronized CompletableFuture<Void> sync() {
+        SyncWaiter waiter = new SyncWaiter(written);
+        if (degraded) {
+            waiter.future.completeExceptionally(new IOException("Deploy journal isn't recording, see earlier errors"));
+        } else if (durable >= written) {
+            waiter.future.complete(null);
+        } else {
+            waiters.add(waiter);
+        }
+        return waiter.future;
+    }
+
+    /**
+     * @return directory holding the segment files
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Flush outstanding records to disk and stop the flusher
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+
+        synchronized (this) {
+            if (spare != null) {
+                spare = null;
+                deleteSegment(spareSequence);
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("DeployJournal has been closed");
+        }
+    }
+
+    /**
+     * Map the next segment if needed, force everything appended so far to
+     * disk, delete segments the current one supersedes and wake sync()
+     * callers. Runs on the flusher
+     */
+    private void flush() {
+        prepareSpare();
+
+        MappedByteBuffer target;
+        long mark;
+        long sequence;
+        synchronized (this) {
+            if (degraded && ! closed && spare != null && pending.size() < snapshotLimit) {
+                try {
+                    roll();
+                    degraded = false;
+                    log.info("Deploy journal recording again");
+                } catch (IOException e) {
+                    log.debug("Deploy journal still unable to roll over: " + e.getMessage());
+                }
+            }
+            target = segment;
+            mark = written;
+            sequence = segmentSequence;
+        }
+
+        if (mark > durable || sequence > durableSequence) {
+            target.force();
+        }
+        if (sequence > durableSequence) {
+            // the snapshot at the start of `sequence` supersedes older segments
+            try {
+                for (Map.Entry<Long, Path> entry : segments().headMap(sequence).entrySet()) {
+                    Files.delete(entry.getValue());
+                }
+            } catch (IOException e) {
+                // replaying a stale segment is harmless
+                log.warn("Unable to delete old deploy journal segment: " + e.getMessage());
+            }
+        }
+
+        synchronized (this) {
+            durable = Math.max(durable, mark);
+            durableSequence = Math.max(durableSequence, sequence);
+            Iterator<SyncWaiter> it = waiters.iterator();
+            while (it.hasNext()) {
+                SyncWaiter waiter = it.next();
+                if (waiter.mark > durable) {
+                    break;
+                }
+                waiter.future.complete(null);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Map the segment the next roll over will use, outside the lock
+     */
+    private void prepareSpare() {
+        long sequence;
+        synchronized (this) {
+            if (closed || spare != null) {
+                return;
+            }
+            sequence = ++lastSequence;
+        }
+
+        MappedByteBuffer next;
+        try {
+            next = mapSegment(sequence);
+        } catch (IOException e) {
+            log.warn("Unable to create deploy journal segment: " + e.getMessage());
+            return;
+        }
+
+        synchronized (this) {
+            if (! closed && spare == null && sequence > segmentSequence) {
+                spare = next;
+                spareSequence = sequence;
+                return;
+            }
+        }
+        // closed, or we rolled over past it while mapping
+        deleteSegment(sequence);
+    }
+
+    /**
+     * Copy a record into the current segment, starting a new segment if it
+     * doesn't fit. Drops the record (and logs why) rather than failing the
+     * caller. Caller holds the lock
+     * @param record type and payload
+     */
+    private void append(byte[] record) {
+        if (degraded) {
+            return;
+        }
+        if (segment.remaining() < RECORD_HEADER_BYTES + record.length) {
+            try {
+                roll();
+            } catch (IOException e) {
+                degraded = true;
+                log.error("Deploy journal not recording until it can roll over: " + e.getMessage());
+                return;
+            }
+            if (segment.remaining() < RECORD_HEADER_BYTES + record.length) {
+                log.error(String.format(
+                        "Deploy journal record of %d bytes doesn't fit in a %d byte segment, dropped", record.length, segmentBytes));
+                return;
+            }
+        }
+        write(segment, record);
+        written += RECORD_HEADER_BYTES + record.length;
+    }
+
+    private static void write(MappedByteBuffer buffer, byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        buffer.putInt(record.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(record);
+    }
+
+    /**
+     * Start a new segment holding a snapshot of the pending deployments,
+     * using the spare segment if the flusher has mapped one. The flusher
+     * makes it durable and deletes the old segments. Caller holds the lock
+     * @throws IOException if the segment can't be created or the snapshot
+     *                     doesn't fit - the current segment stays in use
+     */
+    private void roll() throws IOException {
+        long sequence;
+        MappedByteBuffer next;
+        if (spare != null) {
+            sequence = spareSequence;
+            next = spare;
+            spare = null;
+        } else {
+            sequence = ++lastSequence;
+            next = mapSegment(sequence);
+        }
+
+        next.putInt(MAGIC);
+        for (PendingDeploy deploy : pending.values()) {
+            List<byte[]> records = new ArrayList<>();
+            records.add(submitRecord(deploy));
+            for (DeployResult result : deploy.outstanding.values()) {
+                records.add(resultRecord(QUEUED, deploy.journalId, result));
+            }
+            for (DeployResult result : deploy.results.values()) {
+                records.add(resultRecord(RESULT, deploy.journalId, result));
+            }
+            for (byte[] record : records) {
+                if (next.remaining() < RECORD_HEADER_BYTES + record.length) {
+                    // wipe the partial snapshot so it can't be replayed, and
+                    // keep the segment for the next attempt
+                    int end = next.position();
+                    for (int i = 0; i < end; i++) {
+                        next.put(i, (byte) 0);
+                    }
+                    next.clear();
+                    spare = next;
+                    spareSequence = sequence;
+                    snapshotLimit = pending.size();
+                    throw new IOException(String.format(
+                            "%d pending deployments don't fit in a %d byte segment", pending.size(), segmentBytes));
+                }
+                write(next, record);
+            }
+        }
+
+        segment = next;
+        segmentSequence = sequence;
+        snapshotLimit = Integer.MAX_VALUE;
+    }
+
+    private Path segmentPath(long sequence) {
+        return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+
+    private MappedByteBuffer mapSegment(long sequence) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(segmentPath(sequence).toFile(), "rw");
+             FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    private void deleteSegment(long sequence) {
+        try {
+            Files.deleteIfExists(segmentPath(sequence));
+        } catch (IOException e) {
+            log.warn("Unable to delete unused deploy journal segment: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return segment files in the journal directory by sequence number
+     */
+    private TreeMap<Long, Path> segments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(
+                            SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), path);
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring unexpected file in deploy journal: " + path);
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Apply every intact record in a segment file to `pending`
+     */
+    private void replay(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int magic = (buffer.remaining() < 4) ? 0 : buffer.getInt();
+        if (magic == 0) {
+            // spare segment mapped ahead of a roll over that never happened
+            log.debug("Ignoring unused deploy journal segment: " + file);
+            return;
+        } else if (magic != MAGIC) {
+            log.warn("Ignoring deploy journal segment with bad header: " + file);
+            return;
+        }
+
+        int count = 0;
+        while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+            int length = buffer.getInt();
+            int crc = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                // unused space or a record torn by a crash
+                break;
+            }
+            CRC32 check = new CRC32();
+            check.update(bytes, buffer.position(), length);
+            if ((int) check.getValue() != crc) {
+                log.warn(String.format("Deploy journal %s corrupt after %d records, ignoring the rest", file, count));
+                break;
+            }
+            try {
+                replay(new DataInputStream(new ByteArrayInputStream(bytes, buffer.position(), length)));
+            } catch (IOException e) {
+                log.warn(String.format("Deploy journal %s unreadable after %d records, ignoring the rest: %s", file, count, e.getMessage()));
+                break;
+            }
+            buffer.position(buffer.position() + length);
+            count++;
+        }
+    }
+
+    private void replay(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        long journalId = in.readLong();
+        nextJournalId = Math.max(nextJournalId, journalId + 1);
+        PendingDeploy deploy = pending.get(journalId);
+
+        switch (type) {
+            case SUBMIT:
+                long submittedMillis = in.readLong();
+                boolean wait = in.readBoolean();
+                String fqdn = in.readUTF();
+                int count = in.readInt();
+                String[] environments = null;
+                if (count >= 0) {
+                    environments = new String[count];
+                    for (int i = 0; i < count; i++) {
+                        environments[i] = in.readUTF();
+                    }
+                }
+                if (deploy == null) {
+                    pending.put(journalId, new PendingDeploy(journalId, fqdn, environments, wait, submittedMillis));
+                }
+                break;
+            case QUEUED:
+            case RESULT:
+                String environment = readNullableUTF(in);
+                String status = readNullableUTF(in);
+                String signature = in.readBoolean() ? in.readUTF() : null;
+                long id = in.readLong();
+                if (deploy != null) {
+                    apply(deploy, type, new DeployResult(environment, status, signature, id));
+                }
+                break;
+            case DONE:
+                pending.remove(journalId);
+                break;
+            default:
+                throw new IOException("Unknown deploy journal record type " + type);
+        }
+    }
+
+    private void finish(PendingDeploy deploy) {
+        append(doneRecord(deploy.journalId));
+        pending.remove(deploy.journalId);
+    }
+
+    private static void apply(PendingDeploy deploy, byte type, DeployResult result) {
+        synchronized (deploy) {
+            if (type == QUEUED) {
+                deploy.outstanding.put(result.getEnvironment(), result);
+            } else {
+                deploy.outstanding.remove(result.getEnvironment());
+                deploy.results.put(result.getEnvironment(), result);
+            }
+        }
+    }
+
+    /**
+     * @return true if Code Manager is still working on this result and gave
+     *         us an id to poll for
+     */
+    static boolean isOutstanding(DeployResult result) {
+        String status = result.getStatus();
+        return result.getId() != DeployResult.NO_ID && (
+                DeployResult.STATUS_QUEUED.equals(status) ||
+                DeployStatus.STATE_NEW.equals(status) ||
+                DeployStatus.STATE_DEPLOYING.equals(status));
+    }
+
+    private static byte[] submitRecord(PendingDeploy deploy) {
+        return record(SUBMIT, deploy.journalId, out -> {
+            out.writeLong(deploy.submittedMillis);
+            out.writeBoolean(deploy.wait);
+            out.writeUTF(deploy.puppetMasterFqdn);
+            out.writeInt((deploy.environments == null) ? -1 : deploy.environments.length);
+            if (deploy.environments != null) {
+                for (String environment : deploy.environments) {
+                    out.writeUTF(environment);
+                }
+            }
+        });
+    }
+
+    private static byte[] resultRecord(byte type, long journalId, DeployResult result) {
+        return record(type, journalId, out -> {
+            writeNullableUTF(out, result.getEnvironment());
+            writeNullableUTF(out, result.getStatus());
+            out.writeBoolean(result.hasDeploySignature());
+            if (result.hasDeploySignature()) {
+                result.writeDeploySignatureUTF(out);
+            }
+            out.writeLong(result.getId());
+        });
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static byte[] doneRecord(long journalId) {
+        return record(DONE, journalId, out -> {});
+    }
+
+    @FunctionalInterface
+    private interface Payload {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] record(byte type, long journalId, Payload payload) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            out.writeLong(journalId);
+            payload.write(out);
+        } catch (IOException e) {
+            // can't happen writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
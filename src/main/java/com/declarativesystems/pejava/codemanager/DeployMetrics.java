@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import java.util.List;
+
+/**
+ * Metrics SPI - implement this (or use {@link SimpleDeployMetrics} or
+ * {@link MicrometerDeployMetrics}) and pass it to {@link HttpClientRegistry} to
+ * see where the time goes in each request to Code Manager and how deployments
+ * turned out.
+ *
+ * Implementations are called on request threads (and async I/O threads) so
+ * must be thread-safe and fast
+ */
+public interface DeployMetrics {
+
+    enum Phase {
+        /**
+         * Parse the CA cert and build an SSLContext (once per client)
+         */
+        SSL_CONTEXT_BUILD,
+
+        /**
+         * Wait for a connection from the pool
+         */
+        CONNECTION_ACQUIRE,
+
+        /**
+         * TCP connect, excluding the TLS handshake
+         */
+        CONNECT,
+
+        /**
+         * TLS handshake and hostname verification
+         */
+        TLS_HANDSHAKE,
+
+        /**
+         * Send request headers and body
+         */
+        REQUEST_WRITE,
+
+        /**
+         * From the request being sent to the response headers arriving - this
+         * is Code Manager's time (including the deployment itself with `wait`)
+         */
+        TIME_TO_FIRST_BYTE,
+
+        /**
+         * Read the response body
+         */
+        BODY_READ,
+
+        /**
+         * Parse the response JSON
+         */
+        JSON_PARSE,
+
+        /**
+         * Whole deployment request, end to end
+         */
+        TOTAL
+    }
+
+    /**
+     * Metrics that record nothing - the default
+     */
+    DeployMetrics NOOP = new DeployMetrics() {
+        @Override
+        public void recordPhase(String puppetMasterFqdn, Phase phase, long nanos) {}
+
+        @Override
+        public void recordResult(String puppetMasterFqdn, String environment, String outcome) {}
+
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+    };
+
+    /**
+     * Record how long one phase of a request took
+     * @param puppetMasterFqdn FQDN of Puppet Master the request was sent to
+     * @param phase which part of the request
+     * @param nanos duration in nanoseconds
+     */
+    void recordPhase(String puppetMasterFqdn, Phase phase, long nanos);
+
+    /**
+     * Count a deployment outcome
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @param environment Environment deployed
+     * @param outcome Code Manager status (`complete`, `failed`, `queued`),
+     *                `missing` or `MISMATCH`
+     */
+    void recordResult(String puppetMasterFqdn, String environment, String outcome);
+
+    /**
+     * Count the outcome of each result. Results that have been through
+     * `DeployResult.checkDeployResult` are counted as `MISMATCH` if the wrong
+     * commit was deployed
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @param results parsed or checked deployment results
+     */
+    default void recordResults(String puppetMasterFqdn, List<DeployResult> results) {
+        for (DeployResult result : results) {
+            recordResult(puppetMasterFqdn, result.getEnvironment(), outcome(result));
+        }
+    }
+
+    /**
+     * @return false if this implementation discards everything, so callers can
+     *         skip work done only for metrics
+     */
+    default boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * @return status to count a result under
+     */
+    static String outcome(DeployResult result) {
+        String outcome = result.getStatus();
+        if (result.hasTargetDeploySignature()
+                && DeployResult.STATUS_OK.equals(outcome)
+                && ! result.isMatchingDeploymentSignature()) {
+            outcome = DeployResult.MSG_MISMATCH;
+        }
+        return outcome;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Works out how urgent a deployment is from the environments it names. Rules
+ * are regular expressions matched against the whole environment name, first
+ * match wins. A deployment gets the highest priority of its environments;
+ * deploy-all gets the highest priority of any rule since it includes
+ * everything. Larger numbers are more urgent
+ */
+public final class DeployPriorities {
+
+    /**
+     * `production` 100, `release*` 50, everything else 0
+     */
+    public static final DeployPriorities DEFAULT;
+
+    static {
+        Map<String, Integer> rules = new LinkedHashMap<>();
+        rules.put("production", 100);
+        rules.put("release.*", 50);
+        DEFAULT = new DeployPriorities(rules, 0);
+    }
+
+    private final List<Pattern> patterns = new ArrayList<>();
+    private final List<Integer> priorities = new ArrayList<>();
+    private final int defaultPriority;
+    private final int deployAllPriority;
+
+    /**
+     * @param rules environment name regex to priority, in the order to try
+     *              them (use a LinkedHashMap)
+     * @param defaultPriority priority of environments no rule matches
+     */
+    public DeployPriorities(Map<String, Integer> rules, int defaultPriority) {
+        int highest = defaultPriority;
+        for (Map.Entry<String, Integer> rule : rules.entrySet()) {
+            patterns.add(Pattern.compile(rule.getKey()));
+            priorities.add(rule.getValue());
+            highest = Math.max(highest, rule.getValue());
+        }
+        this.defaultPriority = defaultPriority;
+        this.deployAllPriority = highest;
+    }
+
+    /**
+     * @param environment environment name
+     * @return priority of the first matching rule or the default
+     */
+    public int priorityOf(String environment) {
+        for (int i = 0; i < patterns.size(); i++) {
+            if (patterns.get(i).matcher(environment).matches()) {
+                return priorities.get(i);
+            }
+        }
+        return defaultPriority;
+    }
+
+    /**
+     * @param environments environments to deploy, null or empty for
+     *                     deploy-all
+     * @return priority of the most urgent environment
+     */
+    public int priorityOf(String[] environments) {
+        if (environments == null || environments.length == 0) {
+            return deployAllPriority;
+        }
+        int priority = Integer.MIN_VALUE;
+        for (String environment : environments) {
+            priority = Math.max(priority, priorityOf(environment));
+        }
+        return priority;
+    }
+}
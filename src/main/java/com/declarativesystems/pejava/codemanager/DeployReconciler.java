@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Check deployment results against the git commits each environment should be
+ * at. Results are categorised as they are parsed, using hash lookups, so the
+ * cost is linear in the number of environments. Pass the previous run's
+ * Reconciliation to only re-evaluate (and report) environments that changed.
+ *
+ * Feed results in with `accept()` (eg as the callback to
+ * `DeployResult.toDeployResult(String, Consumer)`) then call `finish()`
+ */
+public class DeployReconciler implements Consumer<DeployResult> {
+
+    /**
+     * Target commit by environment
+     */
+    private final Map<String, String> target;
+
+    /**
+     * Targeted environments not reported yet
+     */
+    private final Map<String, String> remaining;
+
+    private final Reconciliation previous;
+
+    private final List<DeployResult> results = new ArrayList<>();
+    private final List<Reconciliation.Outcome> resultOutcomes = new ArrayList<>();
+    private final Map<String, DeployResult> resultsByEnvironment = new HashMap<>();
+    private final Map<String, Reconciliation.Outcome> outcomes = new HashMap<>();
+    private final List<String> changed = new ArrayList<>();
+    private int evaluated;
+    private boolean finished;
+    private final ReconciliationEvent event;
+
+    /**
+     * @param target Map of with key (environment name), value (git commits)
+     *               that should be present
+     */
+    public DeployReconciler(Map<String, String> target) {
+        this(target, null);
+    }
+
+    /**
+     * @param target Map of with key (environment name), value (git commits)
+     *               that should be present
+     * @param previous result of the last reconciliation or null
+     */
+    public DeployReconciler(Map<String, String> target, Reconciliation previous) {
+        this.target = target;
+        this.remaining = new HashMap<>(target);
+        this.previous = previous;
+        this.event = JfrEvents.AVAILABLE ? ReconciliationEvent.start(target.size()) : null;
+    }
+
+    /**
+     * Check a whole response
+     * @param responseString JSON string from Puppet Enterprise Code Manager
+     *                       REST API
+     * @param target Map of with key (environment name), value (git commits)
+     *               that should be present
+     * @return categorised results
+     * @throws CodeManagerException if Code Manager returned an error document
+     * @throws IOException on malformed JSON
+     */
+    public static Reconciliation reconcile(String responseString, Map<String, String> target) throws IOException {
+        return reconcile(responseString, target, null);
+    }
+
+    /**
+     * Check a whole response, only re-evaluating environments that changed
+     * since `previous`
+     * @param responseString JSON string from Puppet Enterprise Code Manager
+     *                       REST API
+     * @param target Map of with key (environment name), value (git commits)
+     *               that should be present
+     * @param previous result of the last reconciliation or null
+     * @return categorised results
+     * @throws CodeManagerException if Code Manager returned an error document
+     * @throws IOException on malformed JSON
+     */
+    public static Reconciliation reconcile(String responseString,
+                                           Map<String, String> target,
+                                           Reconciliation previous) throws IOException {
+        DeployReconciler reconciler = new DeployReconciler(target, previous);
+        DeployResultParser.parse(new StringReader(responseString), reconciler);
+        return reconciler.finish();
+    }
+
+    /**
+     * Check a response stream (UTF-8) as it is read
+     * @param inputStream JSON response from Puppet Enterprise Code Manager
+     *                    REST API
+     * @param target Map of with key (environment name), value (git commits)
+     *               that should be present
+     * @param previous result of the last reconciliation or null
+     * @return categorised results
+     * @throws CodeManagerException if Code Manager returned an error document
+     * @throws IOException on read error or malformed JSON
+     */
+    public static Reconciliation reconcile(InputStream inputStream,
+                                           Map<String, String> target,
+                                           Reconciliation previous) throws IOException {
+        DeployReconciler reconciler = new DeployReconciler(target, previous);
+        DeployResultParser.parse(new InputStreamReader(inputStream, StandardCharsets.UTF_8), reconciler);
+        return reconciler.finish();
+    }
+
+    /**
+     * Categorise one deployment result
+     */
+    @Override
+    public void accept(DeployResult result) {
+        checkNotFinished();
+        String environment = result.getEnvironment();
+
+        // a repeated environment is only expected the first time
+        boolean expected = remaining.containsKey(environment);
+        String targetDeploySignature = expected ? remaining.remove(environment) : DeployResult.MISSING;
+        if (targetDeploySignature == null) {
+            targetDeploySignature = DeployResult.MISSING;
+        }
+        result.setTargetDeploySignature(targetDeploySignature);
+
+        add(result, expected);
+    }
+
+    /**
+     * Add environments that were expected but not deployed and build the
+     * final result. No more results can be accepted afterwards
+     * @return categorised results
+     */
+    public Reconciliation finish() {
+        checkNotFinished();
+        finished = true;
+
+        // walk the caller's map so missing environments come out in its order
+        if (! remaining.isEmpty()) {
+            for (Map.Entry<String, String> entry : target.entrySet()) {
+                if (remaining.containsKey(entry.getKey())) {
+                    DeployResult missing = new DeployResult(entry.getKey(), DeployResult.MISSING, DeployResult.MISSING);
+                    missing.setTargetDeploySignature(entry.getValue());
+                    add(missing, true);
+                }
+            }
+        }
+
+        // environments that have vanished since last time
+        if (previous != null) {
+            for (DeployResult old : previous.getResults()) {
+                if (! outcomes.containsKey(old.getEnvironment())) {
+                    changed.add(old.getEnvironment());
+                }
+            }
+        }
+
+        Reconciliation reconciliation = new Reconciliation(results, resultOutcomes, resultsByEnvironment, outcomes, changed, evaluated);
+        if (event != null) {
+            event.finish(reconciliation);
+        }
+        return reconciliation;
+    }
+
+    private void add(DeployResult result, boolean expected) {
+        String environment = result.getEnvironment();
+        Reconciliation.Outcome outcome;
+        if (outcomes.containsKey(environment)) {
+            // repeated in the response - only the first one counts
+            outcome = Reconciliation.Outcome.UNEXPECTED;
+            evaluated++;
+        } else {
+            DeployResult old = (previous == null) ? null : previous.getResult(environment);
+            if (old != null && old.sameAs(result)) {
+                outcome = previous.getOutcome(environment);
+            } else {
+                outcome = evaluate(result, expected);
+                evaluated++;
+                changed.add(environment);
+            }
+            outcomes.put(environment, outcome);
+            resultsByEnvironment.put(environment, result);
+        }
+
+        results.add(result);
+        resultOutcomes.add(outcome);
+    }
+
+    private static Reconciliation.Outcome evaluate(DeployResult result, boolean expected) {
+        Reconciliation.Outcome outcome;
+        if (! expected) {
+            outcome = Reconciliation.Outcome.UNEXPECTED;
+        } else {
+            switch (result.getStatusCode()) {
+                case MISSING:
+                    outcome = Reconciliation.Outcome.MISSING;
+                    break;
+                case QUEUED:
+                    outcome = Reconciliation.Outcome.QUEUED;
+                    break;
+                case OK:
+                    outcome = result.isMatchingDeploymentSignature() ?
+                            Reconciliation.Outcome.OK :
+                            Reconciliation.Outcome.MISMATCH;
+                    break;
+                default:
+                    outcome = Reconciliation.Outcome.FAILED;
+            }
+        }
+        return outcome;
+    }
+
+    private void checkNotFinished() {
+        if (finished) {
+            throw new IllegalStateException("reconciliation already finished");
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One deployment request to Code Manager, from sending the request to having
+ * the whole response
+ */
+@Name("com.declarativesystems.pejava.DeployRequest")
+@Label("Deploy Request")
+@Category({JfrEvents.CATEGORY, "Code Manager"})
+@Description("Deployment request sent to Code Manager")
+class DeployRequestEvent extends Event {
+
+    @Label("Puppet Master")
+    String master;
+
+    @Label("Environment Count")
+    @Description("Environments requested, 0 means all")
+    int environmentCount;
+
+    @Label("Wait")
+    @Description("Whether Code Manager was asked to wait for the deployment to finish")
+    boolean wait;
+
+    @Label("Async")
+    boolean async;
+
+    @Label("Bytes Out")
+    @DataAmount
+    long bytesOut;
+
+    @Label("Bytes In")
+    @DataAmount
+    long bytesIn;
+
+    @Label("Result Count")
+    @Description("Results parsed from the response or -1 if not parsed")
+    int resultCount = -1;
+
+    @Label("Error")
+    @Description("Why the attempt failed or null if it succeeded")
+    String error;
+
+    /**
+     * Start timing a request
+     * @return the event or null if nobody is recording it
+     */
+    static DeployRequestEvent start(String master, String[] environments, boolean wait, boolean async, long bytesOut) {
+        DeployRequestEvent event = new DeployRequestEvent();
+        if (! event.isEnabled()) {
+            return null;
+        }
+        event.master = master;
+        event.environmentCount = (environments == null) ? 0 : environments.length;
+        event.wait = wait;
+        event.async = async;
+        event.bytesOut = bytesOut;
+        event.begin();
+        return event;
+    }
+
+    void finish(long bytesIn, int resultCount) {
+        this.bytesIn = bytesIn;
+        this.resultCount = resultCount;
+        commit();
+    }
+
+    /**
+     * End an attempt that didn't produce a result
+     */
+    void fail(String error) {
+        this.error = error;
+        commit();
+    }
+}
@@ -1,31 +1,115 @@
 package com.declarativesystems.pejava.codemanager;
 
-import com.google.gson.*;
-
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
 
 public class DeployResult {
     /**
-     * Deploy signature (git rev) reported by puppet
+     * Deployment status as reported by puppet
      */
-    private String deploySignature;
+    public enum Status {
+        OK(STATUS_OK),
+        QUEUED(STATUS_QUEUED),
+        FAILED(STATUS_FAILED),
+        MISSING(DeployResult.MISSING),
+
+        /**
+         * Anything else, eg a Code Manager state such as "deploying", or no
+         * status at all
+         */
+        OTHER(null);
+
+        private final String text;
+
+        Status(String text) {
+            this.text = text;
+        }
+
+        /**
+         * @return status string as used by puppet, null for OTHER
+         */
+        public String getText() {
+            return text;
+        }
+
+        static Status of(String status) {
+            if (status == null) {
+                return OTHER;
+            }
+            switch (status) {
+                case STATUS_OK:
+                    return OK;
+                case STATUS_QUEUED:
+                    return QUEUED;
+                case STATUS_FAILED:
+                    return FAILED;
+                case DeployResult.MISSING:
+                    return MISSING;
+                default:
+                    return OTHER;
+            }
+        }
+    }
+
+    /**
+     * Environment, shared through {@link StringPool}
+     */
+    private String environment;
 
     /**
      * Deployment result as reported by puppet
      */
-    private String status;
+    private Status status = Status.OTHER;
 
     /**
-     * Environment
+     * Status string when `status` is OTHER, shared through {@link StringPool}
      */
-    private String environment;
+    private String otherStatus;
+
+    /**
+     * Deploy signature (git rev) reported by puppet. Lowercase 40 character
+     * hex signatures are held as 20 bytes in `deployHigh`, `deployMid` and
+     * `deployLow`, anything else (eg "missing") as-is in `deployText`
+     */
+    private long deployHigh;
+    private long deployMid;
+    private int deployLow;
+    private String deployText;
 
     /**
-     * git-rev we were supposed to be deploying
+     * git-rev we were supposed to be deploying, held the same way as the
+     * deploy signature
      */
-    private String targetDeploySignature;
+    private long targetHigh;
+    private long targetMid;
+    private int targetLow;
+    private String targetText;
+
+    /**
+     * Which signatures are held in binary: BINARY_DEPLOY and/or BINARY_TARGET
+     */
+    private byte binary;
+
+    private static final byte BINARY_DEPLOY = 1;
+
+    private static final byte BINARY_TARGET = 2;
+
+    private static final int SIGNATURE_CHARS = 40;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Code Manager deploy id, used to track queued deployments
+     */
+    private long id = NO_ID;
 
     /**
      * field in parsed MAP that indicates the git commit that just got deployed
@@ -43,6 +127,16 @@ public class DeployResult {
      */
     public static final String FIELD_STATUS   = "status";
 
+    /**
+     * field in parsed MAP that holds the Code Manager deploy id
+     */
+    public static final String FIELD_ID   = "id";
+
+    /**
+     * Value of `id` when Code Manager didn't give us one
+     */
+    public static final long NO_ID = -1;
+
     /**
      * How puppet flags deployment OK in its JSON
      */
@@ -50,6 +144,8 @@ public class DeployResult {
 
     public static final String STATUS_QUEUED = "queued";
 
+    public static final String STATUS_FAILED = "failed";
+
     public static final String MISSING = "missing";
 
     public static final String MSG_QUEUED = "QUEUED";
@@ -57,12 +153,43 @@ public class DeployResult {
     public static final String MSG_FAILED = "FAILED";
     public static final String MSG_MISMATCH = "MISMATCH";
 
+    public DeployResult() {}
+
+    DeployResult(String environment, String status, String deploySignature) {
+        this(environment, status, deploySignature, NO_ID);
+    }
+
+    DeployResult(String environment, String status, String deploySignature, long id) {
+        this.environment = StringPool.intern(environment);
+        this.status = Status.of(status);
+        if (this.status == Status.OTHER) {
+            this.otherStatus = StringPool.intern(status);
+        }
+        if (isBinarySignature(deploySignature)) {
+            deployHigh = parseHex(deploySignature, 0, 16);
+            deployMid = parseHex(deploySignature, 16, 32);
+            deployLow = (int) parseHex(deploySignature, 32, 40);
+            binary |= BINARY_DEPLOY;
+        } else {
+            deployText = deploySignature;
+        }
+        this.id = id;
+    }
 
     public String getDeploySignature() {
-        return deploySignature;
+        return ((binary & BINARY_DEPLOY) != 0) ?
+                toHex(deployHigh, deployMid, deployLow) :
+                deployText;
     }
 
     public String getStatus() {
+        return (status == Status.OTHER) ? otherStatus : status.getText();
+    }
+
+    /**
+     * @return status as an enum, OTHER for anything not listed there
+     */
+    public Status getStatusCode() {
         return status;
     }
 
@@ -70,20 +197,224 @@ public class DeployResult {
         return environment;
     }
 
+    public long getId() {
+        return id;
+    }
+
+    public String getTargetDeploySignature() {
+        return ((binary & BINARY_TARGET) != 0) ?
+                toHex(targetHigh, targetMid, targetLow) :
+                targetText;
+    }
+
+    void setTargetDeploySignature(String targetDeploySignature) {
+        if (isBinarySignature(targetDeploySignature)) {
+            targetHigh = parseHex(targetDeploySignature, 0, 16);
+            targetMid = parseHex(targetDeploySignature, 16, 32);
+            targetLow = (int) parseHex(targetDeploySignature, 32, 40);
+            targetText = null;
+            binary |= BINARY_TARGET;
+        } else {
+            targetText = targetDeploySignature;
+            binary &= ~BINARY_TARGET;
+        }
+    }
+
+    boolean hasTargetDeploySignature() {
+        return (binary & BINARY_TARGET) != 0 || targetText != null;
+    }
+
+    boolean hasDeploySignature() {
+        return (binary & BINARY_DEPLOY) != 0 || deployText != null;
+    }
+
+    /**
+     * @return true if the deploy signature is held in binary, so writing it
+     *         out only ever gives lowercase hex digits
+     */
+    boolean isDeploySignatureBinary() {
+        return (binary & BINARY_DEPLOY) != 0;
+    }
+
+    /**
+     * Compare the deploy signature with `signature`, ignoring case, without
+     * building a String for it
+     */
+    boolean isDeploySignature(String signature) {
+        return ((binary & BINARY_DEPLOY) != 0) ?
+                matchesHex(deployHigh, deployMid, deployLow, signature) :
+                deployText != null && deployText.equalsIgnoreCase(signature);
+    }
+
+    /**
+     * Append the deploy signature to `out` as {@link #getDeploySignature()}
+     * would give it, "null" if there isn't one
+     */
+    void appendDeploySignature(Appendable out) throws IOException {
+        if ((binary & BINARY_DEPLOY) != 0) {
+            appendHex(deployHigh, deployMid, deployLow, out);
+        } else {
+            out.append(deployText);
+        }
+    }
+
+    void appendTargetDeploySignature(Appendable out) throws IOException {
+        if ((binary & BINARY_TARGET) != 0) {
+            appendHex(targetHigh, targetMid, targetLow, out);
+        } else {
+            out.append(targetText);
+        }
+    }
+
+    /**
+     * Write the deploy signature (which must be present) exactly as
+     * `out.writeUTF(getDeploySignature())` would
+     */
+    void writeDeploySignatureUTF(DataOutput out) throws IOException {
+        if ((binary & BINARY_DEPLOY) != 0) {
+            // hex digits are one byte each in modified UTF-8
+            out.writeShort(SIGNATURE_CHARS);
+            for (int i = 0 ; i < SIGNATURE_CHARS ; i++) {
+                out.writeByte(HEX[nibble(deployHigh, deployMid, deployLow, i)]);
+            }
+        } else {
+            out.writeUTF(deployText);
+        }
+    }
+
     public boolean isStatusOk() {
-        return status.equals(STATUS_OK);
+        return status == Status.OK;
     }
 
     public boolean isStatusQueued() {
-         return status.equals(STATUS_QUEUED);
+         return status == Status.QUEUED;
     }
 
     public boolean isOk() {
         return isStatusQueued() || (isStatusOk() && isMatchingDeploymentSignature());
     }
 
+    /**
+     * Compare the deployed and target signatures, ignoring case, without
+     * building Strings for them
+     * @return true if puppet deployed the commit we wanted
+     */
     public boolean isMatchingDeploymentSignature() {
-        return deploySignature.equalsIgnoreCase(targetDeploySignature);
+        boolean deployBinary = (binary & BINARY_DEPLOY) != 0;
+        boolean targetBinary = (binary & BINARY_TARGET) != 0;
+        boolean matching;
+        if (deployBinary && targetBinary) {
+            matching = deployHigh == targetHigh && deployMid == targetMid && deployLow == targetLow;
+        } else if (deployBinary) {
+            matching = matchesHex(deployHigh, deployMid, deployLow, targetText);
+        } else if (targetBinary) {
+            matching = matchesHex(targetHigh, targetMid, targetLow, deployText);
+        } else {
+            matching = deployText != null && deployText.equalsIgnoreCase(targetText);
+        }
+        return matching;
+    }
+
+    /**
+     * @param other result to compare with
+     * @return true if `other` has exactly the same status, deploy signature
+     *         and target signature as this result
+     */
+    boolean sameAs(DeployResult other) {
+        return status == other.status
+                && Objects.equals(otherStatus, other.otherStatus)
+                && (binary == other.binary)
+                && deployHigh == other.deployHigh
+                && deployMid == other.deployMid
+                && deployLow == other.deployLow
+                && Objects.equals(deployText, other.deployText)
+                && targetHigh == other.targetHigh
+                && targetMid == other.targetMid
+                && targetLow == other.targetLow
+                && Objects.equals(targetText, other.targetText);
+    }
+
+    /**
+     * Only lowercase signatures are held in binary so that the getters give
+     * back exactly what was parsed
+     */
+    private static boolean isBinarySignature(String signature) {
+        if (signature == null || signature.length() != SIGNATURE_CHARS) {
+            return false;
+        }
+        for (int i = 0 ; i < SIGNATURE_CHARS ; i++) {
+            char c = signature.charAt(i);
+            if (! ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseHex(String signature, int from, int to) {
+        long value = 0;
+        for (int i = from ; i < to ; i++) {
+            value = (value << 4) | hexDigit(signature.charAt(i));
+        }
+        return value;
+    }
+
+    /**
+     * @return value of hex digit `c` in either case, or -1
+     */
+    private static int hexDigit(char c) {
+        int digit;
+        if (c >= '0' && c <= '9') {
+            digit = c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            digit = c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            digit = c - 'A' + 10;
+        } else {
+            digit = -1;
+        }
+        return digit;
+    }
+
+    /**
+     * @return the `i`th hex digit (0-39) of a binary signature
+     */
+    private static int nibble(long high, long mid, int low, int i) {
+        int value;
+        if (i < 16) {
+            value = (int) (high >>> (60 - 4 * i)) & 0xf;
+        } else if (i < 32) {
+            value = (int) (mid >>> (60 - 4 * (i - 16))) & 0xf;
+        } else {
+            value = (low >>> (28 - 4 * (i - 32))) & 0xf;
+        }
+        return value;
+    }
+
+    private static boolean matchesHex(long high, long mid, int low, String signature) {
+        if (signature == null || signature.length() != SIGNATURE_CHARS) {
+            return false;
+        }
+        for (int i = 0 ; i < SIGNATURE_CHARS ; i++) {
+            if (hexDigit(signature.charAt(i)) != nibble(high, mid, low, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void appendHex(long high, long mid, int low, Appendable out) throws IOException {
+        for (int i = 0 ; i < SIGNATURE_CHARS ; i++) {
+            out.append(HEX[nibble(high, mid, low, i)]);
+        }
+    }
+
+    private static String toHex(long high, long mid, int low) {
+        char[] hex = new char[SIGNATURE_CHARS];
+        for (int i = 0 ; i < SIGNATURE_CHARS ; i++) {
+            hex[i] = HEX[nibble(high, mid, low, i)];
+        }
+        return new String(hex);
     }
 
     public String getStatusAsString() {
@@ -91,9 +422,9 @@ public class DeployResult {
         String statusString;
         if (isStatusQueued()) {
             statusString = MSG_QUEUED;
-        } else if (isStatusOk() && targetDeploySignature != null && isMatchingDeploymentSignature()) {
+        } else if (isStatusOk() && hasTargetDeploySignature() && isMatchingDeploymentSignature()) {
             statusString = MSG_OK;
-        } else if (isStatusOk() && targetDeploySignature != null && ! isMatchingDeploymentSignature()){
+        } else if (isStatusOk() && hasTargetDeploySignature() && ! isMatchingDeploymentSignature()){
             statusString = MSG_MISMATCH;
         } else {
             statusString = MSG_FAILED;
@@ -103,16 +434,22 @@ public class DeployResult {
     }
 
     public String toString() {
-        String gitMessage = isStatusQueued() || isMatchingDeploymentSignature() ?
-                targetDeploySignature :
-                String.format("git=%s puppet=%s", targetDeploySignature, deploySignature);
-
-        return String.format(
-                "[%s] %s - %s",
-                environment,
-                getStatusAsString(),
-                gitMessage
-        );
+        StringBuilder sb = new StringBuilder(128);
+        sb.append('[').append(environment).append("] ").append(getStatusAsString()).append(" - ");
+        try {
+            if (isStatusQueued() || isMatchingDeploymentSignature()) {
+                appendTargetDeploySignature(sb);
+            } else {
+                sb.append("git=");
+                appendTargetDeploySignature(sb);
+                sb.append(" puppet=");
+                appendDeploySignature(sb);
+            }
+        } catch (IOException e) {
+            // can't happen appending to a StringBuilder
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
     }
 
     /**
@@ -126,20 +463,6 @@ public class DeployResult {
     }
 
 
-    private static Map[] responseStringtoMap(String responseString) {
-        Gson gson = new GsonBuilder().create();
-        Map[] data;
-        try {
-            data = gson.fromJson(responseString, Map[].class);
-        } catch (JsonSyntaxException e) {
-            // Puppet will give a different JSON message that we cant parse to
-            // an array of map if there were errors - in this case swallow the
-            // error and return an empty list
-            data = new Map[0];
-        }
-        return data;
-    }
-
     /**
      * Parse the response string (which is hopefully json) and make java POJOs
      *
@@ -174,18 +497,64 @@ public class DeployResult {
      */
     public static List<DeployResult> toDeployResult(String responseString) {
         List<DeployResult> results = new ArrayList<>();
-
-        for (Map data : responseStringtoMap(responseString)) {
-            DeployResult deployResult = new DeployResult();
-            deployResult.environment = (String) data.get(FIELD_ENVIRONMENT_DEPLOYED);
-            deployResult.deploySignature = (String) data.getOrDefault(FIELD_GIT_COMMIT_DEPLOYED, MISSING);
-            deployResult.status = (String) data.get(FIELD_STATUS);
-            results.add(deployResult);
+        try {
+            DeployResultParser.parse(new StringReader(responseString), results::add);
+        } catch (IOException e) {
+            // Puppet will give a different JSON message that we cant parse to
+            // an array of results if there were errors - in this case swallow
+            // the error and return an empty list
+            results.clear();
         }
 
         return results;
     }
 
+    /**
+     * Parse a response stream directly, without first reading it into a String
+     * @param inputStream JSON response (UTF-8) from Puppet Enterprise Code
+     *                    Manager REST API
+     * @return Parsed DeployResult instances
+     * @throws CodeManagerException if Code Manager returned an error document
+     * @throws IOException on read error or malformed JSON
+     */
+    public static List<DeployResult> toDeployResult(InputStream inputStream) throws IOException {
+        return DeployResultParser.parse(inputStream);
+    }
+
+    /**
+     * Parse a response string, handing each DeployResult to `callback` as soon
+     * as it is parsed instead of collecting them
+     * @param responseString JSON string from Puppet Enterprise Code Manager
+     *                       REST API
+     * @param callback receives each DeployResult in response order
+     * @return number of results parsed
+     * @throws CodeManagerException if Code Manager returned an error document
+     * @throws IOException on malformed JSON
+     */
+    public static int toDeployResult(String responseString, Consumer<DeployResult> callback) throws IOException {
+        return DeployResultParser.parse(new StringReader(responseString), callback);
+    }
+
+    /**
+     * Parse the response string like {@link #toDeployResult(String)} but
+     * treat anything other than a JSON array as an error from Code Manager
+     * @param responseString JSON string from Puppet Enterprise Code Manager
+     *                       REST API
+     * @return Parsed DeployResult instances
+     * @throws CodeManagerException if Code Manager returned an error document
+     * @throws IOException on malformed JSON
+     */
+    public static List<DeployResult> toDeployResultOrThrow(String responseString) throws IOException {
+        List<DeployResult> results = new ArrayList<>();
+        try {
+            DeployResultParser.parse(new StringReader(responseString), results::add);
+        } catch (CodeManagerException e) {
+            // keep the whole response for the caller
+            throw new CodeManagerException("Deployment error from Puppet Master", e.getKind(), responseString);
+        }
+        return results;
+    }
+
     /**
      * Check the raw output of a deployment against a list of targets. This way
      * we can verify that we are deploying the right code by commit ID (eg test
@@ -199,39 +568,27 @@ public class DeployResult {
      *         parsed
      */
     public static List<DeployResult> checkDeployResult(String responseString, Map<String,String> target) {
-        List<DeployResult> results = toDeployResult(responseString);
-        List<String> puppetEnvironments = new ArrayList<>();
-
-        for (DeployResult result : results) {
-            puppetEnvironments.add(result.environment);
-            // we will get "missing" if puppet deployed an environment it wasn't asked to
-            result.targetDeploySignature = target.getOrDefault(result.environment, "missing");
-        }
-
-        // finally, we check that every requested environment was really deployed and
-        // not somehow lost (eg puppet hooked up to different server, throwing away envs
-        // with hypens, etc...). If we find any that are missing make an empty DeployResult
-        // to indicate failure
-        for (String targetEnvironment: target.keySet()) {
-            if (! puppetEnvironments.contains(targetEnvironment)) {
-                DeployResult missingEnvironment = new DeployResult();
-                missingEnvironment.environment = targetEnvironment;
-                missingEnvironment.targetDeploySignature = target.get(targetEnvironment);
-                missingEnvironment.status = MISSING;
-                missingEnvironment.deploySignature = MISSING;
-
-                results.add(missingEnvironment);
-            }
+        // we will get "missing" if puppet deployed an environment it wasn't
+        // asked to and we check that every requested environment was really
+        // deployed and not somehow lost (eg puppet hooked up to different
+        // server, throwing away envs with hypens, etc...). See DeployReconciler
+        DeployReconciler reconciler = new DeployReconciler(target);
+        try {
+            DeployResultParser.parse(new StringReader(responseString), reconciler);
+        } catch (IOException e) {
+            // unparsable response - nothing was deployed
+            reconciler = new DeployReconciler(target);
         }
 
-        return results;
+        return new ArrayList<>(reconciler.finish().getResults());
     }
 
     /**
      * Parse the raw output into an HTML table. We use this in the puppet deploy
      * plugin to do a deployment when the user clicks "deploy now" since this is
      * unrelated to any particular git commit, we don't do any of the checks
-     * around ID mismatch etc
+     * around ID mismatch etc. Use DeployResultRenderer to write rows straight
+     * to the page instead of building a String
      *
      * @param responseString JSON string from Puppet Enterprise Code Manager
      *                       REST API
@@ -240,18 +597,11 @@ public class DeployResult {
      */
     public static String toHtmlTableRows(String responseString) {
         StringBuilder sb = new StringBuilder();
-        for (DeployResult deployResult :toDeployResult(responseString)) {
-            String spanClass = deployResult.isStatusOk() ?
-                    "class=\"puppetOk\"": "class=\"puppetError\"";
-            sb.append("<tr>");
-            sb.append("<td>").append(deployResult.environment).append("</td>");
-            sb.append("<td>")
-                    .append("<span ").append(spanClass).append(">")
-                    .append(deployResult.status)
-                    .append("</span>")
-            .append("</td>");
-            sb.append("<td>").append(deployResult.deploySignature).append("</td>");
-            sb.append("<tr>");
+        try {
+            DeployResultRenderer.htmlTableRows(new StringReader(responseString), sb);
+        } catch (IOException e) {
+            // same as an unparsable response always did - no rows
+            sb.setLength(0);
         }
 
         return sb.toString();
@@ -266,16 +616,12 @@ public class DeployResult {
      */
     public static String prettyPrintJson(String responseString) {
         String pretty;
-        JsonParser parser = new JsonParser();
+        StringWriter sw = new StringWriter(responseString.length() * 2);
 
         try {
-            JsonElement json = (responseString.startsWith("[")) ?
-                    parser.parse(responseString).getAsJsonArray():
-                    parser.parse(responseString).getAsJsonObject();
-
-            Gson gson = new GsonBuilder().setPrettyPrinting().create();
-            pretty = gson.toJson(json);
-        } catch (JsonSyntaxException e) {
+            DeployResultRenderer.prettyJson(new StringReader(responseString), sw);
+            pretty = sw.toString();
+        } catch (IOException e) {
             pretty = responseString;
         }
         return pretty;
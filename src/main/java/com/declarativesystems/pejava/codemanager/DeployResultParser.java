@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Streaming parser for the Code Manager deploys response. Reads straight from
+ * the response stream with Gson's {@link JsonReader}, skipping everything but
+ * the fields {@link DeployResult} needs - so there is no intermediate String,
+ * Map or JSON tree for large (deploy-all) responses
+ */
+public final class DeployResultParser {
+
+    private DeployResultParser() {}
+
+    /**
+     * Parse a response stream (UTF-8) into DeployResult instances
+     * @param inputStream JSON response from Puppet Enterprise Code Manager
+     *                    REST API
+     * @return Parsed DeployResult instances
+     * @throws CodeManagerException if Code Manager returned an error document
+     * @throws IOException on read error or malformed JSON
+     */
+    public static List<DeployResult> parse(InputStream inputStream) throws IOException {
+        List<DeployResult> results = new ArrayList<>();
+        parse(new InputStreamReader(inputStream, StandardCharsets.UTF_8), results::add);
+        return results;
+    }
+
+    /**
+     * Parse a response, handing each DeployResult to `callback` as soon as it
+     * has been read
+     * @param reader JSON response from Puppet Enterprise Code Manager REST API
+     * @param callback receives each DeployResult in response order
+     * @return number of results parsed
+     * @throws CodeManagerException if Code Manager returned an error document
+     * @throws IOException on read error or malformed JSON. Results parsed
+     *         before the error have already been passed to `callback`
+     */
+    public static int parse(Reader reader, Consumer<DeployResult> callback) throws IOException {
+        ResponseParseEvent event = JfrEvents.AVAILABLE ? ResponseParseEvent.start() : null;
+        if (event == null) {
+            return parseResults(reader, callback);
+        }
+
+        int count = -1;
+        try {
+            count = parseResults(reader, callback);
+            return count;
+        } finally {
+            event.finish(Math.max(count, 0), count < 0);
+        }
+    }
+
+    private static int parseResults(Reader reader, Consumer<DeployResult> callback) throws IOException {
+        JsonReader json = new JsonReader(reader);
+
+        // match the tolerance of Gson.fromJson() which we used to use
+        json.setLenient(true);
+
+        try {
+            JsonToken token = json.peek();
+            if (token == JsonToken.BEGIN_OBJECT) {
+                throw readError(json);
+            } else if (token != JsonToken.BEGIN_ARRAY) {
+                throw new CodeManagerException("Unexpected response from Puppet Master (not a JSON array)", null);
+            }
+
+            int count = 0;
+            json.beginArray();
+            while (json.hasNext()) {
+                if (json.peek() == JsonToken.BEGIN_OBJECT) {
+                    callback.accept(readResult(json));
+                    count++;
+                } else {
+                    json.skipValue();
+                }
+            }
+            json.endArray();
+
+            return count;
+        } catch (IllegalStateException|NumberFormatException e) {
+            // JsonReader reports unexpected tokens as runtime exceptions
+            throw new MalformedJsonException(e.getMessage());
+        }
+    }
+
+    private static DeployResult readResult(JsonReader json) throws IOException {
+        String environment = null;
+        String status = null;
+        String deploySignature = DeployResult.MISSING;
+        long id = DeployResult.NO_ID;
+
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case DeployResult.FIELD_ENVIRONMENT_DEPLOYED:
+                    environment = nextStringOrNull(json);
+                    break;
+                case DeployResult.FIELD_STATUS:
+                    status = nextStringOrNull(json);
+                    break;
+                case DeployResult.FIELD_GIT_COMMIT_DEPLOYED:
+                    deploySignature = nextStringOrNull(json);
+                    break;
+                case DeployResult.FIELD_ID:
+                    id = nextLongOrNoId(json);
+                    break;
+                default:
+                    // file-sync, error, etc
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+
+        return new DeployResult(environment, status, deploySignature, id);
+    }
+
+    static CodeManagerException readError(JsonReader json) throws IOException {
+        String kind = null;
+        String msg = null;
+
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "kind":
+                    kind = nextStringOrNull(json);
+                    break;
+                case "msg":
+                    msg = nextStringOrNull(json);
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+
+        return new CodeManagerException(
+                "Deployment error from Puppet Master: " + kind + ": " + msg,
+                kind,
+                null);
+    }
+
+    static String nextStringOrNull(JsonReader json) throws IOException {
+        if (json.peek() == JsonToken.NULL) {
+            json.nextNull();
+            return null;
+        }
+        return json.nextString();
+    }
+
+    static long nextLongOrNoId(JsonReader json) throws IOException {
+        if (json.peek() == JsonToken.NULL) {
+            json.nextNull();
+            return DeployResult.NO_ID;
+        }
+        return json.nextLong();
+    }
+}
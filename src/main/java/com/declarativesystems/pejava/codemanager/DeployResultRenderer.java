@@ -0,0 +1,275 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Render Code Manager deploy responses straight to an `Appendable`/`Writer`
+ * (eg a servlet response) while they are parsed, so large deploy-all results
+ * are never held in memory as one big String
+ */
+public final class DeployResultRenderer {
+
+    /**
+     * Render every row
+     */
+    public static final int NO_LIMIT = Integer.MAX_VALUE;
+
+    private DeployResultRenderer() {}
+
+    /**
+     * Write one HTML table row ({@code <tr>...</tr>}) per deployed environment:
+     * environment, status and deploy signature. Values are HTML escaped
+     * @param reader JSON response from Puppet Enterprise Code Manager REST API
+     * @param out where to write the rows
+     * @return number of rows written
+     * @throws CodeManagerException if Code Manager returned an error document
+     * @throws IOException on read/write error or malformed JSON
+     */
+    public static int htmlTableRows(Reader reader, Appendable out) throws IOException {
+        return htmlTableRows(reader, out, 0, NO_LIMIT);
+    }
+
+    /**
+     * Write one page of HTML table rows
+     * @param reader JSON response from Puppet Enterprise Code Manager REST API
+     * @param out where to write the rows
+     * @param offset number of environments to skip
+     * @param limit most rows to write
+     * @return total number of environments in the response (for paging)
+     * @throws CodeManagerException if Code Manager returned an error document
+     * @throws IOException on read/write error or malformed JSON
+     */
+    public static int htmlTableRows(Reader reader, Appendable out, int offset, int limit) throws IOException {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("offset and limit must not be negative");
+        }
+        int[] index = {0};
+        return parse(reader, deployResult -> {
+            int i = index[0]++;
+            if (i >= offset && i - offset < limit) {
+                htmlTableRow(deployResult, out);
+            }
+        });
+    }
+
+    /**
+     * Pretty print JSON with the same layout as Gson's pretty printing, one
+     * token at a time
+     * @param reader JSON to format
+     * @param out where to write the formatted JSON
+     * @throws MalformedJsonException if the input isn't a JSON object or
+     *         array. Output written so far is not rolled back
+     * @throws IOException on read/write error
+     */
+    public static void prettyJson(Reader reader, Writer out) throws IOException {
+        JsonReader in = new JsonReader(reader);
+        in.setLenient(true);
+
+        JsonWriter json = new JsonWriter(out);
+        json.setIndent("  ");
+        // same as a default Gson
+        json.setHtmlSafe(true);
+        json.setSerializeNulls(false);
+
+        try {
+            JsonToken token = in.peek();
+            if (token != JsonToken.BEGIN_ARRAY && token != JsonToken.BEGIN_OBJECT) {
+                throw new MalformedJsonException("Expected a JSON object or array but was " + token);
+            }
+            copy(in, json);
+            if (in.peek() != JsonToken.END_DOCUMENT) {
+                throw new MalformedJsonException("Did not consume the entire document");
+            }
+        } catch (IllegalStateException|NumberFormatException e) {
+            throw new MalformedJsonException(e.getMessage());
+        }
+        json.flush();
+    }
+
+    /**
+     * Write a compact plain-text summary - counts by status then the
+     * environments that didn't complete, eg:
+     *
+     *     6 environments: 5 complete, 1 failed
+     *     failed: fail_code_quality
+     *
+     * @param reader JSON response from Puppet Enterprise Code Manager REST API
+     * @param out where to write the summary
+     * @return number of environments in the response
+     * @throws CodeManagerException if Code Manager returned an error document
+     * @throws IOException on read/write error or malformed JSON
+     */
+    public static int summary(Reader reader, Appendable out) throws IOException {
+        Map<String, List<String>> byStatus = new LinkedHashMap<>();
+        int count = parse(reader, deployResult ->
+                byStatus.computeIfAbsent(String.valueOf(deployResult.getStatus()), k -> new ArrayList<>())
+                        .add(deployResult.getEnvironment()));
+
+        out.append(String.valueOf(count)).append(count == 1 ? " environment" : " environments");
+        String separator = ": ";
+        for (Map.Entry<String, List<String>> entry : byStatus.entrySet()) {
+            out.append(separator).append(String.valueOf(entry.getValue().size())).append(' ').append(entry.getKey());
+            separator = ", ";
+        }
+        out.append('\n');
+
+        for (Map.Entry<String, List<String>> entry : byStatus.entrySet()) {
+            if (! DeployResult.STATUS_OK.equals(entry.getKey())) {
+                out.append(entry.getKey()).append(": ").append(String.join(", ", entry.getValue())).append('\n');
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Append `value` to `out` with HTML special characters escaped
+     */
+    public static void escapeHtml(String value, Appendable out) throws IOException {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0 ; i < value.length() ; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '"':
+                    out.append("&quot;");
+                    break;
+                case '\'':
+                    out.append("&#39;");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    private static void htmlTableRow(DeployResult deployResult, Appendable out) throws IOException {
+        String spanClass = deployResult.isStatusOk() ?
+                "class=\"puppetOk\"": "class=\"puppetError\"";
+        out.append("<tr>");
+        out.append("<td>");
+        escapeHtml(deployResult.getEnvironment(), out);
+        out.append("</td>");
+        out.append("<td>").append("<span ").append(spanClass).append(">");
+        escapeHtml(deployResult.getStatus(), out);
+        out.append("</span>").append("</td>");
+        out.append("<td>");
+        if (deployResult.isDeploySignatureBinary()) {
+            // hex digits need no escaping
+            deployResult.appendDeploySignature(out);
+        } else {
+            escapeHtml(deployResult.getDeploySignature(), out);
+        }
+        out.append("</td>");
+        out.append("</tr>");
+    }
+
+    private static void copy(JsonReader in, JsonWriter out) throws IOException {
+        int depth = 0;
+        do {
+            switch (in.peek()) {
+                case BEGIN_ARRAY:
+                    in.beginArray();
+                    out.beginArray();
+                    depth++;
+                    break;
+                case END_ARRAY:
+                    in.endArray();
+                    out.endArray();
+                    depth--;
+                    break;
+                case BEGIN_OBJECT:
+                    in.beginObject();
+                    out.beginObject();
+                    depth++;
+                    break;
+                case END_OBJECT:
+                    in.endObject();
+                    out.endObject();
+                    depth--;
+                    break;
+                case NAME:
+                    out.name(in.nextName());
+                    break;
+                case STRING:
+                    out.value(in.nextString());
+                    break;
+                case NUMBER:
+                    // keep the number exactly as written
+                    out.jsonValue(in.nextString());
+                    break;
+                case BOOLEAN:
+                    out.value(in.nextBoolean());
+                    break;
+                case NULL:
+                    in.nextNull();
+                    out.nullValue();
+                    break;
+                default:
+                    throw new MalformedJsonException("Unexpected end of document");
+            }
+        } while (depth > 0);
+    }
+
+    /**
+     * DeployResultParser callbacks can't throw IOException so tunnel write
+     * errors through and unwrap them here
+     */
+    private static int parse(Reader reader, IOConsumer callback) throws IOException {
+        try {
+            return DeployResultParser.parse(reader, deployResult -> {
+                try {
+                    callback.accept(deployResult);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @FunctionalInterface
+    private interface IOConsumer {
+        void accept(DeployResult deployResult) throws IOException;
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queues deployments per Puppet Master and runs the most urgent first on a
+ * small pool of workers for each master, so a `production` hotfix isn't stuck
+ * behind hundreds of feature branch deployments.
+ *
+ * Priority comes from {@link DeployPriorities} or the caller. To stop low
+ * priority deployments waiting forever, waiting counts as priority: every
+ * `ageingMillis` in the queue is worth one priority level. Each master's queue
+ * holds at most `maxQueued` deployments; when it is full a new deployment
+ * displaces the least urgent one if it is more urgent, otherwise it is
+ * rejected. Rejected deployments complete with RejectedExecutionException
+ */
+public class DeployScheduler implements Closeable {
+    private static Logger log = LoggerFactory.getLogger(DeployScheduler.class);
+
+    /**
+     * One priority level per minute spent waiting
+     */
+    public static final long DEFAULT_AGEING_MILLIS = 60 * 1000;
+
+    private final Deploy deploy;
+    private final int workersPerMaster;
+    private final int maxQueued;
+    private final long ageingMillis;
+    private final DeployPriorities priorities;
+    private final ExecutorService workers;
+
+    private final Map<String, MasterQueue> queues = new ConcurrentHashMap<>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private volatile boolean closed;
+
+    /**
+     * @param deploy Deploy implementation to send deployments with
+     * @param workersPerMaster deployments run at the same time per master
+     * @param maxQueued deployments waiting per master
+     */
+    public DeployScheduler(Deploy deploy, int workersPerMaster, int maxQueued) {
+        this(deploy, workersPerMaster, maxQueued, DEFAULT_AGEING_MILLIS, DeployPriorities.DEFAULT);
+    }
+
+    /**
+     * @param deploy Deploy implementation to send deployments with
+     * @param workersPerMaster deployments run at the same time per master
+     * @param maxQueued deployments waiting per master
+     * @param ageingMillis waiting this long raises priority by one
+     * @param priorities how to prioritise deployments by environment name
+     */
+    public DeployScheduler(Deploy deploy, int workersPerMaster, int maxQueued, long ageingMillis, DeployPriorities priorities) {
+        if (workersPerMaster < 1 || maxQueued < 1 || ageingMillis < 1) {
+            throw new IllegalArgumentException(
+                    "need workersPerMaster, maxQueued and ageingMillis > 0, got "
+                            + workersPerMaster + ", " + maxQueued + ", " + ageingMillis);
+        }
+        this.deploy = deploy;
+        this.workersPerMaster = workersPerMaster;
+        this.maxQueued = maxQueued;
+        this.ageingMillis = ageingMillis;
+        this.priorities = priorities;
+
+        AtomicInteger threads = new AtomicInteger();
+        this.workers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "pejava-deploy-worker-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queue a deployment with priority from its environment names
+     * @param puppetMaster Puppet Master to deploy to
+     * @param environments Environments to deploy. An empty or null list means
+     *                     deploy all environments, otherwise just deploy those
+     *                     named only
+     * @param wait Wait for deployment to finish
+     * @return Future of the deployment results. Cancel it to remove the
+     *         deployment from the queue
+     */
+    public CompletableFuture<List<DeployResult>> submit(PuppetMaster puppetMaster, String[] environments, boolean wait) {
+        return submit(puppetMaster, environments, wait, priorities.priorityOf(environments));
+    }
+
+    /**
+     * Queue a deployment with an explicit priority
+     * @param puppetMaster Puppet Master to deploy to
+     * @param environments Environments to deploy. An empty or null list means
+     *                     deploy all environments, otherwise just deploy those
+     *                     named only
+     * @param wait Wait for deployment to finish
+     * @param priority larger is more urgent
+     * @return Future of the deployment results. Cancel it to remove the
+     *         deployment from the queue
+     */
+    public CompletableFuture<List<DeployResult>> submit(PuppetMaster puppetMaster, String[] environments, boolean wait, int priority) {
+        if (closed) {
+            throw new IllegalStateException("DeployScheduler has been closed");
+        }
+        MasterQueue queue = queues.computeIfAbsent(puppetMaster.getFqdn(), MasterQueue::new);
+        Task task = new Task(puppetMaster, environments, wait, priority);
+        queue.add(task);
+        return task.future;
+    }
+
+    /**
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @return queue statistics for this master
+     */
+    public QueueStats getQueueStats(String puppetMasterFqdn) {
+        MasterQueue queue = queues.get(puppetMasterFqdn);
+        return (queue == null) ? new QueueStats(0, 0, 0, 0, 0, 0) : queue.stats();
+    }
+
+    /**
+     * Stop accepting deployments and fail any still queued. Running
+     * deployments are left to finish
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (MasterQueue queue : queues.values()) {
+            for (Task task : queue.drain()) {
+                task.future.completeExceptionally(new RejectedExecutionException("DeployScheduler closed"));
+            }
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * Snapshot of one master's queue
+     */
+    public static final class QueueStats {
+        private final int queued;
+        private final int running;
+        private final long completed;
+        private final long rejected;
+        private final long maxWaitMillis;
+        private final int highestQueuedPriority;
+
+        QueueStats(int queued, int running, long completed, long rejected, long maxWaitMillis, int highestQueuedPriority) {
+            this.queued = queued;
+            this.running = running;
+            this.completed = completed;
+            this.rejected = rejected;
+            this.maxWaitMillis = maxWaitMillis;
+            this.highestQueuedPriority = highestQueuedPriority;
+        }
+
+        /**
+         * @return deployments waiting
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        /**
+         * @return deployments being sent right now
+         */
+        public int getRunning() {
+            return running;
+        }
+
+        /**
+         * @return deployments finished (successfully or not)
+         */
+        public long getCompleted() {
+            return completed;
+        }
+
+        /**
+         * @return deployments rejected or displaced because the queue was full
+         */
+        public long getRejected() {
+            return rejected;
+        }
+
+        /**
+         * @return longest time any deployment has waited to start
+         */
+        public long getMaxWaitMillis() {
+            return maxWaitMillis;
+        }
+
+        /**
+         * @return priority of the most urgent waiting deployment (0 if none)
+         */
+        public int getHighestQueuedPriority() {
+            return highestQueuedPriority;
+        }
+
+        @Override
+        public String toString() {
+            return "QueueStats{" +
+                    "queued=" + queued +
+                    ", running=" + running +
+                    ", completed=" + completed +
+                    ", rejected=" + rejected +
+                    ", maxWaitMillis=" + maxWaitMillis +
+                    '}';
+        }
+    }
+
+    /**
+     * A queued deployment. Ordered by `rank` - the enqueue time less priority
+     * times the ageing interval - which orders tasks exactly as
+     * `priority + waited / ageingMillis` would at any moment, without
+     * re-sorting as time passes
+     */
+    private final class Task implements Comparable<Task> {
+        private final PuppetMaster puppetMaster;
+        private final String[] environments;
+        private final boolean wait;
+        private final int priority;
+        private final long enqueuedNanos = System.nanoTime();
+        private final long rank;
+        private final long seq = sequence.incrementAndGet();
+        private final CompletableFuture<List<DeployResult>> future = new CompletableFuture<>();
+
+        Task(PuppetMaster puppetMaster, String[] environments, boolean wait, int priority) {
+            this.puppetMaster = puppetMaster;
+            this.environments = environments;
+            this.wait = wait;
+            this.priority = priority;
+            this.rank = TimeUnit.NANOSECONDS.toMillis(enqueuedNanos) - priority * ageingMillis;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            int byRank = Long.compare(rank, other.rank);
+            return (byRank != 0) ? byRank : Long.compare(seq, other.seq);
+        }
+    }
+
+    /**
+     * Waiting and running deployments for one master
+     */
+    private final class MasterQueue {
+        private final String fqdn;
+
+        // guarded by this
+        private final TreeSet<Task> waiting = new TreeSet<>();
+        private int running;
+        private long completed;
+        private long rejected;
+        private long maxWaitMillis;
+
+        MasterQueue(String fqdn) {
+            this.fqdn = fqdn;
+        }
+
+        void add(Task task) {
+            Task displaced = null;
+            synchronized (this) {
+                if (waiting.size() >= maxQueued) {
+                    Task last = waiting.last();
+                    if (task.compareTo(last) < 0) {
+                        displaced = waiting.pollLast();
+                    } else {
+                        displaced = task;
+                    }
+                    rejected++;
+                }
+                if (displaced != task) {
+                    waiting.add(task);
+                }
+            }
+
+            if (displaced != null) {
+                log.warn("Deploy queue for " + fqdn + " full, rejecting " + describe(displaced));
+                displaced.future.completeExceptionally(new RejectedExecutionException(
+                        "Deploy queue for " + fqdn + " is full (" + maxQueued + ")"));
+            }
+            if (displaced != task) {
+                task.future.whenComplete((results, e) -> {
+                    if (task.future.isCancelled()) {
+                        remove(task);
+                    }
+                });
+            }
+            dispatch();
+        }
+
+        synchronized void remove(Task task) {
+            waiting.remove(task);
+        }
+
+        synchronized List<Task> drain() {
+            List<Task> drained = new ArrayList<>(waiting);
+            waiting.clear();
+            return drained;
+        }
+
+        /**
+         * Start waiting deployments while there are free workers
+         */
+        void dispatch() {
+            while (true) {
+                Task task;
+                synchronized (this) {
+                    if (running >= workersPerMaster || waiting.isEmpty()) {
+                        return;
+                    }
+                    task = waiting.pollFirst();
+                    running++;
+                    maxWaitMillis = Math.max(maxWaitMillis,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - task.enqueuedNanos));
+                }
+
+                try {
+                    workers.execute(() -> run(task));
+                } catch (RejectedExecutionException e) {
+                    finished();
+                    task.future.completeExceptionally(e);
+                }
+            }
+        }
+
+        private void run(Task task) {
+            List<DeployResult> results = null;
+            Throwable error = null;
+            try {
+                if (! task.future.isDone()) {
+                    log.debug("Deploying " + describe(task) + " to " + fqdn);
+                    String response = deploy.deployCode(
+                            task.puppetMaster.getFqdn(),
+                            task.puppetMaster.getToken(),
+                            task.puppetMaster.getCaCert(),
+                            task.environments,
+                            task.wait);
+                    results = DeployResult.toDeployResultOrThrow(response);
+                }
+            } catch (Throwable e) {
+                // Errors too - the caller must always hear back
+                error = e;
+            } finally {
+                // count the deployment before the caller hears about it so
+                // stats are up to date by the time the future completes
+                finished();
+                if (error != null) {
+                    task.future.completeExceptionally(error);
+                } else if (results != null) {
+                    task.future.complete(results);
+                }
+                dispatch();
+            }
+        }
+
+        private synchronized void finished() {
+            running--;
+            completed++;
+        }
+
+        synchronized QueueStats stats() {
+            long oldestWaitMillis = 0;
+            int highest = waiting.isEmpty() ? 0 : Integer.MIN_VALUE;
+            long now = System.nanoTime();
+            for (Task task : waiting) {
+                oldestWaitMillis = Math.max(oldestWaitMillis, TimeUnit.NANOSECONDS.toMillis(now - task.enqueuedNanos));
+                highest = Math.max(highest, task.priority);
+            }
+            return new QueueStats(
+                    waiting.size(), running, completed, rejected, Math.max(maxWaitMillis, oldestWaitMillis), highest);
+        }
+    }
+
+    private static String describe(Task task) {
+        return ((task.environments == null || task.environments.length == 0) ?
+                "deploy-all" :
+                Arrays.toString(task.environments)) + " (priority " + task.priority + ")";
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Structured concurrency for blocking deployment code, along the lines of
+ * Java 21's (preview) `StructuredTaskScope` but usable from Java 8: every
+ * subtask forked in the scope runs on its own thread (virtual where
+ * available, see {@link VirtualThreads}) and none outlives it.
+ *
+ * The scope has a deadline. The first subtask to fail, the deadline passing
+ * or the thread calling {@link #join()} being interrupted cancels every
+ * subtask still running by interrupting it. Waiting uses a
+ * {@link ReentrantLock} rather than `synchronized` so a virtual thread blocked
+ * in {@link #join()} or {@link #close()} doesn't pin its carrier. Subtasks that open scopes of
+ * their own pass the cancellation down, and {@link #await(CompletableFuture)}
+ * turns it into cancelling the HTTP request being waited for.
+ *
+ * <pre>
+ * try (DeployScope scope = new DeployScope("deploy", 60000)) {
+ *     Future&lt;List&lt;DeployResult&gt;&gt; a = scope.fork(() -&gt; ...);
+ *     Future&lt;List&lt;DeployResult&gt;&gt; b = scope.fork(() -&gt; ...);
+ *     scope.join();
+ *     ... a.get(), b.get() ...
+ * }
+ * </pre>
+ */
+public class DeployScope implements AutoCloseable {
+
+    private final ThreadFactory threadFactory;
+
+    private final long deadlineNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled when a subtask exits or fails
+     */
+    private final Condition changed = lock.newCondition();
+
+    /**
+     * Guarded by `lock`, as are the fields below
+     */
+    private final List<Subtask<?>> subtasks = new ArrayList<>();
+
+    private int running;
+
+    private Throwable firstFailure;
+
+    private boolean shutdown;
+
+    /**
+     * @param name thread name prefix for subtasks
+     * @param timeoutMillis time from now until the deadline
+     */
+    public DeployScope(String name, long timeoutMillis) {
+        this(VirtualThreads.factory("pejava-" + name), timeoutMillis);
+    }
+
+    /**
+     * @param threadFactory creates one thread per subtask
+     * @param timeoutMillis time from now until the deadline
+     */
+    public DeployScope(ThreadFactory threadFactory, long timeoutMillis) {
+        if (timeoutMillis < 1) {
+            throw new IllegalArgumentException("timeoutMillis must be at least 1, got " + timeoutMillis);
+        }
+        this.threadFactory = threadFactory;
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Start a subtask on a new thread
+     * @param task blocking work to do
+     * @return the subtask's result, available once {@link #join()} returns.
+     *         Cancelling it interrupts the subtask's thread
+     * @throws IllegalStateException if the scope has already shut down
+     */
+    public <T> Future<T> fork(Callable<T> task) {
+        Subtask<T> subtask = new Subtask<>(task);
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new IllegalStateException("DeployScope has shut down");
+            }
+            subtasks.add(subtask);
+            running++;
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            threadFactory.newThread(() -> {
+                try {
+                    subtask.run();
+                } finally {
+                    exited();
+                }
+            }).start();
+        } catch (RuntimeException|Error e) {
+            subtask.setFailed(e);
+            exited();
+            throw e;
+        }
+        return subtask;
+    }
+
+    /**
+     * Wait for every subtask's thread to finish
+     * @throws ExecutionException with the first failure, after cancelling the
+     *         other subtasks
+     * @throws TimeoutException if the deadline passed first. Unfinished
+     *         subtasks are cancelled
+     * @throws InterruptedException if interrupted while waiting. Unfinished
+     *         subtasks are cancelled
+     */
+    public void join() throws InterruptedException, ExecutionException, TimeoutException {
+        try {
+            lock.lockInterruptibly();
+            try {
+                while (running > 0 && firstFailure == null) {
+                    long remaining = deadlineNanos - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new TimeoutException("Deadline passed with " + running + " subtask(s) still running");
+                    }
+                    changed.awaitNanos(remaining);
+                }
+                if (firstFailure != null) {
+                    throw new ExecutionException(firstFailure);
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (InterruptedException|ExecutionException|TimeoutException e) {
+            shutdown();
+            throw e;
+        }
+    }
+
+    /**
+     * @return nanoseconds until the deadline, negative once it has passed
+     */
+    public long remainingNanos() {
+        return deadlineNanos - System.nanoTime();
+    }
+
+    /**
+     * Stop accepting subtasks and cancel any still running
+     */
+    public void shutdown() {
+        List<Subtask<?>> unfinished;
+        lock.lock();
+        try {
+            shutdown = true;
+            unfinished = new ArrayList<>(subtasks);
+        } finally {
+            lock.unlock();
+        }
+        for (Subtask<?> subtask : unfinished) {
+            subtask.cancel(true);
+        }
+    }
+
+    /**
+     * Cancel unfinished subtasks and wait for their threads to exit, so no
+     * work started in the scope carries on after it
+     */
+    @Override
+    public void close() {
+        shutdown();
+        // keeps the interrupt status for the caller
+        lock.lock();
+        try {
+            while (running > 0) {
+                changed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Block on a future, cancelling it if the waiting thread is interrupted -
+     * eg because the scope was cancelled. Cancelling a deployment future
+     * aborts the HTTP request
+     * @param future future to wait for
+     * @return the future's value
+     */
+    public static <T> T await(CompletableFuture<T> future) throws InterruptedException, ExecutionException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    private void failed(Throwable failure) {
+        lock.lock();
+        try {
+            if (firstFailure == null && ! shutdown) {
+                firstFailure = failure;
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A subtask's thread has finished (completed, failed or cancelled)
+     */
+    private void exited() {
+        lock.lock();
+        try {
+            running--;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * One forked task. A failure shuts the scope down as soon as it happens
+     */
+    private final class Subtask<T> extends FutureTask<T> {
+        Subtask(Callable<T> task) {
+            super(task);
+        }
+
+        void setFailed(Throwable e) {
+            setException(e);
+        }
+
+        @Override
+        protected void done() {
+            Throwable failure = null;
+            if (! isCancelled()) {
+                try {
+                    get();
+                } catch (ExecutionException e) {
+                    failure = e.getCause();
+                } catch (InterruptedException|CancellationException e) {
+                    // can't happen - we're done
+                }
+            }
+            if (failure != null) {
+                failed(failure);
+                shutdown();
+            }
+        }
+    }
+}
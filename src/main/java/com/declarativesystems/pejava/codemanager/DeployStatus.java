@@ -0,0 +1,263 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Snapshot of the Code Manager status endpoint:
+ * /code-manager/v1/deploys/status
+ *
+ * FROM:
+ * {
+ *   "deploys-status": {
+ *     "deploying": [ {"environment": "test14", "id": 3, "queued-at": "..."} ],
+ *     "failed": [ {"environment": "test1", "error": {...}, "id": 1, "queued-at": "..."} ],
+ *     "new": [],
+ *     "queued": [ {"environment": "test15", "id": 4, "queued-at": "..."} ]
+ *   },
+ *   "file-sync-storage-status": {
+ *     "deployed": [ {"environment": "production", "date": "...", "deploy-signature": "..."} ]
+ *   },
+ *   ...
+ * }
+ *
+ * Deployments still in `new`, `queued` or `deploying` are pending. Once a
+ * deployment leaves those lists it has either failed or been committed to file
+ * sync storage, which tells us the deployed signature. Code Manager lists a
+ * deployment as `new` before it hands back the deploy id, so an id missing
+ * from every list in a snapshot fetched after submission has finished - even
+ * if no poll ever saw it pending, eg a fast deploy or one that finished while
+ * we were restarting
+ */
+public class DeployStatus {
+
+    public static final String STATE_NEW = "new";
+    public static final String STATE_QUEUED = "queued";
+    public static final String STATE_DEPLOYING = "deploying";
+
+    /**
+     * Read a status snapshot from Code Manager
+     */
+    @FunctionalInterface
+    public interface Source {
+        DeployStatus fetch() throws IOException;
+    }
+
+    /**
+     * Pending deploy ids and their state (new, queued, deploying)
+     */
+    private final Map<Long, String> pending = new HashMap<>();
+
+    /**
+     * Failed deploy ids and their environment
+     */
+    private final Map<Long, String> failed = new HashMap<>();
+
+    /**
+     * Deployed signature by environment
+     */
+    private final Map<String, String> deployed = new HashMap<>();
+
+    /**
+     * @param id Code Manager deploy id
+     * @return state (new, queued, deploying) if pending, otherwise null
+     */
+    public String getPendingState(long id) {
+        return pending.get(id);
+    }
+
+    /**
+     * @param id Code Manager deploy id
+     * @return true if Code Manager is still working on this deploy
+     */
+    public boolean isPending(long id) {
+        return pending.containsKey(id);
+    }
+
+    /**
+     * @param id Code Manager deploy id
+     * @return true if this deploy failed
+     */
+    public boolean isFailed(long id) {
+        return failed.containsKey(id);
+    }
+
+    /**
+     * @param environment Environment name
+     * @return deploy signature in file sync storage or null if unknown
+     */
+    public String getDeployedSignature(String environment) {
+        return deployed.get(environment);
+    }
+
+    /**
+     * Work out the final result of a queued deployment. Only valid for
+     * snapshots fetched after the deployment was submitted
+     * @param queued DeployResult Code Manager gave us when we submitted
+     * @return final DeployResult or null if we don't know yet
+     */
+    public DeployResult resultFor(DeployResult queued) {
+        long id = queued.getId();
+        String environment = queued.getEnvironment();
+        DeployResult result = null;
+
+        if (isFailed(id)) {
+            result = new DeployResult(environment, DeployResult.STATUS_FAILED, DeployResult.MISSING, id);
+        } else if (! isPending(id) && deployed.containsKey(environment)) {
+            result = new DeployResult(environment, DeployResult.STATUS_OK, deployed.get(environment), id);
+        }
+
+        return result;
+    }
+
+    /**
+     * Parse a status response stream (UTF-8)
+     * @param inputStream JSON response from the Code Manager status endpoint
+     * @return Parsed status snapshot
+     * @throws CodeManagerException if Code Manager returned an error document
+     * @throws IOException on read error or malformed JSON
+     */
+    public static DeployStatus parse(InputStream inputStream) throws IOException {
+        return parse(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parse a status response
+     * @param reader JSON response from the Code Manager status endpoint
+     * @return Parsed status snapshot
+     * @throws CodeManagerException if Code Manager returned an error document
+     * @throws IOException on read error or malformed JSON
+     */
+    public static DeployStatus parse(Reader reader) throws IOException {
+        DeployStatus status = new DeployStatus();
+        JsonReader json = new JsonReader(reader);
+        json.setLenient(true);
+
+        try {
+            json.beginObject();
+            while (json.hasNext()) {
+                switch (json.nextName()) {
+                    case "deploys-status":
+                        status.readDeploysStatus(json);
+                        break;
+                    case "file-sync-storage-status":
+                        status.readStorageStatus(json);
+                        break;
+                    case "kind":
+                        // error document instead of a status report
+                        throw new CodeManagerException("Status error from Puppet Master: " + json.nextString(), null);
+                    default:
+                        json.skipValue();
+                }
+            }
+            json.endObject();
+        } catch (IllegalStateException|NumberFormatException e) {
+            throw new MalformedJsonException(e.getMessage());
+        }
+
+        return status;
+    }
+
+    private void readDeploysStatus(JsonReader json) throws IOException {
+        json.beginObject();
+        while (json.hasNext()) {
+            String state = json.nextName();
+            if (json.peek() != JsonToken.BEGIN_ARRAY) {
+                json.skipValue();
+                continue;
+            }
+
+            json.beginArray();
+            while (json.hasNext()) {
+                String environment = null;
+                long id = DeployResult.NO_ID;
+
+                json.beginObject();
+                while (json.hasNext()) {
+                    switch (json.nextName()) {
+                        case DeployResult.FIELD_ENVIRONMENT_DEPLOYED:
+                            environment = DeployResultParser.nextStringOrNull(json);
+                            break;
+                        case DeployResult.FIELD_ID:
+                            id = DeployResultParser.nextLongOrNoId(json);
+                            break;
+                        default:
+                            json.skipValue();
+                    }
+                }
+                json.endObject();
+
+                if (DeployResult.STATUS_FAILED.equals(state)) {
+                    failed.put(id, environment);
+                } else {
+                    pending.put(id, state);
+                }
+            }
+            json.endArray();
+        }
+        json.endObject();
+    }
+
+    private void readStorageStatus(JsonReader json) throws IOException {
+        json.beginObject();
+        while (json.hasNext()) {
+            if (! "deployed".equals(json.nextName()) || json.peek() != JsonToken.BEGIN_ARRAY) {
+                json.skipValue();
+                continue;
+            }
+
+            json.beginArray();
+            while (json.hasNext()) {
+                String environment = null;
+                String signature = null;
+
+                json.beginObject();
+                while (json.hasNext()) {
+                    switch (json.nextName()) {
+                        case DeployResult.FIELD_ENVIRONMENT_DEPLOYED:
+                            environment = DeployResultParser.nextStringOrNull(json);
+                            break;
+                        case DeployResult.FIELD_GIT_COMMIT_DEPLOYED:
+                            signature = DeployResultParser.nextStringOrNull(json);
+                            break;
+                        default:
+                            json.skipValue();
+                    }
+                }
+                json.endObject();
+
+                if (environment != null) {
+                    deployed.put(environment, (signature == null) ? DeployResult.MISSING : signature);
+                }
+            }
+            json.endArray();
+        }
+        json.endObject();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wait for queued deployments to finish by polling the Code Manager status
+ * endpoint instead of holding a `wait` request open for the whole deployment
+ */
+public final class DeployStatusPoller {
+    private static Logger log = LoggerFactory.getLogger(DeployStatusPoller.class);
+
+    private DeployStatusPoller() {}
+
+    /**
+     * Poll until every queued deployment has finished or the policy's deadline
+     * passes. Connection errors while polling are logged and retried - only
+     * the deadline stops us
+     * @param submitted results from a deployment made without `wait`
+     * @param source where to read deployment status from
+     * @param policy poll interval and deadline
+     * @return results in the same order as `submitted`. Deployments still
+     *         running at the deadline keep their last known status (eg
+     *         `queued`, `deploying`)
+     * @throws CodeManagerException if Code Manager rejected the status request
+     */
+    public static List<DeployResult> await(List<DeployResult> submitted,
+                                           DeployStatus.Source source,
+                                           PollingPolicy policy) throws IOException, InterruptedException
+    {
+        List<DeployResult> results = new ArrayList<>(submitted);
+
+        // index into results -> queued DeployResult we are waiting for
+        Map<Integer, DeployResult> outstanding = new LinkedHashMap<>();
+        for (int i = 0 ; i < results.size() ; i++) {
+            DeployResult result = results.get(i);
+            if (result.isStatusQueued() && result.getId() != DeployResult.NO_ID) {
+                outstanding.put(i, result);
+            }
+        }
+
+        // last state seen for each outstanding deploy
+        Map<Integer, String> lastState = new HashMap<>();
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(policy.getTimeoutMillis());
+        long delay = policy.getInitialDelayMillis();
+        while (! outstanding.isEmpty()) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                log.warn(String.format(
+                        "Gave up waiting for %d deployment(s) after %dms",
+                        outstanding.size(),
+                        policy.getTimeoutMillis()
+                ));
+                break;
+            }
+            Thread.sleep(Math.min(delay, remaining));
+
+            DeployStatus status;
+            try {
+                status = source.fetch();
+            } catch (CodeManagerException e) {
+                throw e;
+            } catch (IOException e) {
+                // the deployment carries on without us - just try again later
+                log.warn("Error polling deployment status, will retry: " + e.getMessage());
+                delay = policy.nextDelay(delay, false);
+                continue;
+            }
+
+            boolean progress = false;
+            Iterator<Map.Entry<Integer, DeployResult>> it = outstanding.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, DeployResult> entry = it.next();
+                DeployResult finished = status.resultFor(entry.getValue());
+                if (finished != null) {
+                    results.set(entry.getKey(), finished);
+                    it.remove();
+                    progress = true;
+                } else if (status.isPending(entry.getValue().getId())) {
+                    lastState.put(entry.getKey(), status.getPendingState(entry.getValue().getId()));
+                }
+            }
+
+            log.debug(String.format("%d deployment(s) still running", outstanding.size()));
+            delay = policy.nextDelay(delay, progress);
+        }
+
+        // report how far the stragglers got
+        for (Map.Entry<Integer, DeployResult> entry : outstanding.entrySet()) {
+            String state = lastState.get(entry.getKey());
+            if (state != null && ! DeployStatus.STATE_QUEUED.equals(state)) {
+                DeployResult queued = entry.getValue();
+                results.set(entry.getKey(), new DeployResult(
+                        queued.getEnvironment(), state, DeployResult.MISSING, queued.getId()));
+            }
+        }
+
+        return results;
+    }
+}
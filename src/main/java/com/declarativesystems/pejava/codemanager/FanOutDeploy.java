@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deploy the same environments to several independent Puppet Masters at
+ * once. At most `maxParallel` deployments are in flight at any time and every
+ * master gets its own results (or error) in the returned
+ * {@link MultiDeployResult}
+ */
+public class FanOutDeploy {
+    private static Logger log = LoggerFactory.getLogger(FanOutDeploy.class);
+
+    public static final int DEFAULT_MAX_PARALLEL = 4;
+
+    private final Deploy deploy;
+
+    private final int maxParallel;
+
+    private final Executor executor;
+
+    /**
+     * @param deploy Deploy implementation to use for each master
+     * @param maxParallel maximum number of masters to deploy to at once
+     * @param executor Executor to process responses on
+     */
+    public FanOutDeploy(Deploy deploy, int maxParallel, Executor executor) {
+        if (maxParallel < 1) {
+            throw new IllegalArgumentException("maxParallel must be at least 1, got " + maxParallel);
+        }
+        this.deploy = deploy;
+        this.maxParallel = maxParallel;
+        this.executor = executor;
+    }
+
+    /**
+     * Deploy puppet code to every master and wait for them all to finish
+     * @param puppetMasters Puppet Masters to deploy to (FQDNs must be unique)
+     * @param environments Environments to deploy. An empty or null list means
+     *                     deploy all environments, otherwise just deploy those
+     *                     named only
+     * @param wait Wait for each deployment to finish on the Puppet Master
+     * @return results for every master
+     */
+    public MultiDeployResult deployCode(Collection<PuppetMaster> puppetMasters,
+                                        String[] environments,
+                                        boolean wait) throws InterruptedException
+    {
+        try {
+            return deployCodeAsync(puppetMasters, environments, wait).get();
+        } catch (ExecutionException e) {
+            // per-master failures are collected in the result so this is a bug
+            throw new IllegalStateException("Fan-out deployment failed", e.getCause());
+        }
+    }
+
+    /**
+     * Deploy puppet code to every master without blocking
+     * @param puppetMasters Puppet Masters to deploy to (FQDNs must be unique)
+     * @param environments Environments to deploy. An empty or null list means
+     *                     deploy all environments, otherwise just deploy those
+     *                     named only
+     * @param wait Wait for each deployment to finish on the Puppet Master
+     * @return Future of results for every master. Individual failures are
+     *         reported per master so the future itself only fails if
+     *         cancelled. Cancelling it cancels every in-flight deployment and
+     *         stops any more from starting
+     */
+    public CompletableFuture<MultiDeployResult> deployCodeAsync(Collection<PuppetMaster> puppetMasters,
+                                                                String[] environments,
+                                                                boolean wait)
+    {
+        Set<String> fqdns = new HashSet<>();
+        for (PuppetMaster puppetMaster : puppetMasters) {
+            if (! fqdns.add(puppetMaster.getFqdn())) {
+                throw new IllegalArgumentException("Puppet Master listed twice: " + puppetMaster.getFqdn());
+            }
+        }
+
+        CompletableFuture<MultiDeployResult> result = new CompletableFuture<>();
+        if (puppetMasters.isEmpty()) {
+            result.complete(new MultiDeployResult(new LinkedHashMap<>(), new LinkedHashMap<>()));
+            return result;
+        }
+
+        FanOut fanOut = new FanOut(puppetMasters, environments, wait, result);
+        for (int i = 0 ; i < Math.min(maxParallel, puppetMasters.size()) ; i++) {
+            fanOut.launchNext();
+        }
+
+        return result;
+    }
+
+    /**
+     * State of one fan-out: masters still to start, in-flight deployments and
+     * results so far
+     */
+    private class FanOut {
+        private final Queue<PuppetMaster> pending;
+        private final Collection<PuppetMaster> puppetMasters;
+        private final String[] environments;
+        private final boolean wait;
+        private final CompletableFuture<MultiDeployResult> result;
+        private final AtomicInteger remaining;
+        private final Map<String, List<DeployResult>> results = new ConcurrentHashMap<>();
+        private final Map<String, Throwable> errors = new ConcurrentHashMap<>();
+        private final Set<CompletableFuture<List<DeployResult>>> inFlight = ConcurrentHashMap.newKeySet();
+
+        FanOut(Collection<PuppetMaster> puppetMasters,
+               String[] environments,
+               boolean wait,
+               CompletableFuture<MultiDeployResult> result) {
+            this.pending = new ConcurrentLinkedQueue<>(puppetMasters);
+            this.puppetMasters = puppetMasters;
+            this.environments = environments;
+            this.wait = wait;
+            this.result = result;
+            this.remaining = new AtomicInteger(puppetMasters.size());
+
+            result.whenComplete((r, e) -> {
+                if (result.isCancelled()) {
+                    pending.clear();
+                    for (CompletableFuture<List<DeployResult>> future : inFlight) {
+                        future.cancel(true);
+                    }
+                }
+            });
+        }
+
+        void launchNext() {
+            PuppetMaster puppetMaster = pending.poll();
+            if (puppetMaster == null || result.isDone()) {
+                return;
+            }
+
+            log.debug("Fan-out deployment to " + puppetMaster);
+            CompletableFuture<List<DeployResult>> future;
+            try {
+                future = deploy.deployCodeAsync(
+                        puppetMaster.getFqdn(),
+                        puppetMaster.getToken(),
+                        puppetMaster.getCaCert(),
+                        environments,
+                        wait,
+                        executor);
+            } catch (RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+
+            inFlight.add(future);
+            final CompletableFuture<List<DeployResult>> thisFuture = future;
+            future.whenComplete((deployResults, e) -> {
+                inFlight.remove(thisFuture);
+                if (e == null) {
+                    results.put(puppetMaster.getFqdn(), deployResults);
+                } else {
+                    log.error("Deployment to " + puppetMaster + " failed: " + e.getMessage());
+                    errors.put(puppetMaster.getFqdn(), unwrap(e));
+                }
+
+                if (remaining.decrementAndGet() == 0) {
+                    finish();
+                } else {
+                    launchNext();
+                }
+            });
+        }
+
+        private void finish() {
+            // report in the order the masters were given
+            Map<String, List<DeployResult>> orderedResults = new LinkedHashMap<>();
+            Map<String, Throwable> orderedErrors = new LinkedHashMap<>();
+            for (PuppetMaster puppetMaster : puppetMasters) {
+                String fqdn = puppetMaster.getFqdn();
+                if (results.containsKey(fqdn)) {
+                    orderedResults.put(fqdn, results.get(fqdn));
+                } else if (errors.containsKey(fqdn)) {
+                    orderedErrors.put(fqdn, errors.get(fqdn));
+                }
+            }
+            result.complete(new MultiDeployResult(orderedResults, orderedErrors));
+        }
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return (e instanceof CompletionException && e.getCause() != null) ?
+                e.getCause() :
+                e;
+    }
+}
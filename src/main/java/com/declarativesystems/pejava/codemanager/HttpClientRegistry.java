@@ -0,0 +1,660 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread-safe registry of long-lived, pooling HTTP clients - one per
+ * (Puppet Master FQDN, CA cert fingerprint) pair. Reusing the same client
+ * means repeated deployments to the same Code Manager reuse kept-alive
+ * connections instead of paying for a TCP connect and TLS handshake on every
+ * request.
+ *
+ * Both blocking and non-blocking (async) clients are available. Clients are
+ * built lazily on first use and live until {@link #close()} is called.
+ */
+public class HttpClientRegistry implements Closeable {
+    private static Logger log = LoggerFactory.getLogger(HttpClientRegistry.class);
+
+    // 10 seconds
+    public static final int CONNECT_TIMEOUT = 10 * 1000;
+
+    // 10 minutes
+    public static final int SOCKET_TIMEOUT = 600 * 1000;
+
+    /**
+     * Maximum concurrent connections to a single Code Manager. High enough
+     * that the pool doesn't serialise deployments - use an
+     * {@link AdmissionPolicy} to limit concurrency on purpose
+     */
+    public static final int DEFAULT_MAX_PER_ROUTE = 64;
+
+    /**
+     * Maximum concurrent connections held by a single client
+     */
+    public static final int DEFAULT_MAX_TOTAL = 128;
+
+    /**
+     * How long to wait for a pooled connection when all of them are busy
+     * before failing with `ConnectionPoolTimeoutException`
+     */
+    public static final int LEASE_TIMEOUT = CONNECT_TIMEOUT;
+
+    /**
+     * How long to keep a connection alive if the server doesn't tell us
+     */
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 30 * 1000;
+
+    /**
+     * Connections idle for longer than this are closed by a background thread
+     */
+    public static final long DEFAULT_MAX_IDLE_MILLIS = 60 * 1000;
+
+    private final ConcurrentMap<Key, PooledClient> clients = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<Key, AsyncClient> asyncClients = new ConcurrentHashMap<>();
+
+    /**
+     * The async client has no built-in idle connection evictor, so we run our
+     * own - created along with the first async client
+     */
+    private ScheduledExecutorService asyncEvictor;
+
+    private final SslContextCache sslContextCache;
+
+    private final DeployMetrics metrics;
+
+    private final int maxPerRoute;
+    private final int maxTotal;
+    private final long keepAliveMillis;
+    private final long maxIdleMillis;
+
+    private volatile boolean closed;
+
+    public HttpClientRegistry() {
+        this(DeployMetrics.NOOP);
+    }
+
+    /**
+     * @param metrics where to record per-phase request timings
+     */
+    public HttpClientRegistry(DeployMetrics metrics) {
+        this(new SslContextCache(), DEFAULT_MAX_PER_ROUTE, DEFAULT_MAX_TOTAL, DEFAULT_KEEP_ALIVE_MILLIS, DEFAULT_MAX_IDLE_MILLIS, metrics);
+    }
+
+    /**
+     * @param sslContextCache where to get (cached) SSLContexts from
+     * @param maxPerRoute maximum concurrent connections to a single Code Manager
+     * @param maxTotal maximum concurrent connections held by a single client
+     * @param keepAliveMillis how long to keep idle connections alive when the
+     *                        server does not send a `Keep-Alive` header
+     * @param maxIdleMillis connections idle for longer than this are evicted
+     */
+    public HttpClientRegistry(SslContextCache sslContextCache, int maxPerRoute, int maxTotal, long keepAliveMillis, long maxIdleMillis) {
+        this(sslContextCache, maxPerRoute, maxTotal, keepAliveMillis, maxIdleMillis, DeployMetrics.NOOP);
+    }
+
+    /**
+     * @param sslContextCache where to get (cached) SSLContexts from
+     * @param maxPerRoute maximum concurrent connections to a single Code Manager
+     * @param maxTotal maximum concurrent connections held by a single client
+     * @param keepAliveMillis how long to keep idle connections alive when the
+     *                        server does not send a `Keep-Alive` header
+     * @param maxIdleMillis connections idle for longer than this are evicted
+     * @param metrics where to record per-phase request timings
+     */
+    public HttpClientRegistry(SslContextCache sslContextCache, int maxPerRoute, int maxTotal, long keepAliveMillis, long maxIdleMillis, DeployMetrics metrics) {
+        this.sslContextCache = sslContextCache;
+        this.metrics = metrics;
+        this.maxPerRoute = maxPerRoute;
+        this.maxTotal = maxTotal;
+        this.keepAliveMillis = keepAliveMillis;
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    /**
+     * Get the shared client for a Puppet Master, building it on first use
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @param caCert contents of CA Cert (PEM) or null/empty to trust any
+     *               self-signed certificate
+     * @return pooling HTTP client. Do not close it - it belongs to the registry
+     */
+    public CloseableHttpClient getClient(String puppetMasterFqdn, String caCert) throws NoSuchAlgorithmException, CertificateException, KeyStoreException, IOException, KeyManagementException
+    {
+        return getPooledClient(puppetMasterFqdn, caCert).client;
+    }
+
+    /**
+     * Open a connection to a Puppet Master and complete the TLS handshake,
+     * then leave the connection in the pool for the next request to use
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @param caCert contents of CA Cert (PEM) or null/empty to trust any
+     *               self-signed certificate
+     * @param target Code Manager host and port
+     * @return true if a new connection was opened, false if there was already
+     *         an idle one in the pool
+     */
+    public boolean warmUp(String puppetMasterFqdn, String caCert, HttpHost target) throws NoSuchAlgorithmException, CertificateException, KeyStoreException, IOException, KeyManagementException
+    {
+        PoolingHttpClientConnectionManager cm = getPooledClient(puppetMasterFqdn, caCert).connectionManager;
+        HttpRoute route = new HttpRoute(target, null, true);
+
+        HttpClientConnection conn;
+        try {
+            conn = cm.requestConnection(route, null).get(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a pooled connection");
+        } catch (ExecutionException|ConnectionPoolTimeoutException e) {
+            throw new IOException("Unable to get a pooled connection to " + puppetMasterFqdn, e);
+        }
+
+        boolean opened = false;
+        boolean reusable = false;
+        try {
+            if (! conn.isOpen()) {
+                HttpClientContext context = HttpClientContext.create();
+                cm.connect(conn, route, CONNECT_TIMEOUT, context);
+                cm.routeComplete(conn, route, context);
+                opened = true;
+            }
+            reusable = true;
+        } finally {
+            if (! reusable) {
+                conn.shutdown();
+            }
+            cm.releaseConnection(conn, null, keepAliveMillis, TimeUnit.MILLISECONDS);
+        }
+
+        return opened;
+    }
+
+    private PooledClient getPooledClient(String puppetMasterFqdn, String caCert) throws NoSuchAlgorithmException, CertificateException, KeyStoreException, IOException, KeyManagementException
+    {
+        Key key = new Key(puppetMasterFqdn, SslContextCache.digest(caCert));
+        PooledClient client = clients.get(key);
+        if (client == null) {
+            // building the client can throw checked exceptions so we can't use
+            // computeIfAbsent(). Clients are built rarely so a lock is fine
+            synchronized (this) {
+                // checked under the lock so a client built while close() runs
+                // can't be leaked
+                if (closed) {
+                    throw new IllegalStateException("HttpClientRegistry has been closed");
+                }
+                client = clients.get(key);
+                if (client == null) {
+                    log.debug("Creating pooled HTTP client for " + puppetMasterFqdn);
+                    client = buildClient(puppetMasterFqdn, caCert);
+                    clients.put(key, client);
+                }
+            }
+        }
+
+        return client;
+    }
+
+    /**
+     * Get the shared non-blocking client for a Puppet Master, building and
+     * starting it on first use
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @param caCert contents of CA Cert (PEM) or null/empty to trust any
+     *               self-signed certificate
+     * @return started, pooling async HTTP client. Do not close it - it belongs
+     *         to the registry
+     */
+    public CloseableHttpAsyncClient getAsyncClient(String puppetMasterFqdn, String caCert) throws NoSuchAlgorithmException, CertificateException, KeyStoreException, IOException, KeyManagementException
+    {
+        Key key = new Key(puppetMasterFqdn, SslContextCache.digest(caCert));
+        AsyncClient asyncClient = asyncClients.get(key);
+        if (asyncClient == null) {
+            synchronized (this) {
+                // checked under the lock so a client built while close() runs
+                // can't be leaked
+                if (closed) {
+                    throw new IllegalStateException("HttpClientRegistry has been closed");
+                }
+                asyncClient = asyncClients.get(key);
+                if (asyncClient == null) {
+                    log.debug("Creating pooled async HTTP client for " + puppetMasterFqdn);
+                    asyncClient = buildAsyncClient(puppetMasterFqdn, caCert);
+                    asyncClients.put(key, asyncClient);
+                }
+            }
+        }
+
+        return asyncClient.client;
+    }
+
+    /**
+     * Close every client (and its pooled connections) held by this registry
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        List<IOException> errors = new ArrayList<>();
+        synchronized (this) {
+            for (PooledClient client : clients.values()) {
+                try {
+                    client.client.close();
+                } catch (IOException e) {
+                    errors.add(e);
+                }
+            }
+            clients.clear();
+
+            for (AsyncClient asyncClient : asyncClients.values()) {
+                try {
+                    asyncClient.client.close();
+                } catch (IOException e) {
+                    errors.add(e);
+                }
+            }
+            asyncClients.clear();
+
+            if (asyncEvictor != null) {
+                asyncEvictor.shutdownNow();
+            }
+        }
+
+        if (! errors.isEmpty()) {
+            IOException e = new IOException("Error(s) closing pooled HTTP clients");
+            for (IOException error : errors) {
+                e.addSuppressed(error);
+            }
+            throw e;
+        }
+    }
+
+    public DeployMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return number of clients (blocking and async) currently held
+     */
+    public int size() {
+        return clients.size() + asyncClients.size();
+    }
+
+    private PooledClient buildClient(String puppetMasterFqdn, String caCert) throws NoSuchAlgorithmException, CertificateException, KeyStoreException, IOException, KeyManagementException
+    {
+        SSLConnectionSocketFactory sslsf = new InstrumentedSslSocketFactory(
+                sslContext(puppetMasterFqdn, caCert), puppetMasterFqdn, metrics);
+
+        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("https", sslsf)
+                .build();
+
+        PoolingHttpClientConnectionManager cm = new InstrumentedConnectionManager(
+                socketFactoryRegistry, puppetMasterFqdn, metrics);
+        cm.setDefaultMaxPerRoute(maxPerRoute);
+        cm.setMaxTotal(maxTotal);
+
+        CloseableHttpClient client = HttpClients.custom()
+                .setConnectionManager(cm)
+                .setRequestExecutor(new InstrumentedRequestExecutor(puppetMasterFqdn, metrics))
+                // DeployImpl decompresses, so the response size limit sees
+                // the decompressed bytes
+                .disableContentCompression()
+                .setKeepAliveStrategy(new CappedKeepAliveStrategy(keepAliveMillis))
+                .setDefaultRequestConfig(getRequestConfig())
+                .evictExpiredConnections()
+                .evictIdleConnections(maxIdleMillis, TimeUnit.MILLISECONDS)
+                .build();
+
+        return new PooledClient(client, cm);
+    }
+
+    private AsyncClient buildAsyncClient(String puppetMasterFqdn, String caCert) throws NoSuchAlgorithmException, CertificateException, KeyStoreException, IOException, KeyManagementException
+    {
+        SSLIOSessionStrategy sslStrategy = new SSLIOSessionStrategy(
+                sslContext(puppetMasterFqdn, caCert),
+                SSLConnectionSocketFactory.getDefaultHostnameVerifier());
+
+        Registry<SchemeIOSessionStrategy> strategyRegistry = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("https", sslStrategy)
+                .build();
+
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setConnectTimeout(CONNECT_TIMEOUT)
+                .setSoTimeout(SOCKET_TIMEOUT)
+                .build();
+
+        PoolingNHttpClientConnectionManager cm;
+        try {
+            cm = new PoolingNHttpClientConnectionManager(
+                    new DefaultConnectingIOReactor(ioReactorConfig),
+                    strategyRegistry);
+        } catch (IOReactorException e) {
+            throw new IOException("Unable to start async I/O reactor", e);
+        }
+        cm.setDefaultMaxPerRoute(maxPerRoute);
+        cm.setMaxTotal(maxTotal);
+
+        CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+                .setConnectionManager(cm)
+                .setKeepAliveStrategy(new CappedKeepAliveStrategy(keepAliveMillis))
+                .setDefaultRequestConfig(getRequestConfig())
+                .build();
+        client.start();
+
+        if (asyncEvictor == null) {
+            asyncEvictor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "pejava-async-connection-evictor");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(maxIdleMillis / 2, 1000);
+            asyncEvictor.scheduleAtFixedRate(this::evictAsyncConnections, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        return new AsyncClient(client, cm);
+    }
+
+    private SSLContext sslContext(String puppetMasterFqdn, String caCert) throws NoSuchAlgorithmException, CertificateException, KeyStoreException, IOException, KeyManagementException
+    {
+        TlsSetupEvent event = JfrEvents.AVAILABLE ? TlsSetupEvent.start(puppetMasterFqdn, TlsSetupEvent.STAGE_SSL_CONTEXT) : null;
+        long start = System.nanoTime();
+        SSLContext sslContext = sslContextCache.get(caCert);
+        metrics.recordPhase(puppetMasterFqdn, DeployMetrics.Phase.SSL_CONTEXT_BUILD, System.nanoTime() - start);
+        if (event != null) {
+            event.finish(sslContext.getProtocol(), null);
+        }
+        return sslContext;
+    }
+
+    private void evictAsyncConnections() {
+        for (AsyncClient asyncClient : asyncClients.values()) {
+            asyncClient.connectionManager.closeExpiredConnections();
+            asyncClient.connectionManager.closeIdleConnections(maxIdleMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private RequestConfig getRequestConfig()
+    {
+        // 10 seconds should be PLENTY to CONNECT a request - beyond this, suspect firewall or broken servers
+        RequestConfig.Builder rcb = RequestConfig.custom();
+        rcb.setConnectTimeout(CONNECT_TIMEOUT);
+
+        // The socket timeout is how long to wait for the request to be processed... since puppet
+        // deploys during flight this can take a LONG time (eg slow forge, slow git etc)...
+        rcb.setSocketTimeout(SOCKET_TIMEOUT);
+
+        // a full pool fails fast instead of queueing callers behind
+        // deployments that can take up to SOCKET_TIMEOUT each
+        rcb.setConnectionRequestTimeout(LEASE_TIMEOUT);
+
+        return rcb.build();
+    }
+
+    /**
+     * Honour the server's `Keep-Alive` header if present but never keep a
+     * connection longer than our own limit
+     */
+    private static class CappedKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+        private final long maxKeepAliveMillis;
+
+        CappedKeepAliveStrategy(long maxKeepAliveMillis) {
+            this.maxKeepAliveMillis = maxKeepAliveMillis;
+        }
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return (duration > 0) ? Math.min(duration, maxKeepAliveMillis) : maxKeepAliveMillis;
+        }
+    }
+
+    /**
+     * Blocking client and the connection manager we warm up connections in
+     */
+    private static final class PooledClient {
+        private final CloseableHttpClient client;
+        private final PoolingHttpClientConnectionManager connectionManager;
+
+        PooledClient(CloseableHttpClient client, PoolingHttpClientConnectionManager connectionManager) {
+            this.client = client;
+            this.connectionManager = connectionManager;
+        }
+    }
+
+    /**
+     * Async client and the connection manager we need to evict idle
+     * connections from
+     */
+    private static final class AsyncClient {
+        private final CloseableHttpAsyncClient client;
+        private final PoolingNHttpClientConnectionManager connectionManager;
+
+        AsyncClient(CloseableHttpAsyncClient client, PoolingNHttpClientConnectionManager connectionManager) {
+            this.client = client;
+            this.connectionManager = connectionManager;
+        }
+    }
+
+    /**
+     * Registry key - Puppet Master FQDN and CA cert fingerprint
+     */
+    private static final class Key {
+        private final String puppetMasterFqdn;
+        private final String caCertFingerprint;
+
+        Key(String puppetMasterFqdn, String caCertFingerprint) {
+            this.puppetMasterFqdn = puppetMasterFqdn;
+            this.caCertFingerprint = caCertFingerprint;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (! (o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return Objects.equals(puppetMasterFqdn, key.puppetMasterFqdn) &&
+                    caCertFingerprint.equals(key.caCertFingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(puppetMasterFqdn, caCertFingerprint);
+        }
+    }
+
+    /**
+     * Times TCP connect and the TLS handshake separately. The handshake
+     * happens inside connectSocket() so its duration is passed back through
+     * the HttpContext and subtracted
+     */
+    private static class InstrumentedSslSocketFactory extends SSLConnectionSocketFactory {
+        private static final String TLS_NANOS = "pejava.tls.nanos";
+
+        private final String puppetMasterFqdn;
+        private final DeployMetrics metrics;
+
+        InstrumentedSslSocketFactory(SSLContext sslContext, String puppetMasterFqdn, DeployMetrics metrics) {
+            super(sslContext);
+            this.puppetMasterFqdn = puppetMasterFqdn;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout,
+                                    Socket socket,
+                                    HttpHost host,
+                                    InetSocketAddress remoteAddress,
+                                    InetSocketAddress localAddress,
+                                    HttpContext context) throws IOException
+        {
+            long start = System.nanoTime();
+            Socket connected = super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            long nanos = System.nanoTime() - start;
+
+            Object tlsNanos = (context == null) ? null : context.removeAttribute(TLS_NANOS);
+            if (tlsNanos instanceof Long) {
+                nanos -= (Long) tlsNanos;
+            }
+            metrics.recordPhase(puppetMasterFqdn, DeployMetrics.Phase.CONNECT, nanos);
+            return connected;
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+            TlsSetupEvent event = JfrEvents.AVAILABLE ? TlsSetupEvent.start(puppetMasterFqdn, TlsSetupEvent.STAGE_HANDSHAKE) : null;
+            long start = System.nanoTime();
+            Socket layered = super.createLayeredSocket(socket, target, port, context);
+            long nanos = System.nanoTime() - start;
+            if (event != null) {
+                SSLSession session = ((SSLSocket) layered).getSession();
+                event.finish(session.getProtocol(), session.getCipherSuite());
+            }
+
+            metrics.recordPhase(puppetMasterFqdn, DeployMetrics.Phase.TLS_HANDSHAKE, nanos);
+            if (context != null) {
+                context.setAttribute(TLS_NANOS, nanos);
+            }
+            return layered;
+        }
+    }
+
+    /**
+     * Times how long requests wait for a pooled connection
+     */
+    private static class InstrumentedConnectionManager extends PoolingHttpClientConnectionManager {
+        private final String puppetMasterFqdn;
+        private final DeployMetrics metrics;
+
+        InstrumentedConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry,
+                                      String puppetMasterFqdn,
+                                      DeployMetrics metrics) {
+            super(socketFactoryRegistry);
+            this.puppetMasterFqdn = puppetMasterFqdn;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+            ConnectionRequest request = super.requestConnection(route, state);
+            return new ConnectionRequest() {
+                @Override
+                public HttpClientConnection get(long timeout, TimeUnit tunit) throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                    long start = System.nanoTime();
+                    try {
+                        return request.get(timeout, tunit);
+                    } finally {
+                        metrics.recordPhase(puppetMasterFqdn, DeployMetrics.Phase.CONNECTION_ACQUIRE, System.nanoTime() - start);
+                    }
+                }
+
+                @Override
+                public boolean cancel() {
+                    return request.cancel();
+                }
+            };
+        }
+    }
+
+    /**
+     * Times writing the request and waiting for the response headers
+     */
+    private static class InstrumentedRequestExecutor extends HttpRequestExecutor {
+        private final String puppetMasterFqdn;
+        private final DeployMetrics metrics;
+
+        InstrumentedRequestExecutor(String puppetMasterFqdn, DeployMetrics metrics) {
+            this.puppetMasterFqdn = puppetMasterFqdn;
+            this.metrics = metrics;
+        }
+
+        @Override
+        protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection conn, HttpContext context) throws IOException, HttpException {
+            long start = System.nanoTime();
+            try {
+                return super.doSendRequest(request, conn, context);
+            } finally {
+                metrics.recordPhase(puppetMasterFqdn, DeployMetrics.Phase.REQUEST_WRITE, System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn, HttpContext context) throws HttpException, IOException {
+            long start = System.nanoTime();
+            try {
+                return super.doReceiveResponse(request, conn, context);
+            } finally {
+                metrics.recordPhase(puppetMasterFqdn, DeployMetrics.Phase.TIME_TO_FIRST_BYTE, System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deploy environments to the git commits they should be at, skipping any that
+ * a {@link SignatureCache} says are already there - eg repeated builds of the
+ * same commit or re-run plans.
+ *
+ * Skipped environments get a `complete` result for the cached signature
+ * without any request to Code Manager. The rest are deployed and checked
+ * against their targets, and the cache is updated from the outcome: failed,
+ * mismatched, missing and queued environments are forgotten
+ */
+public class IdempotentDeploy {
+    private static Logger log = LoggerFactory.getLogger(IdempotentDeploy.class);
+
+    private final Deploy deploy;
+
+    private final SignatureCache cache;
+
+    private final AtomicLong environmentsSkipped = new AtomicLong();
+
+    private final AtomicLong environmentsDeployed = new AtomicLong();
+
+    /**
+     * @param deploy Deploy implementation to send deployments to
+     * @param cache last known signature of each environment
+     */
+    public IdempotentDeploy(Deploy deploy, SignatureCache cache) {
+        this.deploy = deploy;
+        this.cache = cache;
+    }
+
+    /**
+     * Deploy any environments not already at their target commit
+     * @param puppetMaster Puppet Master to deploy to
+     * @param target Map of with key (environment name), value (git commit)
+     *               each environment should be at
+     * @param wait Wait for deployment to finish. Without `wait` deployed
+     *             environments are only `queued`, so nothing new is cached
+     * @return Results for every environment in `target`, in the same order
+     * @throws CodeManagerException if Code Manager returned an error document.
+     *                              The environments sent are forgotten
+     */
+    public List<DeployResult> deployCode(PuppetMaster puppetMaster, Map<String, String> target, boolean wait) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException, CertificateException {
+        Map<String, String> remaining = new LinkedHashMap<>();
+        Map<String, DeployResult> skipped = skip(puppetMaster, target, remaining);
+        if (remaining.isEmpty()) {
+            return merge(target, skipped, null);
+        }
+
+        String response;
+        try {
+            response = deploy.deployCode(
+                    puppetMaster.getFqdn(),
+                    puppetMaster.getToken(),
+                    puppetMaster.getCaCert(),
+                    remaining.keySet().toArray(new String[0]),
+                    wait);
+        } catch (IOException|GeneralSecurityException|RuntimeException e) {
+            invalidate(puppetMaster, remaining);
+            throw e;
+        }
+
+        DeployReconciler reconciler = new DeployReconciler(remaining);
+        try {
+            DeployResult.toDeployResult(response, reconciler);
+        } catch (CodeManagerException e) {
+            invalidate(puppetMaster, remaining);
+            throw new CodeManagerException("Deployment error from Puppet Master", e.getKind(), response);
+        } catch (IOException e) {
+            // unparsable response - we can't tell what was deployed, so report
+            // every environment missing and forget them
+            log.warn(String.format("Unparsable deployment response from %s: %s", puppetMaster, e.getMessage()));
+            invalidate(puppetMaster, remaining);
+            reconciler = new DeployReconciler(remaining);
+        }
+        return merge(target, skipped, finish(puppetMaster, reconciler));
+    }
+
+    /**
+     * Deploy any environments not already at their target commit without
+     * blocking the calling thread
+     * @param puppetMaster Puppet Master to deploy to
+     * @param target Map of with key (environment name), value (git commit)
+     *               each environment should be at
+     * @param wait Wait for deployment to finish
+     * @param executor Executor to process the response on
+     * @return Future of results for every environment in `target`, in the
+     *         same order. Completes exceptionally (and forgets the
+     *         environments sent) if the deployment fails
+     */
+    public CompletableFuture<List<DeployResult>> deployCodeAsync(PuppetMaster puppetMaster, Map<String, String> target, boolean wait, Executor executor) {
+        Map<String, String> remaining = new LinkedHashMap<>();
+        Map<String, DeployResult> skipped = skip(puppetMaster, target, remaining);
+        if (remaining.isEmpty()) {
+            return CompletableFuture.completedFuture(merge(target, skipped, null));
+        }
+
+        CompletableFuture<List<DeployResult>> future = deploy.deployCodeAsync(
+                puppetMaster.getFqdn(),
+                puppetMaster.getToken(),
+                puppetMaster.getCaCert(),
+                remaining.keySet().toArray(new String[0]),
+                wait,
+                executor);
+        future.whenComplete((results, e) -> {
+            if (e != null) {
+                invalidate(puppetMaster, remaining);
+            }
+        });
+
+        return future.thenApply(results -> {
+            DeployReconciler reconciler = new DeployReconciler(remaining);
+            results.forEach(reconciler);
+            return merge(target, skipped, finish(puppetMaster, reconciler));
+        });
+    }
+
+    /**
+     * @return environments not sent to Code Manager because they were
+     *         already at their target commit
+     */
+    public long getEnvironmentsSkipped() {
+        return environmentsSkipped.get();
+    }
+
+    /**
+     * @return environments sent to Code Manager
+     */
+    public long getEnvironmentsDeployed() {
+        return environmentsDeployed.get();
+    }
+
+    /**
+     * Split `target` into environments the cache says are already deployed
+     * (returned as synthetic results) and those still to deploy
+     */
+    private Map<String, DeployResult> skip(PuppetMaster puppetMaster, Map<String, String> target, Map<String, String> remaining) {
+        Map<String, DeployResult> skipped = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : target.entrySet()) {
+            String environment = entry.getKey();
+            if (entry.getValue() != null && cache.isDeployed(puppetMaster.getFqdn(), environment, entry.getValue())) {
+                DeployResult result = new DeployResult(environment, DeployResult.STATUS_OK, entry.getValue());
+                result.setTargetDeploySignature(entry.getValue());
+                skipped.put(environment, result);
+            } else {
+                remaining.put(environment, entry.getValue());
+            }
+        }
+
+        environmentsSkipped.addAndGet(skipped.size());
+        environmentsDeployed.addAndGet(remaining.size());
+        if (! skipped.isEmpty()) {
+            log.info(String.format(
+                    "Skipping %d environment(s) already deployed to %s: %s",
+                    skipped.size(), puppetMaster, skipped.keySet()));
+        }
+        return skipped;
+    }
+
+    private List<DeployResult> finish(PuppetMaster puppetMaster, DeployReconciler reconciler) {
+        Reconciliation reconciliation = reconciler.finish();
+        cache.update(puppetMaster.getFqdn(), reconciliation);
+        return reconciliation.getResults();
+    }
+
+    private void invalidate(PuppetMaster puppetMaster, Map<String, String> environments) {
+        for (String environment : environments.keySet()) {
+            cache.invalidate(puppetMaster.getFqdn(), environment);
+        }
+    }
+
+    /**
+     * @return skipped and deployed results in `target` order, followed by any
+     *         results Code Manager sent that we didn't ask for
+     */
+    private static List<DeployResult> merge(Map<String, String> target, Map<String, DeployResult> skipped, List<DeployResult> deployed) {
+        Map<String, DeployResult> byEnvironment = new LinkedHashMap<>(skipped);
+        if (deployed != null) {
+            for (DeployResult result : deployed) {
+                byEnvironment.put(result.getEnvironment(), result);
+            }
+        }
+
+        List<DeployResult> results = new ArrayList<>(byEnvironment.size());
+        for (String environment : target.keySet()) {
+            DeployResult result = byEnvironment.remove(environment);
+            if (result != null) {
+                results.add(result);
+            }
+        }
+        results.addAll(byEnvironment.values());
+        return results;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * {@link Transport} using `java.net.http.HttpClient`, which negotiates
+ * HTTP/2 where the server supports it so concurrent requests to one Puppet
+ * Master are multiplexed over a single connection instead of each taking one
+ * from a pool. Falls back to HTTP/1.1 otherwise.
+ *
+ * Needs Java 11 or later at runtime - check {@link #isAvailable()} before
+ * creating one. One client is kept per CA cert. Only the SSLContext build,
+ * time to first byte and body read phases are recorded, since the JDK client
+ * doesn't expose connection events. In insecure mode (no CA cert) the JDK
+ * still checks hostnames unless the JVM is started with
+ * `-Djdk.internal.httpclient.disableHostnameVerification`
+ */
+public class JdkHttpTransport implements Transport {
+    private static Logger log = LoggerFactory.getLogger(JdkHttpTransport.class);
+
+    private final SslContextCache sslContextCache;
+
+    private final DeployMetrics metrics;
+
+    /**
+     * Clients keyed by CA cert digest
+     */
+    private final ConcurrentMap<String, HttpClient> clients = new ConcurrentHashMap<>();
+
+    public JdkHttpTransport() {
+        this(new SslContextCache(), DeployMetrics.NOOP);
+    }
+
+    /**
+     * @param metrics where to record request timings
+     */
+    public JdkHttpTransport(DeployMetrics metrics) {
+        this(new SslContextCache(), metrics);
+    }
+
+    /**
+     * @param sslContextCache where to get SSLContexts from
+     * @param metrics where to record request timings
+     */
+    public JdkHttpTransport(SslContextCache sslContextCache, DeployMetrics metrics) {
+        if (! isAvailable()) {
+            throw new IllegalStateException("java.net.http.HttpClient needs Java 11 or later");
+        }
+        this.sslContextCache = sslContextCache;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return true if this JVM has `java.net.http.HttpClient`
+     */
+    public static boolean isAvailable() {
+        try {
+            Class.forName("java.net.http.HttpClient");
+            return true;
+        } catch (ClassNotFoundException|LinkageError e) {
+            return false;
+        }
+    }
+
+    @Override
+    public TransportResponse execute(TransportRequest request) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException, CertificateException {
+        HttpClient client = getClient(request.getPuppetMasterFqdn(), request.getCaCert());
+        long start = System.nanoTime();
+        HttpResponse<InputStream> response;
+        try {
+            response = client.send(httpRequest(request), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + request);
+        }
+        metrics.recordPhase(request.getPuppetMasterFqdn(), DeployMetrics.Phase.TIME_TO_FIRST_BYTE, System.nanoTime() - start);
+        return new Response(response, response.body());
+    }
+
+    @Override
+    public CompletableFuture<TransportResponse> executeAsync(TransportRequest request) {
+        CompletableFuture<TransportResponse> result = new CompletableFuture<>();
+        HttpClient client;
+        try {
+            client = getClient(request.getPuppetMasterFqdn(), request.getCaCert());
+        } catch (IOException|NoSuchAlgorithmException|KeyStoreException|KeyManagementException|CertificateException|RuntimeException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse<byte[]>> httpFuture = client.sendAsync(httpRequest(request), HttpResponse.BodyHandlers.ofByteArray());
+        httpFuture.whenComplete((response, e) -> {
+            if (e == null) {
+                metrics.recordPhase(request.getPuppetMasterFqdn(), DeployMetrics.Phase.TIME_TO_FIRST_BYTE, System.nanoTime() - start);
+                result.complete(new Response(response, new ByteArrayInputStream(response.body())));
+            } else {
+                result.completeExceptionally(unwrap(e));
+            }
+        });
+
+        // propagate cancellation from the caller to the HTTP request
+        result.whenComplete((response, e) -> {
+            if (result.isCancelled()) {
+                httpFuture.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return number of clients (one per distinct CA cert)
+     */
+    public int size() {
+        return clients.size();
+    }
+
+    /**
+     * Forget all clients. The JDK client has no close method before Java 21;
+     * idle connections are dropped once the client is garbage collected
+     */
+    @Override
+    public void close() {
+        clients.clear();
+    }
+
+    private HttpClient getClient(String puppetMasterFqdn, String caCert) throws NoSuchAlgorithmException, CertificateException, KeyStoreException, IOException, KeyManagementException
+    {
+        String digest = SslContextCache.digest(caCert);
+        HttpClient client = clients.get(digest);
+        if (client == null) {
+            long start = System.nanoTime();
+            SSLContext sslContext = sslContextCache.get(caCert);
+            metrics.recordPhase(puppetMasterFqdn, DeployMetrics.Phase.SSL_CONTEXT_BUILD, System.nanoTime() - start);
+
+            // a race here just builds the same client twice - first one wins
+            client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .sslContext(sslContext)
+                    .connectTimeout(Duration.ofMillis(HttpClientRegistry.CONNECT_TIMEOUT))
+                    .build();
+            HttpClient existing = clients.putIfAbsent(digest, client);
+            if (existing != null) {
+                client = existing;
+            } else {
+                log.debug("Created HTTP/2 client for " + puppetMasterFqdn);
+            }
+        }
+        return client;
+    }
+
+    private static HttpRequest httpRequest(TransportRequest request) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(request.getUri())
+                .timeout(Duration.ofMillis(HttpClientRegistry.SOCKET_TIMEOUT))
+                .header("accept", TransportRequest.CONTENT_TYPE_JSON)
+                .header("Accept-Encoding", TransportRequest.ACCEPT_ENCODING)
+                .header("X-Authentication", request.getToken());
+        if (TransportRequest.POST.equals(request.getMethod())) {
+            builder.header("Content-Type", TransportRequest.CONTENT_TYPE_JSON)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(request.getBody()));
+        } else {
+            builder.GET();
+        }
+        return builder.build();
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return (e instanceof ExecutionException || e instanceof CompletionException) && e.getCause() != null ?
+                e.getCause() :
+                e;
+    }
+
+    private static final class Response implements TransportResponse {
+        private final HttpResponse<?> response;
+        private final InputStream body;
+
+        Response(HttpResponse<?> response, InputStream body) {
+            this.response = response;
+            this.body = body;
+        }
+
+        @Override
+        public int getStatus() {
+            return response.statusCode();
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return response.headers().firstValue("Content-Encoding").orElse(null);
+        }
+
+        @Override
+        public InputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public String getProtocol() {
+            return (response.version() == HttpClient.Version.HTTP_2) ? "HTTP/2" : "HTTP/1.1";
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+}
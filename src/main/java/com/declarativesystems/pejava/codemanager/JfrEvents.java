@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Java Flight Recorder support. The event classes extend `jdk.jfr.Event`, so
+ * only touch them if {@link #AVAILABLE} - older Java 8 runtimes don't have
+ * JFR. When no recording is running the events cost a flag check
+ */
+final class JfrEvents {
+
+    /**
+     * Category shared by all our events in JDK Mission Control
+     */
+    static final String CATEGORY = "PEJava";
+
+    /**
+     * True if this JVM supports custom JFR events
+     */
+    static final boolean AVAILABLE = available();
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private JfrEvents() {}
+
+    private static boolean available() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException|LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return bytes allocated by the current thread so far or -1 if the JVM
+     *         can't tell us
+     */
+    static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+/**
+ * {@link Deploy} that records every deployment in a {@link DeployJournal}
+ * before sending it to {@link DeployImpl}, and records the results Code
+ * Manager sends back.
+ *
+ * Journaling is a memory copy on the calling thread - parsing plain
+ * `deployCode` responses for the journal happens on `executor`.
+ *
+ * After a restart (or periodically, if you deploy without waiting) call
+ * {@link #recover(Function, PollingPolicy)} to find out what happened to
+ * deployments that were still pending
+ */
+public class JournalingDeploy implements Deploy {
+    private static Logger log = LoggerFactory.getLogger(JournalingDeploy.class);
+
+    private final DeployImpl deploy;
+
+    private final DeployJournal journal;
+
+    private final Executor executor;
+
+    /**
+     * @param deploy DeployImpl to send deployments and status requests to
+     * @param journal where to record deployments
+     * @param executor Executor to parse responses for the journal on
+     */
+    public JournalingDeploy(DeployImpl deploy, DeployJournal journal, Executor executor) {
+        this.deploy = deploy;
+        this.journal = journal;
+        this.executor = executor;
+    }
+
+    @Override
+    public String deployCode(String puppetMasterFqdn, String token, String caCert, String[] environments) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException, CertificateException {
+        return deployCode(puppetMasterFqdn, token, caCert, environments, false);
+    }
+
+    @Override
+    public String deployCode(String puppetMasterFqdn, String token, String caCert, String[] environments, boolean wait) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException, CertificateException {
+        long journalId = journal.submitted(puppetMasterFqdn, environments, wait);
+        String response;
+        try {
+            response = deploy.deployCode(puppetMasterFqdn, token, caCert, environments, wait);
+        } catch (IOException|GeneralSecurityException|RuntimeException e) {
+            journal.abandoned(journalId);
+            throw e;
+        }
+
+        try {
+            executor.execute(() -> record(journalId, response));
+        } catch (RejectedExecutionException e) {
+            // the deployment happened, don't fail it over bookkeeping
+            record(journalId, response);
+        }
+        return response;
+    }
+
+    @Override
+    public CompletableFuture<List<DeployResult>> deployCodeAsync(String puppetMasterFqdn, String token, String caCert, String[] environments, boolean wait, Executor executor) {
+        long journalId = journal.submitted(puppetMasterFqdn, environments, wait);
+        CompletableFuture<List<DeployResult>> future;
+        try {
+            future = deploy.deployCodeAsync(puppetMasterFqdn, token, caCert, environments, wait, executor);
+        } catch (RuntimeException e) {
+            journal.abandoned(journalId);
+            throw e;
+        }
+
+        future.whenComplete((results, e) -> {
+            if (e == null) {
+                journal.recordResults(journalId, results);
+            } else {
+                journal.abandoned(journalId);
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public List<DeployResult> deployCodeAndPoll(String puppetMasterFqdn, String token, String caCert, String[] environments, PollingPolicy pollingPolicy) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException, CertificateException, InterruptedException {
+        long journalId = journal.submitted(puppetMasterFqdn, environments, false);
+        List<DeployResult> queued;
+        try {
+            queued = DeployResult.toDeployResultOrThrow(
+                    deploy.deployCode(puppetMasterFqdn, token, caCert, environments, false));
+        } catch (IOException|GeneralSecurityException|RuntimeException e) {
+            journal.abandoned(journalId);
+            throw e;
+        }
+        journal.recordResults(journalId, queued);
+
+        // anything still running at the deadline stays in the journal
+        List<DeployResult> results = DeployStatusPoller.await(
+                queued, statusSource(new PuppetMaster(puppetMasterFqdn, token, caCert)), pollingPolicy);
+        journal.recordResults(journalId, results);
+        return results;
+    }
+
+    /**
+     * Find out what happened to pending deployments in the journal (except
+     * those still waiting for a response in this JVM). Deployments with deploy
+     * ids are polled on the status endpoint. Deployments Code Manager never
+     * acknowledged are sent again - deploying an environment twice is
+     * harmless. Deployments that finish are marked done in the journal
+     * @param puppetMasters credentials for each Puppet Master FQDN, or null to
+     *                      leave that master's deployments pending. Tokens
+     *                      are never journaled
+     * @param pollingPolicy poll interval and deadline for each deployment
+     * @return results (final or last known) of each deployment recovered
+     */
+    public Map<DeployJournal.PendingDeploy, List<DeployResult>> recover(Function<String, PuppetMaster> puppetMasters,
+                                                                         PollingPolicy pollingPolicy) throws InterruptedException
+    {
+        Map<DeployJournal.PendingDeploy, List<DeployResult>> recovered = new LinkedHashMap<>();
+        for (DeployJournal.PendingDeploy pending : journal.getRecoverable()) {
+            PuppetMaster puppetMaster = puppetMasters.apply(pending.getPuppetMasterFqdn());
+            if (puppetMaster == null) {
+                log.warn("No credentials to recover deployment " + pending);
+                continue;
+            }
+
+            try {
+                List<DeployResult> queued = new ArrayList<>();
+                if (pending.isUnacknowledged()) {
+                    log.info("Resending unacknowledged deployment " + pending);
+                    queued.addAll(DeployResult.toDeployResultOrThrow(deploy.deployCode(
+                            puppetMaster.getFqdn(),
+                            puppetMaster.getToken(),
+                            puppetMaster.getCaCert(),
+                            pending.getEnvironments(),
+                            false)));
+                    journal.recordResults(pending.getJournalId(), queued);
+                } else {
+                    // the poller only follows queued deployments
+                    for (DeployResult result : pending.getOutstanding()) {
+                        queued.add(new DeployResult(
+                                result.getEnvironment(), DeployResult.STATUS_QUEUED, result.getDeploySignature(), result.getId()));
+                    }
+                }
+
+                log.info(String.format("Recovering deployment %s, %d environment(s) outstanding", pending, queued.size()));
+                journal.recordResults(
+                        pending.getJournalId(), DeployStatusPoller.await(queued, statusSource(puppetMaster), pollingPolicy));
+
+                List<DeployResult> results = pending.getResults();
+                results.addAll(pending.getOutstanding());
+                recovered.put(pending, results);
+            } catch (CodeManagerException e) {
+                log.error(String.format("Code Manager rejected deployment %s: %s", pending, e.getMessage()));
+                journal.abandoned(pending.getJournalId());
+            } catch (IOException|GeneralSecurityException e) {
+                // try again next time
+                log.warn(String.format("Unable to recover deployment %s: %s", pending, e.getMessage()));
+            }
+        }
+        return recovered;
+    }
+
+    /**
+     * @return the journal deployments are recorded in
+     */
+    public DeployJournal getJournal() {
+        return journal;
+    }
+
+    private void record(long journalId, String response) {
+        try {
+            journal.recordResults(journalId, DeployResult.toDeployResultOrThrow(response));
+        } catch (CodeManagerException e) {
+            journal.abandoned(journalId);
+        } catch (IOException|RuntimeException e) {
+            // nothing to poll for, and nobody left waiting on it in this JVM
+            log.warn(String.format("Unable to journal results of deployment #%d: %s", journalId, e.getMessage()));
+            journal.abandoned(journalId);
+        }
+    }
+
+    private DeployStatus.Source statusSource(PuppetMaster puppetMaster) {
+        return () -> {
+            try {
+                return deploy.fetchDeployStatus(puppetMaster.getFqdn(), puppetMaster.getToken(), puppetMaster.getCaCert());
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        };
+    }
+}
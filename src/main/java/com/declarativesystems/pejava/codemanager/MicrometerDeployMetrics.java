@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publish DeployMetrics to a Micrometer `MeterRegistry`. Micrometer is an
+ * optional dependency - only load this class if it is on the classpath.
+ *
+ * * `pejava.deploy.phase` timer tagged with `master` and `phase`
+ * * `pejava.deploy.results` counter tagged with `master`, `environment` and
+ *   `outcome`
+ */
+public class MicrometerDeployMetrics implements DeployMetrics {
+
+    public static final String PHASE_TIMER = "pejava.deploy.phase";
+    public static final String RESULT_COUNTER = "pejava.deploy.results";
+
+    private final MeterRegistry registry;
+
+    /**
+     * With thousands of environments the environment tag can be too much for
+     * some monitoring systems
+     */
+    private final boolean tagEnvironment;
+
+    /**
+     * Timers by master, indexed by phase
+     */
+    private final ConcurrentMap<String, Timer[]> timers = new ConcurrentHashMap<>();
+
+    public MicrometerDeployMetrics(MeterRegistry registry) {
+        this(registry, true);
+    }
+
+    /**
+     * @param registry where to register meters
+     * @param tagEnvironment false to count results per master and outcome only
+     */
+    public MicrometerDeployMetrics(MeterRegistry registry, boolean tagEnvironment) {
+        this.registry = registry;
+        this.tagEnvironment = tagEnvironment;
+    }
+
+    @Override
+    public void recordPhase(String puppetMasterFqdn, Phase phase, long nanos) {
+        Timer[] masterTimers = timers.computeIfAbsent(puppetMasterFqdn, k -> new Timer[Phase.values().length]);
+        Timer timer = masterTimers[phase.ordinal()];
+        if (timer == null) {
+            // racing threads get the same Timer back from the registry
+            timer = Timer.builder(PHASE_TIMER)
+                    .tag("master", puppetMasterFqdn)
+                    .tag("phase", phase.name().toLowerCase(Locale.ROOT))
+                    .publishPercentileHistogram()
+                    .register(registry);
+            masterTimers[phase.ordinal()] = timer;
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordResult(String puppetMasterFqdn, String environment, String outcome) {
+        Counter.Builder counter = Counter.builder(RESULT_COUNTER)
+                .tag("master", puppetMasterFqdn)
+                .tag("outcome", String.valueOf(outcome));
+        if (tagEnvironment) {
+            counter.tag("environment", String.valueOf(environment));
+        }
+        counter.register(registry).increment();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outcome of deploying to several Puppet Masters at once. Each master either
+ * has a list of results or the error that stopped us getting any
+ */
+public class MultiDeployResult {
+
+    /**
+     * Deployment results by Puppet Master FQDN, in the order masters were given
+     */
+    private final Map<String, List<DeployResult>> results;
+
+    /**
+     * Errors by Puppet Master FQDN for masters we could not deploy to
+     */
+    private final Map<String, Throwable> errors;
+
+    MultiDeployResult(Map<String, List<DeployResult>> results, Map<String, Throwable> errors) {
+        this.results = Collections.unmodifiableMap(new LinkedHashMap<>(results));
+        this.errors = Collections.unmodifiableMap(new LinkedHashMap<>(errors));
+    }
+
+    public Map<String, List<DeployResult>> getResults() {
+        return results;
+    }
+
+    public Map<String, Throwable> getErrors() {
+        return errors;
+    }
+
+    /**
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @return results for this master or an empty list if it failed
+     */
+    public List<DeployResult> getResults(String puppetMasterFqdn) {
+        return results.getOrDefault(puppetMasterFqdn, Collections.emptyList());
+    }
+
+    /**
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @return true if this master returned results and every environment was
+     *         deployed or queued
+     */
+    public boolean isOk(String puppetMasterFqdn) {
+        if (errors.containsKey(puppetMasterFqdn) || ! results.containsKey(puppetMasterFqdn)) {
+            return false;
+        }
+
+        for (DeployResult deployResult : results.get(puppetMasterFqdn)) {
+            if (! (deployResult.isStatusOk() || deployResult.isStatusQueued())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if every master was deployed to successfully
+     */
+    public boolean isOk() {
+        if (! errors.isEmpty()) {
+            return false;
+        }
+
+        for (String puppetMasterFqdn : results.keySet()) {
+            if (! isOk(puppetMasterFqdn)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, List<DeployResult>> entry : results.entrySet()) {
+            sb.append(entry.getKey())
+                    .append(isOk(entry.getKey()) ? " OK: " : " FAILED: ")
+                    .append(entry.getValue())
+                    .append('\n');
+        }
+        for (Map.Entry<String, Throwable> entry : errors.entrySet()) {
+            sb.append(entry.getKey())
+                    .append(" ERROR: ")
+                    .append(entry.getValue())
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+}
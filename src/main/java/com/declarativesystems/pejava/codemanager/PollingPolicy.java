@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+/**
+ * How often to poll the Code Manager status endpoint while waiting for queued
+ * deployments and how long to wait in total.
+ *
+ * Polling starts at `initialDelayMillis` and backs off by `multiplier` each
+ * time nothing has finished, up to `maxDelayMillis`. As soon as a poll shows
+ * progress the delay drops back to `initialDelayMillis`
+ */
+public final class PollingPolicy {
+
+    /**
+     * Poll every 0.5-10 seconds for up to 10 minutes (same as the socket
+     * timeout for `wait`)
+     */
+    public static final PollingPolicy DEFAULT = new PollingPolicy(500, 10 * 1000, 1.5, 600 * 1000);
+
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final double multiplier;
+    private final long timeoutMillis;
+
+    /**
+     * @param initialDelayMillis delay before the first poll and after progress
+     * @param maxDelayMillis longest delay between polls
+     * @param multiplier backoff factor applied when a poll shows no progress
+     * @param timeoutMillis overall deadline for the deployment to finish
+     */
+    public PollingPolicy(long initialDelayMillis, long maxDelayMillis, double multiplier, long timeoutMillis) {
+        if (initialDelayMillis < 1 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException(
+                    "need 0 < initialDelayMillis <= maxDelayMillis, got " + initialDelayMillis + ", " + maxDelayMillis);
+        }
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("multiplier must be at least 1, got " + multiplier);
+        }
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.multiplier = multiplier;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public long getInitialDelayMillis() {
+        return initialDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @param delayMillis the delay used before the last poll
+     * @param progress true if the last poll saw a deployment finish
+     * @return delay before the next poll
+     */
+    public long nextDelay(long delayMillis, boolean progress) {
+        return progress ?
+                initialDelayMillis :
+                Math.min(maxDelayMillis, (long) Math.ceil(delayMillis * multiplier));
+    }
+}
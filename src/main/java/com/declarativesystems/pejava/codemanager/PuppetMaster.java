@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import java.util.Objects;
+
+/**
+ * Connection details for one Puppet Enterprise install's Code Manager
+ */
+public final class PuppetMaster {
+    /**
+     * FQDN of Puppet Master
+     */
+    private final String fqdn;
+
+    /**
+     * contents of RBAC token
+     */
+    private final String token;
+
+    /**
+     * contents of CA Cert (PEM) or null for insecure mode
+     */
+    private final String caCert;
+
+    public PuppetMaster(String fqdn, String token, String caCert) {
+        this.fqdn = Objects.requireNonNull(fqdn, "fqdn");
+        this.token = token;
+        this.caCert = caCert;
+    }
+
+    public String getFqdn() {
+        return fqdn;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public String getCaCert() {
+        return caCert;
+    }
+
+    public String toString() {
+        // never print the token
+        return fqdn;
+    }
+}
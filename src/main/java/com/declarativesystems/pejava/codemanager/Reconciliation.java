@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outcome of checking a deployment against the git commits we expected each
+ * environment to be at. Produced by {@link DeployReconciler}
+ */
+public class Reconciliation {
+
+    public enum Outcome {
+        /**
+         * Deployed the expected commit
+         */
+        OK,
+
+        /**
+         * Queued - Code Manager hasn't deployed it yet
+         */
+        QUEUED,
+
+        /**
+         * Code Manager failed to deploy the environment
+         */
+        FAILED,
+
+        /**
+         * Deployed, but not the commit we expected
+         */
+        MISMATCH,
+
+        /**
+         * Expected but not deployed at all
+         */
+        MISSING,
+
+        /**
+         * Deployed but not expected
+         */
+        UNEXPECTED
+    }
+
+    /**
+     * Every result, in response order followed by missing environments in
+     * target order
+     */
+    private final List<DeployResult> results;
+
+    /**
+     * Result and outcome by environment
+     */
+    private final Map<String, DeployResult> resultsByEnvironment;
+    private final Map<String, Outcome> outcomes;
+
+    /**
+     * Environments whose outcome or commits differ from the previous run,
+     * including environments that are no longer reported at all
+     */
+    private final List<String> changed;
+
+    /**
+     * Number of environments that had to be evaluated (not carried over from
+     * the previous run)
+     */
+    private final int evaluated;
+
+    private final Map<Outcome, List<DeployResult>> byOutcome = new EnumMap<>(Outcome.class);
+
+    Reconciliation(List<DeployResult> results,
+                   List<Outcome> resultOutcomes,
+                   Map<String, DeployResult> resultsByEnvironment,
+                   Map<String, Outcome> outcomes,
+                   List<String> changed,
+                   int evaluated) {
+        this.results = Collections.unmodifiableList(results);
+        this.resultsByEnvironment = resultsByEnvironment;
+        this.outcomes = outcomes;
+        this.changed = Collections.unmodifiableList(changed);
+        this.evaluated = evaluated;
+
+        for (Outcome outcome : Outcome.values()) {
+            byOutcome.put(outcome, new ArrayList<>());
+        }
+        for (int i = 0 ; i < results.size() ; i++) {
+            byOutcome.get(resultOutcomes.get(i)).add(results.get(i));
+        }
+    }
+
+    public List<DeployResult> getResults() {
+        return results;
+    }
+
+    /**
+     * @param outcome category to list
+     * @return results in this category, in the same order as `getResults()`
+     */
+    public List<DeployResult> getResults(Outcome outcome) {
+        return Collections.unmodifiableList(byOutcome.get(outcome));
+    }
+
+    /**
+     * @param environment Environment name
+     * @return outcome for this environment or null if it was neither targeted
+     *         nor deployed
+     */
+    public Outcome getOutcome(String environment) {
+        return outcomes.get(environment);
+    }
+
+    /**
+     * @param environment Environment name
+     * @return result for this environment or null if it was neither targeted
+     *         nor deployed
+     */
+    public DeployResult getResult(String environment) {
+        return resultsByEnvironment.get(environment);
+    }
+
+    /**
+     * @return number of environments with this outcome
+     */
+    public int count(Outcome outcome) {
+        return byOutcome.get(outcome).size();
+    }
+
+    /**
+     * @return Environments that changed since the previous run (all of them
+     *         if there wasn't one)
+     */
+    public List<String> getChanged() {
+        return changed;
+    }
+
+    public int getEvaluated() {
+        return evaluated;
+    }
+
+    /**
+     * @return true if every environment was deployed at the expected commit
+     *         or is still queued
+     */
+    public boolean isOk() {
+        return count(Outcome.OK) + count(Outcome.QUEUED) == results.size();
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Outcome outcome : Outcome.values()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(outcome).append('=').append(count(outcome));
+        }
+        return sb.append(", changed=").append(changed.size()).toString();
+    }
+}
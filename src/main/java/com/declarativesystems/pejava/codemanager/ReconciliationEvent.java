@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Checking deployment results against target commits, from creating the
+ * DeployReconciler to finish()
+ */
+@Name("com.declarativesystems.pejava.Reconciliation")
+@Label("Reconciliation")
+@Category({JfrEvents.CATEGORY, "Code Manager"})
+@Description("Deployment results checked against target commits")
+class ReconciliationEvent extends Event {
+
+    @Label("Target Count")
+    int targetCount;
+
+    @Label("Result Count")
+    int resultCount;
+
+    @Label("Evaluated")
+    @Description("Results evaluated rather than carried over from the previous reconciliation")
+    int evaluated;
+
+    @Label("Changed")
+    int changed;
+
+    @Label("OK")
+    int ok;
+
+    @Label("Failed")
+    int failed;
+
+    @Label("Mismatch")
+    int mismatch;
+
+    @Label("Missing")
+    int missing;
+
+    /**
+     * Start timing a reconciliation
+     * @return the event or null if nobody is recording it
+     */
+    static ReconciliationEvent start(int targetCount) {
+        ReconciliationEvent event = new ReconciliationEvent();
+        if (! event.isEnabled()) {
+            return null;
+        }
+        event.targetCount = targetCount;
+        event.begin();
+        return event;
+    }
+
+    void finish(Reconciliation reconciliation) {
+        end();
+        resultCount = reconciliation.getResults().size();
+        evaluated = reconciliation.getEvaluated();
+        changed = reconciliation.getChanged().size();
+        ok = reconciliation.count(Reconciliation.Outcome.OK);
+        failed = reconciliation.count(Reconciliation.Outcome.FAILED);
+        mismatch = reconciliation.count(Reconciliation.Outcome.MISMATCH);
+        missing = reconciliation.count(Reconciliation.Outcome.MISSING);
+        commit();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Parsing a deploys response into DeployResults
+ */
+@Name("com.declarativesystems.pejava.ResponseParse")
+@Label("Response Parse")
+@Category({JfrEvents.CATEGORY, "Code Manager"})
+@Description("Parsing a Code Manager deploys response")
+class ResponseParseEvent extends Event {
+
+    @Label("Result Count")
+    int resultCount;
+
+    @Label("Allocated")
+    @Description("Bytes allocated by the parsing thread, including by the callback, or -1 if unknown")
+    @DataAmount
+    long allocated = -1;
+
+    @Label("Failed")
+    @Description("Error document or malformed JSON")
+    boolean failed;
+
+    private long allocatedAtStart;
+
+    /**
+     * Start timing a parse
+     * @return the event or null if nobody is recording it
+     */
+    static ResponseParseEvent start() {
+        ResponseParseEvent event = new ResponseParseEvent();
+        if (! event.isEnabled()) {
+            return null;
+        }
+        event.allocatedAtStart = JfrEvents.allocatedBytes();
+        event.begin();
+        return event;
+    }
+
+    void finish(int resultCount, boolean failed) {
+        end();
+        this.resultCount = resultCount;
+        this.failed = failed;
+        if (allocatedAtStart >= 0) {
+            allocated = JfrEvents.allocatedBytes() - allocatedAtStart;
+        }
+        commit();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+/**
+ * Caps retries across all hosts so a widespread outage doesn't multiply the
+ * load on Code Manager (and the time callers spend waiting). Each request
+ * deposits `ratio` of a retry, each retry withdraws one. A few retries per
+ * second are always allowed so that quiet periods still get retried
+ */
+public class RetryBudget {
+
+    /**
+     * Unused retries are only kept for this many requests' worth of deposits
+     */
+    private static final int MAX_BALANCE_REQUESTS = 100;
+
+    private final double ratio;
+    private final int minPerSecond;
+    private final double maxBalance;
+
+    // guarded by this
+    private double balance;
+    private long second = -1;
+    private int retriesThisSecond;
+    private long retries;
+    private long rejected;
+
+    /**
+     * @param ratio retries earned per request
+     * @param minPerSecond retries always allowed per second
+     */
+    public RetryBudget(double ratio, int minPerSecond) {
+        this.ratio = ratio;
+        this.minPerSecond = minPerSecond;
+        this.maxBalance = ratio * MAX_BALANCE_REQUESTS;
+    }
+
+    /**
+     * Record a request (not a retry) being sent
+     */
+    public synchronized void onRequest() {
+        balance = Math.min(maxBalance, balance + ratio);
+    }
+
+    /**
+     * @return true if a retry may be sent, in which case it has been paid for
+     */
+    public synchronized boolean tryRetry() {
+        long now = System.nanoTime() / 1000000000L;
+        if (now != second) {
+            second = now;
+            retriesThisSecond = 0;
+        }
+
+        if (retriesThisSecond < minPerSecond) {
+            retriesThisSecond++;
+        } else if (balance >= 1) {
+            balance -= 1;
+        } else {
+            rejected++;
+            return false;
+        }
+        retries++;
+        return true;
+    }
+
+    /**
+     * @return retries allowed so far
+     */
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return retries refused because the budget was spent
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RetryBudget{" +
+                "balance=" + balance +
+                ", retries=" + retries +
+                ", rejected=" + rejected +
+                '}';
+    }
+}
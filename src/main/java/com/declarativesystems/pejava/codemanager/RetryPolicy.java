@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * When to retry requests to Code Manager and how long to wait in between.
+ *
+ * Only failures to connect and 5xx responses are retried. Delays double from
+ * `initialDelayMillis` up to `maxDelayMillis` and are jittered (between half
+ * and all of the delay) so callers don't retry in lockstep. Retries are also
+ * limited by a {@link RetryBudget} shared by all hosts: each request earns
+ * `budgetRatio` of a retry and `minRetriesPerSecond` are always allowed
+ */
+public final class RetryPolicy {
+
+    /**
+     * Up to 3 attempts, 0.1-2 seconds apart, retrying at most 20% of requests
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 100, 2 * 1000, 0.2, 10);
+
+    /**
+     * Never retry
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 1, 1, 0, 0);
+
+    /**
+     * Connect timeout from `java.net.http.HttpClient` - matched by name since
+     * java.net.http is Java 11+
+     */
+    private static final String HTTP_CONNECT_TIMEOUT = "java.net.http.HttpConnectTimeoutException";
+
+    private final int maxAttempts;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final double budgetRatio;
+    private final int minRetriesPerSecond;
+
+    /**
+     * @param maxAttempts total attempts per request, including the first
+     * @param initialDelayMillis delay before the first retry
+     * @param maxDelayMillis longest delay between retries
+     * @param budgetRatio retries earned per request sent
+     * @param minRetriesPerSecond retries always allowed per second, whatever
+     *                            the budget
+     */
+    public RetryPolicy(int maxAttempts, long initialDelayMillis, long maxDelayMillis, double budgetRatio, int minRetriesPerSecond) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1, got " + maxAttempts);
+        }
+        if (initialDelayMillis < 1 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException(
+                    "need 0 < initialDelayMillis <= maxDelayMillis, got " + initialDelayMillis + ", " + maxDelayMillis);
+        }
+        if (budgetRatio < 0 || minRetriesPerSecond < 0) {
+            throw new IllegalArgumentException(
+                    "budget must not be negative, got " + budgetRatio + ", " + minRetriesPerSecond);
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.budgetRatio = budgetRatio;
+        this.minRetriesPerSecond = minRetriesPerSecond;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getInitialDelayMillis() {
+        return initialDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    public double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    public int getMinRetriesPerSecond() {
+        return minRetriesPerSecond;
+    }
+
+    /**
+     * @return a new retry budget for these settings
+     */
+    public RetryBudget newRetryBudget() {
+        return new RetryBudget(budgetRatio, minRetriesPerSecond);
+    }
+
+    /**
+     * @param attempt the attempt that just failed (1 for the first)
+     * @return jittered delay before the next attempt
+     */
+    public long delayMillis(int attempt) {
+        long delay = Math.min(maxDelayMillis, initialDelayMillis << Math.min(attempt - 1, 30));
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+
+    /**
+     * @return true if the request never reached Code Manager because we could
+     *         not connect - always safe to retry and a sign the host is down.
+     *         Timing out waiting for our own connection pool doesn't count
+     */
+    public static boolean isConnectFailure(Throwable e) {
+        return e instanceof ConnectException
+                || (e instanceof ConnectTimeoutException && ! (e instanceof ConnectionPoolTimeoutException))
+                || e instanceof NoRouteToHostException
+                || (e != null && HTTP_CONNECT_TIMEOUT.equals(e.getClass().getName()));
+    }
+
+    /**
+     * @return true for HTTP statuses worth retrying (5xx)
+     */
+    public static boolean isRetryableStatus(int status) {
+        return status >= 500;
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Waits for queued deployments on behalf of any number of callers with one
+ * status request per Puppet Master per poll, however many deployments are
+ * outstanding.
+ *
+ * Each master has a registry of queued deploy ids and the futures waiting for
+ * them, kept apart for each token and CA cert so that nobody's deployments
+ * are polled with someone else's credentials. While anything is outstanding the master is polled on its own
+ * schedule (adaptive backoff from {@link PollingPolicy}) and each future is
+ * completed as soon as its environment finishes. Waiters still running at
+ * their deadline get their last known status, same as
+ * {@link DeployStatusPoller}
+ */
+public class SharedStatusPoller implements Closeable {
+    private static Logger log = LoggerFactory.getLogger(SharedStatusPoller.class);
+
+    private final DeployImpl deploy;
+
+    private final PollingPolicy pollingPolicy;
+
+    private final Executor executor;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Map<MasterKey, MasterPoller> masters = new ConcurrentHashMap<>();
+
+    private final AtomicLong polls = new AtomicLong();
+
+    /**
+     * @param deploy DeployImpl to submit deployments and read status with
+     * @param pollingPolicy poll interval and per-deployment deadline
+     * @param executor Executor to fetch status and complete futures on
+     */
+    public SharedStatusPoller(DeployImpl deploy, PollingPolicy pollingPolicy, Executor executor) {
+        this.deploy = deploy;
+        this.pollingPolicy = pollingPolicy;
+        this.executor = executor;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pejava-status-poller");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Deploy without `wait` and let the shared poller wait for the results
+     * @param puppetMaster Puppet Master to deploy to
+     * @param environments Environments to deploy. An empty or null list means
+     *                     deploy all environments, otherwise just deploy those
+     *                     named only
+     * @return Future of the final results (or last known status at the
+     *         deadline)
+     */
+    public CompletableFuture<List<DeployResult>> deployCode(PuppetMaster puppetMaster, String[] environments) {
+        return deploy.deployCodeAsync(
+                puppetMaster.getFqdn(),
+                puppetMaster.getToken(),
+                puppetMaster.getCaCert(),
+                environments,
+                false,
+                executor
+        ).thenCompose(queued -> awaitAll(puppetMaster, queued));
+    }
+
+    /**
+     * Wait for every queued result in `submitted`
+     * @param puppetMaster Puppet Master the deployment was sent to
+     * @param submitted results from a deployment made without `wait`
+     * @return Future of results in the same order as `submitted`
+     */
+    public CompletableFuture<List<DeployResult>> awaitAll(PuppetMaster puppetMaster, List<DeployResult> submitted) {
+        List<CompletableFuture<DeployResult>> futures = new ArrayList<>(submitted.size());
+        for (DeployResult result : submitted) {
+            futures.add(await(puppetMaster, result));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<DeployResult> results = new ArrayList<>(futures.size());
+            for (CompletableFuture<DeployResult> future : futures) {
+                results.add(future.join());
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Wait for one queued deployment
+     * @param puppetMaster Puppet Master the deployment was sent to
+     * @param queued result from a deployment made without `wait`
+     * @return Future of the final result. Results that aren't queued, or have
+     *         no deploy id to follow, complete straight away. Cancel the
+     *         future to stop waiting
+     */
+    public CompletableFuture<DeployResult> await(PuppetMaster puppetMaster, DeployResult queued) {
+        if (! queued.isStatusQueued() || queued.getId() == DeployResult.NO_ID) {
+            return CompletableFuture.completedFuture(queued);
+        }
+        if (scheduler.isShutdown()) {
+            throw new IllegalStateException("SharedStatusPoller has been closed");
+        }
+
+        Waiter waiter = new Waiter(queued, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pollingPolicy.getTimeoutMillis()));
+        masters.computeIfAbsent(new MasterKey(puppetMaster), key -> new MasterPoller(puppetMaster)).add(waiter);
+        return waiter.future;
+    }
+
+    /**
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @return deployments being waited for on this master, whatever
+     *         credentials they were registered with
+     */
+    public int getOutstanding(String puppetMasterFqdn) {
+        int outstanding = 0;
+        for (Map.Entry<MasterKey, MasterPoller> entry : masters.entrySet()) {
+            if (entry.getKey().fqdn.equals(puppetMasterFqdn)) {
+                outstanding += entry.getValue().size();
+            }
+        }
+        return outstanding;
+    }
+
+    /**
+     * @return status requests sent to all masters
+     */
+    public long getPollCount() {
+        return polls.get();
+    }
+
+    /**
+     * Stop polling. Futures still waiting are cancelled
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        for (MasterPoller master : masters.values()) {
+            master.cancelAll();
+        }
+    }
+
+    /**
+     * One caller waiting for one queued deployment
+     */
+    private static final class Waiter {
+        private final DeployResult queued;
+        private final long deadlineNanos;
+        private final CompletableFuture<DeployResult> future = new CompletableFuture<>();
+        private String lastState;
+
+        Waiter(DeployResult queued, long deadlineNanos) {
+            this.queued = queued;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Give up and report how far the deployment got
+         */
+        void expire() {
+            future.complete((lastState == null || DeployStatus.STATE_QUEUED.equals(lastState)) ?
+                    queued :
+                    new DeployResult(queued.getEnvironment(), lastState, DeployResult.MISSING, queued.getId()));
+        }
+    }
+
+    /**
+     * A master and the credentials to poll it with. The CA cert is compared
+     * by digest so keys stay small
+     */
+    private static final class MasterKey {
+        private final String fqdn;
+        private final String token;
+        private final byte[] caCertDigest;
+
+        MasterKey(PuppetMaster puppetMaster) {
+            this.fqdn = puppetMaster.getFqdn();
+            this.token = puppetMaster.getToken();
+            this.caCertDigest = (puppetMaster.getCaCert() == null) ? null : sha256(puppetMaster.getCaCert());
+        }
+
+        private static byte[] sha256(String value) {
+            try {
+                return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            } catch (NoSuchAlgorithmException e) {
+                // can't happen - every JVM has SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (! (o instanceof MasterKey)) {
+                return false;
+            }
+            MasterKey other = (MasterKey) o;
+            return fqdn.equals(other.fqdn) &&
+                    Objects.equals(token, other.token) &&
+                    Arrays.equals(caCertDigest, other.caCertDigest);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fqdn, token) * 31 + Arrays.hashCode(caCertDigest);
+        }
+    }
+
+    /**
+     * Registry and poll schedule for one master and set of credentials
+     */
+    private final class MasterPoller {
+        private final PuppetMaster puppetMaster;
+
+        /**
+         * Guarded by `this`
+         */
+        private final List<Waiter> waiters = new ArrayList<>();
+
+        private boolean scheduled;
+
+        private long delay;
+
+        MasterPoller(PuppetMaster puppetMaster) {
+            this.puppetMaster = puppetMaster;
+        }
+
+        synchronized void add(Waiter waiter) {
+            waiters.add(waiter);
+            if (! scheduled) {
+                scheduled = true;
+                delay = pollingPolicy.getInitialDelayMillis();
+                schedule();
+            }
+        }
+
+        synchronized int size() {
+            return waiters.size();
+        }
+
+        synchronized void cancelAll() {
+            for (Waiter waiter : waiters) {
+                waiter.future.cancel(false);
+            }
+            waiters.clear();
+        }
+
+        private void schedule() {
+            try {
+                scheduler.schedule(() -> {
+                    try {
+                        executor.execute(this::poll);
+                    } catch (RejectedExecutionException e) {
+                        fail(e);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // closed
+                fail(e);
+            }
+        }
+
+        /**
+         * Stop polling and fail everyone waiting - nothing is going to
+         * complete their futures otherwise
+         */
+        private void fail(Throwable e) {
+            List<Waiter> failed;
+            synchronized (this) {
+                failed = new ArrayList<>(waiters);
+                waiters.clear();
+                scheduled = false;
+            }
+            for (Waiter waiter : failed) {
+                waiter.future.completeExceptionally(e);
+            }
+        }
+
+        private void poll() {
+            PuppetMaster target = puppetMaster;
+            synchronized (this) {
+                waiters.removeIf(waiter -> waiter.future.isDone());
+                if (waiters.isEmpty()) {
+                    scheduled = false;
+                    return;
+                }
+            }
+
+            DeployStatus status = null;
+            polls.incrementAndGet();
+            try {
+                status = deploy.fetchDeployStatus(target.getFqdn(), target.getToken(), target.getCaCert());
+            } catch (CodeManagerException e) {
+                // bad credentials or similar - polling again won't help
+                fail(e);
+                return;
+            } catch (IOException|GeneralSecurityException|RuntimeException e) {
+                // the deployments carry on without us - just try again later
+                log.warn(String.format("Error polling deployment status on %s, will retry: %s", target, e.getMessage()));
+            }
+
+            List<Runnable> completions = new ArrayList<>();
+            synchronized (this) {
+                boolean progress = false;
+                long now = System.nanoTime();
+                Iterator<Waiter> it = waiters.iterator();
+                while (it.hasNext()) {
+                    Waiter waiter = it.next();
+                    DeployResult finished = (status == null) ? null : status.resultFor(waiter.queued);
+                    if (finished != null) {
+                        completions.add(() -> waiter.future.complete(finished));
+                        it.remove();
+                        progress = true;
+                        continue;
+                    }
+
+                    if (status != null && status.isPending(waiter.queued.getId())) {
+                        waiter.lastState = status.getPendingState(waiter.queued.getId());
+                    }
+                    if (now - waiter.deadlineNanos >= 0) {
+                        log.warn("Gave up waiting for deployment of " + waiter.queued.getEnvironment() + " on " + target);
+                        completions.add(waiter::expire);
+                        it.remove();
+                    }
+                }
+
+                log.debug(String.format("%d deployment(s) still running on %s", waiters.size(), target));
+                delay = pollingPolicy.nextDelay(delay, progress);
+                if (waiters.isEmpty()) {
+                    scheduled = false;
+                } else {
+                    schedule();
+                }
+            }
+
+            // complete outside the lock - callbacks may register new waiters
+            for (Runnable completion : completions) {
+                completion.run();
+            }
+        }
+    }
+}
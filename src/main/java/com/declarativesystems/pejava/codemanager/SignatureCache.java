@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Last known deploy signature (git commit) of each environment on each Puppet
+ * Master, so that {@link IdempotentDeploy} can skip environments that are
+ * already at the commit we want.
+ *
+ * Entries expire after `ttlMillis` in case something else deploys behind our
+ * back. The cache can optionally be saved to a file (on {@link #save()} and
+ * {@link #close()}) and is loaded from it again on startup
+ */
+public class SignatureCache implements Closeable {
+    private static Logger log = LoggerFactory.getLogger(SignatureCache.class);
+
+    public static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+
+    private final long ttlMillis;
+
+    /**
+     * where to persist the cache or null to keep it in memory
+     */
+    private final Path file;
+
+    /**
+     * "master\tenvironment" -> entry
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private static final class Entry {
+        /**
+         * Signature as given, or null to read it from `deployed`
+         */
+        private final String signature;
+        private final DeployResult deployed;
+        private final long expiresMillis;
+
+        Entry(String signature, long expiresMillis) {
+            this.signature = signature;
+            this.deployed = null;
+            this.expiresMillis = expiresMillis;
+        }
+
+        /**
+         * Signature still held in binary by the result it came from, so
+         * caching a deployment doesn't build a String for it
+         */
+        Entry(DeployResult deployed, long expiresMillis) {
+            this.signature = null;
+            this.deployed = deployed;
+            this.expiresMillis = expiresMillis;
+        }
+
+        String getSignature() {
+            return (deployed == null) ? signature : deployed.getDeploySignature();
+        }
+
+        boolean matches(String signature) {
+            return (deployed == null) ?
+                    this.signature != null && this.signature.equalsIgnoreCase(signature) :
+                    deployed.isDeploySignature(signature);
+        }
+    }
+
+    /**
+     * In-memory cache
+     * @param ttlMillis how long to trust a signature for
+     */
+    public SignatureCache(long ttlMillis) {
+        this(ttlMillis, null);
+    }
+
+    /**
+     * Cache persisted to `file`. Unexpired entries already in `file` are
+     * loaded straight away
+     * @param ttlMillis how long to trust a signature for
+     * @param file where to save the cache or null to keep it in memory
+     */
+    public SignatureCache(long ttlMillis, Path file) {
+        if (ttlMillis < 1) {
+            throw new IllegalArgumentException("ttlMillis must be at least 1, got " + ttlMillis);
+        }
+        this.ttlMillis = ttlMillis;
+        this.file = file;
+        if (file != null && Files.exists(file)) {
+            load();
+        }
+    }
+
+    /**
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @param environment Environment name
+     * @return last known deploy signature or null if unknown or expired
+     */
+    public String get(String puppetMasterFqdn, String environment) {
+        Entry entry = entry(puppetMasterFqdn, environment);
+        return (entry == null) ? null : entry.getSignature();
+    }
+
+    /**
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @param environment Environment name
+     * @param signature deploy signature (git commit) we want, any case
+     * @return true if `environment` is known to be deployed at `signature`
+     */
+    boolean isDeployed(String puppetMasterFqdn, String environment, String signature) {
+        Entry entry = entry(puppetMasterFqdn, environment);
+        return entry != null && entry.matches(signature);
+    }
+
+    /**
+     * Remember that `environment` is deployed at `signature`
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @param environment Environment name
+     * @param signature deploy signature (git commit)
+     */
+    public void put(String puppetMasterFqdn, String environment, String signature) {
+        entries.put(key(puppetMasterFqdn, environment),
+                new Entry(signature, System.currentTimeMillis() + ttlMillis));
+    }
+
+    /**
+     * Forget what we know about `environment`
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @param environment Environment name
+     */
+    public void invalidate(String puppetMasterFqdn, String environment) {
+        entries.remove(key(puppetMasterFqdn, environment));
+    }
+
+    /**
+     * Forget every environment on a Puppet Master
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     */
+    public void invalidate(String puppetMasterFqdn) {
+        String prefix = puppetMasterFqdn + '\t';
+        entries.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Update the cache from checked deployment results: environments
+     * deployed at their target commit are remembered, everything else
+     * (queued, failed, mismatched, missing) is forgotten
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @param reconciliation results checked against their target commits
+     */
+    public void update(String puppetMasterFqdn, Reconciliation reconciliation) {
+        for (DeployResult result : reconciliation.getResults()) {
+            if (reconciliation.getOutcome(result.getEnvironment()) == Reconciliation.Outcome.OK) {
+                entries.put(key(puppetMasterFqdn, result.getEnvironment()),
+                        new Entry(result, System.currentTimeMillis() + ttlMillis));
+            } else {
+                invalidate(puppetMasterFqdn, result.getEnvironment());
+            }
+        }
+    }
+
+    /**
+     * @return number of entries (including any expired ones not yet removed)
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Write unexpired entries to the cache file, if there is one. The file
+     * is replaced atomically
+     */
+    public void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (entry.getValue().expiresMillis > now) {
+                    writer.write(String.format("%s\t%s\t%d%n",
+                            entry.getKey(), entry.getValue().getSignature(), entry.getValue().expiresMillis));
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        save();
+    }
+
+    private void load() {
+        long now = System.currentTimeMillis();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 4) {
+                    continue;
+                }
+                long expiresMillis = Long.parseLong(fields[3]);
+                if (expiresMillis > now) {
+                    entries.put(key(fields[0], fields[1]), new Entry(fields[2], expiresMillis));
+                }
+            }
+        } catch (IOException|NumberFormatException e) {
+            // a lost cache only costs us some redundant deployments
+            log.warn(String.format("Ignoring unreadable signature cache %s: %s", file, e.getMessage()));
+        }
+    }
+
+    /**
+     * @return unexpired entry or null
+     */
+    private Entry entry(String puppetMasterFqdn, String environment) {
+        String key = key(puppetMasterFqdn, environment);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresMillis <= System.currentTimeMillis()) {
+            entries.remove(key, entry);
+            entry = null;
+        }
+        return entry;
+    }
+
+    private static String key(String puppetMasterFqdn, String environment) {
+        return puppetMasterFqdn + '\t' + environment;
+    }
+}
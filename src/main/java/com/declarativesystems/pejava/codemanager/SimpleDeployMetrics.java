@@ -0,0 +1,218 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Dependency-free, in-memory DeployMetrics. Keeps a log-scale latency
+ * histogram per Puppet Master and phase, and a counter per Puppet Master,
+ * environment and outcome
+ */
+public class SimpleDeployMetrics implements DeployMetrics {
+
+    private final ConcurrentMap<PhaseKey, Histogram> histograms = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<ResultKey, LongAdder> results = new ConcurrentHashMap<>();
+
+    @Override
+    public void recordPhase(String puppetMasterFqdn, Phase phase, long nanos) {
+        histograms.computeIfAbsent(new PhaseKey(puppetMasterFqdn, phase), k -> new Histogram()).record(nanos);
+    }
+
+    @Override
+    public void recordResult(String puppetMasterFqdn, String environment, String outcome) {
+        results.computeIfAbsent(new ResultKey(puppetMasterFqdn, environment, outcome), k -> new LongAdder()).increment();
+    }
+
+    /**
+     * @return latency histogram for this master and phase or null if nothing
+     *         has been recorded
+     */
+    public Histogram getHistogram(String puppetMasterFqdn, Phase phase) {
+        return histograms.get(new PhaseKey(puppetMasterFqdn, phase));
+    }
+
+    /**
+     * @return number of times this environment had this outcome
+     */
+    public long getCount(String puppetMasterFqdn, String environment, String outcome) {
+        LongAdder count = results.get(new ResultKey(puppetMasterFqdn, environment, outcome));
+        return (count == null) ? 0 : count.sum();
+    }
+
+    /**
+     * @return number of results with this outcome across all environments
+     */
+    public long getCount(String puppetMasterFqdn, String outcome) {
+        long count = 0;
+        for (Map.Entry<ResultKey, LongAdder> entry : results.entrySet()) {
+            if (entry.getKey().puppetMasterFqdn.equals(puppetMasterFqdn) && entry.getKey().outcome.equals(outcome)) {
+                count += entry.getValue().sum();
+            }
+        }
+        return count;
+    }
+
+    public void reset() {
+        histograms.clear();
+        results.clear();
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<PhaseKey, Histogram> entry : histograms.entrySet()) {
+            sb.append(entry.getKey().puppetMasterFqdn).append(' ')
+                    .append(entry.getKey().phase).append(' ')
+                    .append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Lock-free latency histogram with power-of-two nanosecond buckets - good
+     * to within a factor of 2, which is plenty to see whether a phase takes
+     * microseconds, milliseconds or seconds
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            nanos = Math.max(nanos, 0);
+            buckets.incrementAndGet(bucket(nanos));
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        private static int bucket(long nanos) {
+            // bucket i holds values from 2^(i-1) up to 2^i - 1
+            return BUCKETS - Long.numberOfLeadingZeros(nanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        public long getMeanNanos() {
+            long n = getCount();
+            return (n == 0) ? 0 : getTotalNanos() / n;
+        }
+
+        /**
+         * @param quantile 0.0 - 1.0, eg 0.99
+         * @return upper bound of the bucket holding this quantile, capped at
+         *         the maximum seen
+         */
+        public long getPercentileNanos(double quantile) {
+            long[] snapshot = new long[BUCKETS];
+            long n = 0;
+            for (int i = 0 ; i < BUCKETS ; i++) {
+                snapshot[i] = buckets.get(i);
+                n += snapshot[i];
+            }
+            long rank = (long) Math.ceil(quantile * n);
+            long seen = 0;
+            for (int i = 0 ; i < BUCKETS ; i++) {
+                seen += snapshot[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1, getMaxNanos());
+                }
+            }
+            return 0;
+        }
+
+        public String toString() {
+            return String.format(
+                    "count=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms",
+                    getCount(),
+                    getMeanNanos() / 1e6,
+                    getPercentileNanos(0.5) / 1e6,
+                    getPercentileNanos(0.99) / 1e6,
+                    getMaxNanos() / 1e6);
+        }
+    }
+
+    private static final class PhaseKey {
+        private final String puppetMasterFqdn;
+        private final Phase phase;
+
+        private PhaseKey(String puppetMasterFqdn, Phase phase) {
+            this.puppetMasterFqdn = puppetMasterFqdn;
+            this.phase = phase;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            PhaseKey that = (PhaseKey) o;
+            return puppetMasterFqdn.equals(that.puppetMasterFqdn) && phase == that.phase;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * puppetMasterFqdn.hashCode() + phase.hashCode();
+        }
+    }
+
+    private static final class ResultKey {
+        private final String puppetMasterFqdn;
+        private final String environment;
+        private final String outcome;
+
+        private ResultKey(String puppetMasterFqdn, String environment, String outcome) {
+            this.puppetMasterFqdn = puppetMasterFqdn;
+            this.environment = String.valueOf(environment);
+            this.outcome = String.valueOf(outcome);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ResultKey that = (ResultKey) o;
+            return puppetMasterFqdn.equals(that.puppetMasterFqdn)
+                    && environment.equals(that.environment)
+                    && outcome.equals(that.outcome);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * puppetMasterFqdn.hashCode() + environment.hashCode()) + outcome.hashCode();
+        }
+    }
+}
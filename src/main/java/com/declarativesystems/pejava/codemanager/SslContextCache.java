@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.ssl.SSLContextBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of `SSLContext`s keyed by the SHA-256 digest of the CA cert, so the
+ * PEM is only parsed (and the trust store built) once per CA.
+ *
+ * Sharing one context per CA also shares its client TLS session cache, so
+ * new connections to a Puppet Master we have already talked to can resume
+ * the TLS session instead of doing a full handshake
+ */
+public class SslContextCache {
+    private static Logger log = LoggerFactory.getLogger(SslContextCache.class);
+
+    /**
+     * Number of TLS sessions each context remembers
+     */
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 1000;
+
+    /**
+     * How long a TLS session can be resumed for (1 day)
+     */
+    public static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+    /**
+     * Digest used for contexts built without a CA cert
+     */
+    private static final String INSECURE = "insecure";
+
+    private final ConcurrentMap<String, SSLContext> contexts = new ConcurrentHashMap<>();
+
+    private final int sessionCacheSize;
+
+    private final int sessionTimeoutSeconds;
+
+    public SslContextCache() {
+        this(DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT_SECONDS);
+    }
+
+    /**
+     * @param sessionCacheSize number of TLS sessions each context remembers
+     * @param sessionTimeoutSeconds how long a TLS session can be resumed for
+     */
+    public SslContextCache(int sessionCacheSize, int sessionTimeoutSeconds) {
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeoutSeconds = sessionTimeoutSeconds;
+    }
+
+    /**
+     * Get the SSLContext for a CA cert, building it on first use
+     * @param caCert contents of CA Cert (PEM) or null/empty to trust any
+     *               self-signed certificate
+     * @return shared SSLContext
+     */
+    public SSLContext get(String caCert) throws NoSuchAlgorithmException, CertificateException, KeyStoreException, IOException, KeyManagementException
+    {
+        String digest = digest(caCert);
+        SSLContext sslContext = contexts.get(digest);
+        if (sslContext == null) {
+            // a race here just builds the same context twice - first one wins
+            sslContext = (caCert == null || caCert.isEmpty()) ?
+                    insecureSsl() :
+                    secureSsl(caCert);
+
+            SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+            sessionContext.setSessionCacheSize(sessionCacheSize);
+            sessionContext.setSessionTimeout(sessionTimeoutSeconds);
+
+            SSLContext existing = contexts.putIfAbsent(digest, sslContext);
+            if (existing != null) {
+                sslContext = existing;
+            }
+        }
+
+        return sslContext;
+    }
+
+    /**
+     * @return number of cached contexts
+     */
+    public int size() {
+        return contexts.size();
+    }
+
+    /**
+     * SHA-256 of the CA cert contents, used to tell CA certs apart without
+     * keeping (or parsing) the PEM
+     * @param caCert contents of CA Cert (PEM)
+     * @return hex digest or a fixed marker if there is no CA cert
+     */
+    public static String digest(String caCert) throws NoSuchAlgorithmException {
+        if (caCert == null || caCert.isEmpty()) {
+            return INSECURE;
+        }
+
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(caCert.getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * http://stackoverflow.com/questions/18513792/using-sslcontext-with-just-a-ca-certificate-and-no-keystore
+     */
+    private SSLContext secureSsl(String caCert) throws NoSuchAlgorithmException, CertificateException, KeyStoreException, IOException, KeyManagementException
+    {
+        log.debug("SSL mode, Processing cert" + caCert);
+        InputStream is = new ByteArrayInputStream(caCert.getBytes());
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        X509Certificate caCertX509 = (X509Certificate) cf.generateCertificate(is);
+
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        ks.load(null); // You don't need the KeyStore instance to come from a file.
+        ks.setCertificateEntry("caCert", caCertX509);
+
+        tmf.init(ks);
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, tmf.getTrustManagers(), null);
+
+        return sslContext;
+    }
+
+    private SSLContext insecureSsl() throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException
+    {
+        log.debug("insecure mode, no SSL certificate");
+        SSLContextBuilder builder = new SSLContextBuilder();
+        builder.loadTrustMaterial(null, new TrustSelfSignedStrategy());
+        return builder.build();
+    }
+}
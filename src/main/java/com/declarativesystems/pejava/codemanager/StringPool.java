@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shared pool of environment names and status strings so that results kept
+ * for a long time hold one copy of each name instead of one per parse.
+ *
+ * The pool is cleared when it reaches {@link #MAX_SIZE} so that branch churn
+ * can't grow it forever - strings already handed out stay valid, they just
+ * stop being shared with later results
+ */
+final class StringPool {
+    static final int MAX_SIZE = 64 * 1024;
+
+    private static final ConcurrentMap<String, String> pool = new ConcurrentHashMap<>();
+
+    private StringPool() {}
+
+    /**
+     * @param value string to share
+     * @return the pooled copy of `value`, or null if `value` is null
+     */
+    static String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String pooled = pool.get(value);
+        if (pooled == null) {
+            if (pool.size() >= MAX_SIZE) {
+                pool.clear();
+            }
+            pooled = pool.putIfAbsent(value, value);
+            if (pooled == null) {
+                pooled = value;
+            }
+        }
+        return pooled;
+    }
+}
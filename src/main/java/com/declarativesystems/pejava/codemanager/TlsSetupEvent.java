@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Building an SSLContext from the CA cert or a TLS handshake with Code Manager
+ */
+@Name("com.declarativesystems.pejava.TlsSetup")
+@Label("TLS Setup")
+@Category({JfrEvents.CATEGORY, "Code Manager"})
+@Description("SSLContext build or TLS handshake with a Puppet Master")
+class TlsSetupEvent extends Event {
+
+    static final String STAGE_SSL_CONTEXT = "sslContext";
+    static final String STAGE_HANDSHAKE = "handshake";
+
+    @Label("Puppet Master")
+    String master;
+
+    @Label("Stage")
+    @Description("sslContext or handshake")
+    String stage;
+
+    @Label("Protocol")
+    String protocol;
+
+    @Label("Cipher Suite")
+    String cipherSuite;
+
+    /**
+     * Start timing TLS setup
+     * @return the event or null if nobody is recording it
+     */
+    static TlsSetupEvent start(String master, String stage) {
+        TlsSetupEvent event = new TlsSetupEvent();
+        if (! event.isEnabled()) {
+            return null;
+        }
+        event.master = master;
+        event.stage = stage;
+        event.begin();
+        return event;
+    }
+
+    void finish(String protocol, String cipherSuite) {
+        this.protocol = protocol;
+        this.cipherSuite = cipherSuite;
+        commit();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends HTTP requests to Code Manager. {@link DeployImpl} builds the requests
+ * and handles retries, circuit breaking, admission control and parsing; the
+ * transport just does the I/O, so embedders can pick whichever HTTP client
+ * works best in their container:
+ * * {@link ApacheTransport} - Apache HttpClient, the blocking client for
+ *   blocking calls and the async client for async calls (default)
+ * * {@link ApacheAsyncTransport} - the Apache async client for everything
+ * * {@link JdkHttpTransport} - `java.net.http.HttpClient` (Java 11+) with
+ *   HTTP/2, so concurrent requests to one master can share one connection
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * Send a request and wait for the response headers
+     * @param request request to send
+     * @return response - the caller must close it to release the connection
+     */
+    TransportResponse execute(TransportRequest request) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException, CertificateException;
+
+    /**
+     * Send a request without blocking
+     * @param request request to send
+     * @return Future of the response. Cancelling the future aborts the
+     *         request
+     */
+    CompletableFuture<TransportResponse> executeAsync(TransportRequest request);
+
+    /**
+     * Connect to a Puppet Master ahead of time, if the transport can
+     * @param puppetMasterFqdn FQDN of Puppet Master
+     * @param caCert contents of CA Cert (PEM)
+     * @return true if a new connection was opened
+     */
+    default boolean warmUp(String puppetMasterFqdn, String caCert) throws IOException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException, CertificateException {
+        return false;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import java.net.URI;
+
+/**
+ * One HTTP request to Code Manager, independent of the HTTP client used to
+ * send it
+ */
+public final class TransportRequest {
+    public static final String GET = "GET";
+    public static final String POST = "POST";
+
+    public static final String CONTENT_TYPE_JSON = "application/json";
+
+    /**
+     * Content coding we ask for. Responses are decompressed by
+     * {@link DeployImpl}, not the HTTP client, so the response size limit
+     * applies to the decompressed bytes
+     */
+    public static final String ACCEPT_ENCODING = "gzip";
+
+    private final String method;
+    private final String puppetMasterFqdn;
+    private final String caCert;
+    private final String path;
+    private final String token;
+
+    /**
+     * JSON request body or null
+     */
+    private final byte[] body;
+
+    /**
+     * @param method {@link #GET} or {@link #POST}
+     * @param puppetMasterFqdn FQDN of Puppet Master, optionally with `:port`
+     * @param caCert contents of CA Cert (PEM) or null for insecure mode
+     * @param path path on the Code Manager service
+     * @param token contents of RBAC token
+     * @param body JSON request body or null
+     */
+    public TransportRequest(String method, String puppetMasterFqdn, String caCert, String path, String token, byte[] body) {
+        this.method = method;
+        this.puppetMasterFqdn = puppetMasterFqdn;
+        this.caCert = caCert;
+        this.path = path;
+        this.token = token;
+        this.body = body;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPuppetMasterFqdn() {
+        return puppetMasterFqdn;
+    }
+
+    public String getCaCert() {
+        return caCert;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * @return JSON request body or null. Do not modify
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @return size of the request body in bytes
+     */
+    public int getContentLength() {
+        return (body == null) ? 0 : body.length;
+    }
+
+    /**
+     * @return full HTTPS URI on the Code Manager port
+     */
+    public URI getUri() {
+        return URI.create("https://" + host(puppetMasterFqdn) + ":" + port(puppetMasterFqdn) + path);
+    }
+
+    /**
+     * @param puppetMasterFqdn FQDN of Puppet Master, optionally with `:port`
+     * @return host part of the address
+     */
+    static String host(String puppetMasterFqdn) {
+        int colon = portSeparator(puppetMasterFqdn);
+        return (colon < 0) ? puppetMasterFqdn : puppetMasterFqdn.substring(0, colon);
+    }
+
+    /**
+     * The FQDN may name an explicit port (`puppet.megacorp.com:8171`) for
+     * masters behind a load balancer or proxy, otherwise the standard Code
+     * Manager port is used
+     * @param puppetMasterFqdn FQDN of Puppet Master, optionally with `:port`
+     * @return Code Manager port
+     */
+    static int port(String puppetMasterFqdn) {
+        int colon = portSeparator(puppetMasterFqdn);
+        if (colon < 0) {
+            return DeployImpl.CODE_MANAGER_PORT;
+        }
+        try {
+            return Integer.parseInt(puppetMasterFqdn.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port in Puppet Master address: " + puppetMasterFqdn, e);
+        }
+    }
+
+    private static int portSeparator(String puppetMasterFqdn) {
+        int colon = puppetMasterFqdn.indexOf(':');
+        return (colon > 0 && colon == puppetMasterFqdn.lastIndexOf(':')) ? colon : -1;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + puppetMasterFqdn + path +
+                ((body == null) ? "" : " (" + body.length + " bytes)");
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * HTTP response from a {@link Transport}. Close it (after reading the body)
+ * to return the connection to the pool
+ */
+public interface TransportResponse extends Closeable {
+
+    /**
+     * @return HTTP status code
+     */
+    int getStatus();
+
+    /**
+     * @return response body. Read it at most once
+     */
+    InputStream getBody() throws IOException;
+
+    /**
+     * @return `Content-Encoding` of the body (eg `gzip`) or null if it isn't
+     *         encoded
+     */
+    String getContentEncoding();
+
+    /**
+     * @return HTTP protocol version used, eg `HTTP/1.1` or `HTTP/2`
+     */
+    String getProtocol();
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Blocking deploy-and-verify that does its waiting on virtual threads (Java
+ * 21+, platform threads before that), so thousands of deployments can be
+ * waited for at once without tying up a platform thread each.
+ *
+ * Every call runs as a {@link DeployScope}: submission, waiting and
+ * verification against the target commits happen in subtasks, fan-out across
+ * environments or Puppet Masters forks one subtask each, and the whole call
+ * has a deadline. Passing the deadline or interrupting the caller cancels the
+ * subtasks, which aborts their HTTP requests
+ */
+public class VirtualThreadDeploy {
+    private static Logger log = LoggerFactory.getLogger(VirtualThreadDeploy.class);
+
+    private final Deploy deploy;
+
+    private final ThreadFactory threadFactory;
+
+    /**
+     * Parses responses on a fresh thread instead of the HTTP client's I/O
+     * thread
+     */
+    private final Executor executor;
+
+    /**
+     * @param deploy Deploy implementation to send deployments to
+     */
+    public VirtualThreadDeploy(Deploy deploy) {
+        this(deploy, VirtualThreads.factory("pejava-deploy"));
+    }
+
+    /**
+     * @param deploy Deploy implementation to send deployments to
+     * @param threadFactory creates a thread for each subtask and response
+     */
+    public VirtualThreadDeploy(Deploy deploy, ThreadFactory threadFactory) {
+        this.deploy = deploy;
+        this.threadFactory = threadFactory;
+        this.executor = r -> threadFactory.newThread(r).start();
+    }
+
+    /**
+     * Deploy environments to one Puppet Master, wait for them and check each
+     * is at its target commit
+     * @param puppetMaster Puppet Master to deploy to
+     * @param target Map of with key (environment name), value (git commit)
+     *               each environment should be at
+     * @param timeoutMillis deadline for the whole deployment
+     * @return results checked against `target`
+     * @throws ExecutionException if the deployment failed
+     * @throws TimeoutException if the deadline passed. The request is aborted
+     */
+    public Reconciliation deployAndVerify(PuppetMaster puppetMaster,
+                                          Map<String, String> target,
+                                          long timeoutMillis) throws InterruptedException, ExecutionException, TimeoutException
+    {
+        try (DeployScope scope = new DeployScope(threadFactory, timeoutMillis)) {
+            Future<Reconciliation> reconciliation = scope.fork(() -> verify(puppetMaster, target));
+            scope.join();
+            return reconciliation.get();
+        }
+    }
+
+    /**
+     * Deploy each environment as its own request, all at once, waiting for
+     * every one on its own (virtual) thread. Use admission control on the
+     * {@link DeployImpl} to limit how many reach Code Manager at a time
+     * @param puppetMaster Puppet Master to deploy to
+     * @param target Map of with key (environment name), value (git commit)
+     *               each environment should be at
+     * @param timeoutMillis deadline for every environment
+     * @return results checked against `target`, in `target` order
+     * @throws ExecutionException if any deployment failed - the rest are
+     *         cancelled
+     * @throws TimeoutException if the deadline passed. Unfinished requests
+     *         are aborted
+     */
+    public Reconciliation deployEach(PuppetMaster puppetMaster,
+                                     Map<String, String> target,
+                                     long timeoutMillis) throws InterruptedException, ExecutionException, TimeoutException
+    {
+        try (DeployScope scope = new DeployScope(threadFactory, timeoutMillis)) {
+            Map<String, Future<List<DeployResult>>> forks = new LinkedHashMap<>();
+            for (String environment : target.keySet()) {
+                forks.put(environment, scope.fork(() -> submit(puppetMaster, new String[]{environment})));
+            }
+            scope.join();
+
+            DeployReconciler reconciler = new DeployReconciler(target);
+            for (Future<List<DeployResult>> fork : forks.values()) {
+                fork.get().forEach(reconciler);
+            }
+            return reconciler.finish();
+        }
+    }
+
+    /**
+     * Deploy to several Puppet Masters at once and verify each. One master
+     * failing doesn't affect the others
+     * @param puppetMasters Puppet Masters to deploy to (FQDNs must be unique)
+     * @param target Map of with key (environment name), value (git commit)
+     *               each environment should be at
+     * @param timeoutMillis deadline for every master
+     * @return checked results for every master. Masters that failed or didn't
+     *         finish by the deadline have an error instead (a
+     *         `TimeoutException` for the latter)
+     */
+    public MultiDeployResult deployAndVerify(Collection<PuppetMaster> puppetMasters,
+                                             Map<String, String> target,
+                                             long timeoutMillis) throws InterruptedException
+    {
+        Set<String> fqdns = new HashSet<>();
+        for (PuppetMaster puppetMaster : puppetMasters) {
+            if (! fqdns.add(puppetMaster.getFqdn())) {
+                throw new IllegalArgumentException("Puppet Master listed twice: " + puppetMaster.getFqdn());
+            }
+        }
+
+        Map<String, List<DeployResult>> results = new LinkedHashMap<>();
+        Map<String, Throwable> errors = new LinkedHashMap<>();
+
+        // failures are kept per master instead of failing the scope, which
+        // would cancel the other masters
+        Map<String, Throwable> failures = new ConcurrentHashMap<>();
+        try (DeployScope scope = new DeployScope(threadFactory, timeoutMillis)) {
+            Map<String, Future<Reconciliation>> forks = new LinkedHashMap<>();
+            for (PuppetMaster puppetMaster : puppetMasters) {
+                forks.put(puppetMaster.getFqdn(), scope.fork(() -> {
+                    try {
+                        return verify(puppetMaster, target);
+                    } catch (ExecutionException e) {
+                        failures.put(puppetMaster.getFqdn(), e.getCause());
+                    } catch (RuntimeException e) {
+                        failures.put(puppetMaster.getFqdn(), e);
+                    }
+                    return null;
+                }));
+            }
+
+            try {
+                scope.join();
+            } catch (TimeoutException e) {
+                log.warn("Deadline passed deploying to " + puppetMasters.size() + " Puppet Master(s): " + e.getMessage());
+            } catch (ExecutionException e) {
+                // subtasks catch their own failures so this is a bug
+                throw new IllegalStateException("Fan-out deployment failed", e.getCause());
+            }
+
+            for (Map.Entry<String, Future<Reconciliation>> entry : forks.entrySet()) {
+                String fqdn = entry.getKey();
+                try {
+                    Reconciliation reconciliation = entry.getValue().get();
+                    if (reconciliation == null) {
+                        errors.put(fqdn, failures.get(fqdn));
+                    } else {
+                        results.put(fqdn, reconciliation.getResults());
+                    }
+                } catch (CancellationException e) {
+                    errors.put(fqdn, new TimeoutException("Deadline passed deploying to " + fqdn));
+                } catch (ExecutionException e) {
+                    errors.put(fqdn, e.getCause());
+                }
+            }
+        }
+        return new MultiDeployResult(results, errors);
+    }
+
+    /**
+     * Submit, wait for and check one deployment. Runs in a subtask
+     */
+    private Reconciliation verify(PuppetMaster puppetMaster, Map<String, String> target) throws InterruptedException, ExecutionException {
+        DeployReconciler reconciler = new DeployReconciler(target);
+        submit(puppetMaster, target.keySet().toArray(new String[0])).forEach(reconciler);
+        Reconciliation reconciliation = reconciler.finish();
+        log.info("Deployment to " + puppetMaster + ": " + reconciliation);
+        return reconciliation;
+    }
+
+    /**
+     * Deploy with `wait`, blocking the (virtual) thread until Code Manager
+     * answers. Interrupting the thread aborts the request
+     */
+    private List<DeployResult> submit(PuppetMaster puppetMaster, String[] environments) throws InterruptedException, ExecutionException {
+        return DeployScope.await(deploy.deployCodeAsync(
+                puppetMaster.getFqdn(),
+                puppetMaster.getToken(),
+                puppetMaster.getCaCert(),
+                environments,
+                true,
+                executor));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Declarative Systems PTY LTD
+ * Copyright 2016 Puppet Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.declarativesystems.pejava.codemanager;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Virtual threads (Java 21+) when the JVM has them, daemon platform threads
+ * otherwise. The library builds for Java 8 so everything is looked up
+ * reflectively, once
+ */
+public final class VirtualThreads {
+
+    /**
+     * `Thread.ofVirtual()` or null if this JVM has no virtual threads
+     */
+    private static final Method OF_VIRTUAL = lookup(Thread.class, "ofVirtual");
+
+    /**
+     * True if virtual threads can actually be created - on Java 19 and 20
+     * they need `--enable-preview`
+     */
+    private static final boolean AVAILABLE = virtualFactory("pejava-probe") != null;
+
+    private VirtualThreads() {}
+
+    private static Method lookup(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            return type.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException|LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Thread.ofVirtual().name(name, 0).factory() - through the public
+     * Thread.Builder interface, the builder class itself isn't accessible
+     * @return factory or null if virtual threads aren't supported
+     */
+    private static ThreadFactory virtualFactory(String name) {
+        if (OF_VIRTUAL == null) {
+            return null;
+        }
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = OF_VIRTUAL.invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException|RuntimeException|LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if this JVM supports virtual threads
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * @param name thread name prefix, threads are numbered from 0
+     * @return factory for virtual threads or, before Java 21, daemon platform
+     *         threads
+     */
+    public static ThreadFactory factory(String name) {
+        ThreadFactory factory = AVAILABLE ? virtualFactory(name) : null;
+        if (factory != null) {
+            return factory;
+        }
+
+        AtomicInteger next = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + next.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * @param name thread name prefix
+     * @return executor starting a new thread (virtual if possible) for every
+     *         task. Platform threads are pooled instead, since they are too
+     *         expensive to throw away
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String name) {
+        ThreadFactory factory = factory(name);
+        if (AVAILABLE) {
+            Method perTask = lookup(Executors.class, "newThreadPerTaskExecutor", ThreadFactory.class);
+            if (perTask != null) {
+                try {
+                    return (ExecutorService) perTask.invoke(null, factory);
+                } catch (ReflectiveOperationException|RuntimeException e) {
+                    // fall through to a pool
+                }
+            }
+        }
+        return Executors.newCachedThreadPool(factory);
+    }
+}
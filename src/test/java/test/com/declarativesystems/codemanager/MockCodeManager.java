@@ -0,0 +1,594 @@
+package test.com.declarativesystems.codemanager;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import org.apache.commons.io.IOUtils;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-JVM stand-in for Code Manager, listening on HTTPS on an ephemeral port of
+ * localhost. Out of the box it behaves like the `mock_code_manager` rubygem:
+ * * the RBAC token `PUPPET_DEPLOY_OK` is accepted, anything else gets an
+ *   error document
+ * * the environment `bad` fails to deploy
+ * * without `wait` everything is `queued`
+ *
+ * Deployments really are queued: a pool of deployer threads works through
+ * them, taking the configured latency per environment, and
+ * `/code-manager/v1/deploys/status` reports their progress. Faults (error
+ * documents, failing environments, slow responses) can be injected to exercise
+ * retry and timeout handling.
+ *
+ * `start()` returns once the server is accepting connections, so there is no
+ * need to sleep before using it
+ */
+public class MockCodeManager implements Closeable {
+    public final static String TOKEN_OK = "PUPPET_DEPLOY_OK";
+    public final static String BAD_ENVIRONMENT = "bad";
+    public final static String KIND_DEPLOY_FAILURE = "puppetlabs.code-manager/deploy-failure";
+    public final static String KIND_TOKEN_REVOKED = "puppetlabs.rbac/token-revoked";
+    public final static String KIND_UNAVAILABLE = "puppetlabs.code-manager/service-unavailable";
+    public final static int DEFAULT_DEPLOYERS = 4;
+
+    private final static String DEPLOYS_PATH = "/code-manager/v1/deploys";
+    private final static String STATUS_PATH = "/code-manager/v1/deploys/status";
+    private final static String KEYSTORE = "/mock_code_manager.p12";
+    private final static String CA_CERT = "/mock_code_manager_ca.pem";
+    private final static char[] KEYSTORE_PASSWORD = "changeit".toCharArray();
+
+    /**
+     * Failed deployments remembered for the status endpoint
+     */
+    private final static int FAILED_HISTORY = 100;
+
+    static {
+        // otherwise Nagle + delayed ACK adds ~40ms to every keep-alive request
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final HttpsServer server;
+    private final ExecutorService requestExecutor = Executors.newCachedThreadPool(daemon("mock-code-manager"));
+    private final ExecutorService deployers;
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private final Gson gson = new GsonBuilder().create();
+
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final Map<Long, Job> active = new ConcurrentHashMap<>();
+    private final Map<String, String> deployed = new ConcurrentHashMap<>();
+    private final Deque<Job> failed = new ConcurrentLinkedDeque<>();
+
+    // faults
+    private volatile List<String> environments = Collections.singletonList("production");
+    private volatile long defaultLatencyMillis = 0;
+    private final Map<String, Long> latencyMillis = new ConcurrentHashMap<>();
+    private final Map<String, String> failures = new ConcurrentHashMap<>();
+    private final Map<String, String> signatures = new ConcurrentHashMap<>();
+    private final AtomicInteger failRequests = new AtomicInteger();
+    private volatile int failRequestStatus = 503;
+    private volatile String failRequestKind = KIND_UNAVAILABLE;
+    private volatile long responseDelayMillis = 0;
+    private volatile int dripChunkBytes = 0;
+    private volatile long dripDelayMillis = 0;
+    private volatile String fixedStatus;
+
+    // stats
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final AtomicInteger environmentsDeployed = new AtomicInteger();
+    private final AtomicInteger gzipResponses = new AtomicInteger();
+
+    public MockCodeManager() throws IOException, GeneralSecurityException {
+        this(DEFAULT_DEPLOYERS);
+    }
+
+    /**
+     * @param deployers number of environments deployed at the same time,
+     *                  others wait in the queue
+     */
+    public MockCodeManager(int deployers) throws IOException, GeneralSecurityException {
+        this.deployers = Executors.newFixedThreadPool(deployers, daemon("mock-code-manager-deployer"));
+        failures.put(BAD_ENVIRONMENT, KIND_DEPLOY_FAILURE);
+
+        server = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(sslContext()));
+        server.setExecutor(requestExecutor);
+        server.createContext(DEPLOYS_PATH, this::deploys);
+        server.createContext(STATUS_PATH, this::status);
+    }
+
+    /**
+     * Start serving. The socket is already bound so connections are accepted
+     * as soon as this returns
+     */
+    public MockCodeManager start() {
+        server.start();
+        ready.countDown();
+        return this;
+    }
+
+    /**
+     * Wait for another thread to call `start()`
+     * @return true if the server is ready
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return ready.await(timeout, unit);
+    }
+
+    /**
+     * @return Puppet Master address to pass to Deploy (`localhost:port`)
+     */
+    public String getAddress() {
+        return "localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return CA cert (PEM) that signed our server certificate
+     */
+    public static String caCert() throws IOException {
+        try (InputStream is = MockCodeManager.class.getResourceAsStream(CA_CERT)) {
+            return IOUtils.toString(is);
+        }
+    }
+
+    /**
+     * @param environments environments in the control repository, deployed
+     *                     when no environments are requested (deploy-all)
+     */
+    public MockCodeManager setEnvironments(Collection<String> environments) {
+        this.environments = new ArrayList<>(environments);
+        return this;
+    }
+
+    /**
+     * Simulate a large control repository
+     * @param count number of environments, named environment_0 ...
+     */
+    public MockCodeManager setEnvironmentCount(int count) {
+        List<String> environments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            environments.add("environment_" + i);
+        }
+        this.environments = environments;
+        return this;
+    }
+
+    /**
+     * @param millis time taken to deploy each environment
+     */
+    public MockCodeManager setDeployLatency(long millis) {
+        defaultLatencyMillis = millis;
+        return this;
+    }
+
+    /**
+     * @param millis time taken to deploy one particular environment
+     */
+    public MockCodeManager setDeployLatency(String environment, long millis) {
+        latencyMillis.put(environment, millis);
+        return this;
+    }
+
+    /**
+     * Make an environment fail to deploy
+     * @param kind error kind reported for the environment
+     */
+    public MockCodeManager failEnvironment(String environment, String kind) {
+        failures.put(environment, kind);
+        return this;
+    }
+
+    /**
+     * Make an environment deploy a particular commit instead of the default
+     * from `signature(environment)`
+     */
+    public MockCodeManager setDeploySignature(String environment, String signature) {
+        signatures.put(environment, signature);
+        return this;
+    }
+
+    /**
+     * Reject the next few requests (deploys or status) with an error document
+     * @param count number of requests to reject
+     * @param httpStatus HTTP status to send
+     * @param kind error kind to send
+     */
+    public MockCodeManager failRequests(int count, int httpStatus, String kind) {
+        failRequestStatus = httpStatus;
+        failRequestKind = kind;
+        failRequests.set(count);
+        return this;
+    }
+
+    /**
+     * @param millis delay before sending any response headers
+     */
+    public MockCodeManager setResponseDelay(long millis) {
+        responseDelayMillis = millis;
+        return this;
+    }
+
+    /**
+     * Answer the status endpoint with a canned document instead of the
+     * deployments this mock is running
+     * @param json status document, null to go back to the real status
+     */
+    public MockCodeManager setStatusDocument(String json) {
+        fixedStatus = json;
+        return this;
+    }
+
+    /**
+     * Send response bodies a few bytes at a time
+     * @param chunkBytes bytes per chunk, 0 to send the body in one go
+     * @param delayMillis delay between chunks
+     */
+    public MockCodeManager setDrip(int chunkBytes, long delayMillis) {
+        dripChunkBytes = chunkBytes;
+        dripDelayMillis = delayMillis;
+        return this;
+    }
+
+    /**
+     * @return responses sent gzipped because the client asked for it
+     */
+    public int getGzipResponses() {
+        return gzipResponses.get();
+    }
+
+    /**
+     * @return requests received (deploys and status)
+     */
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return most requests ever being processed at once
+     */
+    public int getMaxConcurrentRequests() {
+        return maxInFlight.get();
+    }
+
+    /**
+     * @return environments deployed successfully or otherwise
+     */
+    public int getEnvironmentsDeployed() {
+        return environmentsDeployed.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        requestExecutor.shutdownNow();
+        deployers.shutdownNow();
+    }
+
+    /**
+     * @return stable fake git commit for an environment
+     */
+    public static String signature(String environment) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(environment.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void deploys(HttpExchange exchange) throws IOException {
+        handle(exchange, "POST", () -> {
+            Map<?, ?> request = gson.fromJson(
+                    new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8), Map.class);
+            return gson.toJson(deploy(request));
+        });
+    }
+
+    private void status(HttpExchange exchange) throws IOException {
+        handle(exchange, "GET", () -> {
+            String fixed = fixedStatus;
+            return (fixed == null) ? gson.toJson(statusDocument()) : fixed;
+        });
+    }
+
+    private void handle(HttpExchange exchange, String method, Response response) throws IOException {
+        requests.incrementAndGet();
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        int status = 200;
+        String body = null;
+        try {
+            sleep(responseDelayMillis);
+            if (! method.equals(exchange.getRequestMethod())) {
+                status = 405;
+                body = error("puppetlabs.code-manager/method-not-allowed", method + " only");
+            } else if (! TOKEN_OK.equals(exchange.getRequestHeaders().getFirst("X-Authentication"))) {
+                status = 401;
+                body = error(KIND_TOKEN_REVOKED, "Authentication token has been revoked.");
+            } else if (failRequests.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                status = failRequestStatus;
+                body = error(failRequestKind, "Injected failure");
+            } else {
+                try {
+                    body = response.body();
+                } catch (RuntimeException e) {
+                    // report bugs in the mock instead of dropping the connection
+                    status = 500;
+                    body = error("puppetlabs.code-manager/unknown-error", e.toString());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // finished before replying, so a client that sends its next
+            // request as soon as it has the response isn't counted twice
+            inFlight.decrementAndGet();
+        }
+
+        try {
+            if (body != null) {
+                respond(exchange, status, body);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private List<Map<String, Object>> deploy(Map<?, ?> request) throws InterruptedException {
+        boolean wait = Boolean.TRUE.equals(request.get("wait"));
+        List<?> requested = (List<?>) request.get("environments");
+        Collection<?> toDeploy = (requested == null) ? environments : requested;
+
+        List<Job> jobs = new ArrayList<>(toDeploy.size());
+        for (Object environment : toDeploy) {
+            Job job = new Job(String.valueOf(environment), nextId.getAndIncrement());
+            active.put(job.id, job);
+            jobs.add(job);
+            deployers.execute(() -> run(job));
+        }
+
+        List<Map<String, Object>> results = new ArrayList<>(jobs.size());
+        for (Job job : jobs) {
+            if (wait) {
+                try {
+                    results.add(job.done.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e);
+                }
+            } else {
+                Map<String, Object> result = job.toMap();
+                result.put("status", "queued");
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    private void run(Job job) {
+        job.state = "deploying";
+        try {
+            sleep(latencyMillis.getOrDefault(job.environment, defaultLatencyMillis));
+        } catch (InterruptedException e) {
+            // shutting down
+            return;
+        }
+
+        Map<String, Object> result = job.toMap();
+        String kind = failures.get(job.environment);
+        if (kind == null) {
+            String signature = signatures.computeIfAbsent(job.environment, MockCodeManager::signature);
+            deployed.put(job.environment, signature);
+            result.put("deploy-signature", signature);
+            result.put("status", "complete");
+        } else {
+            job.error = errorMap(kind, "Errors while deploying environment '" + job.environment + "' (exit code: 1)");
+            failed.addFirst(job);
+            while (failed.size() > FAILED_HISTORY) {
+                failed.pollLast();
+            }
+            result.put("error", job.error);
+            result.put("status", "failed");
+        }
+
+        environmentsDeployed.incrementAndGet();
+        active.remove(job.id);
+        job.done.complete(result);
+    }
+
+    private Map<String, Object> statusDocument() {
+        List<Map<String, Object>> queued = new ArrayList<>();
+        List<Map<String, Object>> deploying = new ArrayList<>();
+        for (Job job : active.values()) {
+            ("deploying".equals(job.state) ? deploying : queued).add(job.toMap());
+        }
+
+        List<Map<String, Object>> failedList = new ArrayList<>();
+        for (Job job : failed) {
+            Map<String, Object> entry = job.toMap();
+            entry.put("error", job.error);
+            failedList.add(entry);
+        }
+
+        Map<String, Object> deploysStatus = new LinkedHashMap<>();
+        deploysStatus.put("deploying", deploying);
+        deploysStatus.put("failed", failedList);
+        deploysStatus.put("new", new ArrayList<>());
+        deploysStatus.put("queued", queued);
+
+        List<Map<String, Object>> deployedList = new ArrayList<>();
+        for (Map.Entry<String, String> entry : deployed.entrySet()) {
+            Map<String, Object> environment = new LinkedHashMap<>();
+            environment.put("environment", entry.getKey());
+            environment.put("deploy-signature", entry.getValue());
+            deployedList.add(environment);
+        }
+
+        // plain collections only - gson can't reflect on java.util internals
+        Map<String, Object> storageStatus = new LinkedHashMap<>();
+        storageStatus.put("deployed", deployedList);
+
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("deploys-status", deploysStatus);
+        status.put("file-sync-storage-status", storageStatus);
+        return status;
+    }
+
+    private String error(String kind, String msg) {
+        return gson.toJson(errorMap(kind, msg));
+    }
+
+    private static Map<String, Object> errorMap(String kind, String msg) {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("kind", kind);
+        error.put("msg", msg);
+        return error;
+    }
+
+    private void respond(HttpExchange exchange, int status, String body) throws IOException, InterruptedException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(bytes);
+            }
+            bytes = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            gzipResponses.incrementAndGet();
+        }
+
+        int chunk = dripChunkBytes;
+        if (chunk <= 0) {
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        } else {
+            // chunked transfer encoding
+            exchange.sendResponseHeaders(status, 0);
+            try (OutputStream os = exchange.getResponseBody()) {
+                for (int i = 0; i < bytes.length; i += chunk) {
+                    os.write(bytes, i, Math.min(chunk, bytes.length - i));
+                    os.flush();
+                    sleep(dripDelayMillis);
+                }
+            }
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedException {
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    private static SSLContext sslContext() throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream is = MockCodeManager.class.getResourceAsStream(KEYSTORE)) {
+            keyStore.load(is, KEYSTORE_PASSWORD);
+        }
+
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, KEYSTORE_PASSWORD);
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(kmf.getKeyManagers(), null, null);
+        return sslContext;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    @FunctionalInterface
+    private interface Response {
+        String body() throws InterruptedException;
+    }
+
+    private static class Job {
+        private final String environment;
+        private final long id;
+        private final CompletableFuture<Map<String, Object>> done = new CompletableFuture<>();
+        private volatile String state = "queued";
+        private volatile Map<String, Object> error;
+
+        private Job(String environment, long id) {
+            this.environment = environment;
+            this.id = id;
+        }
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("environment", environment);
+            map.put("id", id);
+            return map;
+        }
+    }
+
+    /**
+     * Run standalone for manual or out-of-process testing. Prints `READY` and
+     * the address once listening
+     * @param args environments to deploy for deploy-all, or a single number
+     *             to simulate that many environments
+     */
+    public static void main(String[] args) throws Exception {
+        MockCodeManager mock = new MockCodeManager();
+        if (args.length == 1 && args[0].matches("\\d+")) {
+            mock.setEnvironmentCount(Integer.parseInt(args[0]));
+        } else if (args.length > 0) {
+            mock.setEnvironments(Arrays.asList(args));
+        }
+        mock.start();
+        System.out.println("READY " + mock.getAddress());
+        System.out.println("CA cert: " + MockCodeManager.class.getResource(CA_CERT));
+    }
+}
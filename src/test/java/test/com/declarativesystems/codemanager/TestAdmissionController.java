@@ -0,0 +1,164 @@
+package test.com.declarativesystems.codemanager;
+
+import com.declarativesystems.pejava.codemanager.AdmissionController;
+import com.declarativesystems.pejava.codemanager.AdmissionPolicy;
+import com.declarativesystems.pejava.codemanager.AdmissionRejectedException;
+import com.declarativesystems.pejava.codemanager.CircuitBreakerPolicy;
+import com.declarativesystems.pejava.codemanager.DeployImpl;
+import com.declarativesystems.pejava.codemanager.DeployResult;
+import com.declarativesystems.pejava.codemanager.HttpClientRegistry;
+import com.declarativesystems.pejava.codemanager.RetryPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestAdmissionController {
+    private static final String[] ENVIRONMENT = {"production"};
+    private ScheduledExecutorService scheduler;
+    private ExecutorService executor;
+
+    @Before
+    public void setup() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        executor = Executors.newFixedThreadPool(8);
+    }
+
+    @After
+    public void cleanup() {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testQueueFullRejected() throws Exception {
+        AdmissionController controller = new AdmissionController(
+                "puppet", new AdmissionPolicy(1, 0, 1, 0, 1000), scheduler);
+        try (AdmissionController.Permit permit = controller.acquire()) {
+            assertEquals("in flight", 1, controller.getInFlight());
+            try {
+                controller.acquire();
+                fail("no room to queue");
+            } catch (AdmissionRejectedException e) {
+                assertFalse("rejected, not timed out", e.isTimedOut());
+            }
+        }
+        assertEquals("released", 0, controller.getInFlight());
+        assertEquals("rejected counted", 1, controller.getRejected());
+    }
+
+    @Test
+    public void testQueueTimeout() throws Exception {
+        AdmissionController controller = new AdmissionController(
+                "puppet", new AdmissionPolicy(1, 0, 1, 1, 50), scheduler);
+        try (AdmissionController.Permit permit = controller.acquire()) {
+            try {
+                controller.acquire();
+                fail("should time out");
+            } catch (AdmissionRejectedException e) {
+                assertTrue("timed out", e.isTimedOut());
+            }
+        }
+        assertEquals("timed out counted", 1, controller.getTimedOut());
+        assertEquals("queue empty", 0, controller.getQueued());
+    }
+
+    @Test
+    public void testWaitersAdmittedInOrder() throws Exception {
+        AdmissionController controller = new AdmissionController(
+                "puppet", new AdmissionPolicy(1, 0, 1, 10, 10 * 1000), scheduler);
+        AdmissionController.Permit first = controller.acquire();
+        CompletableFuture<AdmissionController.Permit> second = controller.acquireAsync();
+        CompletableFuture<AdmissionController.Permit> cancelled = controller.acquireAsync();
+        CompletableFuture<AdmissionController.Permit> third = controller.acquireAsync();
+        assertEquals("three waiting", 3, controller.getQueued());
+
+        cancelled.cancel(false);
+        assertEquals("cancelled waiter left", 2, controller.getQueued());
+
+        first.close();
+        assertTrue("second admitted", second.isDone());
+        assertFalse("third still waiting", third.isDone());
+
+        second.get().close();
+        third.get(1, TimeUnit.SECONDS).close();
+        assertEquals("all released", 0, controller.getInFlight());
+        assertEquals("admitted", 3, controller.getAdmitted());
+    }
+
+    @Test
+    public void testRateLimited() throws Exception {
+        AdmissionController controller = new AdmissionController(
+                "puppet", new AdmissionPolicy(10, 20, 1, 10, 10 * 1000), scheduler);
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            controller.acquire().close();
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // 20/s is one every 50ms after the first
+        assertTrue("rate limited: " + elapsedMillis + "ms", elapsedMillis >= 150);
+    }
+
+    @Test
+    public void testConcurrencyLimitedPerMaster() throws Exception {
+        try (MockCodeManager mock = new MockCodeManager().start().setDeployLatency(100);
+             DeployImpl deploy = new DeployImpl(
+                     new HttpClientRegistry(),
+                     RetryPolicy.NONE,
+                     CircuitBreakerPolicy.DISABLED,
+                     new AdmissionPolicy(2, 0, 1, 10, 10 * 1000))) {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                futures.add(executor.submit(() -> deploy.deployCode(
+                        mock.getAddress(), MockCodeManager.TOKEN_OK, MockCodeManager.caCert(), ENVIRONMENT, true)));
+            }
+            for (Future<String> future : futures) {
+                assertTrue("deployed", future.get(10, TimeUnit.SECONDS).contains("complete"));
+            }
+
+            AdmissionController controller = deploy.getAdmissionController(mock.getAddress());
+            assertTrue("at most 2 at once", mock.getMaxConcurrentRequests() <= 2);
+            assertEquals("all admitted", 6, controller.getAdmitted());
+            assertTrue("some waited", controller.getQueuedTotal() > 0);
+            assertEquals("nothing in flight", 0, controller.getInFlight());
+        }
+    }
+
+    @Test
+    public void testAsyncQueued() throws Exception {
+        try (MockCodeManager mock = new MockCodeManager().start().setDeployLatency(50);
+             DeployImpl deploy = new DeployImpl(
+                     new HttpClientRegistry(),
+                     RetryPolicy.NONE,
+                     CircuitBreakerPolicy.DISABLED,
+                     new AdmissionPolicy(1, 0, 1, 1, 10 * 1000))) {
+            List<CompletableFuture<List<DeployResult>>> futures = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                futures.add(deploy.deployCodeAsync(
+                        mock.getAddress(), MockCodeManager.TOKEN_OK, MockCodeManager.caCert(), ENVIRONMENT, true, executor));
+            }
+
+            assertEquals("first deployed", DeployResult.STATUS_OK, futures.get(0).get(10, TimeUnit.SECONDS).get(0).getStatus());
+            assertEquals("second deployed", DeployResult.STATUS_OK, futures.get(1).get(10, TimeUnit.SECONDS).get(0).getStatus());
+            try {
+                futures.get(2).get(10, TimeUnit.SECONDS);
+                fail("queue only holds one");
+            } catch (ExecutionException e) {
+                assertTrue("rejected", e.getCause() instanceof AdmissionRejectedException);
+            }
+            assertEquals("one at a time", 1, mock.getMaxConcurrentRequests());
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package test.com.declarativesystems.codemanager;
+
+import com.declarativesystems.pejava.codemanager.ChunkedDeploy;
+import com.declarativesystems.pejava.codemanager.Deploy;
+import com.declarativesystems.pejava.codemanager.DeployImpl;
+import com.declarativesystems.pejava.codemanager.DeployResult;
+import com.declarativesystems.pejava.codemanager.PuppetMaster;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class TestChunkedDeploy {
+    private final static PuppetMaster PUPPET_MASTER = new PuppetMaster("puppet.megacorp.com", "TOKEN", null);
+    private ExecutorService executor;
+
+    /**
+     * Fake Code Manager that completes every environment it is asked for,
+     * except environments that fail (with a `failed` result or by throwing)
+     * the first few times they are deployed
+     */
+    private static class FlakyDeploy implements Deploy {
+        private final List<String[]> requests = Collections.synchronizedList(new ArrayList<>());
+        private final Set<String> failOnce = ConcurrentHashMap.newKeySet();
+        private final Set<String> throwOnce = ConcurrentHashMap.newKeySet();
+        private final Set<String> alwaysThrow = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public String deployCode(String puppetMasterFqdn, String token, String caCert, String[] environment) throws IOException {
+            return deployCode(puppetMasterFqdn, token, caCert, environment, false);
+        }
+
+        @Override
+        public String deployCode(String puppetMasterFqdn, String token, String caCert, String[] environments, boolean wait) throws IOException {
+            requests.add(environments);
+            for (String environment : environments) {
+                if (alwaysThrow.contains(environment) || throwOnce.remove(environment)) {
+                    throw new IOException("Read timed out");
+                }
+            }
+
+            StringBuilder sb = new StringBuilder("[");
+            for (String environment : environments) {
+                if (sb.length() > 1) {
+                    sb.append(',');
+                }
+                String status = failOnce.remove(environment) ? "failed" : "complete";
+                sb.append("{\"environment\":\"").append(environment).append("\",\"status\":\"").append(status).append("\"}");
+            }
+            return sb.append(']').toString();
+        }
+    }
+
+    private static String[] environments(int count) {
+        String[] environments = new String[count];
+        for (int i = 0; i < count; i++) {
+            environments[i] = "env_" + i;
+        }
+        return environments;
+    }
+
+    private static List<String> names(List<DeployResult> results) {
+        List<String> names = new ArrayList<>();
+        for (DeployResult result : results) {
+            names.add(result.getEnvironment());
+        }
+        return names;
+    }
+
+    @Before
+    public void setup() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void cleanup() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testChunkedInParallel() throws Exception {
+        try (MockCodeManager mock = new MockCodeManager(16).start().setDeployLatency(100);
+             DeployImpl deploy = new DeployImpl()) {
+            PuppetMaster puppetMaster = new PuppetMaster(mock.getAddress(), MockCodeManager.TOKEN_OK, MockCodeManager.caCert());
+            ChunkedDeploy chunkedDeploy = new ChunkedDeploy(deploy, 3, 2, 2, executor);
+            String[] environments = environments(10);
+
+            List<DeployResult> results = chunkedDeploy.deployCode(puppetMaster, environments, true);
+            assertEquals("merged in request order", Arrays.asList(environments), names(results));
+            for (DeployResult result : results) {
+                assertEquals(result.getEnvironment(), DeployResult.STATUS_OK, result.getStatus());
+            }
+            assertEquals("four chunks", 4, mock.getRequestCount());
+            assertTrue("at most 2 at once", mock.getMaxConcurrentRequests() <= 2);
+        }
+    }
+
+    @Test
+    public void testFailuresRetriedPerChunk() throws Exception {
+        FlakyDeploy deploy = new FlakyDeploy();
+        deploy.throwOnce.add("env_4");
+        deploy.failOnce.add("env_8");
+        ChunkedDeploy chunkedDeploy = new ChunkedDeploy(deploy, 3, 2, 2, executor);
+
+        List<DeployResult> results = chunkedDeploy.deployCode(PUPPET_MASTER, environments(10), true);
+        for (DeployResult result : results) {
+            assertEquals(result.getEnvironment(), DeployResult.STATUS_OK, result.getStatus());
+        }
+        assertEquals("chunks plus two retries", 6, deploy.requests.size());
+        assertTrue("only the failed environment resent", deploy.requests.stream()
+                .anyMatch(request -> Arrays.equals(new String[]{"env_8"}, request)));
+    }
+
+    @Test
+    public void testExhaustedChunkReportedFailed() throws Exception {
+        FlakyDeploy deploy = new FlakyDeploy();
+        deploy.alwaysThrow.add("env_0");
+        ChunkedDeploy chunkedDeploy = new ChunkedDeploy(deploy, 2, 4, 3, executor);
+
+        List<DeployResult> results = chunkedDeploy.deployCode(PUPPET_MASTER, environments(4), true);
+        assertEquals("all reported", 4, results.size());
+        assertEquals("failed chunk", DeployResult.STATUS_FAILED, results.get(1).getStatus());
+        assertEquals("other chunk ok", DeployResult.STATUS_OK, results.get(2).getStatus());
+        assertEquals("three attempts then the other chunk", 4, deploy.requests.size());
+    }
+
+    @Test
+    public void testEverythingFailed() throws Exception {
+        FlakyDeploy deploy = new FlakyDeploy();
+        deploy.alwaysThrow.addAll(Arrays.asList(environments(4)));
+        try {
+            new ChunkedDeploy(deploy, 2, 2, 1, executor).deployCode(PUPPET_MASTER, environments(4), true);
+            fail("nothing deployed");
+        } catch (ExecutionException e) {
+            assertTrue("cause reported", e.getCause() instanceof IOException);
+        }
+    }
+}
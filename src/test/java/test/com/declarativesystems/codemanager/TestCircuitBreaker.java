@@ -0,0 +1,297 @@
+package test.com.declarativesystems.codemanager;
+
+import com.declarativesystems.pejava.codemanager.AdmissionPolicy;
+import com.declarativesystems.pejava.codemanager.CircuitBreaker;
+import com.declarativesystems.pejava.codemanager.CircuitBreakerPolicy;
+import com.declarativesystems.pejava.codemanager.CircuitOpenException;
+import com.declarativesystems.pejava.codemanager.DeployImpl;
+import com.declarativesystems.pejava.codemanager.DeployMetrics;
+import com.declarativesystems.pejava.codemanager.DeployResult;
+import com.declarativesystems.pejava.codemanager.HttpClientRegistry;
+import com.declarativesystems.pejava.codemanager.RetryBudget;
+import com.declarativesystems.pejava.codemanager.RetryPolicy;
+import com.declarativesystems.pejava.codemanager.Transport;
+import com.declarativesystems.pejava.codemanager.TransportRequest;
+import com.declarativesystems.pejava.codemanager.TransportResponse;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.security.cert.CertificateException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestCircuitBreaker {
+    private static final String[] ENVIRONMENT = {"production"};
+    private static final RetryPolicy FAST_RETRY = new RetryPolicy(3, 10, 50, 0.2, 10);
+    private static MockCodeManager mockCodeManager;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        mockCodeManager = new MockCodeManager().start();
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        if (mockCodeManager != null) {
+            mockCodeManager.close();
+        }
+    }
+
+    /**
+     * @return localhost address nothing is listening on
+     */
+    private static String closedPort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return "localhost:" + socket.getLocalPort();
+        }
+    }
+
+    @Test
+    public void testOpensAndProbes() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("puppet", new CircuitBreakerPolicy(2, 100));
+        breaker.acquire();
+        breaker.onFailure();
+        assertEquals("one failure tolerated", CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.acquire();
+        breaker.onFailure();
+        assertEquals("opened", CircuitBreaker.State.OPEN, breaker.getState());
+
+        try {
+            breaker.acquire();
+            fail("open circuit should fail fast");
+        } catch (CircuitOpenException e) {
+            assertTrue("retry after reported", e.getRetryAfterMillis() > 0);
+        }
+
+        Thread.sleep(150);
+        breaker.acquire();
+        assertEquals("probing", CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        try {
+            breaker.acquire();
+            fail("only one probe at a time");
+        } catch (CircuitOpenException e) {
+            assertEquals("probe in flight", 0, e.getRetryAfterMillis());
+        }
+
+        breaker.onFailure();
+        assertEquals("failed probe reopens", CircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(150);
+        breaker.acquire();
+        breaker.onSuccess();
+        assertEquals("successful probe closes", CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals("rejected count", 2, breaker.getRejected());
+    }
+
+    @Test
+    public void testRetryBudget() {
+        RetryBudget budget = new RetryBudget(0.5, 0);
+        assertFalse("nothing earned", budget.tryRetry());
+        budget.onRequest();
+        budget.onRequest();
+        assertTrue("two requests earn a retry", budget.tryRetry());
+        assertFalse("spent", budget.tryRetry());
+
+        RetryBudget minimum = new RetryBudget(0, 2);
+        assertTrue("first free retry", minimum.tryRetry());
+        assertTrue("second free retry", minimum.tryRetry());
+        assertEquals("counted", 2, minimum.getRetries());
+    }
+
+    @Test
+    public void testDelayJittered() {
+        for (int attempt = 1; attempt < 10; attempt++) {
+            long delay = RetryPolicy.DEFAULT.delayMillis(attempt);
+            long cap = Math.min(RetryPolicy.DEFAULT.getMaxDelayMillis(), 100L << (attempt - 1));
+            assertTrue("delay " + delay + " within " + cap, delay >= cap / 2 && delay <= cap);
+        }
+    }
+
+    @Test
+    public void testConnectFailureClassified() {
+        assertTrue("refused", RetryPolicy.isConnectFailure(new ConnectException()));
+        assertTrue("connect timeout", RetryPolicy.isConnectFailure(new ConnectTimeoutException()));
+        assertFalse("busy pool isn't the host's fault", RetryPolicy.isConnectFailure(new ConnectionPoolTimeoutException()));
+        assertFalse("read timeout", RetryPolicy.isConnectFailure(new SocketTimeoutException()));
+    }
+
+    @Test
+    public void testJdkConnectTimeoutClassified() throws Exception {
+        Class<?> type;
+        try {
+            type = Class.forName("java.net.http.HttpConnectTimeoutException");
+        } catch (ClassNotFoundException e) {
+            Assume.assumeNoException(e);
+            return;
+        }
+        Throwable e = (Throwable) type.getConstructor(String.class).newInstance("timed out");
+        assertTrue("jdk connect timeout", RetryPolicy.isConnectFailure(e));
+    }
+
+    @Test
+    public void testRetries5xx() throws Exception {
+        try (MockCodeManager failing = new MockCodeManager().start();
+             DeployImpl deploy = new DeployImpl(new HttpClientRegistry(), FAST_RETRY, CircuitBreakerPolicy.DEFAULT)) {
+            failing.failRequests(2, 503, MockCodeManager.KIND_UNAVAILABLE);
+            String ret = deploy.deployCode(failing.getAddress(), MockCodeManager.TOKEN_OK, MockCodeManager.caCert(), ENVIRONMENT);
+
+            assertTrue("third attempt succeeds", ret.contains("queued"));
+            assertEquals("three requests", 3, failing.getRequestCount());
+            assertEquals("breaker closed", CircuitBreaker.State.CLOSED, deploy.getCircuitBreaker(failing.getAddress()).getState());
+        }
+    }
+
+    @Test
+    public void testClientErrorNotRetried() throws Exception {
+        try (MockCodeManager failing = new MockCodeManager().start();
+             DeployImpl deploy = new DeployImpl(new HttpClientRegistry(), FAST_RETRY, CircuitBreakerPolicy.DEFAULT)) {
+            failing.failRequests(1, 400, "puppetlabs.code-manager/bad-request");
+            String ret = deploy.deployCode(failing.getAddress(), MockCodeManager.TOKEN_OK, MockCodeManager.caCert(), ENVIRONMENT);
+
+            assertTrue("error returned", DeployResult.responseStringContainError(ret));
+            assertEquals("one request", 1, failing.getRequestCount());
+        }
+    }
+
+    @Test
+    public void testDeadHostFailsFast() throws Exception {
+        String dead = closedPort();
+        try (DeployImpl deploy = new DeployImpl(new HttpClientRegistry(), FAST_RETRY, new CircuitBreakerPolicy(2, 60 * 1000))) {
+            for (int i = 1; i <= 2; i++) {
+                try {
+                    deploy.deployCode(dead, MockCodeManager.TOKEN_OK, MockCodeManager.caCert(), ENVIRONMENT);
+                    fail("nothing listening");
+                } catch (ConnectException e) {
+                    // every attempt refused
+                }
+                assertEquals("retries used", 2 * i, deploy.getRetryBudget().getRetries());
+                // one failure per request, however many attempts it took
+                assertEquals("failures counted", i, deploy.getCircuitBreaker(dead).getFailures());
+            }
+            assertEquals("breaker opened", CircuitBreaker.State.OPEN, deploy.getCircuitBreaker(dead).getState());
+
+            long start = System.nanoTime();
+            try {
+                deploy.deployCode(dead, MockCodeManager.TOKEN_OK, MockCodeManager.caCert(), ENVIRONMENT);
+                fail("circuit should be open");
+            } catch (CircuitOpenException e) {
+                assertTrue("failed fast", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+            }
+
+            // other hosts unaffected
+            String ret = deploy.deployCode(mockCodeManager.getAddress(), MockCodeManager.TOKEN_OK, MockCodeManager.caCert(), ENVIRONMENT);
+            assertTrue("healthy host still works", ret.contains("queued"));
+        }
+    }
+
+    @Test
+    public void testRetriedRequestsCountOnce() throws Exception {
+        try (MockCodeManager failing = new MockCodeManager().start();
+             DeployImpl deploy = new DeployImpl(new HttpClientRegistry(), FAST_RETRY, new CircuitBreakerPolicy(5, 60 * 1000))) {
+            failing.failRequests(6, 503, MockCodeManager.KIND_UNAVAILABLE);
+            for (int i = 0; i < 2; i++) {
+                String ret = deploy.deployCode(failing.getAddress(), MockCodeManager.TOKEN_OK, MockCodeManager.caCert(), ENVIRONMENT);
+                assertTrue("every attempt fails", DeployResult.responseStringContainError(ret));
+            }
+            assertEquals("six attempts", 6, failing.getRequestCount());
+            assertEquals("two failed requests", 2, deploy.getCircuitBreaker(failing.getAddress()).getFailures());
+            assertEquals("still closed", CircuitBreaker.State.CLOSED, deploy.getCircuitBreaker(failing.getAddress()).getState());
+        }
+    }
+
+    @Test
+    public void testProbeReleasedOnAnyThrowable() throws Exception {
+        Throwable[] failures = {new CertificateException("bad CA cert"), new LinkageError("broken client")};
+        for (Throwable failure : failures) {
+            try (DeployImpl deploy = new DeployImpl(
+                    new ThrowingTransport(failure), DeployMetrics.NOOP, RetryPolicy.NONE, new CircuitBreakerPolicy(1, 10), AdmissionPolicy.UNLIMITED)) {
+                CircuitBreaker breaker = deploy.getCircuitBreaker("puppet");
+                breaker.acquire();
+                breaker.onFailure();
+                Thread.sleep(20);
+
+                try {
+                    deploy.deployCode("puppet", MockCodeManager.TOKEN_OK, MockCodeManager.caCert(), ENVIRONMENT);
+                    fail("transport throws");
+                } catch (Throwable e) {
+                    assertSame("thrown unchanged", failure, e);
+                }
+                assertEquals("probe given back", CircuitBreaker.State.OPEN, breaker.getState());
+                breaker.acquire();
+                assertEquals("next request probes", CircuitBreaker.State.HALF_OPEN, breaker.getState());
+            }
+        }
+    }
+
+    /**
+     * Transport that fails every request with the same Throwable
+     */
+    private static class ThrowingTransport implements Transport {
+        private final Throwable failure;
+
+        ThrowingTransport(Throwable failure) {
+            this.failure = failure;
+        }
+
+        @Override
+        public TransportResponse execute(TransportRequest request) throws CertificateException {
+            if (failure instanceof CertificateException) {
+                throw (CertificateException) failure;
+            }
+            throw (Error) failure;
+        }
+
+        @Override
+        public CompletableFuture<TransportResponse> executeAsync(TransportRequest request) {
+            CompletableFuture<TransportResponse> future = new CompletableFuture<>();
+            future.completeExceptionally(failure);
+            return future;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void testAsyncRetries5xx() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (MockCodeManager failing = new MockCodeManager().start();
+             DeployImpl deploy = new DeployImpl(new HttpClientRegistry(), FAST_RETRY, CircuitBreakerPolicy.DEFAULT)) {
+            failing.failRequests(2, 502, MockCodeManager.KIND_UNAVAILABLE);
+            List<DeployResult> results = deploy.deployCodeAsync(
+                    failing.getAddress(), MockCodeManager.TOKEN_OK, MockCodeManager.caCert(), ENVIRONMENT, false, executor
+            ).get(10, TimeUnit.SECONDS);
+
+            assertEquals("queued", DeployResult.STATUS_QUEUED, results.get(0).getStatus());
+            assertEquals("three requests", 3, failing.getRequestCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testRetriesDisabled() throws Exception {
+        try (MockCodeManager failing = new MockCodeManager().start();
+             DeployImpl deploy = new DeployImpl(new HttpClientRegistry(), RetryPolicy.NONE, CircuitBreakerPolicy.DISABLED)) {
+            failing.failRequests(1, 503, MockCodeManager.KIND_UNAVAILABLE);
+            String ret = deploy.deployCode(failing.getAddress(), MockCodeManager.TOKEN_OK, MockCodeManager.caCert(), ENVIRONMENT);
+
+            assertTrue("error returned", DeployResult.responseStringContainError(ret));
+            assertEquals("one request", 1, failing.getRequestCount());
+        }
+    }
+}
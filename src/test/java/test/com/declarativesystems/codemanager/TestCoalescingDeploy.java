@@ -0,0 +1,126 @@
+package test.com.declarativesystems.codemanager;
+
+import com.declarativesystems.pejava.codemanager.CoalescingDeploy;
+import com.declarativesystems.pejava.codemanager.Deploy;
+import com.declarativesystems.pejava.codemanager.DeployResult;
+import com.declarativesystems.pejava.codemanager.PuppetMaster;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestCoalescingDeploy {
+    private final static PuppetMaster PUPPET_MASTER = new PuppetMaster("puppet.megacorp.com", "TOKEN", null);
+
+    /**
+     * Fake Code Manager that records every request and completes every
+     * environment it is asked for (or a fixed list for deploy-all)
+     */
+    private static class RecordingDeploy implements Deploy {
+        private final List<String[]> requests = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public String deployCode(String puppetMasterFqdn, String token, String caCert, String[] environment) {
+            return deployCode(puppetMasterFqdn, token, caCert, environment, false);
+        }
+
+        @Override
+        public String deployCode(String puppetMasterFqdn, String token, String caCert, String[] environments, boolean wait) {
+            requests.add(environments);
+            List<String> deployed = (environments == null) ?
+                    Arrays.asList("production", "development", "feature_a", "feature_b") :
+                    Arrays.asList(environments);
+
+            StringBuilder sb = new StringBuilder("[");
+            for (String environment : deployed) {
+                if (sb.length() > 1) {
+                    sb.append(',');
+                }
+                sb.append("{\"environment\":\"").append(environment).append("\",\"status\":\"queued\"}");
+            }
+            return sb.append(']').toString();
+        }
+    }
+
+    private static List<String> environments(List<DeployResult> results) {
+        List<String> environments = new ArrayList<>();
+        for (DeployResult result : results) {
+            environments.add(result.getEnvironment());
+        }
+        return environments;
+    }
+
+    @Test
+    public void testRequestsMerged() throws Exception {
+        RecordingDeploy deploy = new RecordingDeploy();
+        try (CoalescingDeploy coalescingDeploy = new CoalescingDeploy(deploy, 200, Runnable::run)) {
+            CompletableFuture<List<DeployResult>> first = coalescingDeploy.deployCode(PUPPET_MASTER, new String[]{"feature_a"}, false);
+            CompletableFuture<List<DeployResult>> second = coalescingDeploy.deployCode(PUPPET_MASTER, new String[]{"feature_b", "feature_a"}, false);
+            CompletableFuture<List<DeployResult>> third = coalescingDeploy.deployCode(PUPPET_MASTER, new String[]{"feature_a"}, false);
+
+            assertEquals("first caller", Collections.singletonList("feature_a"), environments(first.get(10, TimeUnit.SECONDS)));
+            assertEquals("second caller", Arrays.asList("feature_a", "feature_b"), environments(second.get(10, TimeUnit.SECONDS)));
+            assertEquals("third caller", Collections.singletonList("feature_a"), environments(third.get(10, TimeUnit.SECONDS)));
+
+            assertEquals("one deployment sent", 1, deploy.requests.size());
+            assertArrayEquals("environments merged", new String[]{"feature_a", "feature_b"}, deploy.requests.get(0));
+            assertEquals("requests counted", 3, coalescingDeploy.getRequestsReceived());
+            assertEquals("deploys counted", 1, coalescingDeploy.getDeploysSent());
+        }
+    }
+
+    @Test
+    public void testDeployAllSwallowsBatch() throws Exception {
+        RecordingDeploy deploy = new RecordingDeploy();
+        try (CoalescingDeploy coalescingDeploy = new CoalescingDeploy(deploy, 200, Runnable::run)) {
+            CompletableFuture<List<DeployResult>> specific = coalescingDeploy.deployCode(PUPPET_MASTER, new String[]{"feature_a"}, false);
+            CompletableFuture<List<DeployResult>> all = coalescingDeploy.deployCode(PUPPET_MASTER, null, false);
+
+            assertEquals("specific caller filtered", Collections.singletonList("feature_a"), environments(specific.get(10, TimeUnit.SECONDS)));
+            assertEquals("deploy-all caller gets everything", 4, all.get(10, TimeUnit.SECONDS).size());
+            assertNull("sent as deploy-all", deploy.requests.get(0));
+        }
+    }
+
+    @Test
+    public void testThresholdCollapsesToDeployAll() throws Exception {
+        RecordingDeploy deploy = new RecordingDeploy();
+        try (CoalescingDeploy coalescingDeploy = new CoalescingDeploy(deploy, 200, 1, Runnable::run)) {
+            CompletableFuture<List<DeployResult>> first = coalescingDeploy.deployCode(PUPPET_MASTER, new String[]{"feature_a"}, false);
+            CompletableFuture<List<DeployResult>> second = coalescingDeploy.deployCode(PUPPET_MASTER, new String[]{"feature_b"}, false);
+
+            assertEquals("first caller filtered", Collections.singletonList("feature_a"), environments(first.get(10, TimeUnit.SECONDS)));
+            assertEquals("second caller filtered", Collections.singletonList("feature_b"), environments(second.get(10, TimeUnit.SECONDS)));
+            assertNull("sent as deploy-all", deploy.requests.get(0));
+        }
+    }
+
+    @Test
+    public void testWaitNotMergedWithNoWait() throws Exception {
+        RecordingDeploy deploy = new RecordingDeploy();
+        try (CoalescingDeploy coalescingDeploy = new CoalescingDeploy(deploy, 200, Runnable::run)) {
+            CompletableFuture<List<DeployResult>> noWait = coalescingDeploy.deployCode(PUPPET_MASTER, new String[]{"feature_a"}, false);
+            CompletableFuture<List<DeployResult>> wait = coalescingDeploy.deployCode(PUPPET_MASTER, new String[]{"feature_a"}, true);
+            noWait.get(10, TimeUnit.SECONDS);
+            wait.get(10, TimeUnit.SECONDS);
+
+            assertEquals("two deployments sent", 2, deploy.requests.size());
+        }
+    }
+
+    @Test
+    public void testCloseFlushesPending() throws Exception {
+        RecordingDeploy deploy = new RecordingDeploy();
+        CoalescingDeploy coalescingDeploy = new CoalescingDeploy(deploy, 60 * 1000, Runnable::run);
+        CompletableFuture<List<DeployResult>> future = coalescingDeploy.deployCode(PUPPET_MASTER, new String[]{"production"}, false);
+        coalescingDeploy.close();
+
+        assertEquals("sent on close", 1, future.get(10, TimeUnit.SECONDS).size());
+    }
+}
@@ -1,60 +1,48 @@
 package test.com.declarativesystems.codemanager;
 
+import com.declarativesystems.pejava.codemanager.CodeManagerException;
 import com.declarativesystems.pejava.codemanager.Deploy;
 import com.declarativesystems.pejava.codemanager.DeployImpl;
+import com.declarativesystems.pejava.codemanager.DeployResult;
+import com.declarativesystems.pejava.codemanager.PollingPolicy;
+import com.declarativesystems.pejava.codemanager.ResponseTooLargeException;
+import com.declarativesystems.pejava.codemanager.RetryPolicy;
 import org.apache.commons.io.IOUtils;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.net.InetAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.cert.CertificateException;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
 public class TestDeploy {
-    private Deploy deploy = new DeployImpl();
-    private final static String PUPPET_DEPLOY_OK = "PUPPET_DEPLOY_OK";
+    private DeployImpl deploy = new DeployImpl();
+    private final static String PUPPET_DEPLOY_OK = MockCodeManager.TOKEN_OK;
     private static String PUPPET_MASTER_FQDN = "not ready yet";
     private final static String[] ENVIRONMENT = {"production"};
-    private final static String CA_CERT_FILE = "/tmp/mock_code_manager_ssl/ca.crt";
     private static String CA_CERT;
-    private static Process mockCodeManager;
+    private static MockCodeManager mockCodeManager;
 
     @BeforeClass
-    public static void setup() {
-        try {
-            PUPPET_MASTER_FQDN = InetAddress.getLocalHost().getHostName();
-            mockCodeManager = Runtime.getRuntime().exec("mock_code_manager");
-            // wait for server to become ready
-            try {
-                Thread.sleep(10000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            // CA cert is generated in /tmp by the above command
-            CA_CERT = IOUtils.toString(new FileInputStream(CA_CERT_FILE));
-        } catch (IOException e) {
-            // JRuby was too hard so just shell out and run the mock_code_manager rubygem
-            System.err.println("************************************************************");
-            System.err.println("* Your system is not setup for testing!                    *");
-            System.err.println("*                                                          *");
-            System.err.println("* Please install ruby, then 'gem install mock_code_manager *");
-            System.err.println("************************************************************");
-        }
-
-
+    public static void setup() throws Exception {
+        // start() returns once the server is listening - no need to wait
+        mockCodeManager = new MockCodeManager().start();
+        PUPPET_MASTER_FQDN = mockCodeManager.getAddress();
+        CA_CERT = MockCodeManager.caCert();
     }
 
     @AfterClass
     public static void cleanup() {
         if (mockCodeManager != null) {
-            mockCodeManager.destroyForcibly();
+            mockCodeManager.close();
         }
     }
 
@@ -130,4 +118,215 @@ public class TestDeploy {
     public void testGarbageCaCert() throws Exception {
         deploy.deployCode("invalid.host.fqdn", "BAD TOKEN", "this is not a valid cert", ENVIRONMENT);
     }
+
+    @Test
+    public void testOkAsync() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            List<DeployResult> results = deploy.deployCodeAsync(
+                    PUPPET_MASTER_FQDN, PUPPET_DEPLOY_OK, CA_CERT, ENVIRONMENT, false, executor
+            ).get(1, TimeUnit.MINUTES);
+            assertEquals("one result", 1, results.size());
+            assertTrue("queued", results.get(0).isStatusQueued());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testOkAsyncWait() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            List<DeployResult> results = deploy.deployCodeAsync(
+                    PUPPET_MASTER_FQDN, PUPPET_DEPLOY_OK, null, ENVIRONMENT, true, executor
+            ).get(1, TimeUnit.MINUTES);
+            assertTrue("complete", results.get(0).isStatusOk());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testBadTokenAsync() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            deploy.deployCodeAsync(
+                    PUPPET_MASTER_FQDN, "BAD TOKEN", null, ENVIRONMENT, false, executor
+            ).get(1, TimeUnit.MINUTES);
+            fail("bad token should fail the future");
+        } catch (ExecutionException e) {
+            assertTrue("code manager error reported", e.getCause() instanceof CodeManagerException);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testGarbageHostnameAsync() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            deploy.deployCodeAsync(
+                    "invalid.host.fqdn", "BAD TOKEN", null, ENVIRONMENT, false, executor
+            ).get(1, TimeUnit.MINUTES);
+            fail("unknown host should fail the future");
+        } catch (ExecutionException e) {
+            assertTrue("unknown host reported", e.getCause() instanceof UnknownHostException);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testGarbageCaCertAsync() throws Exception {
+        CompletableFuture<List<DeployResult>> future = deploy.deployCodeAsync(
+                "invalid.host.fqdn", "BAD TOKEN", "this is not a valid cert", ENVIRONMENT, false, Runnable::run);
+        try {
+            future.get();
+            fail("garbage CA cert should fail the future");
+        } catch (ExecutionException e) {
+            assertTrue("bad cert reported", e.getCause() instanceof CertificateException);
+        }
+    }
+
+    @Test
+    public void testDefaultAsyncRunsBlockingDeploy() throws Exception {
+        Deploy blocking = new Deploy() {
+            @Override
+            public String deployCode(String puppetMasterFqdn, String token, String caCert, String[] environment) {
+                return deployCode(puppetMasterFqdn, token, caCert, environment, false);
+            }
+
+            @Override
+            public String deployCode(String puppetMasterFqdn, String token, String caCert, String[] environment, boolean wait) {
+                return "[{\"environment\":\"production\", \"id\":66, \"status\":\"queued\"}]";
+            }
+        };
+
+        List<DeployResult> results = blocking.deployCodeAsync(
+                PUPPET_MASTER_FQDN, PUPPET_DEPLOY_OK, null, ENVIRONMENT, false, Runnable::run).get();
+        assertEquals("parsed", "production", results.get(0).getEnvironment());
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        DeployImpl deploy = new DeployImpl();
+        try {
+            assertTrue("connection opened", deploy.warmUp(PUPPET_MASTER_FQDN, CA_CERT));
+            assertFalse("pooled connection reused", deploy.warmUp(PUPPET_MASTER_FQDN, CA_CERT));
+
+            String ret = deploy.deployCode(PUPPET_MASTER_FQDN, PUPPET_DEPLOY_OK, CA_CERT, ENVIRONMENT);
+            assertTrue(ret.contains("queued"));
+        } finally {
+            deploy.close();
+        }
+    }
+
+    @Test(expected=UnknownHostException.class)
+    public void testWarmUpGarbageHostname() throws Exception {
+        deploy.warmUp("invalid.host.fqdn", null);
+    }
+
+    @Test
+    public void testDeployCodeAndPoll() throws Exception {
+        try (MockCodeManager slow = new MockCodeManager(1).start()) {
+            slow.setDeployLatency(200);
+            List<DeployResult> results = deploy.deployCodeAndPoll(
+                    slow.getAddress(),
+                    PUPPET_DEPLOY_OK,
+                    CA_CERT,
+                    new String[] {"production", "development"},
+                    new PollingPolicy(50, 100, 1.5, 60 * 1000)
+            );
+
+            assertEquals("both environments reported", 2, results.size());
+            assertTrue("production deployed", results.get(0).isStatusOk());
+            assertEquals(
+                    "deployed signature from status",
+                    MockCodeManager.signature("development"),
+                    results.get(1).getDeploySignature()
+            );
+            assertTrue("status polled more than once", slow.getRequestCount() > 2);
+        }
+    }
+
+    @Test
+    public void testSlowDripResponse() throws Exception {
+        try (MockCodeManager drip = new MockCodeManager().start()) {
+            drip.setDrip(16, 5);
+            String ret = deploy.deployCode(drip.getAddress(), PUPPET_DEPLOY_OK, CA_CERT, ENVIRONMENT, true);
+            List<DeployResult> results = DeployResult.toDeployResult(ret);
+
+            assertEquals("whole response read", 1, results.size());
+            assertTrue("complete", results.get(0).isStatusOk());
+        }
+    }
+
+    @Test
+    public void testInjectedErrorKind() throws Exception {
+        try (MockCodeManager failing = new MockCodeManager().start()) {
+            // 503 is retried so fail every attempt
+            failing.failRequests(RetryPolicy.DEFAULT.getMaxAttempts(), 503, MockCodeManager.KIND_UNAVAILABLE);
+            try {
+                DeployResult.toDeployResultOrThrow(
+                        deploy.deployCode(failing.getAddress(), PUPPET_DEPLOY_OK, CA_CERT, ENVIRONMENT));
+                fail("error document should throw");
+            } catch (CodeManagerException e) {
+                assertEquals("kind reported", MockCodeManager.KIND_UNAVAILABLE, e.getKind());
+            }
+
+            String ret = deploy.deployCode(failing.getAddress(), PUPPET_DEPLOY_OK, CA_CERT, ENVIRONMENT);
+            assertTrue("next request succeeds", ret.contains("queued"));
+        }
+    }
+
+    @Test
+    public void testThousandsOfEnvironments() throws Exception {
+        try (MockCodeManager large = new MockCodeManager().start()) {
+            large.setEnvironmentCount(5000);
+            List<DeployResult> results = DeployResult.toDeployResult(
+                    deploy.deployCode(large.getAddress(), PUPPET_DEPLOY_OK, CA_CERT, null, true));
+
+            assertEquals("every environment deployed", 5000, results.size());
+            assertEquals("every environment deployed", 5000, large.getEnvironmentsDeployed());
+        }
+    }
+
+    @Test
+    public void testCompressedStreamingResponse() throws Exception {
+        try (MockCodeManager large = new MockCodeManager().start()) {
+            large.setEnvironmentCount(2000);
+            List<DeployResult> results = deploy.deployCodeResults(large.getAddress(), PUPPET_DEPLOY_OK, CA_CERT, null, true);
+
+            assertEquals("every environment parsed", 2000, results.size());
+            assertEquals("gzip negotiated", 1, large.getGzipResponses());
+
+            String responseString = deploy.deployCode(large.getAddress(), PUPPET_DEPLOY_OK, CA_CERT, null, true);
+            assertEquals("String API decompressed", 2000, DeployResult.toDeployResult(responseString).size());
+        }
+    }
+
+    @Test
+    public void testResponseTooLarge() throws Exception {
+        try (MockCodeManager large = new MockCodeManager().start();
+             DeployImpl limited = new DeployImpl()) {
+            large.setEnvironmentCount(500);
+            limited.setMaxResponseBytes(4096);
+            try {
+                limited.deployCode(large.getAddress(), PUPPET_DEPLOY_OK, CA_CERT, null, true);
+                fail("oversized response read");
+            } catch (ResponseTooLargeException e) {
+                assertEquals("limit reported", 4096, e.getLimit());
+            }
+
+            try {
+                limited.deployCodeAsync(large.getAddress(), PUPPET_DEPLOY_OK, CA_CERT, null, true, Runnable::run)
+                        .get(10, TimeUnit.SECONDS);
+                fail("oversized response parsed");
+            } catch (ExecutionException e) {
+                assertTrue("too large " + e.getCause(), e.getCause() instanceof ResponseTooLargeException);
+            }
+
+            assertEquals("small responses fine", 1, limited.deployCodeResults(large.getAddress(), PUPPET_DEPLOY_OK, CA_CERT, ENVIRONMENT, true).size());
+        }
+    }
 }
@@ -0,0 +1,305 @@
+package test.com.declarativesystems.codemanager;
+
+import com.declarativesystems.pejava.codemanager.DeployImpl;
+import com.declarativesystems.pejava.codemanager.DeployJournal;
+import com.declarativesystems.pejava.codemanager.DeployResult;
+import com.declarativesystems.pejava.codemanager.JournalingDeploy;
+import com.declarativesystems.pejava.codemanager.PollingPolicy;
+import com.declarativesystems.pejava.codemanager.PuppetMaster;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class TestDeployJournal {
+    private static final PollingPolicy FAST_POLL = new PollingPolicy(20, 100, 1.5, 10 * 1000);
+    private static MockCodeManager mockCodeManager;
+    private Path directory;
+
+    @BeforeClass
+    public static void setupMock() throws Exception {
+        mockCodeManager = new MockCodeManager().start();
+    }
+
+    @AfterClass
+    public static void cleanupMock() {
+        if (mockCodeManager != null) {
+            mockCodeManager.close();
+        }
+    }
+
+    @Before
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("pejava-journal");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private List<Path> segments() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static List<DeployResult> queued(String environment, long id) {
+        return DeployResult.toDeployResult(String.format(
+                "[{\"environment\":\"%s\",\"id\":%d,\"status\":\"queued\"}]", environment, id));
+    }
+
+    private static List<DeployResult> complete(String environment, long id) {
+        return DeployResult.toDeployResult(String.format(
+                "[{\"environment\":\"%s\",\"id\":%d,\"status\":\"complete\",\"deploy-signature\":\"%s\"}]",
+                environment, id, MockCodeManager.signature(environment)));
+    }
+
+    @Test
+    public void testPendingSurvivesReopen() throws Exception {
+        long first;
+        try (DeployJournal journal = new DeployJournal(directory)) {
+            first = journal.submitted("puppet", new String[]{"production"}, false);
+            journal.recordResults(first, queued("production", 7));
+            long second = journal.submitted("puppet", null, true);
+            journal.recordResults(second, complete("development", 8));
+            journal.sync().get(1, TimeUnit.SECONDS);
+        }
+
+        try (DeployJournal journal = new DeployJournal(directory)) {
+            List<DeployJournal.PendingDeploy> pending = journal.getPending();
+            assertEquals("finished deployment dropped", 1, pending.size());
+            assertEquals("journal id", first, pending.get(0).getJournalId());
+            assertArrayEquals("environments", new String[]{"production"}, pending.get(0).getEnvironments());
+            assertEquals("deploy id", 7, pending.get(0).getOutstanding().get(0).getId());
+
+            journal.recordResults(first, complete("production", 7));
+            assertTrue("ids not reused", journal.submitted("puppet", null, false) > first + 1);
+        }
+
+        try (DeployJournal journal = new DeployJournal(directory)) {
+            assertEquals("only the unacknowledged one left", 1, journal.getPending().size());
+            assertTrue("unacknowledged", journal.getPending().get(0).isUnacknowledged());
+        }
+        assertEquals("old segments deleted", 1, segments().size());
+    }
+
+    @Test
+    public void testTornRecordIgnored() throws Exception {
+        try (DeployJournal journal = new DeployJournal(directory)) {
+            journal.submitted("puppet", new String[]{"production"}, false);
+            journal.submitted("puppet", new String[]{"development"}, false);
+        }
+
+        // flip a byte in the last record, as if we crashed while writing it
+        Path segment = segments().get(0);
+        byte[] bytes = Files.readAllBytes(segment);
+        int end = bytes.length - 1;
+        while (bytes[end] == 0) {
+            end--;
+        }
+        bytes[end] ^= 0xff;
+        Files.write(segment, bytes);
+
+        try (DeployJournal journal = new DeployJournal(directory)) {
+            List<DeployJournal.PendingDeploy> pending = journal.getPending();
+            assertEquals("torn record dropped", 1, pending.size());
+            assertArrayEquals("intact record kept", new String[]{"production"}, pending.get(0).getEnvironments());
+        }
+    }
+
+    @Test
+    public void testSegmentRoll() throws Exception {
+        long open;
+        try (DeployJournal journal = new DeployJournal(directory, 1024, 5)) {
+            open = journal.submitted("puppet", new String[]{"production"}, false);
+            journal.recordResults(open, queued("production", 1));
+            for (int i = 0; i < 100; i++) {
+                long journalId = journal.submitted("puppet", new String[]{"feature_" + i}, true);
+                journal.recordResults(journalId, complete("feature_" + i, i + 2));
+            }
+        }
+        assertEquals("one segment kept", 1, segments().size());
+
+        try (DeployJournal journal = new DeployJournal(directory, 1024, 5)) {
+            assertEquals("pending deployment carried over", 1, journal.getPending().size());
+            assertEquals("same deployment", open, journal.getPending().get(0).getJournalId());
+        }
+    }
+
+    @Test
+    public void testRecoverQueuedAndUnacknowledged() throws Exception {
+        String master = mockCodeManager.getAddress();
+        PuppetMaster puppetMaster = new PuppetMaster(master, MockCodeManager.TOKEN_OK, MockCodeManager.caCert());
+
+        // a queued deployment and one we never heard back about, then "crash"
+        try (DeployImpl deploy = new DeployImpl();
+             DeployJournal journal = new DeployJournal(directory)) {
+            JournalingDeploy journalingDeploy = new JournalingDeploy(deploy, journal, Runnable::run);
+            String response = journalingDeploy.deployCode(
+                    master, MockCodeManager.TOKEN_OK, MockCodeManager.caCert(), new String[]{"production"});
+            assertTrue("queued", response.contains("queued"));
+            journal.submitted(master, new String[]{"development"}, false);
+        }
+
+        try (DeployImpl deploy = new DeployImpl();
+             DeployJournal journal = new DeployJournal(directory)) {
+            assertEquals("both pending after restart", 2, journal.getPending().size());
+            JournalingDeploy journalingDeploy = new JournalingDeploy(deploy, journal, Runnable::run);
+            int requests = mockCodeManager.getRequestCount();
+
+            Map<DeployJournal.PendingDeploy, List<DeployResult>> recovered = journalingDeploy.recover(
+                    fqdn -> fqdn.equals(master) ? puppetMaster : null, FAST_POLL);
+
+            assertEquals("both recovered", 2, recovered.size());
+            for (List<DeployResult> results : recovered.values()) {
+                assertEquals("finished", DeployResult.STATUS_OK, results.get(0).getStatus());
+            }
+            assertTrue("unacknowledged deployment resent", mockCodeManager.getRequestCount() > requests + 1);
+            assertTrue("nothing pending", journal.getPending().isEmpty());
+        }
+    }
+
+    @Test
+    public void testRecoverFromRealStatus() throws Exception {
+        // deploys_status.json: production (id 2) has finished and left every
+        // list, nothere (id 1) failed
+        String statusJson = IOUtils.toString(getClass().getResourceAsStream("/deploys_status.json"), "UTF-8");
+        try (MockCodeManager codeManager = new MockCodeManager().setStatusDocument(statusJson).start()) {
+            String master = codeManager.getAddress();
+            PuppetMaster puppetMaster = new PuppetMaster(master, MockCodeManager.TOKEN_OK, MockCodeManager.caCert());
+
+            try (DeployJournal journal = new DeployJournal(directory)) {
+                long journalId = journal.submitted(master, new String[]{"production", "nothere"}, false);
+                journal.recordResults(journalId, DeployResult.toDeployResult(
+                        "[{\"environment\":\"production\",\"id\":2,\"status\":\"queued\"}," +
+                        "{\"environment\":\"nothere\",\"id\":1,\"status\":\"queued\"}]"));
+            }
+
+            try (DeployImpl deploy = new DeployImpl();
+                 DeployJournal journal = new DeployJournal(directory)) {
+                JournalingDeploy journalingDeploy = new JournalingDeploy(deploy, journal, Runnable::run);
+                long start = System.nanoTime();
+                Map<DeployJournal.PendingDeploy, List<DeployResult>> recovered = journalingDeploy.recover(
+                        fqdn -> fqdn.equals(master) ? puppetMaster : null, FAST_POLL);
+
+                assertTrue("not held to the deadline", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+                Map<String, DeployResult> results = recovered.values().iterator().next().stream()
+                        .collect(Collectors.toMap(DeployResult::getEnvironment, r -> r));
+                assertEquals("production deployed", DeployResult.STATUS_OK, results.get("production").getStatus());
+                assertEquals("deployed signature", "9e5475a0dbfb705bf474af80cbdf56f0477e7dc3",
+                        results.get("production").getDeploySignature());
+                assertEquals("nothere failed", DeployResult.STATUS_FAILED, results.get("nothere").getStatus());
+                assertTrue("nothing pending", journal.getPending().isEmpty());
+            }
+        }
+    }
+
+    @Test
+    public void testResultsWithoutEnvironmentOrStatus() throws Exception {
+        try (DeployJournal journal = new DeployJournal(directory)) {
+            long journalId = journal.submitted("puppet", null, false);
+            journal.recordResults(journalId, DeployResult.toDeployResult(
+                    "[{\"id\":5,\"status\":\"queued\"},{\"environment\":\"production\"}]"));
+        }
+
+        try (DeployJournal journal = new DeployJournal(directory)) {
+            assertEquals("still pending", 1, journal.getPending().size());
+            DeployJournal.PendingDeploy deploy = journal.getPending().get(0);
+            assertEquals("queued result replayed", 5, deploy.getOutstanding().get(0).getId());
+            assertNull("no environment", deploy.getOutstanding().get(0).getEnvironment());
+        }
+    }
+
+    @Test
+    public void testLiveDeploymentsRecorded() throws Exception {
+        String master = mockCodeManager.getAddress();
+        try (DeployImpl deploy = new DeployImpl();
+             DeployJournal journal = new DeployJournal(directory)) {
+            JournalingDeploy journalingDeploy = new JournalingDeploy(deploy, journal, Runnable::run);
+            List<DeployResult> results = journalingDeploy.deployCodeAndPoll(
+                    master, MockCodeManager.TOKEN_OK, MockCodeManager.caCert(), new String[]{"production"}, FAST_POLL);
+            assertEquals("polled", DeployResult.STATUS_OK, results.get(0).getStatus());
+
+            journalingDeploy.deployCode(
+                    master, MockCodeManager.TOKEN_OK, MockCodeManager.caCert(), new String[]{"production"}, true);
+            try {
+                journalingDeploy.deployCode(
+                        master, "BAD_TOKEN", MockCodeManager.caCert(), new String[]{"production"}, true);
+            } catch (Exception e) {
+                // error documents are returned, exceptions thrown - both finish the deployment
+            }
+            assertTrue("nothing pending", journal.getPending().isEmpty());
+        }
+    }
+
+    @Test
+    public void testSnapshotTooBigDegrades() throws Exception {
+        try (DeployJournal journal = new DeployJournal(directory, 1024, 5)) {
+            // never finished, so every roll over has to carry them all
+            for (int i = 0; i < 50; i++) {
+                journal.submitted("puppet", new String[]{"feature_" + i}, false);
+            }
+            assertEquals("all tracked in memory", 50, journal.getPending().size());
+            try {
+                journal.sync().get(1, TimeUnit.SECONDS);
+                fail("sync should fail while records are dropped");
+            } catch (ExecutionException e) {
+                assertTrue("reported", e.getCause().getMessage().contains("isn't recording"));
+            }
+
+            for (DeployJournal.PendingDeploy pending : journal.getPending().subList(1, 50)) {
+                journal.abandoned(pending.getJournalId());
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            boolean recording = false;
+            while (! recording && System.currentTimeMillis() < deadline) {
+                try {
+                    journal.sync().get(1, TimeUnit.SECONDS);
+                    recording = true;
+                } catch (ExecutionException e) {
+                    Thread.sleep(10);
+                }
+            }
+            assertTrue("recording again once the snapshot fits", recording);
+        }
+
+        try (DeployJournal journal = new DeployJournal(directory, 1024, 5)) {
+            assertEquals("remaining deployment survives", 1, journal.getPending().size());
+        }
+    }
+
+    @Test
+    public void testRejectedExecutorRecordsInline() throws Exception {
+        String master = mockCodeManager.getAddress();
+        try (DeployImpl deploy = new DeployImpl();
+             DeployJournal journal = new DeployJournal(directory)) {
+            JournalingDeploy journalingDeploy = new JournalingDeploy(deploy, journal, r -> {
+                throw new RejectedExecutionException("shut down");
+            });
+            String response = journalingDeploy.deployCode(
+                    master, MockCodeManager.TOKEN_OK, MockCodeManager.caCert(), new String[]{"production"}, true);
+            assertTrue("deployed", response.contains("complete"));
+            assertTrue("recorded anyway", journal.getPending().isEmpty());
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package test.com.declarativesystems.codemanager;
+
+import com.declarativesystems.pejava.codemanager.DeployImpl;
+import com.declarativesystems.pejava.codemanager.DeployMetrics.Phase;
+import com.declarativesystems.pejava.codemanager.DeployResult;
+import com.declarativesystems.pejava.codemanager.MicrometerDeployMetrics;
+import com.declarativesystems.pejava.codemanager.SimpleDeployMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestDeployMetrics {
+    private static MockCodeManager mockCodeManager;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        mockCodeManager = new MockCodeManager().start();
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        if (mockCodeManager != null) {
+            mockCodeManager.close();
+        }
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        SimpleDeployMetrics metrics = new SimpleDeployMetrics();
+        for (int i = 1; i <= 100; i++) {
+            metrics.recordPhase("puppet", Phase.TOTAL, i * 1000L);
+        }
+        SimpleDeployMetrics.Histogram histogram = metrics.getHistogram("puppet", Phase.TOTAL);
+
+        assertEquals("count", 100, histogram.getCount());
+        assertEquals("max", 100000, histogram.getMaxNanos());
+        assertEquals("mean", 50500, histogram.getMeanNanos());
+
+        // buckets are powers of two so percentiles are upper bounds
+        long p50 = histogram.getPercentileNanos(0.5);
+        assertTrue("p50 covers median " + p50, p50 >= 50000 && p50 < 100000);
+        assertEquals("p100 capped at max", 100000, histogram.getPercentileNanos(1.0));
+        assertNull("nothing recorded", metrics.getHistogram("puppet", Phase.CONNECT));
+    }
+
+    @Test
+    public void testPhasesRecorded() throws Exception {
+        SimpleDeployMetrics metrics = new SimpleDeployMetrics();
+        String master = mockCodeManager.getAddress();
+        try (DeployImpl deploy = new DeployImpl(metrics)) {
+            deploy.deployCode(master, MockCodeManager.TOKEN_OK, MockCodeManager.caCert(), new String[]{"production"}, true);
+            deploy.deployCode(master, MockCodeManager.TOKEN_OK, MockCodeManager.caCert(), new String[]{"production"}, true);
+        }
+
+        for (Phase phase : Phase.values()) {
+            assertNotNull(phase + " recorded", metrics.getHistogram(master, phase));
+        }
+        assertEquals("client built once", 1, metrics.getHistogram(master, Phase.SSL_CONTEXT_BUILD).getCount());
+        assertEquals("connection reused", 1, metrics.getHistogram(master, Phase.TLS_HANDSHAKE).getCount());
+        assertEquals("connection acquired per request", 2, metrics.getHistogram(master, Phase.CONNECTION_ACQUIRE).getCount());
+        assertEquals("outcomes counted", 2, metrics.getCount(master, "production", DeployResult.STATUS_OK));
+    }
+
+    @Test
+    public void testAsyncOutcomesCounted() throws Exception {
+        SimpleDeployMetrics metrics = new SimpleDeployMetrics();
+        String master = mockCodeManager.getAddress();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (DeployImpl deploy = new DeployImpl(metrics)) {
+            deploy.deployCodeAsync(
+                    master, MockCodeManager.TOKEN_OK, MockCodeManager.caCert(),
+                    new String[]{"production", MockCodeManager.BAD_ENVIRONMENT}, true, executor
+            ).get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals("complete", 1, metrics.getCount(master, DeployResult.STATUS_OK));
+        assertEquals("failed", 1, metrics.getCount(master, DeployResult.STATUS_FAILED));
+        assertEquals("total", 1, metrics.getHistogram(master, Phase.TOTAL).getCount());
+        assertEquals("parse", 1, metrics.getHistogram(master, Phase.JSON_PARSE).getCount());
+    }
+
+    @Test
+    public void testMismatchCounted() throws Exception {
+        String response = FileUtils.readFileToString(new File("src/test/resources/deploy_mixed.json"));
+        Map<String, String> target = new LinkedHashMap<>();
+        target.put("development", "22811999e6cbeaf4b6be744a4d0b454b831f8999");
+        target.put("fail_onceover", "0000000000000000000000000000000000000000");
+        target.put("lost", "9e5475a0dbfb705bf474af80cbdf56f0477e7dc3");
+
+        List<DeployResult> checked = DeployResult.checkDeployResult(response, target);
+        SimpleDeployMetrics metrics = new SimpleDeployMetrics();
+        metrics.recordResults("puppet", checked);
+
+        assertEquals("mismatch", 1, metrics.getCount("puppet", "fail_onceover", DeployResult.MSG_MISMATCH));
+        assertEquals("missing", 1, metrics.getCount("puppet", "lost", DeployResult.MISSING));
+        assertEquals("ok", 1, metrics.getCount("puppet", "development", DeployResult.STATUS_OK));
+    }
+
+    @Test
+    public void testMicrometer() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        MicrometerDeployMetrics metrics = new MicrometerDeployMetrics(registry, true);
+        metrics.recordPhase("puppet", Phase.TLS_HANDSHAKE, TimeUnit.MILLISECONDS.toNanos(5));
+        metrics.recordResult("puppet", "production", DeployResult.STATUS_OK);
+        metrics.recordResult("puppet", "production", DeployResult.STATUS_OK);
+
+        assertEquals(
+                "timer",
+                1,
+                registry.get(MicrometerDeployMetrics.PHASE_TIMER)
+                        .tag("master", "puppet")
+                        .tag("phase", "tls_handshake")
+                        .timer().count()
+        );
+        assertEquals(
+                "counter",
+                2.0,
+                registry.get(MicrometerDeployMetrics.RESULT_COUNTER)
+                        .tag("outcome", DeployResult.STATUS_OK)
+                        .tag("environment", "production")
+                        .counter().count(),
+                0.0
+        );
+    }
+}
@@ -0,0 +1,121 @@
+package test.com.declarativesystems.codemanager;
+
+import com.declarativesystems.pejava.codemanager.DeployReconciler;
+import com.declarativesystems.pejava.codemanager.DeployResult;
+import com.declarativesystems.pejava.codemanager.Reconciliation;
+import com.declarativesystems.pejava.codemanager.Reconciliation.Outcome;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestDeployReconciler {
+
+    private static Map<String, String> target() {
+        Map<String, String> target = new LinkedHashMap<>();
+        target.put("development", "22811999e6cbeaf4b6be744a4d0b454b831f8999");
+        target.put("fail_code_quality", "22811999e6cbeaf4b6be744a4d0b454b831f8999");
+        target.put("fail_onceover", "0000000000000000000000000000000000000000");
+        target.put("hmm", "22811999e6cbeaf4b6be744a4d0b454b831f8999");
+        target.put("production", "9e5475a0dbfb705bf474af80cbdf56f0477e7dc3");
+        target.put("lost", "9e5475a0dbfb705bf474af80cbdf56f0477e7dc3");
+        return target;
+    }
+
+    private static String mixed() throws IOException {
+        return FileUtils.readFileToString(new File("src/test/resources/deploy_mixed.json"));
+    }
+
+    @Test
+    public void testOutcomes() throws IOException {
+        Reconciliation reconciliation = DeployReconciler.reconcile(mixed(), target());
+
+        assertEquals("ok", Outcome.OK, reconciliation.getOutcome("development"));
+        assertEquals("failed", Outcome.FAILED, reconciliation.getOutcome("fail_code_quality"));
+        assertEquals("mismatch", Outcome.MISMATCH, reconciliation.getOutcome("fail_onceover"));
+        assertEquals("unexpected", Outcome.UNEXPECTED, reconciliation.getOutcome("no_makefile"));
+        assertEquals("missing", Outcome.MISSING, reconciliation.getOutcome("lost"));
+        assertNull("unknown environment", reconciliation.getOutcome("nothere"));
+
+        assertEquals("every environment reported", 7, reconciliation.getResults().size());
+        assertEquals("ok count", 3, reconciliation.count(Outcome.OK));
+        assertEquals(
+                "missing listed last",
+                "lost",
+                reconciliation.getResults().get(6).getEnvironment()
+        );
+        assertFalse("not ok overall", reconciliation.isOk());
+        assertEquals("everything evaluated first time", 7, reconciliation.getChanged().size());
+    }
+
+    @Test
+    public void testMatchesCheckDeployResult() throws IOException {
+        Reconciliation reconciliation = DeployReconciler.reconcile(mixed(), target());
+        int i = 0;
+        for (DeployResult dr : DeployResult.checkDeployResult(mixed(), target())) {
+            DeployResult reconciled = reconciliation.getResults().get(i++);
+            assertEquals("same order", dr.getEnvironment(), reconciled.getEnvironment());
+            assertEquals("same status", dr.getStatusAsString(), reconciled.getStatusAsString());
+        }
+        assertEquals("same size", i, reconciliation.getResults().size());
+    }
+
+    @Test
+    public void testIncrementalOnlyReportsChanges() throws IOException {
+        Reconciliation first = DeployReconciler.reconcile(mixed(), target());
+
+        // fix the onceover commit and stop expecting "lost"
+        Map<String, String> target = target();
+        target.put("fail_onceover", "060fd8a21fa8fbb966c14c4dd9660c04c8da93af");
+        target.remove("lost");
+
+        Reconciliation second = DeployReconciler.reconcile(mixed(), target, first);
+
+        assertEquals("now ok", Outcome.OK, second.getOutcome("fail_onceover"));
+        assertEquals("unchanged carried over", Outcome.OK, second.getOutcome("development"));
+        assertEquals(
+                "changed and vanished environments reported",
+                Arrays.asList("fail_onceover", "lost"),
+                second.getChanged()
+        );
+        assertEquals("only changed environment evaluated", 1, second.getEvaluated());
+    }
+
+    @Test
+    public void testIncrementalNoChanges() throws IOException {
+        Reconciliation first = DeployReconciler.reconcile(mixed(), target());
+        Reconciliation second = DeployReconciler.reconcile(mixed(), target(), first);
+
+        assertEquals("nothing changed", Collections.emptyList(), second.getChanged());
+        assertEquals("nothing evaluated", 0, second.getEvaluated());
+        for (Outcome outcome : Outcome.values()) {
+            assertEquals("same outcomes", first.count(outcome), second.count(outcome));
+        }
+    }
+
+    @Test
+    public void testDuplicateEnvironmentUnexpected() throws IOException {
+        String response = "[" +
+                "{\"environment\":\"production\",\"status\":\"complete\",\"deploy-signature\":\"abc\"}," +
+                "{\"environment\":\"production\",\"status\":\"complete\",\"deploy-signature\":\"def\"}]";
+        Reconciliation reconciliation = DeployReconciler.reconcile(
+                response, Collections.singletonMap("production", "abc"));
+
+        assertEquals("first one counts", Outcome.OK, reconciliation.getOutcome("production"));
+        assertEquals("second flagged", 1, reconciliation.count(Outcome.UNEXPECTED));
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testFinishedReconcilerRejectsResults() {
+        DeployReconciler reconciler = new DeployReconciler(Collections.emptyMap());
+        reconciler.finish();
+        reconciler.accept(new DeployResult());
+    }
+}
@@ -1,10 +1,14 @@
 package test.com.declarativesystems.codemanager;
 
+import com.declarativesystems.pejava.codemanager.CodeManagerException;
 import com.declarativesystems.pejava.codemanager.DeployResult;
 import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -141,7 +145,7 @@ public class TestDeployResult {
         while (m.find()) {
             count++;
         }
-        assertEquals("html row count ok and no crash", count, m.groupCount());
+        assertEquals("html row count ok and no crash", 6, count);
     }
 
     @Test
@@ -235,6 +239,12 @@ public class TestDeployResult {
                 "toString() output good",
                 dr.toString().contains(DeployResult.MSG_MISMATCH)
         );
+        assertEquals(
+                "toString() written from the binary signatures",
+                String.format("[%s] %s - git=%s puppet=%s", dr.getEnvironment(), DeployResult.MSG_MISMATCH,
+                        dr.getTargetDeploySignature(), dr.getDeploySignature()),
+                dr.toString()
+        );
     }
 
     @Test
@@ -344,4 +354,96 @@ public class TestDeployResult {
         DeployResult.prettyPrintJson("not=json");
     }
 
+
+    @Test
+    public void testStreamingParse() throws IOException {
+        List<DeployResult> results = DeployResult.toDeployResult(new FileInputStream("src/test/resources/deploy_mixed.json"));
+
+        assertEquals("all results parsed", 6, results.size());
+        assertEquals("environment parsed", "fail_code_quality", results.get(1).getEnvironment());
+        assertEquals("status parsed", "failed", results.get(1).getStatus());
+        assertEquals("deploy signature missing", DeployResult.MISSING, results.get(1).getDeploySignature());
+        assertEquals(
+                "deploy signature parsed",
+                "9e5475a0dbfb705bf474af80cbdf56f0477e7dc3",
+                results.get(5).getDeploySignature()
+        );
+    }
+
+    @Test
+    public void testStreamingParseCallback() throws IOException {
+        String testCase = FileUtils.readFileToString(new File("src/test/resources/deploy_mixed.json"));
+        List<String> environments = new ArrayList<>();
+        int count = DeployResult.toDeployResult(testCase, dr -> environments.add(dr.getEnvironment()));
+
+        assertEquals("count returned", 6, count);
+        assertEquals(
+                "callback sees results in order",
+                Arrays.asList("development", "fail_code_quality", "fail_onceover", "hmm", "no_makefile", "production"),
+                environments
+        );
+    }
+
+    @Test
+    public void testStreamingParseGeneralPuppetFail() throws IOException {
+        try {
+            DeployResult.toDeployResult(new FileInputStream("src/test/resources/puppet_general_fail.json"));
+            fail("error document should throw");
+        } catch (CodeManagerException e) {
+            assertEquals(
+                    "error kind reported",
+                    "puppetlabs.code-manager/unrecognized-webhook-type",
+                    e.getKind()
+            );
+        }
+    }
+
+    @Test
+    public void testParseOrThrowKeepsResponse() throws IOException {
+        String testCase = FileUtils.readFileToString(new File("src/test/resources/puppet_general_fail.json"));
+        try {
+            DeployResult.toDeployResultOrThrow(testCase);
+            fail("error document should throw");
+        } catch (CodeManagerException e) {
+            assertEquals("raw response kept", testCase, e.getResponseString());
+        }
+    }
+
+    @Test
+    public void testCompactSignatures() throws IOException {
+        String testCase = FileUtils.readFileToString(new File("src/test/resources/deploy_mixed.json"));
+        Map<String,String> target = new LinkedHashMap<String,String>(){{
+            put("development", "22811999E6CBEAF4B6BE744A4D0B454B831F8999");
+            put("fail_code_quality", "22811999e6cbeaf4b6be744a4d0b454b831f8999");
+        }};
+
+        List<DeployResult> results = DeployResult.checkDeployResult(testCase, target);
+        DeployResult dr = results.get(0);
+        assertEquals("signature round trips", "22811999e6cbeaf4b6be744a4d0b454b831f8999", dr.getDeploySignature());
+        assertEquals("uppercase target kept as given", "22811999E6CBEAF4B6BE744A4D0B454B831F8999", dr.getTargetDeploySignature());
+        assertTrue("matched ignoring case", dr.isMatchingDeploymentSignature());
+        assertEquals("status enum", DeployResult.Status.OK, dr.getStatusCode());
+
+        dr = results.get(1);
+        assertEquals("non-hex signature kept as text", DeployResult.MISSING, dr.getDeploySignature());
+        assertFalse("missing never matches", dr.isMatchingDeploymentSignature());
+        assertEquals("status enum", DeployResult.Status.FAILED, dr.getStatusCode());
+
+        target.put("development", "22811999e6cbeaf4b6be744a4d0b454b831f8990");
+        dr = DeployResult.checkDeployResult(testCase, target).get(0);
+        assertFalse("last digit compared", dr.isMatchingDeploymentSignature());
+    }
+
+    @Test
+    public void testStringsShared() throws IOException {
+        String testCase = FileUtils.readFileToString(new File("src/test/resources/deploy_mixed.json"));
+        DeployResult first = DeployResult.toDeployResult(testCase).get(0);
+        DeployResult second = DeployResult.toDeployResult(testCase).get(0);
+
+        assertSame("environment pooled", first.getEnvironment(), second.getEnvironment());
+        assertSame("status shared", first.getStatus(), second.getStatus());
+        assertEquals("unknown status kept", null, new DeployResult().getStatus());
+        assertEquals("unknown status is OTHER", DeployResult.Status.OTHER, new DeployResult().getStatusCode());
+    }
+
 }
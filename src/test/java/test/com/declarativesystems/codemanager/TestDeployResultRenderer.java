@@ -0,0 +1,88 @@
+package test.com.declarativesystems.codemanager;
+
+import com.declarativesystems.pejava.codemanager.CodeManagerException;
+import com.declarativesystems.pejava.codemanager.DeployResultRenderer;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.MalformedJsonException;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class TestDeployResultRenderer {
+
+    private static String read(String file) throws IOException {
+        return FileUtils.readFileToString(new File("src/test/resources/" + file));
+    }
+
+    @Test
+    public void testHtmlRowsEscaped() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int rows = DeployResultRenderer.htmlTableRows(new StringReader(
+                "[{\"environment\":\"<script>&\",\"status\":\"complete\",\"deploy-signature\":\"abc\"}]"), sb);
+
+        assertEquals("one row", 1, rows);
+        assertEquals(
+                "escaped and closed",
+                "<tr><td>&lt;script&gt;&amp;</td>" +
+                        "<td><span class=\"puppetOk\">complete</span></td>" +
+                        "<td>abc</td></tr>",
+                sb.toString()
+        );
+    }
+
+    @Test
+    public void testHtmlRowsPaged() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int total = DeployResultRenderer.htmlTableRows(new StringReader(read("deploy_mixed.json")), sb, 2, 3);
+
+        assertEquals("total environments reported", 6, total);
+        assertEquals("page of rows", 3, sb.toString().split("</tr>").length);
+        assertTrue("starts at offset", sb.toString().startsWith("<tr><td>fail_onceover</td>"));
+        assertFalse("stops at limit", sb.toString().contains("production"));
+    }
+
+    @Test(expected=CodeManagerException.class)
+    public void testHtmlRowsErrorDocument() throws IOException {
+        DeployResultRenderer.htmlTableRows(new StringReader(read("puppet_general_fail.json")), new StringBuilder());
+    }
+
+    @Test
+    public void testPrettyJsonMatchesGson() throws IOException {
+        for (String file : new String[] {"deploy_mixed.json", "deploys_status.json", "puppet_general_fail.json"}) {
+            String json = read(file);
+            StringWriter sw = new StringWriter();
+            DeployResultRenderer.prettyJson(new StringReader(json), sw);
+
+            assertEquals(
+                    "same layout as Gson: " + file,
+                    new GsonBuilder().setPrettyPrinting().create().toJson(new JsonParser().parse(json)),
+                    sw.toString()
+            );
+        }
+    }
+
+    @Test(expected=MalformedJsonException.class)
+    public void testPrettyJsonNotJson() throws IOException {
+        DeployResultRenderer.prettyJson(new StringReader("not=json"), new StringWriter());
+    }
+
+    @Test
+    public void testSummary() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int count = DeployResultRenderer.summary(new StringReader(read("deploy_mixed.json")), sb);
+
+        assertEquals("all environments counted", 6, count);
+        assertEquals(
+                "compact summary",
+                "6 environments: 5 complete, 1 failed\nfailed: fail_code_quality\n",
+                sb.toString()
+        );
+    }
+}
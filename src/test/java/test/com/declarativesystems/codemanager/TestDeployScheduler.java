@@ -0,0 +1,204 @@
+package test.com.declarativesystems.codemanager;
+
+import com.declarativesystems.pejava.codemanager.Deploy;
+import com.declarativesystems.pejava.codemanager.DeployImpl;
+import com.declarativesystems.pejava.codemanager.DeployPriorities;
+import com.declarativesystems.pejava.codemanager.DeployResult;
+import com.declarativesystems.pejava.codemanager.DeployScheduler;
+import com.declarativesystems.pejava.codemanager.PuppetMaster;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestDeployScheduler {
+    private static final PuppetMaster MASTER = new PuppetMaster("puppet.megacorp.com", "token", null);
+
+    /**
+     * Records the order deployments are sent in. The first one blocks until
+     * released so the rest pile up in the queue
+     */
+    private static class RecordingDeploy implements Deploy {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public String deployCode(String puppetMasterFqdn, String token, String caCert, String[] environment) {
+            return deployCode(puppetMasterFqdn, token, caCert, environment, false);
+        }
+
+        @Override
+        public String deployCode(String puppetMasterFqdn, String token, String caCert, String[] environment, boolean wait) {
+            String name = environment[0];
+            if (name.equals("broken")) {
+                throw new NoClassDefFoundError(name);
+            }
+            order.add(name);
+            if (order.size() == 1) {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return "[{\"environment\":\"" + name + "\",\"status\":\"complete\"}]";
+        }
+    }
+
+    private static String[] env(String name) {
+        return new String[]{name};
+    }
+
+    @Test
+    public void testPriorityFromEnvironmentName() {
+        assertEquals("production", 100, DeployPriorities.DEFAULT.priorityOf(env("production")));
+        assertEquals("release", 50, DeployPriorities.DEFAULT.priorityOf(env("release_2019_1")));
+        assertEquals("branch", 0, DeployPriorities.DEFAULT.priorityOf(env("feature_x")));
+        assertEquals("most urgent wins", 100, DeployPriorities.DEFAULT.priorityOf(new String[]{"feature_x", "production"}));
+        assertEquals("deploy-all includes production", 100, DeployPriorities.DEFAULT.priorityOf((String[]) null));
+    }
+
+    @Test
+    public void testUrgentDeploysJumpTheQueue() throws Exception {
+        RecordingDeploy deploy = new RecordingDeploy();
+        try (DeployScheduler scheduler = new DeployScheduler(deploy, 1, 100)) {
+            CompletableFuture<List<DeployResult>> blocker = scheduler.submit(MASTER, env("feature_a"), false);
+            assertTrue("first started", deploy.started.await(10, TimeUnit.SECONDS));
+
+            List<CompletableFuture<List<DeployResult>>> futures = new ArrayList<>();
+            for (String name : new String[]{"feature_b", "feature_c", "production", "release_1"}) {
+                futures.add(scheduler.submit(MASTER, env(name), false));
+            }
+            assertEquals("queued", 4, scheduler.getQueueStats(MASTER.getFqdn()).getQueued());
+            assertEquals("running", 1, scheduler.getQueueStats(MASTER.getFqdn()).getRunning());
+            assertEquals("production waiting", 100, scheduler.getQueueStats(MASTER.getFqdn()).getHighestQueuedPriority());
+
+            deploy.release.countDown();
+            blocker.get(10, TimeUnit.SECONDS);
+            for (CompletableFuture<List<DeployResult>> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+
+            assertEquals(
+                    "most urgent first, then in arrival order",
+                    Arrays.asList("feature_a", "production", "release_1", "feature_b", "feature_c"),
+                    deploy.order
+            );
+            assertEquals("all completed", 5, scheduler.getQueueStats(MASTER.getFqdn()).getCompleted());
+        }
+    }
+
+    @Test
+    public void testAgeingPreventsStarvation() throws Exception {
+        RecordingDeploy deploy = new RecordingDeploy();
+        try (DeployScheduler scheduler = new DeployScheduler(deploy, 1, 100, 10, DeployPriorities.DEFAULT)) {
+            scheduler.submit(MASTER, env("feature_a"), false);
+            assertTrue("first started", deploy.started.await(10, TimeUnit.SECONDS));
+
+            CompletableFuture<List<DeployResult>> old = scheduler.submit(MASTER, env("feature_old"), false);
+            // 10 priority levels of waiting
+            Thread.sleep(100);
+            CompletableFuture<List<DeployResult>> newer = scheduler.submit(MASTER, env("feature_new"), false, 5);
+
+            deploy.release.countDown();
+            old.get(10, TimeUnit.SECONDS);
+            newer.get(10, TimeUnit.SECONDS);
+            assertEquals("aged deploy first", "feature_old", deploy.order.get(1));
+        }
+    }
+
+    @Test
+    public void testFullQueueDisplacesLeastUrgent() throws Exception {
+        RecordingDeploy deploy = new RecordingDeploy();
+        try (DeployScheduler scheduler = new DeployScheduler(deploy, 1, 2)) {
+            scheduler.submit(MASTER, env("feature_a"), false);
+            assertTrue("first started", deploy.started.await(10, TimeUnit.SECONDS));
+
+            CompletableFuture<List<DeployResult>> b = scheduler.submit(MASTER, env("feature_b"), false);
+            CompletableFuture<List<DeployResult>> c = scheduler.submit(MASTER, env("feature_c"), false);
+            CompletableFuture<List<DeployResult>> production = scheduler.submit(MASTER, env("production"), false);
+            CompletableFuture<List<DeployResult>> d = scheduler.submit(MASTER, env("feature_d"), false);
+
+            assertRejected("newest branch displaced", c);
+            assertRejected("no room for another branch", d);
+            assertEquals("rejections counted", 2, scheduler.getQueueStats(MASTER.getFqdn()).getRejected());
+
+            deploy.release.countDown();
+            assertEquals("production deployed", "production", production.get(10, TimeUnit.SECONDS).get(0).getEnvironment());
+            b.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testCancelLeavesQueue() throws Exception {
+        RecordingDeploy deploy = new RecordingDeploy();
+        try (DeployScheduler scheduler = new DeployScheduler(deploy, 1, 10)) {
+            scheduler.submit(MASTER, env("feature_a"), false);
+            assertTrue("first started", deploy.started.await(10, TimeUnit.SECONDS));
+
+            CompletableFuture<List<DeployResult>> b = scheduler.submit(MASTER, env("feature_b"), false);
+            CompletableFuture<List<DeployResult>> c = scheduler.submit(MASTER, env("feature_c"), false);
+            b.cancel(false);
+            assertEquals("one left", 1, scheduler.getQueueStats(MASTER.getFqdn()).getQueued());
+
+            deploy.release.countDown();
+            c.get(10, TimeUnit.SECONDS);
+            assertFalse("cancelled never sent", deploy.order.contains("feature_b"));
+        }
+    }
+
+    @Test
+    public void testErrorCompletesFuture() throws Exception {
+        RecordingDeploy deploy = new RecordingDeploy();
+        deploy.release.countDown();
+        try (DeployScheduler scheduler = new DeployScheduler(deploy, 1, 10)) {
+            CompletableFuture<List<DeployResult>> broken = scheduler.submit(MASTER, env("broken"), false);
+            CompletableFuture<List<DeployResult>> next = scheduler.submit(MASTER, env("feature_a"), false);
+            try {
+                broken.get(10, TimeUnit.SECONDS);
+                fail("error swallowed");
+            } catch (ExecutionException e) {
+                assertTrue("error passed on", e.getCause() instanceof NoClassDefFoundError);
+            }
+            assertEquals("worker freed", "feature_a", next.get(10, TimeUnit.SECONDS).get(0).getEnvironment());
+        }
+    }
+
+    @Test
+    public void testWorkersPerMaster() throws Exception {
+        try (MockCodeManager mock = new MockCodeManager().start().setDeployLatency(50);
+             DeployImpl deployImpl = new DeployImpl();
+             DeployScheduler scheduler = new DeployScheduler(deployImpl, 2, 100)) {
+            PuppetMaster master = new PuppetMaster(mock.getAddress(), MockCodeManager.TOKEN_OK, MockCodeManager.caCert());
+            List<CompletableFuture<List<DeployResult>>> futures = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                futures.add(scheduler.submit(master, env("environment_" + i), true));
+            }
+            for (CompletableFuture<List<DeployResult>> future : futures) {
+                assertEquals("deployed", DeployResult.STATUS_OK, future.get(10, TimeUnit.SECONDS).get(0).getStatus());
+            }
+            assertTrue("at most 2 at once", mock.getMaxConcurrentRequests() <= 2);
+            assertEquals("all completed", 6, scheduler.getQueueStats(master.getFqdn()).getCompleted());
+        }
+    }
+
+    private static void assertRejected(String message, CompletableFuture<List<DeployResult>> future) throws Exception {
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail(message);
+        } catch (ExecutionException e) {
+            assertTrue(message, e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package test.com.declarativesystems.codemanager;
+
+import com.declarativesystems.pejava.codemanager.DeployResult;
+import com.declarativesystems.pejava.codemanager.DeployStatus;
+import com.declarativesystems.pejava.codemanager.DeployStatusPoller;
+import com.declarativesystems.pejava.codemanager.PollingPolicy;
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestDeployStatus {
+    private final static PollingPolicy FAST = new PollingPolicy(1, 10, 2, 5000);
+
+    private static DeployStatus status(String json) throws IOException {
+        return DeployStatus.parse(new StringReader(json));
+    }
+
+    private static String statusJson(String deploysStatus, String deployed) {
+        return "{\"deploys-status\":{" + deploysStatus + "}," +
+                "\"file-sync-storage-status\":{\"deployed\":[" + deployed + "]}}";
+    }
+
+    @Test
+    public void testParseStatus() throws IOException {
+        DeployStatus status = DeployStatus.parse(new FileInputStream("src/test/resources/deploys_status.json"));
+
+        assertTrue("deploying is pending", status.isPending(3));
+        assertEquals("state parsed", "deploying", status.getPendingState(3));
+        assertTrue("queued is pending", status.isPending(4));
+        assertTrue("failed parsed", status.isFailed(1));
+        assertFalse("finished deploy not pending", status.isPending(2));
+        assertEquals(
+                "deployed signature parsed",
+                "9e5475a0dbfb705bf474af80cbdf56f0477e7dc3",
+                status.getDeployedSignature("production")
+        );
+    }
+
+    @Test
+    public void testPollingPolicyBackoff() {
+        PollingPolicy policy = new PollingPolicy(100, 1000, 2, 60000);
+        assertEquals("backs off", 200, policy.nextDelay(100, false));
+        assertEquals("capped", 1000, policy.nextDelay(800, false));
+        assertEquals("progress resets", 100, policy.nextDelay(800, true));
+    }
+
+    @Test
+    public void testAwaitUntilFinished() throws Exception {
+        List<DeployResult> queued = DeployResult.toDeployResult(
+                "[{\"environment\":\"production\",\"id\":10,\"status\":\"queued\"}," +
+                "{\"environment\":\"nothere\",\"id\":11,\"status\":\"queued\"}]");
+
+        Deque<DeployStatus> statuses = new ArrayDeque<>(Arrays.asList(
+                status(statusJson("\"queued\":[{\"environment\":\"production\",\"id\":10}],\"deploying\":[{\"environment\":\"nothere\",\"id\":11}]", "")),
+                status(statusJson("\"deploying\":[{\"environment\":\"production\",\"id\":10}],\"failed\":[{\"environment\":\"nothere\",\"id\":11}]", "")),
+                status(statusJson("\"failed\":[{\"environment\":\"nothere\",\"id\":11}]",
+                        "{\"environment\":\"production\",\"deploy-signature\":\"22811999e6cbeaf4b6be744a4d0b454b831f8999\"}"))
+        ));
+
+        List<DeployResult> results = DeployStatusPoller.await(queued, statuses::pop, FAST);
+
+        assertTrue("all statuses read", statuses.isEmpty());
+        assertEquals("order kept", "production", results.get(0).getEnvironment());
+        assertTrue("completed", results.get(0).isStatusOk());
+        assertEquals(
+                "signature from file sync",
+                "22811999e6cbeaf4b6be744a4d0b454b831f8999",
+                results.get(0).getDeploySignature()
+        );
+        assertEquals("failure detected", "failed", results.get(1).getStatus());
+        assertEquals("id kept", 11, results.get(1).getId());
+    }
+
+    @Test
+    public void testAwaitSurvivesConnectionErrors() throws Exception {
+        List<DeployResult> queued = DeployResult.toDeployResult(
+                "[{\"environment\":\"production\",\"id\":10,\"status\":\"queued\"}]");
+        DeployStatus running = status(statusJson("\"deploying\":[{\"environment\":\"production\",\"id\":10}]", ""));
+        DeployStatus done = status(statusJson("",
+                "{\"environment\":\"production\",\"deploy-signature\":\"22811999e6cbeaf4b6be744a4d0b454b831f8999\"}"));
+
+        int[] calls = {0};
+        List<DeployResult> results = DeployStatusPoller.await(queued, () -> {
+            calls[0]++;
+            if (calls[0] == 1 || calls[0] == 3) {
+                throw new SocketException("Connection reset");
+            }
+            return (calls[0] == 2) ? running : done;
+        }, FAST);
+
+        assertTrue("completed after errors", results.get(0).isStatusOk());
+    }
+
+    @Test
+    public void testFinishedBeforeFirstPoll() throws Exception {
+        // real status shape - no list of completed deploys
+        DeployStatus status = DeployStatus.parse(new FileInputStream("src/test/resources/deploys_status.json"));
+        List<DeployResult> queued = DeployResult.toDeployResult(
+                "[{\"environment\":\"production\",\"id\":2,\"status\":\"queued\"}," +
+                "{\"environment\":\"feature_a\",\"id\":3,\"status\":\"queued\"}]");
+
+        assertNull("still deploying", status.resultFor(queued.get(1)));
+        long start = System.currentTimeMillis();
+        List<DeployResult> results = DeployStatusPoller.await(
+                queued.subList(0, 1), () -> status, new PollingPolicy(1, 10, 2, 60000));
+
+        assertTrue("finished without being seen pending", results.get(0).isStatusOk());
+        assertEquals(
+                "signature from file sync",
+                "9e5475a0dbfb705bf474af80cbdf56f0477e7dc3",
+                results.get(0).getDeploySignature()
+        );
+        assertTrue("didn't wait for the deadline", System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testAwaitDeadline() throws Exception {
+        List<DeployResult> queued = DeployResult.toDeployResult(
+                "[{\"environment\":\"production\",\"id\":10,\"status\":\"queued\"}]");
+        DeployStatus stuck = status(statusJson("\"deploying\":[{\"environment\":\"production\",\"id\":10}]", ""));
+
+        List<DeployResult> results = DeployStatusPoller.await(
+                queued, () -> stuck, new PollingPolicy(1, 10, 2, 100));
+
+        assertEquals("last known state reported", "deploying", results.get(0).getStatus());
+        assertFalse("not ok", results.get(0).isOk());
+    }
+
+    @Test
+    public void testOnlyQueuedResultsPolled() throws Exception {
+        List<DeployResult> finished = DeployResult.toDeployResult(
+                "[{\"environment\":\"nothere\",\"id\":11,\"status\":\"failed\"}]");
+
+        List<DeployResult> results = DeployStatusPoller.await(finished, () -> {
+            throw new AssertionError("nothing to poll");
+        }, FAST);
+
+        assertEquals("result unchanged", "failed", results.get(0).getStatus());
+    }
+}
@@ -0,0 +1,117 @@
+package test.com.declarativesystems.codemanager;
+
+import com.declarativesystems.pejava.codemanager.Deploy;
+import com.declarativesystems.pejava.codemanager.FanOutDeploy;
+import com.declarativesystems.pejava.codemanager.MultiDeployResult;
+import com.declarativesystems.pejava.codemanager.PuppetMaster;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TestFanOutDeploy {
+    private final static String COMPLETE = "[{\"deploy-signature\":\"22811999e6cbeaf4b6be744a4d0b454b831f8999\",\"environment\":\"production\",\"id\":1,\"status\":\"complete\"}]";
+    private final static String FAILED = "[{\"environment\":\"production\",\"error\":{\"kind\":\"puppetlabs.code-manager/deploy-failure\"},\"id\":2,\"status\":\"failed\"}]";
+
+    /**
+     * Slow fake Code Manager that remembers how many deploys ran at once
+     */
+    private static class CountingDeploy implements Deploy {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+
+        @Override
+        public String deployCode(String puppetMasterFqdn, String token, String caCert, String[] environment) throws IOException {
+            return deployCode(puppetMasterFqdn, token, caCert, environment, false);
+        }
+
+        @Override
+        public String deployCode(String puppetMasterFqdn, String token, String caCert, String[] environment, boolean wait) throws IOException {
+            int now = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(now, Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+
+            if (puppetMasterFqdn.startsWith("down")) {
+                throw new UnknownHostException(puppetMasterFqdn);
+            }
+            return puppetMasterFqdn.startsWith("broken") ? FAILED : COMPLETE;
+        }
+    }
+
+    private static List<PuppetMaster> masters(String... fqdns) {
+        List<PuppetMaster> puppetMasters = new ArrayList<>();
+        for (String fqdn : fqdns) {
+            puppetMasters.add(new PuppetMaster(fqdn, "TOKEN", null));
+        }
+        return puppetMasters;
+    }
+
+    @Test
+    public void testAllMastersDeployed() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            CountingDeploy deploy = new CountingDeploy();
+            FanOutDeploy fanOut = new FanOutDeploy(deploy, 2, executor);
+
+            MultiDeployResult result = fanOut.deployCode(
+                    masters("puppet1", "puppet2", "puppet3", "puppet4", "puppet5"),
+                    new String[]{"production"},
+                    true);
+
+            assertTrue("all OK", result.isOk());
+            assertEquals("every master reported", 5, result.getResults().size());
+            assertEquals(
+                    "results in the order masters were given",
+                    Arrays.asList("puppet1", "puppet2", "puppet3", "puppet4", "puppet5"),
+                    new ArrayList<>(result.getResults().keySet())
+            );
+            assertTrue("parallelism bounded", deploy.maxInFlight.get() <= 2);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailuresReportedPerMaster() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            FanOutDeploy fanOut = new FanOutDeploy(new CountingDeploy(), 4, executor);
+
+            MultiDeployResult result = fanOut.deployCode(
+                    masters("puppet1", "broken1", "down1"),
+                    new String[]{"production"},
+                    true);
+
+            assertFalse("aggregate failed", result.isOk());
+            assertTrue("good master OK", result.isOk("puppet1"));
+            assertFalse("failed deploy detected", result.isOk("broken1"));
+            assertFalse("unreachable master detected", result.isOk("down1"));
+            assertTrue(
+                    "error recorded",
+                    result.getErrors().get("down1") instanceof UnknownHostException
+            );
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testDuplicateMasterRejected() {
+        new FanOutDeploy(new CountingDeploy(), 2, Runnable::run)
+                .deployCodeAsync(masters("puppet1", "puppet1"), null, false);
+    }
+}
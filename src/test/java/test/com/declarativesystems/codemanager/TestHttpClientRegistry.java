@@ -0,0 +1,92 @@
+package test.com.declarativesystems.codemanager;
+
+import com.declarativesystems.pejava.codemanager.HttpClientRegistry;
+import com.declarativesystems.pejava.codemanager.SslContextCache;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.HttpClient;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import java.security.cert.CertificateException;
+
+import static org.junit.Assert.*;
+
+public class TestHttpClientRegistry {
+
+    @Test
+    public void testClientReusedForSameMaster() throws Exception {
+        try (HttpClientRegistry registry = new HttpClientRegistry()) {
+            HttpClient first = registry.getClient("puppet.megacorp.com", null);
+            HttpClient second = registry.getClient("puppet.megacorp.com", null);
+
+            assertSame("same client returned for same master", first, second);
+            assertEquals("one client held", 1, registry.size());
+        }
+    }
+
+    @Test
+    public void testClientPerCaCert() throws Exception {
+        String cert = IOUtils.toString(this.getClass().getResourceAsStream("/ca.pem"));
+        try (HttpClientRegistry registry = new HttpClientRegistry()) {
+            HttpClient insecure = registry.getClient("puppet.megacorp.com", null);
+            HttpClient secure = registry.getClient("puppet.megacorp.com", cert);
+            HttpClient otherMaster = registry.getClient("puppet2.megacorp.com", cert);
+
+            assertNotSame("CA cert gives different client", insecure, secure);
+            assertNotSame("master gives different client", secure, otherMaster);
+            assertEquals("three clients held", 3, registry.size());
+        }
+    }
+
+    @Test
+    public void testCloseReleasesClients() throws Exception {
+        HttpClientRegistry registry = new HttpClientRegistry();
+        registry.getClient("puppet.megacorp.com", null);
+        registry.close();
+
+        assertEquals("no clients held after close", 0, registry.size());
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testClosedRegistryRejectsRequests() throws Exception {
+        HttpClientRegistry registry = new HttpClientRegistry();
+        registry.close();
+        registry.getClient("puppet.megacorp.com", null);
+    }
+
+    @Test(expected=CertificateException.class)
+    public void testGarbageCaCert() throws Exception {
+        try (HttpClientRegistry registry = new HttpClientRegistry()) {
+            registry.getClient("puppet.megacorp.com", "this is not a valid cert");
+        }
+    }
+
+    @Test
+    public void testSslContextCachedPerCaCert() throws Exception {
+        String cert = IOUtils.toString(this.getClass().getResourceAsStream("/ca.pem"));
+        SslContextCache cache = new SslContextCache();
+
+        SSLContext first = cache.get(cert);
+        assertSame("same context for same CA cert", first, cache.get(cert));
+        assertNotSame("insecure context is different", first, cache.get(null));
+        assertEquals("two contexts cached", 2, cache.size());
+    }
+
+    @Test
+    public void testSslContextSharedBetweenMasters() throws Exception {
+        String cert = IOUtils.toString(this.getClass().getResourceAsStream("/ca.pem"));
+        SslContextCache cache = new SslContextCache();
+        try (HttpClientRegistry registry = new HttpClientRegistry(
+                cache,
+                HttpClientRegistry.DEFAULT_MAX_PER_ROUTE,
+                HttpClientRegistry.DEFAULT_MAX_TOTAL,
+                HttpClientRegistry.DEFAULT_KEEP_ALIVE_MILLIS,
+                HttpClientRegistry.DEFAULT_MAX_IDLE_MILLIS)) {
+            registry.getClient("puppet.megacorp.com", cert);
+            registry.getClient("puppet2.megacorp.com", cert);
+            registry.getAsyncClient("puppet.megacorp.com", cert);
+
+            assertEquals("cert only parsed once", 1, cache.size());
+        }
+    }
+}
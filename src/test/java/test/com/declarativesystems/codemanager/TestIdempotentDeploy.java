@@ -0,0 +1,120 @@
+package test.com.declarativesystems.codemanager;
+
+import com.declarativesystems.pejava.codemanager.CodeManagerException;
+import com.declarativesystems.pejava.codemanager.DeployImpl;
+import com.declarativesystems.pejava.codemanager.DeployResult;
+import com.declarativesystems.pejava.codemanager.IdempotentDeploy;
+import com.declarativesystems.pejava.codemanager.PuppetMaster;
+import com.declarativesystems.pejava.codemanager.SignatureCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestIdempotentDeploy {
+    private MockCodeManager mockCodeManager;
+    private DeployImpl deploy;
+    private PuppetMaster puppetMaster;
+    private Map<String, String> target;
+
+    @Before
+    public void setup() throws Exception {
+        mockCodeManager = new MockCodeManager().start();
+        deploy = new DeployImpl();
+        puppetMaster = new PuppetMaster(mockCodeManager.getAddress(), MockCodeManager.TOKEN_OK, MockCodeManager.caCert());
+        target = new LinkedHashMap<>();
+        target.put("production", MockCodeManager.signature("production"));
+        target.put("development", MockCodeManager.signature("development"));
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        deploy.close();
+        mockCodeManager.close();
+    }
+
+    @Test
+    public void testDeployedEnvironmentsSkipped() throws Exception {
+        IdempotentDeploy idempotentDeploy = new IdempotentDeploy(deploy, new SignatureCache(SignatureCache.DEFAULT_TTL_MILLIS));
+        List<DeployResult> first = idempotentDeploy.deployCode(puppetMaster, target, true);
+        assertEquals("deployed", 1, mockCodeManager.getRequestCount());
+        assertTrue("ok", first.get(0).isOk() && first.get(1).isOk());
+
+        target.put("feature", MockCodeManager.signature("feature"));
+        List<DeployResult> second = idempotentDeploy.deployCode(puppetMaster, target, true);
+        assertEquals("only the new environment sent", 1, mockCodeManager.getEnvironmentsDeployed() - 2);
+        assertEquals("results in target order", "production", second.get(0).getEnvironment());
+        assertEquals("results in target order", "feature", second.get(2).getEnvironment());
+        for (DeployResult result : second) {
+            assertTrue(result.getEnvironment() + " ok", result.isOk());
+        }
+
+        idempotentDeploy.deployCodeAsync(puppetMaster, target, true, Runnable::run).get(10, TimeUnit.SECONDS);
+        assertEquals("nothing left to send", 2, mockCodeManager.getRequestCount());
+        assertEquals("skipped", 5, idempotentDeploy.getEnvironmentsSkipped());
+    }
+
+    @Test
+    public void testMismatchAndQueuedNotCached() throws Exception {
+        SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_TTL_MILLIS);
+        IdempotentDeploy idempotentDeploy = new IdempotentDeploy(deploy, cache);
+        mockCodeManager.setDeploySignature("development", "0000000000000000000000000000000000000000");
+
+        List<DeployResult> results = idempotentDeploy.deployCode(puppetMaster, target, true);
+        assertEquals("mismatch", DeployResult.MSG_MISMATCH, results.get(1).getStatusAsString());
+        assertNull("mismatch not cached", cache.get(puppetMaster.getFqdn(), "development"));
+        assertNotNull("ok cached", cache.get(puppetMaster.getFqdn(), "production"));
+
+        target.put("feature", MockCodeManager.signature("feature"));
+        idempotentDeploy.deployCode(puppetMaster, target, false);
+        assertNull("queued not cached", cache.get(puppetMaster.getFqdn(), "feature"));
+
+        mockCodeManager.failRequests(1, 400, MockCodeManager.KIND_DEPLOY_FAILURE);
+        cache.put(puppetMaster.getFqdn(), "feature", "stale");
+        try {
+            idempotentDeploy.deployCode(puppetMaster, target, true);
+            fail("error document should be thrown");
+        } catch (CodeManagerException e) {
+            assertEquals("kind", MockCodeManager.KIND_DEPLOY_FAILURE, e.getKind());
+        }
+        assertNull("invalidated by failure", cache.get(puppetMaster.getFqdn(), "feature"));
+        assertNotNull("skipped environment untouched", cache.get(puppetMaster.getFqdn(), "production"));
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        IdempotentDeploy idempotentDeploy = new IdempotentDeploy(deploy, new SignatureCache(50));
+        idempotentDeploy.deployCode(puppetMaster, target, true);
+        Thread.sleep(100);
+        idempotentDeploy.deployCode(puppetMaster, target, true);
+        assertEquals("expired entries redeployed", 2, mockCodeManager.getRequestCount());
+    }
+
+    @Test
+    public void testPersisted() throws Exception {
+        Path file = Files.createTempFile("pejava", ".cache");
+        try {
+            try (SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_TTL_MILLIS, file)) {
+                cache.put("puppet", "production", "abc");
+                cache.put("puppet", "development", "def");
+                cache.invalidate("puppet", "development");
+            }
+
+            SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_TTL_MILLIS, file);
+            assertEquals("loaded", "abc", cache.get("puppet", "production"));
+            assertNull("invalidated entry not saved", cache.get("puppet", "development"));
+            cache.invalidate("puppet");
+            assertEquals("master forgotten", 0, cache.size());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package test.com.declarativesystems.codemanager;
+
+import com.declarativesystems.pejava.codemanager.DeployImpl;
+import com.declarativesystems.pejava.codemanager.DeployResult;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class TestJfrEvents {
+    private static final String PREFIX = "com.declarativesystems.pejava.";
+    private static MockCodeManager mockCodeManager;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        mockCodeManager = new MockCodeManager().start();
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        if (mockCodeManager != null) {
+            mockCodeManager.close();
+        }
+    }
+
+    private static List<RecordedEvent> events(List<RecordedEvent> all, String name) {
+        return all.stream()
+                .filter(e -> e.getEventType().getName().equals(PREFIX + name))
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testDeployLifecycleRecorded() throws Exception {
+        String master = mockCodeManager.getAddress();
+        Map<String, String> target = new LinkedHashMap<>();
+        target.put("production", MockCodeManager.signature("production"));
+        target.put("development", MockCodeManager.signature("development"));
+
+        Path dump = Files.createTempFile("pejava", ".jfr");
+        List<RecordedEvent> all;
+        try (Recording recording = new Recording()) {
+            for (String name : new String[]{"DeployRequest", "TlsSetup", "ResponseParse", "Reconciliation"}) {
+                recording.enable(PREFIX + name).withoutThreshold();
+            }
+            recording.start();
+
+            String response;
+            try (DeployImpl deploy = new DeployImpl()) {
+                response = deploy.deployCode(
+                        master, MockCodeManager.TOKEN_OK, MockCodeManager.caCert(),
+                        new String[]{"production", "development"}, true);
+            }
+            DeployResult.checkDeployResult(response, target);
+
+            recording.stop();
+            recording.dump(dump);
+            all = RecordingFile.readAllEvents(dump);
+        } finally {
+            Files.deleteIfExists(dump);
+        }
+
+        List<RecordedEvent> requests = events(all, "DeployRequest");
+        assertEquals("one request", 1, requests.size());
+        RecordedEvent request = requests.get(0);
+        assertEquals("master", master, request.getString("master"));
+        assertEquals("environment count", 2, request.getInt("environmentCount"));
+        assertTrue("wait", request.getBoolean("wait"));
+        assertTrue("bytes out", request.getLong("bytesOut") > 0);
+        assertTrue("bytes in", request.getLong("bytesIn") > 0);
+
+        List<RecordedEvent> tls = events(all, "TlsSetup");
+        assertEquals("context and handshake", 2, tls.size());
+        assertNotNull("handshake protocol", tls.get(1).getString("protocol"));
+
+        RecordedEvent parse = events(all, "ResponseParse").get(0);
+        assertEquals("results parsed", 2, parse.getInt("resultCount"));
+        assertFalse("parsed ok", parse.getBoolean("failed"));
+
+        List<RecordedEvent> reconciliations = events(all, "Reconciliation");
+        assertEquals("one reconciliation", 1, reconciliations.size());
+        assertEquals("both ok", 2, reconciliations.get(0).getInt("ok"));
+    }
+
+    @Test
+    public void testNoRecordingIsHarmless() throws Exception {
+        String response = FileUtils.readFileToString(new File("src/test/resources/deploy_mixed.json"));
+        assertEquals("still parses", 6, DeployResult.toDeployResult(response).size());
+    }
+}
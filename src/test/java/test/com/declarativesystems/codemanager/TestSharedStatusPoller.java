@@ -0,0 +1,136 @@
+package test.com.declarativesystems.codemanager;
+
+import com.declarativesystems.pejava.codemanager.CodeManagerException;
+import com.declarativesystems.pejava.codemanager.DeployImpl;
+import com.declarativesystems.pejava.codemanager.DeployResult;
+import com.declarativesystems.pejava.codemanager.PollingPolicy;
+import com.declarativesystems.pejava.codemanager.PuppetMaster;
+import com.declarativesystems.pejava.codemanager.SharedStatusPoller;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestSharedStatusPoller {
+    private static final PollingPolicy FAST_POLL = new PollingPolicy(50, 50, 1, 10 * 1000);
+    private MockCodeManager mockCodeManager;
+    private DeployImpl deploy;
+    private ExecutorService executor;
+    private PuppetMaster puppetMaster;
+
+    @Before
+    public void setup() throws Exception {
+        mockCodeManager = new MockCodeManager(32).start();
+        deploy = new DeployImpl();
+        executor = Executors.newFixedThreadPool(4);
+        puppetMaster = new PuppetMaster(mockCodeManager.getAddress(), MockCodeManager.TOKEN_OK, MockCodeManager.caCert());
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        executor.shutdownNow();
+        deploy.close();
+        mockCodeManager.close();
+    }
+
+    @Test
+    public void testWaitersShareRequests() throws Exception {
+        mockCodeManager.setDeployLatency(300);
+        try (SharedStatusPoller poller = new SharedStatusPoller(deploy, FAST_POLL, executor)) {
+            List<CompletableFuture<List<DeployResult>>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                futures.add(poller.deployCode(puppetMaster, new String[]{"feature_" + i}));
+            }
+            for (int i = 0; i < 20; i++) {
+                DeployResult result = futures.get(i).get(10, TimeUnit.SECONDS).get(0);
+                assertEquals("environment", "feature_" + i, result.getEnvironment());
+                assertEquals("finished", DeployResult.STATUS_OK, result.getStatus());
+            }
+
+            // 20 separate pollers would make at least 20 * 300 / 50 requests
+            assertTrue("polls shared: " + poller.getPollCount(), poller.getPollCount() < 30);
+            assertEquals("nothing outstanding", 0, poller.getOutstanding(puppetMaster.getFqdn()));
+        }
+    }
+
+    @Test
+    public void testNotQueuedCompletesImmediately() throws Exception {
+        try (SharedStatusPoller poller = new SharedStatusPoller(deploy, FAST_POLL, executor)) {
+            DeployResult complete = DeployResult.toDeployResult(
+                    "[{\"environment\":\"production\",\"id\":1,\"status\":\"complete\"}]").get(0);
+            assertSame("same result", complete, poller.await(puppetMaster, complete).get());
+            assertEquals("no polling", 0, poller.getPollCount());
+        }
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        mockCodeManager.setDeployLatency(5000);
+        try (SharedStatusPoller poller = new SharedStatusPoller(deploy, new PollingPolicy(50, 50, 1, 300), executor)) {
+            DeployResult result = poller.deployCode(puppetMaster, new String[]{"production"})
+                    .get(10, TimeUnit.SECONDS).get(0);
+            assertFalse("not finished", DeployResult.STATUS_OK.equals(result.getStatus()));
+        }
+    }
+
+    @Test
+    public void testCodeManagerErrorFailsWaiters() throws Exception {
+        PuppetMaster revoked = new PuppetMaster(mockCodeManager.getAddress(), "REVOKED", MockCodeManager.caCert());
+        DeployResult queued = DeployResult.toDeployResult(
+                "[{\"environment\":\"production\",\"id\":99,\"status\":\"queued\"}]").get(0);
+        try (SharedStatusPoller poller = new SharedStatusPoller(deploy, FAST_POLL, executor)) {
+            poller.await(revoked, queued).get(10, TimeUnit.SECONDS);
+            fail("token revoked");
+        } catch (ExecutionException e) {
+            assertTrue("code manager error", e.getCause() instanceof CodeManagerException);
+        }
+    }
+
+    @Test
+    public void testWaitersKeepTheirOwnCredentials() throws Exception {
+        mockCodeManager.setDeployLatency(300);
+        PuppetMaster revoked = new PuppetMaster(mockCodeManager.getAddress(), "REVOKED", MockCodeManager.caCert());
+        DeployResult unknown = DeployResult.toDeployResult(
+                "[{\"environment\":\"production\",\"id\":99,\"status\":\"queued\"}]").get(0);
+        try (SharedStatusPoller poller = new SharedStatusPoller(deploy, FAST_POLL, executor)) {
+            DeployResult queued = deploy.deployCodeAsync(
+                    puppetMaster.getFqdn(), puppetMaster.getToken(), puppetMaster.getCaCert(), new String[]{"production"}, false, executor
+            ).get(10, TimeUnit.SECONDS).get(0);
+            CompletableFuture<DeployResult> good = poller.await(puppetMaster, queued);
+            // same master, registered last, with a token that doesn't work
+            CompletableFuture<DeployResult> bad = poller.await(revoked, unknown);
+            assertEquals("both outstanding", 2, poller.getOutstanding(puppetMaster.getFqdn()));
+
+            try {
+                bad.get(10, TimeUnit.SECONDS);
+                fail("token revoked");
+            } catch (ExecutionException e) {
+                assertTrue("code manager error", e.getCause() instanceof CodeManagerException);
+            }
+            assertEquals("polled with its own token", DeployResult.STATUS_OK, good.get(10, TimeUnit.SECONDS).getStatus());
+        }
+    }
+
+    @Test
+    public void testRejectedExecutorFailsWaiters() throws Exception {
+        DeployResult queued = DeployResult.toDeployResult(
+                "[{\"environment\":\"production\",\"id\":99,\"status\":\"queued\"}]").get(0);
+        executor.shutdown();
+        try (SharedStatusPoller poller = new SharedStatusPoller(deploy, FAST_POLL, executor)) {
+            poller.await(puppetMaster, queued).get(10, TimeUnit.SECONDS);
+            fail("nothing to poll on");
+        } catch (ExecutionException e) {
+            assertTrue("rejected", e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+}
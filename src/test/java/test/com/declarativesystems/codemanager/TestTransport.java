@@ -0,0 +1,121 @@
+package test.com.declarativesystems.codemanager;
+
+import com.declarativesystems.pejava.codemanager.ApacheAsyncTransport;
+import com.declarativesystems.pejava.codemanager.ApacheTransport;
+import com.declarativesystems.pejava.codemanager.CodeManagerException;
+import com.declarativesystems.pejava.codemanager.DeployImpl;
+import com.declarativesystems.pejava.codemanager.DeployMetrics;
+import com.declarativesystems.pejava.codemanager.DeployResult;
+import com.declarativesystems.pejava.codemanager.DeployStatus;
+import com.declarativesystems.pejava.codemanager.JdkHttpTransport;
+import com.declarativesystems.pejava.codemanager.Transport;
+import com.declarativesystems.pejava.codemanager.TransportRequest;
+import com.declarativesystems.pejava.codemanager.TransportResponse;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestTransport {
+    private static MockCodeManager mockCodeManager;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        mockCodeManager = new MockCodeManager().start();
+    }
+
+    @AfterClass
+    public static void cleanup() {
+        if (mockCodeManager != null) {
+            mockCodeManager.close();
+        }
+    }
+
+    /**
+     * Sync and async deployments, status and error documents all behave the
+     * same whichever transport is used
+     */
+    private void exercise(Transport transport) throws Exception {
+        String master = mockCodeManager.getAddress();
+        String caCert = MockCodeManager.caCert();
+        try (DeployImpl deploy = new DeployImpl(transport, DeployMetrics.NOOP)) {
+            List<DeployResult> results = DeployResult.toDeployResultOrThrow(
+                    deploy.deployCode(master, MockCodeManager.TOKEN_OK, caCert, new String[]{"production"}, true));
+            assertEquals("sync deployed", DeployResult.STATUS_OK, results.get(0).getStatus());
+
+            results = deploy.deployCodeAsync(master, MockCodeManager.TOKEN_OK, caCert, new String[]{"production", MockCodeManager.BAD_ENVIRONMENT}, true, Runnable::run)
+                    .get(10, TimeUnit.SECONDS);
+            assertEquals("async deployed", DeployResult.STATUS_OK, results.get(0).getStatus());
+            assertEquals("async failure reported", DeployResult.STATUS_FAILED, results.get(1).getStatus());
+
+            DeployStatus status = deploy.fetchDeployStatus(master, MockCodeManager.TOKEN_OK, caCert);
+            assertNotNull("status read", status);
+
+            try {
+                deploy.deployCodeAsync(master, "nonsense", caCert, new String[]{"production"}, true, Runnable::run)
+                        .get(10, TimeUnit.SECONDS);
+                fail("bad token accepted");
+            } catch (ExecutionException e) {
+                assertTrue("error document " + e.getCause(), e.getCause() instanceof CodeManagerException);
+            }
+        }
+    }
+
+    @Test
+    public void testApacheTransport() throws Exception {
+        exercise(new ApacheTransport());
+    }
+
+    @Test
+    public void testApacheAsyncTransport() throws Exception {
+        exercise(new ApacheAsyncTransport());
+    }
+
+    @Test
+    public void testJdkHttpTransport() throws Exception {
+        Assume.assumeTrue(JdkHttpTransport.isAvailable());
+        JdkHttpTransport transport = new JdkHttpTransport();
+        exercise(transport);
+
+        // HTTP/2 isn't offered by the mock so ALPN falls back
+        try (TransportResponse response = transport.execute(new TransportRequest(
+                TransportRequest.GET,
+                mockCodeManager.getAddress(),
+                MockCodeManager.caCert(),
+                "/code-manager/v1/deploys/status",
+                MockCodeManager.TOKEN_OK,
+                null))) {
+            assertEquals("status", 200, response.getStatus());
+            assertEquals("protocol", "HTTP/1.1", response.getProtocol());
+        }
+        assertEquals("one client per CA cert", 1, transport.size());
+    }
+
+    @Test
+    public void testCancelAborts() throws Exception {
+        mockCodeManager.setDeployLatency(2000);
+        try (DeployImpl deploy = new DeployImpl(new ApacheTransport(), DeployMetrics.NOOP)) {
+            CompletableFuture<List<DeployResult>> future = deploy.deployCodeAsync(
+                    mockCodeManager.getAddress(), MockCodeManager.TOKEN_OK, MockCodeManager.caCert(), new String[]{"production"}, true, Runnable::run);
+            Thread.sleep(100);
+            assertTrue("cancelled", future.cancel(true));
+            try {
+                future.get(1, TimeUnit.SECONDS);
+                fail("cancelled future completed");
+            } catch (CancellationException e) {
+                // expected
+            }
+            assertEquals("not counted as a failure", 0, deploy.getCircuitBreaker(mockCodeManager.getAddress()).getFailures());
+        } finally {
+            mockCodeManager.setDeployLatency(0);
+        }
+    }
+}
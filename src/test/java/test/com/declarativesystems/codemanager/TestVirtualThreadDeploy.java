@@ -0,0 +1,163 @@
+package test.com.declarativesystems.codemanager;
+
+import com.declarativesystems.pejava.codemanager.CodeManagerException;
+import com.declarativesystems.pejava.codemanager.DeployImpl;
+import com.declarativesystems.pejava.codemanager.DeployScope;
+import com.declarativesystems.pejava.codemanager.MultiDeployResult;
+import com.declarativesystems.pejava.codemanager.PuppetMaster;
+import com.declarativesystems.pejava.codemanager.Reconciliation;
+import com.declarativesystems.pejava.codemanager.VirtualThreadDeploy;
+import com.declarativesystems.pejava.codemanager.VirtualThreads;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class TestVirtualThreadDeploy {
+    private MockCodeManager mockCodeManager;
+    private DeployImpl deploy;
+    private PuppetMaster puppetMaster;
+    private VirtualThreadDeploy virtualThreadDeploy;
+
+    @Before
+    public void setup() throws Exception {
+        mockCodeManager = new MockCodeManager().start();
+        deploy = new DeployImpl();
+        puppetMaster = new PuppetMaster(mockCodeManager.getAddress(), MockCodeManager.TOKEN_OK, MockCodeManager.caCert());
+        virtualThreadDeploy = new VirtualThreadDeploy(deploy);
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        deploy.close();
+        mockCodeManager.close();
+    }
+
+    private static Map<String, String> target(int count) {
+        Map<String, String> target = new LinkedHashMap<>();
+        for (int i = 0 ; i < count ; i++) {
+            target.put("environment_" + i, MockCodeManager.signature("environment_" + i));
+        }
+        return target;
+    }
+
+    @Test
+    public void testDeployAndVerify() throws Exception {
+        Map<String, String> target = target(3);
+        mockCodeManager.setDeploySignature("environment_2", "0000000000000000000000000000000000000000");
+
+        Reconciliation reconciliation = virtualThreadDeploy.deployAndVerify(puppetMaster, target, 10000);
+        assertEquals("deployed", 2, reconciliation.count(Reconciliation.Outcome.OK));
+        assertEquals("wrong commit spotted", Reconciliation.Outcome.MISMATCH, reconciliation.getOutcome("environment_2"));
+        assertEquals("one request", 1, mockCodeManager.getRequestCount());
+    }
+
+    @Test
+    public void testDeployEach() throws Exception {
+        mockCodeManager.setDeployLatency(50);
+        Reconciliation reconciliation = virtualThreadDeploy.deployEach(puppetMaster, target(20), 10000);
+
+        assertTrue("all OK " + reconciliation, reconciliation.isOk());
+        assertEquals("request per environment", 20, mockCodeManager.getRequestCount());
+        assertTrue("waited concurrently", mockCodeManager.getMaxConcurrentRequests() > 1);
+        assertEquals("results in target order", "environment_0", reconciliation.getResults().get(0).getEnvironment());
+    }
+
+    @Test
+    public void testDeadlineCancels() throws Exception {
+        mockCodeManager.setDeployLatency(5000);
+        long start = System.currentTimeMillis();
+        try {
+            virtualThreadDeploy.deployAndVerify(puppetMaster, target(1), 200);
+            fail("deadline ignored");
+        } catch (TimeoutException e) {
+            assertTrue("gave up promptly", System.currentTimeMillis() - start < 2000);
+        }
+
+        try (MockCodeManager other = new MockCodeManager().start()) {
+            PuppetMaster badToken = new PuppetMaster(other.getAddress(), "nonsense", MockCodeManager.caCert());
+            MultiDeployResult result = virtualThreadDeploy.deployAndVerify(Arrays.asList(puppetMaster, badToken), target(1), 500);
+
+            assertTrue("slow master timed out", result.getErrors().get(puppetMaster.getFqdn()) instanceof TimeoutException);
+            assertTrue("bad token reported", result.getErrors().get(badToken.getFqdn()) instanceof CodeManagerException);
+        }
+    }
+
+    @Test
+    public void testScopeFailureCancelsSiblings() throws Exception {
+        AtomicBoolean interrupted = new AtomicBoolean();
+        CountDownLatch started = new CountDownLatch(1);
+        try (DeployScope scope = new DeployScope("test", 10000)) {
+            Future<Object> sibling = scope.fork(() -> {
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                    throw e;
+                }
+                return null;
+            });
+            started.await();
+            scope.fork(() -> {
+                throw new IllegalStateException("boom");
+            });
+
+            try {
+                scope.join();
+                fail("failure ignored");
+            } catch (ExecutionException e) {
+                assertTrue("first failure", e.getCause() instanceof IllegalStateException);
+            }
+            assertTrue("sibling cancelled", sibling.isCancelled());
+        }
+        assertTrue("sibling interrupted before close returned", interrupted.get());
+    }
+
+    @Test
+    public void testScopesDontPinCarriers() throws Exception {
+        Assume.assumeTrue(VirtualThreads.isAvailable());
+
+        // every subtask has to be running at once, so joiners holding on to
+        // their carriers would starve them
+        int scopes = Runtime.getRuntime().availableProcessors() * 4;
+        CountDownLatch allRunning = new CountDownLatch(scopes);
+        ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor("test-joiner");
+        try {
+            List<Future<Object>> joined = new ArrayList<>();
+            for (int i = 0; i < scopes; i++) {
+                joined.add(executor.submit(() -> {
+                    try (DeployScope scope = new DeployScope("test", 10000)) {
+                        scope.fork(() -> {
+                            allRunning.countDown();
+                            allRunning.await();
+                            return null;
+                        });
+                        scope.join();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Object> future : joined) {
+                future.get(20, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}